@@ -0,0 +1,136 @@
+package org.husonlab.fmhdist.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the input parameter of the benchmarks to a local FASTA file.
+ * <p>
+ * Names of the bundled test files (e.g. "virus1.fasta") are looked up in the
+ * directory given by the system property "fmhdist.resources" or in the
+ * src/test/resources directory of fmhdist. Names like "generated-16Mb" create
+ * a random multi-record FASTA file with the given number of megabases, 80
+ * bases per line and a few runs of N, so all code paths of the iterators are
+ * exercised. Generated files are deterministic and deleted on exit.
+ */
+public class BenchmarkInput {
+	public static final String RESOURCES_PROPERTY = "fmhdist.resources";
+
+	private static final Pattern GENERATED = Pattern.compile("generated-(\\d+)Mb");
+	private static final int LINE_LENGTH = 80;
+	private static final int RECORD_LENGTH = 1 << 20;
+	private static final int N_RUN_DISTANCE = 100000;
+	private static final int N_RUN_LENGTH = 50;
+
+	private final String path;
+	private final long bases;
+
+	private BenchmarkInput(String path, long bases) {
+		this.path = path;
+		this.bases = bases;
+	}
+
+	/**
+	 * Returns the path to the FASTA file.
+	 *
+	 * @return
+	 */
+	public String getPath() {
+		return this.path;
+	}
+
+	/**
+	 * Returns the number of bases in the file, i.e. all characters that are
+	 * neither part of a header nor whitespace.
+	 *
+	 * @return
+	 */
+	public long getBases() {
+		return this.bases;
+	}
+
+	public static BenchmarkInput resolve(String name) throws IOException {
+		Matcher matcher = GENERATED.matcher(name);
+		File file;
+		if (matcher.matches()) {
+			file = generate(Long.parseLong(matcher.group(1)) << 20);
+		} else {
+			file = findResource(name);
+		}
+		return new BenchmarkInput(file.getPath(), countBases(file));
+	}
+
+	private static File findResource(String name) throws IOException {
+		String configured = System.getProperty(RESOURCES_PROPERTY);
+		String[] candidates = configured != null
+				? new String[]{configured}
+				: new String[]{"src/test/resources", "../src/test/resources", "fmhdist/src/test/resources"};
+		for (String directory : candidates) {
+			File file = new File(directory, name);
+			if (file.isFile()) {
+				return file;
+			}
+		}
+		throw new IOException(String.format("could not find %s, set -D%s to the directory of the test FASTA files", name, RESOURCES_PROPERTY));
+	}
+
+	private static File generate(long bases) throws IOException {
+		File file = Files.createTempFile("fmhdist-benchmark", ".fasta").toFile();
+		file.deleteOnExit();
+		Random random = new Random(42);
+		byte[] alphabet = "ACGT".getBytes();
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()), 1 << 16)) {
+			long written = 0;
+			int record = 0;
+			while (written < bases) {
+				out.write(String.format(">generated_%d random sequence\n", record++).getBytes());
+				int length = (int) Math.min(RECORD_LENGTH, bases - written);
+				for (int i = 0; i < length; i++) {
+					if (i > 0 && i % LINE_LENGTH == 0) {
+						out.write('\n');
+					}
+					boolean isN = i % N_RUN_DISTANCE >= N_RUN_DISTANCE - N_RUN_LENGTH;
+					out.write(isN ? 'N' : alphabet[random.nextInt(4)]);
+				}
+				out.write('\n');
+				written += length;
+			}
+		}
+		return file;
+	}
+
+	private static long countBases(File file) throws IOException {
+		long bases = 0;
+		boolean isInHeader = false;
+		boolean isLineStart = true;
+		byte[] buffer = new byte[1 << 16];
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				for (int i = 0; i < read; i++) {
+					byte b = buffer[i];
+					if (b == '\n') {
+						isInHeader = false;
+						isLineStart = true;
+						continue;
+					}
+					if (isLineStart && b == '>') {
+						isInHeader = true;
+					}
+					isLineStart = false;
+					if (!isInHeader && b != '\r' && b != ' ' && b != '\t') {
+						bases++;
+					}
+				}
+			}
+		}
+		return bases;
+	}
+}
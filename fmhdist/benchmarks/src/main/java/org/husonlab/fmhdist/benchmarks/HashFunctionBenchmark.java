@@ -0,0 +1,89 @@
+package org.husonlab.fmhdist.benchmarks;
+
+import net.openhft.hashing.LongHashFunction;
+import org.husonlab.fmhdist.util.HashFunctionParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the hash functions supported by the HashFunctionParser in
+ * isolation. A random sequence is hashed once as byte k-mers (hashBytes() on
+ * every window, as done for the ByteKMerIterator) and once as 2-bit packed
+ * k-mers (hashLong(), as done for the PackedKMerIterator).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HashFunctionBenchmark {
+	private static final int SEQUENCE_LENGTH = 1 << 20;
+
+	@Param({HashFunctionParser.FARM_HASH_NAME, HashFunctionParser.MURMUR3_HASH_NAME, HashFunctionParser.METRO_HASH_NAME, HashFunctionParser.XX64_HASH_NAME})
+	public String hash;
+
+	@Param({"21", "31"})
+	public int k;
+
+	private LongHashFunction hashFunction;
+	private byte[] sequence;
+	private long[] packed;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		this.hashFunction = HashFunctionParser.createHashFunction(this.hash, 42);
+		Random random = new Random(42);
+		byte[] alphabet = "ACGT".getBytes();
+		this.sequence = new byte[SEQUENCE_LENGTH];
+		for (int i = 0; i < SEQUENCE_LENGTH; i++) {
+			this.sequence[i] = alphabet[random.nextInt(4)];
+		}
+
+		long mask = (1L << (2 * this.k)) - 1;
+		this.packed = new long[SEQUENCE_LENGTH - this.k + 1];
+		long kmer = 0;
+		for (int i = 0; i < SEQUENCE_LENGTH; i++) {
+			kmer = ((kmer << 2) | (this.sequence[i] == 'A' ? 0 : this.sequence[i] == 'C' ? 1 : this.sequence[i] == 'G' ? 2 : 3)) & mask;
+			if (i >= this.k - 1) {
+				this.packed[i - this.k + 1] = kmer;
+			}
+		}
+	}
+
+	@Benchmark
+	public void hashBytes(ThroughputCounters counters, Blackhole blackhole) {
+		final LongHashFunction hashFunction = this.hashFunction;
+		final byte[] sequence = this.sequence;
+		final int kmers = sequence.length - this.k + 1;
+		for (int i = 0; i < kmers; i++) {
+			blackhole.consume(hashFunction.hashBytes(sequence, i, this.k));
+		}
+		counters.kmers += kmers;
+		counters.bases += sequence.length;
+	}
+
+	@Benchmark
+	public void hashLong(ThroughputCounters counters, Blackhole blackhole) {
+		final LongHashFunction hashFunction = this.hashFunction;
+		for (long kmer : this.packed) {
+			blackhole.consume(hashFunction.hashLong(kmer));
+		}
+		counters.kmers += this.packed.length;
+		counters.bases += this.sequence.length;
+	}
+}
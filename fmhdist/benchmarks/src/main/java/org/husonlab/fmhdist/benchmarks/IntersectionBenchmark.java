@@ -0,0 +1,76 @@
+package org.husonlab.fmhdist.benchmarks;
+
+import org.husonlab.fmhdist.sketch.Distance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the intersection kernels of Distance for sketches of different
+ * sizes, e.g. a virus sketch with 2k hashes against a metagenome sketch with
+ * 2M hashes. About half of the hashes of the smaller sketch are part of the
+ * larger one. For sketches of similar size, the scalar merge is compared
+ * against the Vector API kernel, which is why the forked JVM is started with
+ * the jdk.incubator.vector module. The kernel is only part of fmhdist if it
+ * is built with -Pvector, otherwise vector() measures the scalar merge.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Benchmark)
+public class IntersectionBenchmark {
+	@Param({"2000", "20000", "2000000"})
+	public int smallSize;
+
+	@Param({"20000", "2000000"})
+	public int largeSize;
+
+	private long[] small;
+	private long[] large;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(42);
+		this.large = random.longs(this.largeSize).sorted().distinct().toArray();
+		this.small = new long[this.smallSize];
+		for (int i = 0; i < this.smallSize; i++) {
+			this.small[i] = i % 2 == 0 ? this.large[random.nextInt(this.large.length)] : random.nextLong();
+		}
+		this.small = Arrays.stream(this.small).sorted().distinct().toArray();
+	}
+
+	@Benchmark
+	public int merge() {
+		return Distance.getMergeIntersectionSize(this.small, this.large);
+	}
+
+	@Benchmark
+	public int galloping() {
+		return Distance.getGallopingIntersectionSize(this.small, this.large);
+	}
+
+	@Benchmark
+	public int vector() {
+		return Distance.getVectorIntersectionSize(this.small, this.large);
+	}
+
+	@Benchmark
+	public int adaptive() {
+		return Distance.getIntersectionSize(this.small, this.large);
+	}
+}
@@ -0,0 +1,63 @@
+package org.husonlab.fmhdist.benchmarks;
+
+import org.husonlab.fmhdist.util.KMerIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast each KMerIterator decomposes a FASTA file. Every
+ * invocation reads the complete file, including opening and closing it, and
+ * consumes the k-mer and its reverse complement. See KMerScanBenchmark for
+ * the push based decomposition.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KMerIteratorBenchmark {
+	@Param({KMerIterators.LINE, KMerIterators.FAST, KMerIterators.IN_MEMORY, KMerIterators.CONSUMER, KMerIterators.BYTE, KMerIterators.PACKED})
+	public String iterator;
+
+	@Param({"21"})
+	public int k;
+
+	@Param({"virus1.fasta", "fastaWith2Seq.fasta", "generated-8Mb"})
+	public String input;
+
+	private BenchmarkInput file;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		this.file = BenchmarkInput.resolve(this.input);
+	}
+
+	@Benchmark
+	public void iterate(ThroughputCounters counters, Blackhole blackhole) throws IOException {
+		long kmers = 0;
+		try (KMerIterator it = KMerIterators.open(this.iterator, this.k, this.file.getPath())) {
+			while (it.hasNext()) {
+				blackhole.consume(it.next());
+				blackhole.consume(it.getReverseComplement());
+				kmers++;
+			}
+		}
+		counters.kmers += kmers;
+		counters.bases += this.file.getBases();
+	}
+}
@@ -0,0 +1,96 @@
+package org.husonlab.fmhdist.benchmarks;
+
+import org.husonlab.fmhdist.util.ByteKMerIterator;
+import org.husonlab.fmhdist.util.KMerCoordinates;
+import org.husonlab.fmhdist.util.KMerIterator;
+import org.husonlab.fmhdist.util.LineKMerIterator;
+import org.husonlab.fmhdist.util.PackedKMerIterator;
+import org.husonlab.fmhdist.util.experimental.FastKMerIterator;
+import org.husonlab.fmhdist.util.experimental.FileProducer;
+import org.husonlab.fmhdist.util.experimental.InMemoryKMerIterator;
+import org.husonlab.fmhdist.util.experimental.LineKMerIteratorConsumer;
+
+import java.io.IOException;
+
+/**
+ * Creates the KMerIterator implementations by the names used as benchmark
+ * parameters.
+ */
+public class KMerIterators {
+	public static final String LINE = "line";
+	public static final String FAST = "fast";
+	public static final String IN_MEMORY = "inMemory";
+	public static final String CONSUMER = "consumer";
+	public static final String BYTE = "byte";
+	public static final String PACKED = "packed";
+
+	/**
+	 * Opens the iterator. For the LineKMerIteratorConsumer, a FileProducer is
+	 * started on a separate thread and closed together with the iterator.
+	 * Both busy-wait for each other, so this needs at least two free cores to
+	 * give meaningful results.
+	 *
+	 * @param name     one of the constants of this class
+	 * @param k        the k-mer size
+	 * @param fileName the FASTA file
+	 * @return
+	 * @throws IOException
+	 */
+	public static KMerIterator open(String name, int k, String fileName) throws IOException {
+		switch (name) {
+			case LINE:
+				return new LineKMerIterator(k, fileName, true);
+			case FAST:
+				return new FastKMerIterator(k, fileName, true);
+			case IN_MEMORY:
+				return new InMemoryKMerIterator(k, fileName, true);
+			case CONSUMER:
+				return openConsumer(k, fileName);
+			case BYTE:
+				return new ByteKMerIterator(k, fileName, true);
+			case PACKED:
+				return new PackedKMerIterator(k, fileName);
+		}
+		throw new IllegalArgumentException("unknown k-mer iterator " + name);
+	}
+
+	private static KMerIterator openConsumer(int k, String fileName) throws IOException {
+		final FileProducer producer = new FileProducer(1);
+		Thread thread = new Thread(producer::run, "producer");
+		thread.setDaemon(true);
+		thread.start();
+		final KMerIterator kmers = new LineKMerIteratorConsumer(k, fileName, producer, 0, true);
+		return new KMerIterator() {
+			@Override
+			public int getK() {
+				return kmers.getK();
+			}
+
+			@Override
+			public byte[] getReverseComplement() {
+				return kmers.getReverseComplement();
+			}
+
+			@Override
+			public KMerCoordinates getCoordinates() {
+				return kmers.getCoordinates();
+			}
+
+			@Override
+			public boolean hasNext() {
+				return kmers.hasNext();
+			}
+
+			@Override
+			public byte[] next() {
+				return kmers.next();
+			}
+
+			@Override
+			public void close() throws IOException {
+				kmers.close();
+				producer.close();
+			}
+		};
+	}
+}
@@ -0,0 +1,82 @@
+package org.husonlab.fmhdist.benchmarks;
+
+import org.husonlab.fmhdist.util.KMerScanner;
+import org.husonlab.fmhdist.util.KMerVisitor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Same as KMerIteratorBenchmark, but the k-mers are pushed to a KMerVisitor
+ * with KMerScanner.scan(). Only the iterators that implement KMerScanner are
+ * measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KMerScanBenchmark {
+	@Param({KMerIterators.BYTE, KMerIterators.PACKED})
+	public String iterator;
+
+	@Param({"21"})
+	public int k;
+
+	@Param({"virus1.fasta", "fastaWith2Seq.fasta", "generated-8Mb"})
+	public String input;
+
+	private BenchmarkInput file;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		this.file = BenchmarkInput.resolve(this.input);
+	}
+
+	@Benchmark
+	public void scan(ThroughputCounters counters, Blackhole blackhole) throws IOException {
+		ConsumingVisitor visitor = new ConsumingVisitor(blackhole);
+		try (KMerScanner it = (KMerScanner) KMerIterators.open(this.iterator, this.k, this.file.getPath())) {
+			it.scan(visitor);
+		}
+		counters.kmers += visitor.kmers;
+		counters.bases += this.file.getBases();
+	}
+
+	private static final class ConsumingVisitor implements KMerVisitor {
+		private final Blackhole blackhole;
+		private long kmers;
+
+		ConsumingVisitor(Blackhole blackhole) {
+			this.blackhole = blackhole;
+		}
+
+		@Override
+		public void visit(byte[] kmer, int kmerOffset, byte[] reverseComplement, int reverseComplementOffset) {
+			this.blackhole.consume(kmer[kmerOffset]);
+			this.blackhole.consume(reverseComplement[reverseComplementOffset]);
+			this.kmers++;
+		}
+
+		@Override
+		public void visitPacked(long kmer, long reverseComplement) {
+			this.blackhole.consume(kmer);
+			this.blackhole.consume(reverseComplement);
+			this.kmers++;
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package org.husonlab.fmhdist.benchmarks;
+
+import net.openhft.hashing.LongHashFunction;
+import org.husonlab.fmhdist.sketch.FracMinHashSketch;
+import org.husonlab.fmhdist.util.HashFunctionParser;
+import org.husonlab.fmhdist.util.KMerIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures FracMinHashSketch.compute() end to end, i.e. reading the FASTA
+ * file, decomposing it into k-mers, hashing and collecting the sketch. The
+ * number of k-mers per file is counted once during the setup, so the k-mers/s
+ * are comparable to the KMerIteratorBenchmark.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SketchBenchmark {
+	@Param({KMerIterators.LINE, KMerIterators.BYTE, KMerIterators.PACKED})
+	public String iterator;
+
+	@Param({"15", "21", "31"})
+	public int k;
+
+	@Param({"100", "1000", "2000"})
+	public int s;
+
+	@Param({HashFunctionParser.FARM_HASH_NAME})
+	public String hash;
+
+	@Param({"virus1.fasta", "generated-16Mb"})
+	public String input;
+
+	private BenchmarkInput file;
+	private LongHashFunction hashFunction;
+	private long kmers;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		this.file = BenchmarkInput.resolve(this.input);
+		this.hashFunction = HashFunctionParser.createHashFunction(this.hash, 42);
+		try (KMerIterator it = KMerIterators.open(this.iterator, this.k, this.file.getPath())) {
+			while (it.hasNext()) {
+				it.next();
+				this.kmers++;
+			}
+		}
+	}
+
+	@Benchmark
+	public void compute(ThroughputCounters counters, Blackhole blackhole) throws IOException {
+		try (KMerIterator it = KMerIterators.open(this.iterator, this.k, this.file.getPath())) {
+			blackhole.consume(FracMinHashSketch.compute(this.input, it, this.s, this.hashFunction, 42, false));
+		}
+		counters.kmers += this.kmers;
+		counters.bases += this.file.getBases();
+	}
+}
@@ -0,0 +1,24 @@
+package org.husonlab.fmhdist.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary results of the benchmarks. In throughput mode, JMH reports them
+ * per second, i.e. as bases/s and k-mers/s next to the primary ops/s.
+ */
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+@State(Scope.Thread)
+public class ThroughputCounters {
+	public long bases;
+	public long kmers;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		this.bases = 0;
+		this.kmers = 0;
+	}
+}
@@ -0,0 +1,29 @@
+package org.husonlab.fmhdist.cmd;
+
+import org.husonlab.fmhdist.db.MappedReferenceStore;
+
+import java.util.logging.Logger;
+
+/**
+ * Class to convert a SQLite reference database into a memory-mapped
+ * reference store.
+ */
+public class DatabaseConverter {
+	/**
+	 * Converts the reference database.
+	 *
+	 * @param database path to the SQLite reference database
+	 * @param output   path to the output reference store
+	 */
+	public void run(String database, String output) {
+		Logger logger = Logger.getLogger(DatabaseConverter.class.getName());
+		try {
+			logger.info("Converting reference database...");
+			MappedReferenceStore.convert(database, output);
+			logger.info("Finished converting reference database!");
+		} catch (Exception e) {
+			logger.severe(String.format("converting %s failed: %s", database, e.getMessage()));
+			System.exit(1);
+		}
+	}
+}
@@ -2,40 +2,144 @@ package org.husonlab.fmhdist.cmd;
 
 import jloda.util.FileLineIterator;
 import jloda.util.ProgramExecutorService;
-import jloda.util.Single;
 import net.openhft.hashing.LongHashFunction;
 import org.husonlab.fmhdist.db.ReferenceDatabase;
 import org.husonlab.fmhdist.ncbi.Genome;
+import org.husonlab.fmhdist.ncbi.LocalAssemblies;
 import org.husonlab.fmhdist.ncbi.NcbiApi;
+import org.husonlab.fmhdist.ncbi.TaxonomyDump;
 import org.husonlab.fmhdist.ncbi.TaxonomyTree;
 import org.husonlab.fmhdist.sketch.GenomeSketch;
+import org.husonlab.fmhdist.sketch.SketchPipeline;
+import org.husonlab.fmhdist.util.GenomeCache;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 /**
  * Class to create a reference database given a set of NCBI accession codes.
+ * <p>
+ * The sketches are written to the database in batches while the remaining
+ * genomes are still being sketched, and genomes that could not be sketched
+ * are recorded in the failed_genomes table together with the error. If the
+ * creation of a database is interrupted, running it again with the same
+ * parameters resumes it: genomes that are already part of the database are
+ * skipped and failed genomes are retried.
  */
 public class DatabaseCreator {
-	private static NcbiApi api = new NcbiApi("https://api.ncbi.nlm.nih.gov/datasets/v2alpha");
+	/**
+	 * Maximum number of finished sketches that are kept in memory before they
+	 * are written to the database in a single transaction.
+	 */
+	private static final int FLUSH_SIZE = 100;
+	/**
+	 * Maximum time in milliseconds that a finished sketch waits for its batch
+	 * to be written, as long as further sketches arrive.
+	 */
+	private static final long FLUSH_INTERVAL_MILLIS = 10000;
+
+	/**
+	 * Format of the input. ACCESSIONS is a list of NCBI accession codes whose
+	 * metadata is fetched from the NCBI API. ASSEMBLY_SUMMARY is an NCBI
+	 * assembly_summary.txt and DIRECTORY is a local mirror of the NCBI
+	 * genomes directory, see LocalAssemblies. Both provide the metadata
+	 * without any request.
+	 */
+	public enum InputFormat {
+		ACCESSIONS, ASSEMBLY_SUMMARY, DIRECTORY
+	}
+
+	private NcbiApi api = new NcbiApi("https://api.ncbi.nlm.nih.gov/datasets/v2alpha");
+
+	private int downloadThreads = 4;
+	private double downloadsPerSecond = 0;
+	private GenomeCache genomeCache;
+	private Path taxonomyCache;
+	private TaxonomyDump taxonomyDump;
+	private InputFormat inputFormat = InputFormat.ACCESSIONS;
+	private Path genomeMirror;
 
 	/**
-	 * Creates a new reference database.
+	 * Sets the limits for downloading the genome files. The genomes are
+	 * sketched on -t threads, independent of the number of downloads.
 	 *
-	 * @param input            path to a CSV, each line stating an NCBI accession code
+	 * @param downloadThreads    number of parallel downloads
+	 * @param downloadsPerSecond maximum number of downloads that are started
+	 *                           per second, 0 for no limit
+	 */
+	public void setDownloadLimits(int downloadThreads, double downloadsPerSecond) {
+		this.downloadThreads = downloadThreads;
+		this.downloadsPerSecond = downloadsPerSecond;
+	}
+
+	/**
+	 * Downloads the genome files through the given cache, so they are not
+	 * downloaded again when a database with other parameters is created.
+	 *
+	 * @param genomeCache the cache, null to disable it
+	 */
+	public void setGenomeCache(GenomeCache genomeCache) {
+		this.genomeCache = genomeCache;
+	}
+
+	/**
+	 * Caches the taxonomy nodes fetched from NCBI in the given file, so they
+	 * are not fetched again by later runs.
+	 *
+	 * @param taxonomyCache the cache file, null to disable it
+	 */
+	public void setTaxonomyCache(Path taxonomyCache) {
+		this.taxonomyCache = taxonomyCache;
+	}
+
+	/**
+	 * Builds the taxonomy from the given NCBI taxdump files instead of
+	 * fetching it from the NCBI API.
+	 *
+	 * @param taxonomyDump the taxdump files, null to use the API
+	 */
+	public void setTaxonomyDump(TaxonomyDump taxonomyDump) {
+		this.taxonomyDump = taxonomyDump;
+	}
+
+	/**
+	 * Sets the format of the input.
+	 *
+	 * @param inputFormat  the format
+	 * @param genomeMirror for ASSEMBLY_SUMMARY, the local mirror of the NCBI
+	 *                     FTP server that contains the genome files. If null,
+	 *                     the files are downloaded
+	 */
+	public void setInputFormat(InputFormat inputFormat, Path genomeMirror) {
+		this.inputFormat = inputFormat;
+		this.genomeMirror = genomeMirror;
+	}
+
+	/**
+	 * Creates a new reference database. If the output is a database that was
+	 * created with the same parameters, e.g. by an interrupted run, it is
+	 * completed instead. Any other existing output file is replaced.
+	 *
+	 * @param input            path to a CSV, each line stating an NCBI accession code, or the
+	 *                          input of another format, see setInputFormat()
 	 * @param output           path to the output database
 	 * @param kParameter       k-mer size for FracMinHash
 	 * @param sParameter       scaling parameters for FracMinHash
 	 * @param hashFunction     the hash function that should be used to create the FracMinHash sketch
 	 * @param hashFunctionName the name of that hash function, it will be written to the database
 	 * @param randomSeed       the random seed that was applied to create the hash function
+	 * @param packed           if set to true, the k-mers are 2-bit packed (k <= 32)
 	 */
 	public void run(
 			String input,
@@ -44,66 +148,348 @@ public class DatabaseCreator {
 			int sParameter,
 			LongHashFunction hashFunction,
 			String hashFunctionName,
-			int randomSeed) {
+			int randomSeed,
+			boolean packed) {
 		Logger logger = Logger.getLogger(DatabaseCreator.class.getName());
 
-		if ((new File(output)).exists()) {
-			(new File(output)).delete();
+		try {
+			ReferenceDatabase db = null;
+			if ((new File(output)).exists()) {
+				db = this.openForResume(output, kParameter, sParameter, hashFunctionName, randomSeed, packed);
+				if (db != null) {
+					logger.info(String.format("Resuming the creation of %s...", output));
+				} else {
+					logger.info(String.format("Replacing %s...", output));
+					for (String suffix : new String[]{"", "-wal", "-shm"}) {
+						(new File(output + suffix)).delete();
+					}
+				}
+			}
+			if (db == null) {
+				db = ReferenceDatabase.create(output, true);
+				db.insertFullInfo(kParameter, sParameter, randomSeed, hashFunctionName, packed);
+			}
+
+			try {
+				this.addGenomes(db, input, kParameter, sParameter, hashFunction, randomSeed, packed);
+			} finally {
+				db.close();
+			}
+		} catch (Exception e) {
+			System.out.println("well, f****");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Adds the genomes of the given accession codes to an existing reference
+	 * database. Accession codes that are already part of the database are
+	 * skipped, as are genomes of taxa that already have a genome in the
+	 * database. The latter are recorded in the skipped_genomes table, so they
+	 * are not looked up again by later updates. Only the new genomes are
+	 * downloaded and sketched, and their lineages are merged into the
+	 * existing taxonomy.
+	 *
+	 * @param input            path to a CSV, each line stating an NCBI accession code, or the
+	 *                          input of another format, see setInputFormat()
+	 * @param database         path to the existing database
+	 * @param kParameter       k-mer size for FracMinHash, must match the database
+	 * @param sParameter       scaling parameters for FracMinHash, must match the database
+	 * @param hashFunction     the hash function that should be used to create the FracMinHash sketch
+	 * @param hashFunctionName the name of that hash function, must match the database
+	 * @param randomSeed       the random seed that was applied to create the hash function, must match the database
+	 * @param packed           if set to true, the k-mers are 2-bit packed (k <= 32), must match the database
+	 */
+	public void update(
+			String input,
+			String database,
+			int kParameter,
+			int sParameter,
+			LongHashFunction hashFunction,
+			String hashFunctionName,
+			int randomSeed,
+			boolean packed) {
+		Logger logger = Logger.getLogger(DatabaseCreator.class.getName());
+
+		if (!(new File(database)).exists()) {
+			logger.severe(String.format("database %s does not exist", database));
+			return;
+		}
+
+		try {
+			ReferenceDatabase db = ReferenceDatabase.openForUpdate(database, false);
+			try {
+				if (!this.hasParameters(db, kParameter, sParameter, hashFunctionName, randomSeed, packed)) {
+					return;
+				}
+				this.addGenomes(db, input, kParameter, sParameter, hashFunction, randomSeed, packed);
+			} finally {
+				db.close();
+			}
+		} catch (Exception e) {
+			logger.severe(String.format("updating %s failed: %s", database, e.getMessage()));
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Opens the given file to resume the creation of a database. Returns
+	 * null if the file is not a reference database or was created with other
+	 * parameters.
+	 */
+	private ReferenceDatabase openForResume(
+			String output,
+			int kParameter,
+			int sParameter,
+			String hashFunctionName,
+			int randomSeed,
+			boolean packed) throws IOException {
+		Logger logger = Logger.getLogger(DatabaseCreator.class.getName());
+		ReferenceDatabase db = null;
+		try {
+			db = ReferenceDatabase.openForUpdate(output, true);
+			if (this.hasParameters(db, kParameter, sParameter, hashFunctionName, randomSeed, packed)) {
+				return db;
+			}
+		} catch (SQLException e) {
+			logger.warning(String.format("%s is not a reference database: %s", output, e.getMessage()));
 		}
+		if (db != null) {
+			try {
+				db.close();
+			} catch (IOException e) {
+				// the file is replaced anyway
+				logger.fine(e.getMessage());
+			}
+		}
+		return null;
+	}
 
+	/**
+	 * Checks if the database was created with the given sketching parameters.
+	 * A mismatch is logged.
+	 */
+	private boolean hasParameters(
+			ReferenceDatabase db,
+			int kParameter,
+			int sParameter,
+			String hashFunctionName,
+			int randomSeed,
+			boolean packed) {
+		Logger logger = Logger.getLogger(DatabaseCreator.class.getName());
 		try {
+			Map<String, Integer> info = db.getNumericalInfo();
+			String usedHashFunction = db.getUsedHashFunction();
+			// Databases created before packed k-mers were supported don't know the key
+			if (info.getOrDefault("sketch_k", -1) != kParameter ||
+				info.getOrDefault("sketch_s", -1) != sParameter ||
+				info.getOrDefault("sketch_seed", -1) != randomSeed ||
+				info.getOrDefault("sketch_packed", 0) != (packed ? 1 : 0) ||
+				!usedHashFunction.equals(hashFunctionName)) {
+				logger.severe(String.format(
+						"sketching parameters do not match the database (k=%s, s=%s, seed=%s, packed=%s, hash function=%s)",
+						info.get("sketch_k"), info.get("sketch_s"), info.get("sketch_seed"),
+						info.getOrDefault("sketch_packed", 0) == 1, usedHashFunction));
+				return false;
+			}
+			return true;
+		} catch (SQLException e) {
+			logger.severe(String.format("not a reference database: %s", e.getMessage()));
+			return false;
+		}
+	}
+
+	private void addGenomes(
+			ReferenceDatabase db,
+			String input,
+			int kParameter,
+			int sParameter,
+			LongHashFunction hashFunction,
+			int randomSeed,
+			boolean packed) throws Exception {
+		Logger logger = Logger.getLogger(DatabaseCreator.class.getName());
+
+		Set<String> knownAccessions = db.getGenomeAccessions();
+		knownAccessions.addAll(db.getSkippedAccessions());
+		List<Genome> genomes = this.getGenomes(input, knownAccessions);
+
+		// Only the first genome of each taxon is part of the database, there
+		// is no need to sketch the others or to build their lineages
+		Set<Integer> knownTaxa = db.getGenomeTaxonIds();
+		List<Genome> newGenomes = new ArrayList<>();
+		List<Genome> skippedGenomes = new ArrayList<>();
+		List<Genome> duplicateGenomes = new ArrayList<>();
+		Set<Integer> newTaxa = new HashSet<>();
+		for (Genome genome : genomes) {
+			if (knownTaxa.contains(genome.getTaxonId())) {
+				skippedGenomes.add(genome);
+			} else if (newTaxa.add(genome.getTaxonId())) {
+				newGenomes.add(genome);
+			} else {
+				logger.fine(String.format("multiple accession codes for taxon %d found. Skipping...", genome.getTaxonId()));
+				duplicateGenomes.add(genome);
+			}
+		}
+		if (!skippedGenomes.isEmpty()) {
+			logger.info(String.format("Skipping %d genomes of taxa that are already part of the database...", skippedGenomes.size()));
+			db.insertSkippedGenomes(skippedGenomes);
+		}
+		if (newGenomes.isEmpty()) {
+			logger.info("All genomes are already part of the database!");
+			return;
+		}
+
+		logger.info("Preparing taxonomy tree...");
+		TaxonomyTree tree;
+		if (this.taxonomyDump != null) {
+			tree = this.taxonomyDump.getTaxonomyTreeForGenomes(newGenomes);
+		} else {
+			if (this.taxonomyCache != null) {
+				this.api.setTaxonomyCache(this.taxonomyCache);
+			}
+			tree = this.api.getTaxonomyTreeForGenomes(newGenomes);
+		}
+		db.insertTaxonomy(tree);
+
+		logger.info(String.format("Sketching %d sequences...", newGenomes.size()));
+		int failed = this.sketchGenomes(db, newGenomes, kParameter, sParameter, hashFunction, randomSeed, packed);
+
+		// Further genomes of the new taxa are skipped by later runs, unless
+		// the first genome of their taxon could not be sketched
+		final Set<Integer> sketchedTaxa = db.getGenomeTaxonIds();
+		db.insertSkippedGenomes(duplicateGenomes.stream()
+				.filter(genome -> sketchedTaxa.contains(genome.getTaxonId()))
+				.collect(Collectors.toList()));
+		if (failed > 0) {
+			logger.warning(String.format(
+					"%d genomes could not be sketched, see the failed_genomes table of the database. Run the command again to retry them.",
+					failed));
+		}
+	}
+
+	/**
+	 * Reads the genomes of the input whose accessions are not known yet.
+	 * Only the ACCESSIONS format requires the NCBI API, known accessions are
+	 * not looked up.
+	 */
+	private List<Genome> getGenomes(String input, Set<String> knownAccessions) throws Exception {
+		Logger logger = Logger.getLogger(DatabaseCreator.class.getName());
+
+		logger.info("Preparing genomes...");
+		List<String> accessionCodes = new ArrayList<>();
+		List<Genome> genomes = new ArrayList<>();
+		if (this.inputFormat == InputFormat.ACCESSIONS) {
 			FileLineIterator it = new FileLineIterator(input);
-			List<String> accessionCodes = it.stream().map(line -> line.replaceAll("\\s+", ""))
+			accessionCodes = it.stream().map(line -> line.replaceAll("\\s+", ""))
+					.filter(code -> !code.isEmpty())
+					.distinct()
 					.collect(Collectors.toList());
 			it.close();
+		} else {
+			genomes = this.inputFormat == InputFormat.ASSEMBLY_SUMMARY
+					? LocalAssemblies.readAssemblySummary(Paths.get(input), this.genomeMirror)
+					: LocalAssemblies.scanDirectory(Paths.get(input));
+			logger.info(String.format("Found %d genomes in %s", genomes.size(), input));
+			Set<String> accessions = new HashSet<>();
+			genomes.removeIf(genome -> !accessions.add(genome.getAccession()));
+			accessionCodes.addAll(accessions);
+		}
+
+		final int total = accessionCodes.size();
+		accessionCodes.removeIf(knownAccessions::contains);
+		genomes.removeIf(genome -> knownAccessions.contains(genome.getAccession()));
+		if (accessionCodes.size() < total) {
+			logger.info(String.format("Skipping %d genomes that are already part of the database...", total - accessionCodes.size()));
+		}
+		if (this.inputFormat == InputFormat.ACCESSIONS && !accessionCodes.isEmpty()) {
+			genomes = this.api.getGenomes(accessionCodes);
+		}
+		return genomes;
+	}
+
+	/**
+	 * Collects the finished sketches and writes them to the database in
+	 * batches of FLUSH_SIZE sketches or after FLUSH_INTERVAL_MILLIS, so each
+	 * transaction (and its sync to the disk) covers many genomes. Can be
+	 * called from multiple threads.
+	 */
+	private static class SketchWriter {
+		private final ReferenceDatabase db;
+		private final List<GenomeSketch> pending = new ArrayList<>();
+		private long lastFlush = System.currentTimeMillis();
 
-			logger.info("Preparing genomes...");
-			List<Genome> genomes = api.getGenomes(accessionCodes);
+		SketchWriter(ReferenceDatabase db) {
+			this.db = db;
+		}
+
+		synchronized void add(GenomeSketch sketch) throws SQLException {
+			this.pending.add(sketch);
+			if (this.pending.size() >= FLUSH_SIZE || System.currentTimeMillis() - this.lastFlush >= FLUSH_INTERVAL_MILLIS) {
+				this.flush();
+			}
+		}
 
-			logger.info("Preparing taxonomy tree...");
-			TaxonomyTree tree = api.getTaxonomyTreeForGenomes(genomes);
+		synchronized void flush() throws SQLException {
+			if (!this.pending.isEmpty()) {
+				this.db.insertSketches(this.pending);
+				this.pending.clear();
+			}
+			this.lastFlush = System.currentTimeMillis();
+		}
+	}
 
-			logger.info("Sketching sequences...");
-			Queue<GenomeSketch> sketches = new ConcurrentLinkedQueue<>();
-			final Single<Throwable> exception = new Single<>();
-			final ExecutorService executor = Executors
-					.newFixedThreadPool(ProgramExecutorService.getNumberOfCoresToUse());
+	/**
+	 * Sketches the genomes in a pipeline and writes the sketches to the
+	 * database in batches, so only a few sketches are held in memory. The
+	 * pending sketches are also written if the pipeline fails, is interrupted
+	 * or the process is terminated, so a later run can resume from there.
+	 *
+	 * @return the number of genomes that could not be sketched
+	 */
+	private int sketchGenomes(
+			ReferenceDatabase db,
+			List<Genome> genomes,
+			int kParameter,
+			int sParameter,
+			LongHashFunction hashFunction,
+			int randomSeed,
+			boolean packed) throws IOException, InterruptedException, SQLException {
+		Logger logger = Logger.getLogger(DatabaseCreator.class.getName());
+		final int threads = ProgramExecutorService.getNumberOfCoresToUse();
+		final AtomicInteger failed = new AtomicInteger();
+		final SketchPipeline pipeline = new SketchPipeline(this.downloadThreads, threads, 2 * threads, this.downloadsPerSecond, null);
+		pipeline.setGenomeCache(this.genomeCache);
 
+		final SketchWriter writer = new SketchWriter(db);
+		final Thread flushOnExit = new Thread(() -> {
 			try {
-				genomes.forEach(genome -> executor.submit(() -> {
-					if (exception.isNull()) {
-						int retries = 5;
-						// Sometimes, the connection to NCBI breaks - this is a quick workaround
-						while (retries-- > 0) {
-							try {
-								GenomeSketch sketch = GenomeSketch.sketch(genome, kParameter, sParameter, hashFunction, randomSeed, false);
-								sketches.add(sketch);
-								break;
-							} catch (Exception ex) {
-								logger.warning(ex.getMessage());
-							} catch (Throwable e) {
-								// Somethings wrong here - no way to recover.
-								logger.severe(e.getMessage());
-								exception.setIfCurrentValueIsNull(e);
-								break;
-							}
-						}
-					}
-				}));
-			} finally {
-				executor.shutdown();
-				executor.awaitTermination(1000, TimeUnit.DAYS);
+				writer.flush();
+			} catch (SQLException e) {
+				logger.warning(String.format("writing the pending sketches failed: %s", e.getMessage()));
 			}
+		}, "flush-sketches");
+		Runtime.getRuntime().addShutdownHook(flushOnExit);
+		try {
+			pipeline.run(genomes, kParameter, sParameter, hashFunction, randomSeed, packed, new SketchPipeline.Listener() {
+				@Override
+				public void onSketch(GenomeSketch sketch) throws SQLException {
+					writer.add(sketch);
+				}
 
-			logger.info("Exporting database...");
-			ReferenceDatabase db = ReferenceDatabase.create(output);
-			db.insertTaxonomy(tree);
-			db.insertSketches(sketches);
-			db.insertFullInfo(kParameter, sParameter, randomSeed, hashFunctionName);
-			db.close();
-		} catch (Exception e) {
-			System.out.println("well, f****");
-			e.printStackTrace();
+				@Override
+				public void onFailure(Genome genome, Exception error) throws SQLException {
+					failed.incrementAndGet();
+					db.insertFailure(genome.getAccession(), String.valueOf(error));
+				}
+			});
+		} finally {
+			writer.flush();
+			try {
+				Runtime.getRuntime().removeShutdownHook(flushOnExit);
+			} catch (IllegalStateException e) {
+				// the JVM is already shutting down
+			}
 		}
+		return failed.get();
 	}
 }
@@ -1,18 +1,19 @@
 package org.husonlab.fmhdist.cmd;
 
-import jloda.thirdparty.HexUtils;
 import jloda.util.FileLineIterator;
-import org.husonlab.fmhdist.sketch.Distance;
+import jloda.util.ProgramExecutorService;
 import org.husonlab.fmhdist.sketch.FracMinHashSketch;
+import org.husonlab.fmhdist.sketch.PairwiseDistanceEngine;
+import org.husonlab.fmhdist.sketch.SketchFile;
 import splitstree6.data.DistancesBlock;
 import splitstree6.data.TaxaBlock;
 import splitstree6.io.writers.distances.NexusWriter;
 
 import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -26,8 +27,7 @@ public class DistanceCalculator {
 	private FracMinHashSketch lineToSketch(String line) {
 		try {
 			String[] comp = line.replaceAll("\\s+", "").split(",");
-			byte[] content = Files.readAllBytes(Paths.get(comp[0]));
-			FracMinHashSketch result = FracMinHashSketch.parse(HexUtils.decodeHexString(new String(content)));
+			FracMinHashSketch result = SketchFile.read(Paths.get(comp[0]));
 			if (comp.length > 1) {
 				result.setName(comp[1]);
 			} else {
@@ -81,9 +81,10 @@ public class DistanceCalculator {
 			List<String> emptyIntersectionLog = null;
 
 			if (LOG_EMPTY_INTERSECTIONS) {
-				emptyIntersectionLog = new ArrayList<>();
+				emptyIntersectionLog = Collections.synchronizedList(new ArrayList<>());
 			}
 
+			List<long[]> values = new ArrayList<>();
 			for (int i = 0; i < sketches.size(); i++) {
 				if (sParameter != 0 || kParameter != 0 || randomSeed != 0 || hashedMagicNumber != 0) {
 					if (sParameter != sketches.get(i).getSParam() || kParameter != sketches.get(i).getKSize() || randomSeed != sketches.get(i).getSeed() || hashedMagicNumber != sketches.get(i).getHashedMagicNumber()) {
@@ -98,34 +99,23 @@ public class DistanceCalculator {
 				}
 
 				taxa.addTaxonByName(sketches.get(i).getName());
-				for (int j = i; j < sketches.size(); j++) {
-					double jaccard = Distance.calculateJaccardIndex(
-							sketches.get(i).getValues(),
-							sketches.get(j).getValues(),
-							sParameter
-					);
-					// Containment is not symmetrical
-					double containment_i = Distance.calculateContainmentIndex(
-							sketches.get(i).getValues(),
-							sketches.get(j).getValues(),
-							sParameter
-					);
-					double containment_j = Distance.calculateContainmentIndex(
-							sketches.get(j).getValues(),
-							sketches.get(i).getValues(),
-							sParameter
-					);
-
-					if (jaccard == 0 && emptyIntersectionLog != null) {
-						emptyIntersectionLog.add(String.format("%s vs %s is empty\n", sketches.get(i).getName(), sketches.get(j).getName()));
-					}
+				values.add(sketches.get(i).getValues());
+			}
 
-					distances_jaccard.setBoth(i + 1, j + 1, Distance.jaccardToDistance(jaccard, kParameter)); // for some reason, the method is 1-based
-					distances_containment.set(i + 1, j + 1, Distance.containmentToDistance(containment_i, kParameter));
-					distances_containment.set(j + 1, i + 1, Distance.containmentToDistance(containment_j, kParameter));
-					distances_mash.setBoth(i + 1, j + 1, Distance.jaccardToMashDistance(jaccard, kParameter));
+			logger.info("Calculating pairwise distances...");
+			final List<String> log = emptyIntersectionLog;
+			PairwiseDistanceEngine engine = new PairwiseDistanceEngine(kParameter, sParameter, ProgramExecutorService.getNumberOfCoresToUse());
+			engine.compute(values, (i, j, jaccardDistance, mashDistance, containmentDistanceIJ, containmentDistanceJI) -> {
+				// the jaccard distance is 1 iff the jaccard index is 0
+				if (jaccardDistance == 1.0 && log != null) {
+					log.add(String.format("%s vs %s is empty\n", sketches.get(i).getName(), sketches.get(j).getName()));
 				}
-			}
+
+				distances_jaccard.setBoth(i + 1, j + 1, jaccardDistance); // for some reason, the method is 1-based
+				distances_containment.set(i + 1, j + 1, containmentDistanceIJ);
+				distances_containment.set(j + 1, i + 1, containmentDistanceJI);
+				distances_mash.setBoth(i + 1, j + 1, mashDistance);
+			});
 
 			logger.info("Exporting...");
 			FileWriter outFile = new FileWriter(output, false);
@@ -4,7 +4,16 @@ import jloda.fx.util.ArgsOptions;
 import jloda.util.ProgramExecutorService;
 import jloda.util.UsageException;
 import net.openhft.hashing.LongHashFunction;
+import org.husonlab.fmhdist.ncbi.TaxonomyDump;
+import org.husonlab.fmhdist.sketch.Distance;
+import org.husonlab.fmhdist.sketch.SketchCache;
+import org.husonlab.fmhdist.util.GenomeCache;
 import org.husonlab.fmhdist.util.HashFunctionParser;
+import org.husonlab.fmhdist.util.PackedKMerIterator;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
 
 public class Main {
 	private final static String CREATE_DB_COMMAND = "db";
@@ -12,6 +21,9 @@ public class Main {
 	private final static String COMPARE_REF_SKETCH_COMMAND = "ref_dist";
 	private final static String SKETCH_COMMAND = "sketch";
 	private final static String OUTLINE_COMMAND = "outline";
+	private final static String CONVERT_DB_COMMAND = "convert_db";
+	private final static String UPDATE_DB_COMMAND = "update_db";
+	private final static String PRUNE_CACHE_COMMAND = "prune_cache";
 
 	public static void main(String[] args) throws UsageException {
 		final ArgsOptions options = new ArgsOptions(args, Main.class,
@@ -22,6 +34,11 @@ public class Main {
 						CREATE_DB_COMMAND,
 						"Create a new reference database from the given NCBI accession codes."
 				),
+				new ArgsOptions.Command(
+						UPDATE_DB_COMMAND,
+						"Add the genomes of the given NCBI accession codes to an existing reference database.\n"
+						+ "Genomes that are already part of the database are skipped."
+				),
 				new ArgsOptions.Command(
 						COMPARE_SKETCH_COMMAND,
 						"Calculate the pairwise distances for all query sketches."
@@ -36,7 +53,14 @@ public class Main {
 						"Calculate the sketch for all given sequences and store them on the file system."),
 				new ArgsOptions.Command(
 						OUTLINE_COMMAND,
-						"Calculates the phylogenetic outline based on the given distances. The output is stored in SVG format.")
+						"Calculates the phylogenetic outline based on the given distances. The output is stored in SVG format."),
+				new ArgsOptions.Command(
+						CONVERT_DB_COMMAND,
+						"Convert a SQLite reference database into a memory-mapped reference store, which can be\n"
+						+ "used as reference database for the " + COMPARE_REF_SKETCH_COMMAND + " command."),
+				new ArgsOptions.Command(
+						PRUNE_CACHE_COMMAND,
+						"Remove the entries of the sketch cache that were not used for --pruneAge days.")
 
 		);
 
@@ -46,12 +70,13 @@ public class Main {
 				"input",
 				String.format(
 						"CSV of" +
-						"(a - for %s command) NCBI accession codes, a code per line\n" +
+						"(a - for %s and %s command) NCBI accession codes, a code per line, or the input of " +
+						"the --inputFormat\n" +
 						"(b - for %s command) sequence file paths or URLs to fasta files (gzip ok), " +
 						"a path per line. Optional name of the resulting sketch can be separated by comma\n" +
 						"(c -  for %s and %s command) sketch file paths, a path per line. Optional name of " +
 						"taxon in the distance matrix can be separated by comma. For the %s command, this is expected to be a distance mattrix in Nexus format",
-						CREATE_DB_COMMAND, SKETCH_COMMAND, COMPARE_REF_SKETCH_COMMAND, COMPARE_SKETCH_COMMAND, OUTLINE_COMMAND),
+						CREATE_DB_COMMAND, UPDATE_DB_COMMAND, SKETCH_COMMAND, COMPARE_REF_SKETCH_COMMAND, COMPARE_SKETCH_COMMAND, OUTLINE_COMMAND),
 				""
 		);
 
@@ -59,9 +84,9 @@ public class Main {
 				"-db",
 				"database",
 				String.format(
-						"Path to reference database file (input for %s command). Can be either a " +
-						"SQLite DB or a CSV (see --input param for more details)",
-						COMPARE_REF_SKETCH_COMMAND
+						"Path to reference database file (input for %s, %s and %s command). Can be either a " +
+						"SQLite DB, a reference store created by %s or a CSV (see --input param for more details)",
+						COMPARE_REF_SKETCH_COMMAND, CONVERT_DB_COMMAND, UPDATE_DB_COMMAND, CONVERT_DB_COMMAND
 				),
 				"database.db");
 
@@ -109,6 +134,16 @@ public class Main {
 				HashFunctionParser.getSupportedFunctions(),
 				HashFunctionParser.FARM_HASH_NAME
 		);
+		final boolean packed = options.getOption(
+				"-pk",
+				"packedKMers",
+				String.format(
+						"Encode k-mers as 2-bit packed integers for faster sketching (requires k <= %d). " +
+						"The resulting sketches are not compatible with sketches of unpacked k-mers",
+						PackedKMerIterator.MAX_K
+				),
+				false
+		);
 		final double maxDistance = options.getOption(
 				"-md",
 				"maxDistance",
@@ -135,14 +170,160 @@ public class Main {
 		options.comment("Performance options");
 		ProgramExecutorService
 				.setNumberOfCoresToUse(options.getOption("-t", "threads", "Number of threads", 1));
+		final String inputFormat = options.getOption(
+				"-if",
+				"inputFormat",
+				String.format(
+						"Format of the input for the %s and %s command: NCBI accession codes, an NCBI " +
+						"assembly_summary.txt, or a local mirror of the NCBI genomes directory " +
+						"(genomes/all/GCF/...) with the assembly reports. Only accessions require the NCBI API",
+						CREATE_DB_COMMAND, UPDATE_DB_COMMAND
+				),
+				List.of("accessions", "assembly_summary", "directory"),
+				"accessions"
+		);
+		final String genomeMirror = options.getOption(
+				"-gm",
+				"genomeMirror",
+				"Local mirror of the NCBI FTP server (the directory that contains genomes/all) to read the " +
+				"genomes of an assembly_summary.txt from. The genomes are downloaded if not set",
+				""
+		);
+		final int downloadThreads = options.getOption(
+				"-dt",
+				"downloadThreads",
+				String.format(
+						"Number of parallel genome downloads for the %s and %s command. The genomes are " +
+						"sketched on --threads threads",
+						CREATE_DB_COMMAND, UPDATE_DB_COMMAND
+				),
+				4
+		);
+		final double downloadRate = options.getOption(
+				"-dr",
+				"downloadRate",
+				"Maximum number of genome downloads that are started per second, 0 for no limit",
+				0.0
+		);
+		final String genomeCacheDirectory = options.getOption(
+				"-gc",
+				"genomeCache",
+				String.format(
+						"Directory to cache downloaded genome files for the %s, %s and %s command. " +
+						"Cached files are not downloaded again. Disabled if not set",
+						CREATE_DB_COMMAND, UPDATE_DB_COMMAND, SKETCH_COMMAND
+				),
+				""
+		);
+		final double genomeCacheSize = options.getOption(
+				"-gcs",
+				"genomeCacheSize",
+				"Maximum size of the genome cache in GB. The least recently used files are deleted first",
+				100.0
+		);
+		final String taxonomyCacheFile = options.getOption(
+				"-tc",
+				"taxonomyCache",
+				String.format(
+						"File to cache the taxonomy fetched from NCBI for the %s and %s command. " +
+						"Cached taxa are not fetched again. Disabled if not set",
+						CREATE_DB_COMMAND, UPDATE_DB_COMMAND
+				),
+				""
+		);
+		final String taxonomyDumpDirectory = options.getOption(
+				"-td",
+				"taxonomyDump",
+				String.format(
+						"Directory with the NCBI taxdump files %s and %s (optionally gzipped) to build the " +
+						"taxonomy for the %s and %s command without the NCBI API. Disabled if not set",
+						TaxonomyDump.NODES_FILE, TaxonomyDump.NAMES_FILE, CREATE_DB_COMMAND, UPDATE_DB_COMMAND
+				),
+				""
+		);
+		final String sketchCacheDirectory = options.getOption(
+				"-sc",
+				"sketchCache",
+				String.format(
+						"Directory to cache computed sketches for the %s command. Sketches of input files " +
+						"that did not change are read from the cache. Disabled if not set",
+						SKETCH_COMMAND
+				),
+				""
+		);
+		final int pruneAge = options.getOption(
+				"-pa",
+				"pruneAge",
+				String.format("Number of days after which unused entries are removed by the %s command", PRUNE_CACHE_COMMAND),
+				30
+		);
+		final String intersectionBackend = options.getOption(
+				"-ib",
+				"intersectionBackend",
+				"Implementation of the sketch intersection. The vector implementation requires a build with " +
+				"-Pvector and the JVM to be started with --add-modules jdk.incubator.vector",
+				List.of("scalar", "vector"),
+				Distance.getIntersectionBackend().name().toLowerCase()
+		);
 
 		options.done();
 
+		Distance.setIntersectionBackend(Distance.IntersectionBackend.valueOf(intersectionBackend.toUpperCase()));
+
+		if (packed && kParameter > PackedKMerIterator.MAX_K) {
+			throw new UsageException(String.format("packed k-mers require k <= %d", PackedKMerIterator.MAX_K));
+		}
+
+		GenomeCache genomeCache = null;
+		if (!genomeCacheDirectory.isEmpty()) {
+			try {
+				genomeCache = new GenomeCache(Paths.get(genomeCacheDirectory), (long) (genomeCacheSize * (1L << 30)));
+			} catch (IOException e) {
+				throw new UsageException(String.format("cannot open genome cache: %s", e.getMessage()));
+			}
+		}
+
+		SketchCache sketchCache = null;
+		if (!sketchCacheDirectory.isEmpty() && !command.equals(PRUNE_CACHE_COMMAND)) {
+			try {
+				sketchCache = new SketchCache(Paths.get(sketchCacheDirectory));
+			} catch (IOException e) {
+				throw new UsageException(String.format("cannot open sketch cache: %s", e.getMessage()));
+			}
+		}
+
+		TaxonomyDump taxonomyDump = null;
+		if (!taxonomyDumpDirectory.isEmpty()) {
+			try {
+				taxonomyDump = new TaxonomyDump(Paths.get(taxonomyDumpDirectory));
+			} catch (IOException e) {
+				throw new UsageException(String.format("cannot open taxonomy dump: %s", e.getMessage()));
+			}
+		}
+
 		LongHashFunction hashFunction = HashFunctionParser.createHashFunction(hashFunctionName, randomSeed);
 		switch (command) {
 			case CREATE_DB_COMMAND:
 				DatabaseCreator dbCreator = new DatabaseCreator();
-				dbCreator.run(input, output, kParameter, sParameter, hashFunction, hashFunctionName, randomSeed);
+				dbCreator.setDownloadLimits(downloadThreads, downloadRate);
+				dbCreator.setGenomeCache(genomeCache);
+				dbCreator.setTaxonomyCache(taxonomyCacheFile.isEmpty() ? null : Paths.get(taxonomyCacheFile));
+				dbCreator.setTaxonomyDump(taxonomyDump);
+				dbCreator.setInputFormat(
+						DatabaseCreator.InputFormat.valueOf(inputFormat.toUpperCase()),
+						genomeMirror.isEmpty() ? null : Paths.get(genomeMirror));
+				dbCreator.run(input, output, kParameter, sParameter, hashFunction, hashFunctionName, randomSeed, packed);
+				break;
+			case UPDATE_DB_COMMAND:
+				DatabaseCreator dbUpdater = new DatabaseCreator();
+				dbUpdater.setDownloadLimits(downloadThreads, downloadRate);
+				dbUpdater.setGenomeCache(genomeCache);
+				dbUpdater.setTaxonomyCache(taxonomyCacheFile.isEmpty() ? null : Paths.get(taxonomyCacheFile));
+				dbUpdater.setTaxonomyDump(taxonomyDump);
+				dbUpdater.setInputFormat(
+						DatabaseCreator.InputFormat.valueOf(inputFormat.toUpperCase()),
+						genomeMirror.isEmpty() ? null : Paths.get(genomeMirror));
+				dbUpdater.update(input, database, kParameter, sParameter, hashFunction, hashFunctionName, randomSeed, packed);
 				break;
 			case COMPARE_SKETCH_COMMAND:
 				DistanceCalculator distanceCalculator = new DistanceCalculator();
@@ -154,11 +335,25 @@ public class Main {
 				break;
 			case SKETCH_COMMAND:
 				SequenceSketcher sketcher = new SequenceSketcher();
-				sketcher.run(input, output, kParameter, sParameter, hashFunction, randomSeed, saveCoordinates);
+				sketcher.setGenomeCache(genomeCache);
+				sketcher.setSketchCache(sketchCache);
+				sketcher.run(input, output, kParameter, sParameter, hashFunction, randomSeed, saveCoordinates, packed);
 				break;
 			case OUTLINE_COMMAND:
 				OutlineVisualizer visualizer = new OutlineVisualizer();
 				visualizer.run(input, output, width, height, scale, xOffset, yOffset, labels);
+				break;
+			case CONVERT_DB_COMMAND:
+				DatabaseConverter converter = new DatabaseConverter();
+				converter.run(database, output);
+				break;
+			case PRUNE_CACHE_COMMAND:
+				if (sketchCacheDirectory.isEmpty()) {
+					throw new UsageException("the sketch cache is not set");
+				}
+				SketchCachePruner pruner = new SketchCachePruner();
+				pruner.run(sketchCacheDirectory, pruneAge);
+				break;
 		}
 	}
 }
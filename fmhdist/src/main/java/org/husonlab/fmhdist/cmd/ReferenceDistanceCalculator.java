@@ -1,12 +1,16 @@
 package org.husonlab.fmhdist.cmd;
 
-import jloda.thirdparty.HexUtils;
 import jloda.util.FileLineIterator;
+import jloda.util.ProgramExecutorService;
+import org.husonlab.fmhdist.db.MappedReferenceStore;
 import org.husonlab.fmhdist.db.ReferenceDatabase;
+import org.husonlab.fmhdist.sketch.CompressedSketch;
 import org.husonlab.fmhdist.sketch.Distance;
 import org.husonlab.fmhdist.sketch.FracMinHashSketch;
-import org.husonlab.fmhdist.sketch.GenomeSketch;
 import org.husonlab.fmhdist.sketch.IncompatibleParameterException;
+import org.husonlab.fmhdist.sketch.InvertedHashIndex;
+import org.husonlab.fmhdist.sketch.PairwiseDistanceEngine;
+import org.husonlab.fmhdist.sketch.SketchFile;
 import org.husonlab.fmhdist.util.HashFunctionParser;
 import org.sqlite.SQLiteException;
 import splitstree6.data.DistancesBlock;
@@ -15,7 +19,6 @@ import splitstree6.io.writers.distances.NexusWriter;
 
 import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.util.*;
@@ -34,8 +37,7 @@ public class ReferenceDistanceCalculator {
 	private FracMinHashSketch lineToSketch(String line) {
 		try {
 			String[] splitLine = line.replaceAll("\\s+", "").split(",");
-			byte[] content = Files.readAllBytes(Paths.get(splitLine[0]));
-			FracMinHashSketch result = FracMinHashSketch.parse(HexUtils.decodeHexString(new String(content)));
+			FracMinHashSketch result = SketchFile.read(Paths.get(splitLine[0]));
 			if (splitLine.length > 1) {
 				result.setName(splitLine[1]);
 			} else {
@@ -47,12 +49,13 @@ public class ReferenceDistanceCalculator {
 		}
 	}
 
-	private List<FracMinHashSketch> prepareGenomesFromDatabase(String database)
+	private List<CompressedSketch> prepareGenomesFromDatabase(String database)
 			throws SQLException, IncompatibleParameterException, IOException {
 		ReferenceDatabase db = ReferenceDatabase.open(database);
 		Map<String, Integer> info = db.getNumericalInfo();
 		String hashFunctionName = db.getUsedHashFunction();
-		Collection<GenomeSketch> refSketches = db.getSketches();
+		// only the hash values are needed, so the genomes are not read
+		List<CompressedSketch> refSketches = db.loadSketches(ProgramExecutorService.getNumberOfCoresToUse());
 		db.close();
 
 		if (!info.containsKey("sketch_k") ||
@@ -70,21 +73,35 @@ public class ReferenceDistanceCalculator {
 		this.kParameter = info.get("sketch_k");
 		this.sParameter = info.get("sketch_s");
 		this.randomSeed = info.get("sketch_seed");
+		// Databases created before packed k-mers were supported don't know the key
+		boolean packed = info.getOrDefault("sketch_packed", 0) == 1;
 		this.hashedMagicNumber = FracMinHashSketch
-				.getHashedMagicNumber(HashFunctionParser.createHashFunction(hashFunctionName, randomSeed));
+				.getHashedMagicNumber(HashFunctionParser.createHashFunction(hashFunctionName, randomSeed), packed);
 
-		List<FracMinHashSketch> result = new ArrayList<>();
-		for (GenomeSketch g : refSketches) {
-			result.add(g.getSketch());
+		return refSketches;
+	}
+
+	private MappedReferenceStore prepareGenomesFromStore(String database) throws IOException, IncompatibleParameterException {
+		MappedReferenceStore store = MappedReferenceStore.open(database);
+		// the mapped sketches stay accessible after closing the store
+		store.close();
+		if (!HashFunctionParser.getSupportedFunctions().contains(store.getHashFunction())) {
+			throw new IncompatibleParameterException(
+					String.format("hash function '%s' used in database is not supported", store.getHashFunction()));
 		}
-		return result;
+		this.kParameter = store.getKSize();
+		this.sParameter = store.getSParam();
+		this.randomSeed = store.getSeed();
+		this.hashedMagicNumber = store.getHashedMagicNumber();
+		return store;
 	}
 
-	private List<FracMinHashSketch> prepareGenomesFromSketchList(String database) throws IOException {
+	private List<CompressedSketch> prepareGenomesFromSketchList(String database) throws IOException {
 		FileLineIterator it = new FileLineIterator(database);
-		List<FracMinHashSketch> sketches = it
+		List<CompressedSketch> sketches = it
 				.stream()
 				.map(this::lineToSketch)
+				.map(CompressedSketch::compress)
 				.collect(Collectors.toList());
 		it.close();
 
@@ -92,7 +109,7 @@ public class ReferenceDistanceCalculator {
 			throw new IOException("reference db is empty");
 		}
 
-		FracMinHashSketch first = sketches.get(0);
+		CompressedSketch first = sketches.get(0);
 		this.kParameter = first.getKSize();
 		this.sParameter = first.getSParam();
 		this.randomSeed = first.getSeed();
@@ -101,6 +118,42 @@ public class ReferenceDistanceCalculator {
 		return sketches;
 	}
 
+	/**
+	 * Returns a view of the compressed sketches that decodes a sketch on each
+	 * access.
+	 */
+	private static List<FracMinHashSketch> decompressingSketchList(List<CompressedSketch> sketches) {
+		return new AbstractList<>() {
+			@Override
+			public FracMinHashSketch get(int index) {
+				return sketches.get(index).decompress();
+			}
+
+			@Override
+			public int size() {
+				return sketches.size();
+			}
+		};
+	}
+
+	/**
+	 * Returns a view of the hash values of the compressed sketches that
+	 * decodes the values on each access.
+	 */
+	private static List<long[]> decompressingValuesList(List<CompressedSketch> sketches) {
+		return new AbstractList<>() {
+			@Override
+			public long[] get(int index) {
+				return sketches.get(index).getValues();
+			}
+
+			@Override
+			public int size() {
+				return sketches.size();
+			}
+		};
+	}
+
 	/**
 	 * Calculates the distances from the input query to the closest genomes in
 	 * the database. Calculates three sets evolutionary distances: Mash
@@ -124,14 +177,35 @@ public class ReferenceDistanceCalculator {
 		Logger logger = Logger.getLogger(DistanceCalculator.class.getName());
 		try {
 			logger.info("Loading reference DB...");
-			logger.fine("Try to parse as SQLite...");
 			List<FracMinHashSketch> refSketches;
-			try {
-				refSketches = prepareGenomesFromDatabase(database);
-			} catch (SQLiteException e) {
-				logger.fine("Failed to read SQLite!");
-				logger.fine("Try to parse as CSV...");
-				refSketches = prepareGenomesFromSketchList(database);
+			List<long[]> refValues;
+			if (MappedReferenceStore.isStore(database)) {
+				logger.fine("Mapping reference store...");
+				MappedReferenceStore store = prepareGenomesFromStore(database);
+				// both lists copy a sketch from the store on access
+				refSketches = store.asSketchList();
+				refValues = store.asValuesList();
+			} else {
+				// The reference sketches are kept Elias-Fano compressed and
+				// decoded on access, like the sketches of a mapped store
+				List<CompressedSketch> compressed;
+				logger.fine("Try to parse as SQLite...");
+				try {
+					compressed = prepareGenomesFromDatabase(database);
+				} catch (SQLiteException e) {
+					logger.fine("Failed to read SQLite!");
+					logger.fine("Try to parse as CSV...");
+					compressed = prepareGenomesFromSketchList(database);
+				}
+				long compressedBytes = 0;
+				long rawBytes = 0;
+				for (CompressedSketch refSketch : compressed) {
+					compressedBytes += refSketch.getSizeInBytes();
+					rawBytes += 8L * refSketch.size();
+				}
+				logger.fine(String.format("Compressed %d reference sketches from %d to %d bytes", compressed.size(), rawBytes, compressedBytes));
+				refSketches = decompressingSketchList(compressed);
+				refValues = decompressingValuesList(compressed);
 			}
 
 			logger.info("Reading queries list...");
@@ -142,8 +216,19 @@ public class ReferenceDistanceCalculator {
 					.collect(Collectors.toList());
 			it.close();
 
+			// References without any shared hash have the maximal distance,
+			// they are only part of the result if that is allowed.
+			final boolean includeDisjoint = Distance.jaccardToDistance(0, kParameter) <= maxDistance;
+			InvertedHashIndex index = null;
+			if (!includeDisjoint) {
+				logger.info("Indexing reference genomes...");
+				index = new InvertedHashIndex(refValues);
+			}
+
 			logger.info("Finding closest reference genomes...");
-			Set<FracMinHashSketch> resultSketchSet = new HashSet<>();
+			// references are collected by index, as the sketches of a store
+			// are copied on each access
+			Set<Integer> resultReferences = new TreeSet<>();
 			for (FracMinHashSketch querySketch : sketches) {
 				if (this.sParameter != querySketch.getSParam() ||
 					this.kParameter != querySketch.getKSize() ||
@@ -153,55 +238,58 @@ public class ReferenceDistanceCalculator {
 					return;
 				}
 
-				for (FracMinHashSketch refSketch : refSketches) {
-					double jaccard = Distance.calculateJaccardIndex(querySketch.getValues(),
-							refSketch.getValues(), sParameter);
-					double distance = Distance.jaccardToDistance(jaccard, kParameter);
-					if (distance <= maxDistance) {
-						resultSketchSet.add(refSketch);
-					}
+				if (!includeDisjoint) {
+					final InvertedHashIndex queryIndex = index;
+					final int querySize = querySketch.getValues().length;
+					queryIndex.forEachOverlap(querySketch.getValues(), (reference, intersectionSize) -> {
+						double jaccard = Distance.calculateJaccardIndex(intersectionSize, querySize,
+								queryIndex.getSketchSize(reference), sParameter);
+						double distance = Distance.jaccardToDistance(jaccard, kParameter);
+						if (distance <= maxDistance) {
+							resultReferences.add(reference);
+						}
+					});
+				}
+			}
+			if (includeDisjoint) {
+				// every reference is within the maximum distance
+				for (int reference = 0; reference < refSketches.size(); reference++) {
+					resultReferences.add(reference);
 				}
-				resultSketchSet.add(querySketch);
 			}
 
 			logger.info("Calculating pairwise distances...");
-			List<FracMinHashSketch> resultSketchesList = new ArrayList<>(resultSketchSet);
+			List<FracMinHashSketch> resultSketchesList = new ArrayList<>();
+			for (int reference : resultReferences) {
+				resultSketchesList.add(refSketches.get(reference));
+			}
+			resultSketchesList.addAll(sketches);
 
 			DistancesBlock distances_jaccard = new DistancesBlock();
-			distances_jaccard.setNtax(resultSketchSet.size());
+			distances_jaccard.setNtax(resultSketchesList.size());
 
 			DistancesBlock distances_mash = new DistancesBlock();
-			distances_mash.setNtax(resultSketchSet.size());
+			distances_mash.setNtax(resultSketchesList.size());
 
 			DistancesBlock distances_containment = new DistancesBlock();
-			distances_containment.setNtax(resultSketchSet.size());
+			distances_containment.setNtax(resultSketchesList.size());
 
 			TaxaBlock taxa = new TaxaBlock();
-			for (int i = 0; i < resultSketchSet.size(); i++) {
-				taxa.addTaxonByName(resultSketchesList.get(i).getName());
-				for (int j = i; j < resultSketchSet.size(); j++) {
-					double jaccard = Distance.calculateJaccardIndex(
-							resultSketchesList.get(i).getValues(),
-							resultSketchesList.get(j).getValues(),
-							sParameter);
-					// Containment is not symmetrical
-					double containment_i = Distance.calculateContainmentIndex(
-							resultSketchesList.get(i).getValues(),
-							resultSketchesList.get(j).getValues(),
-							sParameter);
-					double containment_j = Distance.calculateContainmentIndex(
-							resultSketchesList.get(j).getValues(),
-							resultSketchesList.get(i).getValues(),
-							sParameter);
-
-					// for some reason, the method is 1-based
-					distances_jaccard.setBoth(i + 1, j + 1, Distance.jaccardToDistance(jaccard, kParameter));
-					distances_containment.set(i + 1, j + 1, Distance.containmentToDistance(containment_i, kParameter));
-					distances_containment.set(j + 1, i + 1, Distance.containmentToDistance(containment_j, kParameter));
-					distances_mash.setBoth(i + 1, j + 1, Distance.jaccardToMashDistance(jaccard, kParameter));
-				}
+			List<long[]> values = new ArrayList<>();
+			for (FracMinHashSketch sketch : resultSketchesList) {
+				taxa.addTaxonByName(sketch.getName());
+				values.add(sketch.getValues());
 			}
 
+			PairwiseDistanceEngine engine = new PairwiseDistanceEngine(kParameter, sParameter, ProgramExecutorService.getNumberOfCoresToUse());
+			engine.compute(values, (i, j, jaccardDistance, mashDistance, containmentDistanceIJ, containmentDistanceJI) -> {
+				// for some reason, the method is 1-based
+				distances_jaccard.setBoth(i + 1, j + 1, jaccardDistance);
+				distances_containment.set(i + 1, j + 1, containmentDistanceIJ);
+				distances_containment.set(j + 1, i + 1, containmentDistanceJI);
+				distances_mash.setBoth(i + 1, j + 1, mashDistance);
+			});
+
 			logger.info("Exporting...");
 			FileWriter outFile = new FileWriter(output, false);
 			outFile.write("#nexus\n");
@@ -218,7 +306,7 @@ public class ReferenceDistanceCalculator {
 			outFile = new FileWriter(output + ".mash", false);
 			outFile.write("#nexus\n");
 			writer = new NexusWriter();
-			writer.write(outFile, taxa, distances_containment);
+			writer.write(outFile, taxa, distances_mash);
 			outFile.close();
 
 		} catch (Exception e) {
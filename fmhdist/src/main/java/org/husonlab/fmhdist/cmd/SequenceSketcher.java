@@ -1,15 +1,19 @@
 package org.husonlab.fmhdist.cmd;
 
-import jloda.thirdparty.HexUtils;
 import jloda.util.FileLineIterator;
 import jloda.util.ProgramExecutorService;
 import jloda.util.Single;
 import net.openhft.hashing.LongHashFunction;
 import org.husonlab.fmhdist.ncbi.Genome;
+import org.husonlab.fmhdist.sketch.FracMinHashSketch;
 import org.husonlab.fmhdist.sketch.GenomeSketch;
+import org.husonlab.fmhdist.sketch.SketchCache;
+import org.husonlab.fmhdist.sketch.SketchFile;
+import org.husonlab.fmhdist.util.GenomeCache;
 import org.husonlab.fmhdist.util.KMerCoordinates;
 
 import java.io.FileWriter;
+import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.Queue;
@@ -24,6 +28,29 @@ import java.util.stream.Collectors;
  * Class to calculate the FracMinHash sketches of the given input genomes.
  */
 public class SequenceSketcher {
+	private GenomeCache genomeCache;
+	private SketchCache sketchCache;
+
+	/**
+	 * Reads remote sequence files through the given cache, so they are
+	 * downloaded only once and sketched from the local copy.
+	 *
+	 * @param genomeCache the cache, null to disable it
+	 */
+	public void setGenomeCache(GenomeCache genomeCache) {
+		this.genomeCache = genomeCache;
+	}
+
+	/**
+	 * Looks up the sketches of local sequence files in the given cache before
+	 * computing them, and stores the computed sketches in the cache. Sketches
+	 * with k-mer coordinates are not cached.
+	 *
+	 * @param sketchCache the cache, null to disable it
+	 */
+	public void setSketchCache(SketchCache sketchCache) {
+		this.sketchCache = sketchCache;
+	}
 
 	/**
 	 * Calculates the FracMinHash sketches for the given sequence file.
@@ -31,7 +58,7 @@ public class SequenceSketcher {
 	 * @param input           Path to a CSV file containing the paths to sequence files
 	 *                        that should be used.
 	 * @param output          Path to the directory in which the FracMinHash sketches
-	 *                        should be stored
+	 *                        should be stored, see SketchFile for the format
 	 * @param kParameter      The k-mer size for sketching
 	 * @param sParameter      The FracMinHash scaling parameters s
 	 * @param hashFunction    The hash function that should be applied
@@ -39,6 +66,7 @@ public class SequenceSketcher {
 	 *                        function
 	 * @param saveCoordinates If set to true, the k-mer coordinates of all
 	 *                        k-mers that are part of the sketch are also stored.
+	 * @param packed          If set to true, the k-mers are 2-bit packed (k <= 32)
 	 */
 	public void run(
 			String input,
@@ -47,7 +75,8 @@ public class SequenceSketcher {
 			int sParameter,
 			LongHashFunction hashFunction,
 			int randomSeed,
-			boolean saveCoordinates) {
+			boolean saveCoordinates,
+			boolean packed) {
 		Logger logger = Logger.getLogger(SequenceSketcher.class.getName());
 		try {
 			logger.info("Parsing input file...");
@@ -66,16 +95,28 @@ public class SequenceSketcher {
 
 			Queue<GenomeSketch> sketches = new ConcurrentLinkedQueue<>();
 			final Single<Throwable> exception = new Single<>();
-			final ExecutorService executor = Executors
-					.newFixedThreadPool(ProgramExecutorService.getNumberOfCoresToUse());
+			final int threads = ProgramExecutorService.getNumberOfCoresToUse();
+			final ExecutorService executor = Executors.newFixedThreadPool(threads);
+			// If there are fewer genomes than threads, the remaining threads
+			// are used to sketch the genomes in parallel ranges.
+			final int parallelism = Math.max(1, threads / Math.max(1, sequencePaths.size()));
 
 			logger.info("Sketching sequences...");
 			try {
 				sequencePaths.forEach(genome -> executor.submit(() -> {
 					if (exception.isNull()) {
 						try {
-							GenomeSketch sketch = GenomeSketch.sketch(genome, kParameter, sParameter, hashFunction,
-									randomSeed, saveCoordinates);
+							GenomeSketch sketch;
+							if (this.genomeCache != null && GenomeCache.isRemote(genome.getFastaUrl())) {
+								try (GenomeCache.Entry entry = this.genomeCache.get(genome.getAccession(), genome.getFastaUrl())) {
+									Genome local = new Genome(genome.getAccession(), entry.getPath().toString());
+									sketch = new GenomeSketch(genome, this.sketch(local, kParameter, sParameter, hashFunction,
+											randomSeed, saveCoordinates, packed, parallelism).getSketch());
+								}
+							} else {
+								sketch = this.sketch(genome, kParameter, sParameter, hashFunction,
+										randomSeed, saveCoordinates, packed, parallelism);
+							}
 							sketches.add(sketch);
 						} catch (Exception ex) {
 							logger.warning(ex.getMessage());
@@ -91,17 +132,20 @@ public class SequenceSketcher {
 				executor.awaitTermination(1000, TimeUnit.DAYS);
 			}
 
+			if (this.sketchCache != null) {
+				logger.info(String.format("Sketch cache: %d hits, %d misses",
+						this.sketchCache.getHits(), this.sketchCache.getMisses()));
+			}
+
 			logger.info("Saving sketches...");
 			for (GenomeSketch sketch : sketches) {
 				logger.fine(String.format("Saving %s...", sketch.getGenome().getOrganismName()));
-				FileWriter writer = new FileWriter(
-						Paths.get(output, String.format("%s.sketch", sketch.getGenome().getOrganismName())).toFile());
-				writer.write(HexUtils.encodeHexString(sketch.getSketch().getBytes()));
-				writer.close();
+				SketchFile.write(sketch.getSketch(),
+						Paths.get(output, sketch.getGenome().getOrganismName() + SketchFile.EXTENSION));
 
 				if (saveCoordinates) {
-					writer = new FileWriter(Paths
-							.get(output, String.format("%s.sketch.coordinates", sketch.getGenome().getOrganismName()))
+					FileWriter writer = new FileWriter(Paths
+							.get(output, String.format("%s%s.coordinates", sketch.getGenome().getOrganismName(), SketchFile.EXTENSION))
 							.toFile());
 					List<KMerCoordinates> coordinates = sketch.getSketch().getCoordinates();
 					for (KMerCoordinates coord : coordinates) {
@@ -117,4 +161,27 @@ public class SequenceSketcher {
 		}
 	}
 
+	private GenomeSketch sketch(
+			Genome genome,
+			int kParameter,
+			int sParameter,
+			LongHashFunction hashFunction,
+			int randomSeed,
+			boolean saveCoordinates,
+			boolean packed,
+			int parallelism) throws IOException {
+		final String path = genome.getFastaUrl();
+		if (this.sketchCache == null || saveCoordinates || GenomeCache.isRemote(path)) {
+			return GenomeSketch.sketch(genome, kParameter, sParameter, hashFunction, randomSeed, saveCoordinates, packed, parallelism);
+		}
+		final String key = SketchCache.getKey(Paths.get(path), kParameter, sParameter, hashFunction, randomSeed, packed);
+		FracMinHashSketch cached = this.sketchCache.get(key);
+		if (cached != null) {
+			cached.setName(genome.getAccession());
+			return new GenomeSketch(genome, cached);
+		}
+		GenomeSketch sketch = GenomeSketch.sketch(genome, kParameter, sParameter, hashFunction, randomSeed, false, packed, parallelism);
+		this.sketchCache.put(key, sketch.getSketch());
+		return sketch;
+	}
 }
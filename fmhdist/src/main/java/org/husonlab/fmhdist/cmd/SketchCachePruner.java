@@ -0,0 +1,32 @@
+package org.husonlab.fmhdist.cmd;
+
+import org.husonlab.fmhdist.sketch.SketchCache;
+
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Class to remove unused entries from a sketch cache.
+ */
+public class SketchCachePruner {
+	/**
+	 * Removes all entries of the sketch cache that were not used for the
+	 * given number of days.
+	 *
+	 * @param cacheDirectory path to the sketch cache
+	 * @param maxAgeDays     the maximum number of days since the last use of
+	 *                       an entry
+	 */
+	public void run(String cacheDirectory, int maxAgeDays) {
+		Logger logger = Logger.getLogger(SketchCachePruner.class.getName());
+		try {
+			SketchCache cache = new SketchCache(Paths.get(cacheDirectory));
+			int removed = cache.prune(TimeUnit.DAYS.toMillis(maxAgeDays));
+			logger.info(String.format("Removed %d entries from the sketch cache", removed));
+		} catch (Exception e) {
+			logger.severe(String.format("pruning the sketch cache %s failed: %s", cacheDirectory, e.getMessage()));
+			System.exit(1);
+		}
+	}
+}
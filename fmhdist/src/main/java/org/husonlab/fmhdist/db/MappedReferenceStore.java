@@ -0,0 +1,568 @@
+package org.husonlab.fmhdist.db;
+
+import org.husonlab.fmhdist.sketch.FracMinHashSketch;
+import org.husonlab.fmhdist.util.HashFunctionParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A read-only reference database in a single file that is memory mapped
+ * instead of being loaded. Opening a store only maps the file, no object is
+ * created per sketch, and processes that open the same store share its pages
+ * through the page cache.
+ * <p>
+ * All values are encoded in little endian. The file starts with a header of
+ * HEADER_SIZE bytes:
+ * <p>
+ * 1. Magic "FMHR" (4B) and format version (4B)
+ * 2. The build parameters from the info table of the SQLite database: k
+ * size, s param, random seed and packed flag (4B each), hashed magic number
+ * (8B)
+ * 3. Number of genomes n (4B), 4B padding
+ * 4. The byte positions of the sections below (8B each)
+ * 5. Length (4B) and UTF-8 bytes of the name of the hash function
+ * <p>
+ * The header is followed by the sections:
+ * <p>
+ * 1. The hashes of all sketches back to back (8B each), each sketch sorted
+ * 2. Offsets table, the hashes of genome i are at positions offsets[i] to
+ * offsets[i + 1] - 1 of the hash section (n + 1 times 8B)
+ * 3. Taxon ids (n times 4B) and genome sizes (n times 8B)
+ * 4. Accessions and taxon names, each as a string offsets table (n + 1 times
+ * 4B) followed by the UTF-8 bytes of all strings
+ * <p>
+ * As a single mapping is limited to 2GB, the hash section is mapped in
+ * windows of whole sketches with up to WINDOW_BYTES each.
+ */
+public class MappedReferenceStore implements Closeable {
+	public static final int VERSION = 1;
+
+	private static final byte[] MAGIC = new byte[]{'F', 'M', 'H', 'R'};
+	private static final int HEADER_SIZE = 256;
+	private static final int MAX_HASH_FUNCTION_LENGTH = 64;
+	private static final long WINDOW_BYTES = 1L << 30;
+
+	private static Logger logger = Logger.getLogger(MappedReferenceStore.class.getName());
+
+	private final FileChannel channel;
+	private final int kSize;
+	private final int sParam;
+	private final int seed;
+	private final boolean packed;
+	private final long hashedMagicNumber;
+	private final String hashFunction;
+	private final int size;
+
+	private final ByteBuffer metadata;
+	private final int offsetsPosition;
+	private final int taxonIdsPosition;
+	private final int genomeSizesPosition;
+	private final int accessionOffsetsPosition;
+	private final int accessionsPosition;
+	private final int nameOffsetsPosition;
+	private final int namesPosition;
+
+	private final MappedByteBuffer[] windows;
+	private final int[] windowFirstGenome;
+	private final long[] windowFirstHash;
+
+	private MappedReferenceStore(FileChannel channel, long windowBytes) throws IOException {
+		this.channel = channel;
+		final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		for (byte b : MAGIC) {
+			if (header.get() != b) {
+				throw new IOException("Incorrect magic number");
+			}
+		}
+		final int version = header.getInt();
+		if (version < 1 || version > VERSION) {
+			throw new IOException(String.format("Unsupported reference store version %d", version));
+		}
+		this.kSize = header.getInt();
+		this.sParam = header.getInt();
+		this.seed = header.getInt();
+		this.packed = header.getInt() == 1;
+		this.hashedMagicNumber = header.getLong();
+		this.size = header.getInt();
+		header.getInt();
+		final long hashesStart = header.getLong();
+		final long metadataStart = header.getLong();
+		final long[] sections = new long[7];
+		for (int i = 0; i < sections.length; i++) {
+			sections[i] = header.getLong();
+		}
+		final long end = sections[sections.length - 1];
+		final byte[] name = new byte[header.getInt()];
+		header.get(name);
+		this.hashFunction = new String(name, StandardCharsets.UTF_8);
+
+		if (end - metadataStart > Integer.MAX_VALUE) {
+			throw new IOException("metadata of the reference store is too large");
+		}
+		this.metadata = channel.map(FileChannel.MapMode.READ_ONLY, metadataStart, end - metadataStart).order(ByteOrder.LITTLE_ENDIAN);
+		this.offsetsPosition = 0;
+		this.taxonIdsPosition = (int) (sections[0] - metadataStart);
+		this.genomeSizesPosition = (int) (sections[1] - metadataStart);
+		this.accessionOffsetsPosition = (int) (sections[2] - metadataStart);
+		this.accessionsPosition = (int) (sections[3] - metadataStart);
+		this.nameOffsetsPosition = (int) (sections[4] - metadataStart);
+		this.namesPosition = (int) (sections[5] - metadataStart);
+
+		// split the hash section into windows of whole sketches
+		int[] firstGenome = new int[16];
+		long[] firstHash = new long[16];
+		MappedByteBuffer[] mapped = new MappedByteBuffer[16];
+		int windowCount = 0;
+		for (int first = 0; first < this.size; ) {
+			final long start = this.getOffset(first);
+			int last = first;
+			while (last < this.size && (this.getOffset(last + 1) - start) * 8 <= windowBytes) {
+				last++;
+			}
+			if (last == first) {
+				throw new IOException(String.format("sketch %d is too large to be mapped", first));
+			}
+			if (windowCount == mapped.length) {
+				firstGenome = Arrays.copyOf(firstGenome, windowCount << 1);
+				firstHash = Arrays.copyOf(firstHash, windowCount << 1);
+				mapped = Arrays.copyOf(mapped, windowCount << 1);
+			}
+			firstGenome[windowCount] = first;
+			firstHash[windowCount] = start;
+			mapped[windowCount] = channel.map(FileChannel.MapMode.READ_ONLY, hashesStart + start * 8, (this.getOffset(last) - start) * 8);
+			windowCount++;
+			first = last;
+		}
+		this.windows = Arrays.copyOf(mapped, windowCount);
+		this.windowFirstGenome = Arrays.copyOf(firstGenome, windowCount);
+		this.windowFirstHash = Arrays.copyOf(firstHash, windowCount);
+		logger.fine(String.format("Mapped %d sketches in %d windows", this.size, windowCount));
+	}
+
+	/**
+	 * Opens an existing store.
+	 *
+	 * @param path path to the store
+	 * @return
+	 * @throws IOException if the file is not a reference store
+	 */
+	public static MappedReferenceStore open(String path) throws IOException {
+		return open(path, WINDOW_BYTES);
+	}
+
+	/**
+	 * @param windowBytes maximal size of a mapped window of the hash section
+	 */
+	static MappedReferenceStore open(String path, long windowBytes) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+		try {
+			return new MappedReferenceStore(channel, windowBytes);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks if the given file is a reference store, i.e. starts with its
+	 * magic number.
+	 *
+	 * @param path path to the file
+	 * @return false if the file does not exist or is not a reference store
+	 */
+	public static boolean isStore(String path) {
+		final Path file = Paths.get(path);
+		if (!Files.isRegularFile(file)) {
+			return false;
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final ByteBuffer start = ByteBuffer.allocate(MAGIC.length);
+			while (start.hasRemaining() && channel.read(start) >= 0) {
+				// fill the first bytes
+			}
+			return start.position() == MAGIC.length && Arrays.equals(start.array(), MAGIC);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Converts an SQLite reference database into a store. The sketches are
+	 * streamed from the database, so only the metadata is held in memory.
+	 *
+	 * @param database path to the SQLite database
+	 * @param output   path of the new store, an existing file is replaced
+	 * @throws SQLException
+	 * @throws IOException  if the database contains sketches with other
+	 *                      parameters than its info table
+	 */
+	public static void convert(String database, String output) throws SQLException, IOException {
+		ReferenceDatabase db = ReferenceDatabase.open(database);
+		try {
+			Map<String, Integer> info = db.getNumericalInfo();
+			String hashFunction = db.getUsedHashFunction();
+			if (!info.containsKey("sketch_k") || !info.containsKey("sketch_s") || !info.containsKey("sketch_seed") || hashFunction.equals("")) {
+				throw new IOException("reference db does not provide all sketching parameters (s, k, seed, hash function)");
+			}
+			final int kSize = info.get("sketch_k");
+			final int sParam = info.get("sketch_s");
+			final int seed = info.get("sketch_seed");
+			final boolean packed = info.getOrDefault("sketch_packed", 0) == 1;
+			final long hashedMagicNumber = FracMinHashSketch.getHashedMagicNumber(HashFunctionParser.createHashFunction(hashFunction, seed), packed);
+
+			try (Writer writer = new Writer(Paths.get(output), kSize, sParam, seed, packed, hashedMagicNumber, hashFunction);
+				 SketchCursor cursor = db.openSketchCursor(true)) {
+				SketchRow row;
+				while ((row = cursor.next()) != null) {
+					FracMinHashSketch sketch = row.getSketch();
+					if (sketch.getKSize() != kSize || sketch.getSParam() != sParam || sketch.getSeed() != seed || sketch.getHashedMagicNumber() != hashedMagicNumber) {
+						throw new IOException(String.format("sketch of taxon %d does not match the parameters of the database", row.getTaxonId()));
+					}
+					writer.add(row.getTaxonId(), row.getGenome().getAccession(), row.getGenome().getGenomeSize(), row.getTaxonName(), sketch.getValues());
+				}
+			} catch (IOException | SQLException | RuntimeException e) {
+				// don't leave a store with a valid header but missing sketches
+				Files.deleteIfExists(Paths.get(output));
+				throw e;
+			}
+		} finally {
+			db.close();
+		}
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public int getKSize() {
+		return this.kSize;
+	}
+
+	public int getSParam() {
+		return this.sParam;
+	}
+
+	public int getSeed() {
+		return this.seed;
+	}
+
+	public boolean isPacked() {
+		return this.packed;
+	}
+
+	public long getHashedMagicNumber() {
+		return this.hashedMagicNumber;
+	}
+
+	public String getHashFunction() {
+		return this.hashFunction;
+	}
+
+	private long getOffset(int genome) {
+		return this.metadata.getLong(this.offsetsPosition + 8 * genome);
+	}
+
+	public int getTaxonId(int genome) {
+		return this.metadata.getInt(this.taxonIdsPosition + 4 * genome);
+	}
+
+	public long getGenomeSize(int genome) {
+		return this.metadata.getLong(this.genomeSizesPosition + 8 * genome);
+	}
+
+	public String getAccession(int genome) {
+		return this.getString(this.accessionOffsetsPosition, this.accessionsPosition, genome);
+	}
+
+	public String getTaxonName(int genome) {
+		return this.getString(this.nameOffsetsPosition, this.namesPosition, genome);
+	}
+
+	private String getString(int offsetsPosition, int bytesPosition, int genome) {
+		final int from = this.metadata.getInt(offsetsPosition + 4 * genome);
+		final int to = this.metadata.getInt(offsetsPosition + 4 * (genome + 1));
+		final byte[] bytes = new byte[to - from];
+		this.metadata.get(bytesPosition + from, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public int getSketchSize(int genome) {
+		return (int) (this.getOffset(genome + 1) - this.getOffset(genome));
+	}
+
+	/**
+	 * Returns a view of the sorted hashes of the genome. The view is backed
+	 * by the mapped file, nothing is copied. This method may be called
+	 * concurrently.
+	 *
+	 * @param genome index of the genome
+	 * @return
+	 */
+	public LongBuffer getHashes(int genome) {
+		int window = Arrays.binarySearch(this.windowFirstGenome, genome);
+		if (window < 0) {
+			window = -window - 2;
+		}
+		final ByteBuffer buffer = this.windows[window].duplicate();
+		final long from = this.getOffset(genome) - this.windowFirstHash[window];
+		buffer.position((int) (8 * from));
+		buffer.limit((int) (8 * (from + this.getSketchSize(genome))));
+		return buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+	}
+
+	/**
+	 * Copies the sorted hashes of the genome into a new array.
+	 *
+	 * @param genome index of the genome
+	 * @return
+	 */
+	public long[] getValues(int genome) {
+		final long[] values = new long[this.getSketchSize(genome)];
+		this.getHashes(genome).get(values);
+		return values;
+	}
+
+	/**
+	 * Copies the sketch of the genome, named by its taxon name.
+	 *
+	 * @param genome index of the genome
+	 * @return
+	 */
+	public FracMinHashSketch getSketch(int genome) {
+		FracMinHashSketch sketch = FracMinHashSketch.fromValues(this.sParam, this.kSize, this.seed, this.hashedMagicNumber, this.getValues(genome));
+		sketch.setName(this.getTaxonName(genome));
+		return sketch;
+	}
+
+	/**
+	 * Returns a list view of all sketches. Each call of get() copies the
+	 * sketch from the store, see getSketch().
+	 *
+	 * @return
+	 */
+	public List<FracMinHashSketch> asSketchList() {
+		return new AbstractList<>() {
+			@Override
+			public FracMinHashSketch get(int index) {
+				return getSketch(index);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * Returns a list view of the hashes of all sketches. Each call of get()
+	 * copies the hashes from the store, see getValues().
+	 *
+	 * @return
+	 */
+	public List<long[]> asValuesList() {
+		return new AbstractList<>() {
+			@Override
+			public long[] get(int index) {
+				return getValues(index);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	@Override
+	public void close() throws IOException {
+		// the mappings stay valid until they are garbage collected
+		this.channel.close();
+	}
+
+	/**
+	 * Writes a new store. The hashes are written to the file as the genomes
+	 * are added, the metadata is collected in memory and written on close().
+	 */
+	static class Writer implements Closeable {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		private final int kSize;
+		private final int sParam;
+		private final int seed;
+		private final boolean packed;
+		private final long hashedMagicNumber;
+		private final byte[] hashFunction;
+
+		private int size = 0;
+		private long[] offsets = new long[1024];
+		private int[] taxonIds = new int[1024];
+		private long[] genomeSizes = new long[1024];
+		private final StringTable accessions = new StringTable();
+		private final StringTable names = new StringTable();
+
+		Writer(Path path, int kSize, int sParam, int seed, boolean packed, long hashedMagicNumber, String hashFunction) throws IOException {
+			this.hashFunction = hashFunction.getBytes(StandardCharsets.UTF_8);
+			if (this.hashFunction.length > MAX_HASH_FUNCTION_LENGTH) {
+				throw new IllegalArgumentException("name of the hash function is too long");
+			}
+			this.kSize = kSize;
+			this.sParam = sParam;
+			this.seed = seed;
+			this.packed = packed;
+			this.hashedMagicNumber = hashedMagicNumber;
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			// the header is written on close
+			this.channel.position(HEADER_SIZE);
+		}
+
+		void add(int taxonId, String accession, long genomeSize, String name, long[] values) throws IOException {
+			if (this.size + 1 >= this.offsets.length) {
+				this.offsets = Arrays.copyOf(this.offsets, this.offsets.length << 1);
+				this.taxonIds = Arrays.copyOf(this.taxonIds, this.offsets.length);
+				this.genomeSizes = Arrays.copyOf(this.genomeSizes, this.offsets.length);
+			}
+			this.taxonIds[this.size] = taxonId;
+			this.genomeSizes[this.size] = genomeSize;
+			this.accessions.add(accession);
+			this.names.add(name);
+			this.offsets[this.size + 1] = this.offsets[this.size] + values.length;
+			this.size++;
+			for (long value : values) {
+				this.putLong(value);
+			}
+		}
+
+		private void flush() throws IOException {
+			this.buffer.flip();
+			while (this.buffer.hasRemaining()) {
+				this.channel.write(this.buffer);
+			}
+			this.buffer.clear();
+		}
+
+		private void putLong(long value) throws IOException {
+			if (this.buffer.remaining() < 8) {
+				this.flush();
+			}
+			this.buffer.putLong(value);
+		}
+
+		private void putInt(int value) throws IOException {
+			if (this.buffer.remaining() < 4) {
+				this.flush();
+			}
+			this.buffer.putInt(value);
+		}
+
+		private void putBytes(byte[] bytes) throws IOException {
+			for (byte b : bytes) {
+				if (!this.buffer.hasRemaining()) {
+					this.flush();
+				}
+				this.buffer.put(b);
+			}
+		}
+
+		private long position() throws IOException {
+			return this.channel.position() + this.buffer.position();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				final long metadataStart = this.position();
+				final long[] sections = new long[7];
+				for (int i = 0; i <= this.size; i++) {
+					this.putLong(this.offsets[i]);
+				}
+				sections[0] = this.position();
+				for (int i = 0; i < this.size; i++) {
+					this.putInt(this.taxonIds[i]);
+				}
+				sections[1] = this.position();
+				for (int i = 0; i < this.size; i++) {
+					this.putLong(this.genomeSizes[i]);
+				}
+				sections[2] = this.position();
+				this.accessions.writeOffsets(this);
+				sections[3] = this.position();
+				this.putBytes(this.accessions.getBytes());
+				sections[4] = this.position();
+				this.names.writeOffsets(this);
+				sections[5] = this.position();
+				this.putBytes(this.names.getBytes());
+				sections[6] = this.position();
+				this.flush();
+
+				this.buffer.put(MAGIC);
+				this.buffer.putInt(VERSION);
+				this.buffer.putInt(this.kSize);
+				this.buffer.putInt(this.sParam);
+				this.buffer.putInt(this.seed);
+				this.buffer.putInt(this.packed ? 1 : 0);
+				this.buffer.putLong(this.hashedMagicNumber);
+				this.buffer.putInt(this.size);
+				this.buffer.putInt(0);
+				this.buffer.putLong(HEADER_SIZE);
+				this.buffer.putLong(metadataStart);
+				for (long section : sections) {
+					this.buffer.putLong(section);
+				}
+				this.buffer.putInt(this.hashFunction.length);
+				this.buffer.put(this.hashFunction);
+				this.channel.position(0);
+				this.flush();
+				this.channel.force(true);
+			} finally {
+				this.channel.close();
+			}
+		}
+
+		/**
+		 * UTF-8 strings back to back with an offsets table.
+		 */
+		private static class StringTable {
+			private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			private int[] offsets = new int[1024];
+			private int size = 0;
+
+			void add(String value) {
+				final byte[] encoded = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+				this.bytes.write(encoded, 0, encoded.length);
+				if (this.size + 1 >= this.offsets.length) {
+					this.offsets = Arrays.copyOf(this.offsets, this.offsets.length << 1);
+				}
+				this.offsets[++this.size] = this.bytes.size();
+			}
+
+			void writeOffsets(Writer writer) throws IOException {
+				for (int i = 0; i <= this.size; i++) {
+					writer.putInt(this.offsets[i]);
+				}
+			}
+
+			byte[] getBytes() {
+				return this.bytes.toByteArray();
+			}
+		}
+	}
+}
@@ -1,40 +1,104 @@
 package org.husonlab.fmhdist.db;
 
-import jloda.thirdparty.HexUtils;
+import com.google.common.graph.Graph;
+import jloda.util.ProgramExecutorService;
 import org.husonlab.fmhdist.ncbi.Genome;
 import org.husonlab.fmhdist.ncbi.Taxon;
 import org.husonlab.fmhdist.ncbi.TaxonomyTree;
-import org.husonlab.fmhdist.sketch.FracMinHashSketch;
+import org.husonlab.fmhdist.sketch.CompressedSketch;
 import org.husonlab.fmhdist.sketch.GenomeSketch;
+import org.husonlab.fmhdist.sketch.SketchFile;
 import org.sqlite.SQLiteConfig;
 import org.sqlite.SQLiteException;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 public class ReferenceDatabase implements Closeable {
+	/**
+	 * Number of rows that are sent to SQLite in a single batch.
+	 */
+	private static final int BATCH_SIZE = 1000;
+	private static final int BULK_LOAD_PAGE_SIZE = 65536;
+	/**
+	 * Number of rows that are decoded by a single task when loading sketches.
+	 */
+	private static final int LOAD_CHUNK_SIZE = 256;
+
+	private static final String INSERT_GENOME = "INSERT INTO genomes (taxon_id, genome_accession, genome_size, fasta_url) VALUES (?, ?, ?, ?);";
+	private static final String INSERT_SKETCH = "INSERT INTO frac_min_hash_sketches (taxon_id, frac_min_hash_sketch) VALUES (?, ?);";
+
 	private Connection connection;
 	private Logger logger;
+	private boolean bulkLoad;
+
+	/**
+	 * Work that is executed within a single transaction, see inTransaction().
+	 */
+	private interface Transaction {
+		public void run() throws SQLException;
+	}
 
 	public static ReferenceDatabase create(String path) throws SQLException {
+		return create(path, false);
+	}
+
+	/**
+	 * Creates a new reference database. Sketches are stored as BLOBs in the
+	 * binary format of SketchFile.
+	 * <p>
+	 * In bulk-load mode, the database uses a larger page size and a
+	 * write-ahead log, and does not wait for the disk after each transaction.
+	 * The secondary indexes are built in close(), after all rows have been
+	 * inserted, and the database is switched back to a rollback journal so
+	 * it consists of a single file again. Rows that were committed before the
+	 * process was killed are kept, but if the operating system crashes during
+	 * a bulk load, the database may be corrupted and must be created again.
+	 *
+	 * @param path     path of the new database
+	 * @param bulkLoad true to enable the bulk-load mode
+	 * @return
+	 * @throws SQLException
+	 */
+	public static ReferenceDatabase create(String path, boolean bulkLoad) throws SQLException {
 		SQLiteConfig config = new SQLiteConfig();
+		if (bulkLoad) {
+			config.setPageSize(BULK_LOAD_PAGE_SIZE);
+			config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+			config.setSynchronous(SQLiteConfig.SynchronousMode.OFF);
+		}
 		ReferenceDatabase result = new ReferenceDatabase();
+		result.bulkLoad = bulkLoad;
 		result.connection = config.createConnection("jdbc:sqlite:" + path);
 		result.connection.createStatement().execute("CREATE TABLE bloom_filters (taxon_id INTEGER PRIMARY KEY, bloom_filter TEXT NOT NULL) WITHOUT ROWID;");
 		result.connection.createStatement().execute("CREATE TABLE tree (key TEXT PRIMARY KEY, value TEXT NOT NULL) WITHOUT ROWID;");
 		result.connection.createStatement().execute("CREATE TABLE taxa (taxon_id INTEGER PRIMARY KEY, taxon_name TEXT, taxon_display_name TEXT, parent_id INTEGER REFERENCES taxa(taxon_id)) WITHOUT ROWID;");
 		result.connection.createStatement().execute("CREATE TABLE info (key TEXT PRIMARY KEY, value TEXT NOT NULL) WITHOUT ROWID;");
 		result.connection.createStatement().execute("CREATE TABLE genomes (taxon_id INTEGER PRIMARY KEY, genome_accession TEXT NOT NULL, genome_size INTEGER, fasta_url TEXT) WITHOUT ROWID;");
-		result.connection.createStatement().execute("CREATE TABLE frac_min_hash_sketches (taxon_id INTEGER PRIMARY KEY, frac_min_hash_sketch TEXT NOT NULL) WITHOUT ROWID;");
+		result.connection.createStatement().execute("CREATE TABLE frac_min_hash_sketches (taxon_id INTEGER PRIMARY KEY, frac_min_hash_sketch BLOB NOT NULL) WITHOUT ROWID;");
+		result.createProgressTables();
+		if (!bulkLoad) {
+			result.createIndexes();
+		}
 		return result;
 	}
 
@@ -45,91 +109,409 @@ public class ReferenceDatabase implements Closeable {
 		return result;
 	}
 
+	/**
+	 * Opens an existing database to add further genomes. In bulk-load mode,
+	 * the database uses a write-ahead log and does not wait for the disk
+	 * after each transaction, see create(). Databases that were created by
+	 * earlier versions get the failed_genomes and skipped_genomes tables.
+	 *
+	 * @param path     path of the existing database
+	 * @param bulkLoad true to enable the bulk-load mode
+	 * @return
+	 * @throws SQLException e.g. if the file is not an SQLite database
+	 */
+	public static ReferenceDatabase openForUpdate(String path, boolean bulkLoad) throws SQLException {
+		SQLiteConfig config = new SQLiteConfig();
+		if (bulkLoad) {
+			config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+			config.setSynchronous(SQLiteConfig.SynchronousMode.OFF);
+		}
+		ReferenceDatabase result = new ReferenceDatabase();
+		result.bulkLoad = bulkLoad;
+		result.connection = config.createConnection("jdbc:sqlite:" + path);
+		try {
+			result.createProgressTables();
+		} catch (SQLException e) {
+			// e.g. the file is not a database
+			result.connection.close();
+			throw e;
+		}
+		return result;
+	}
+
 	private ReferenceDatabase() {
 		this.logger = Logger.getLogger(ReferenceDatabase.class.getName());
 	}
 
+	private void createProgressTables() throws SQLException {
+		this.connection.createStatement().execute("CREATE TABLE IF NOT EXISTS failed_genomes (genome_accession TEXT PRIMARY KEY, error TEXT) WITHOUT ROWID;");
+		this.connection.createStatement().execute("CREATE TABLE IF NOT EXISTS skipped_genomes (genome_accession TEXT PRIMARY KEY, taxon_id INTEGER NOT NULL) WITHOUT ROWID;");
+	}
+
+	private void createIndexes() throws SQLException {
+		this.connection.createStatement().execute("CREATE INDEX IF NOT EXISTS genomes_accession ON genomes (genome_accession);");
+		this.connection.createStatement().execute("CREATE INDEX IF NOT EXISTS taxa_parent ON taxa (parent_id);");
+	}
+
+	/**
+	 * Runs the given work in a single transaction, which is rolled back if
+	 * the work fails.
+	 */
+	private void inTransaction(Transaction transaction) throws SQLException {
+		final boolean autoCommit = this.connection.getAutoCommit();
+		this.connection.setAutoCommit(false);
+		try {
+			transaction.run();
+			this.connection.commit();
+		} catch (SQLException | RuntimeException e) {
+			this.connection.rollback();
+			throw e;
+		} finally {
+			this.connection.setAutoCommit(autoCommit);
+		}
+	}
+
+	/**
+	 * Opens a cursor over all sketches of the database, ordered by taxon id.
+	 *
+	 * @param includeGenomes if set to false, the genomes table is not read and
+	 *                       the rows carry no Genome
+	 * @return
+	 * @throws SQLException
+	 */
+	public SketchCursor openSketchCursor(boolean includeGenomes) throws SQLException {
+		String query;
+		if (includeGenomes) {
+			query = "SELECT b.genome_size as genome_size, a.frac_min_hash_sketch as sketch, a.taxon_id as taxon_id, b.genome_accession, b.fasta_url, c.taxon_name FROM frac_min_hash_sketches as a JOIN genomes as b ON a.taxon_id = b.taxon_id JOIN taxa as c ON a.taxon_id = c.taxon_id ORDER BY a.taxon_id;";
+		} else {
+			query = "SELECT a.frac_min_hash_sketch as sketch, a.taxon_id as taxon_id, c.taxon_name FROM frac_min_hash_sketches as a JOIN taxa as c ON a.taxon_id = c.taxon_id ORDER BY a.taxon_id;";
+		}
+		return new SketchCursor(this.connection.prepareStatement(query), includeGenomes);
+	}
+
 	public Collection<GenomeSketch> getSketches() throws SQLException, IOException {
+		return this.getSketches(ProgramExecutorService.getNumberOfCoresToUse());
+	}
+
+	/**
+	 * Reads all genomes and their sketches, see load().
+	 *
+	 * @param threads number of threads that decode the sketches
+	 * @return
+	 * @throws SQLException
+	 * @throws IOException  if a stored sketch is invalid
+	 */
+	public Collection<GenomeSketch> getSketches(int threads) throws SQLException, IOException {
 		this.logger.fine("Getting genomes and sketches from DB...");
-		Collection<GenomeSketch> result = new ArrayList<>();
-		PreparedStatement view_statement = this.connection.prepareStatement("SELECT b.genome_size as genome_size, a.frac_min_hash_sketch as sketch, a.taxon_id as taxon_id, b.genome_accession, b.fasta_url, c.taxon_name FROM frac_min_hash_sketches as a JOIN genomes as b ON a.taxon_id = b.taxon_id JOIN taxa as c ON a.taxon_id = c.taxon_id;");
-		ResultSet rs = view_statement.executeQuery();
+		List<GenomeSketch> result = this.load(true, threads, SketchRow::toGenomeSketch);
+		this.logger.fine("Finished getting genomes and sketches from DB!");
+		return result;
+	}
+
+	/**
+	 * Reads all sketches without their genomes, named by their taxon names.
+	 * This is cheaper than getSketches() for callers that only need the hash
+	 * values, see load(). The sketches are Elias-Fano compressed right after
+	 * decoding, so the uncompressed sketches are never held in memory at the
+	 * same time.
+	 *
+	 * @param threads number of threads that decode the sketches
+	 * @return
+	 * @throws SQLException
+	 * @throws IOException  if a stored sketch is invalid
+	 */
+	public List<CompressedSketch> loadSketches(int threads) throws SQLException, IOException {
+		this.logger.fine("Getting compressed sketches from DB...");
+		List<CompressedSketch> result = this.load(false, threads, row -> CompressedSketch.compress(row.getSketch()));
+		this.logger.fine("Finished getting compressed sketches from DB!");
+		return result;
+	}
+
+	/**
+	 * Decodes a row, see load().
+	 */
+	private interface RowDecoder<T> {
+		public T decode(SketchRow row) throws IOException;
+	}
+
+	/**
+	 * Reads all rows on the calling thread, as the connection must not be
+	 * shared, and hands them in chunks of LOAD_CHUNK_SIZE rows to the given
+	 * number of threads for decoding. The result has the order of the rows.
+	 */
+	private <T> List<T> load(boolean includeGenomes, int threads, RowDecoder<T> decoder) throws SQLException, IOException {
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		final List<Future<List<T>>> chunks = new ArrayList<>();
+		try (SketchCursor cursor = this.openSketchCursor(includeGenomes)) {
+			List<SketchRow> chunk = new ArrayList<>(LOAD_CHUNK_SIZE);
+			SketchRow row;
+			while ((row = cursor.next()) != null) {
+				chunk.add(row);
+				if (chunk.size() == LOAD_CHUNK_SIZE) {
+					chunks.add(executor.submit(decodeChunk(chunk, decoder)));
+					chunk = new ArrayList<>(LOAD_CHUNK_SIZE);
+				}
+			}
+			if (!chunk.isEmpty()) {
+				chunks.add(executor.submit(decodeChunk(chunk, decoder)));
+			}
+
+			final List<T> result = new ArrayList<>();
+			for (Future<List<T>> future : chunks) {
+				result.addAll(future.get());
+			}
+			return result;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while loading sketches");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static <T> Callable<List<T>> decodeChunk(List<SketchRow> chunk, RowDecoder<T> decoder) {
+		return () -> {
+			List<T> result = new ArrayList<>(chunk.size());
+			for (SketchRow row : chunk) {
+				result.add(decoder.decode(row));
+			}
+			return result;
+		};
+	}
+
+	/**
+	 * Returns the taxon ids of all genomes of the database.
+	 *
+	 * @return
+	 * @throws SQLException
+	 */
+	public Set<Integer> getGenomeTaxonIds() throws SQLException {
+		Set<Integer> result = new HashSet<>();
+		ResultSet rs = this.connection.createStatement().executeQuery("SELECT taxon_id FROM genomes;");
 		while (rs.next()) {
-			byte[] serializedSketch = HexUtils.decodeHexString(rs.getString("sketch"));
-			int taxonId = rs.getInt("taxon_id");
-			long genomeSize = rs.getLong("genome_size");
-			String accession = rs.getString("genome_accession");
-			String taxonName = rs.getString("taxon_name");
-			String fastaUrl = rs.getString("fasta_url");
-			Genome currentGenome = new Genome(taxonName, accession, taxonId, taxonName, fastaUrl, genomeSize);
-			FracMinHashSketch sketch = FracMinHashSketch.parse(serializedSketch);
-			sketch.setName(taxonName);
-			result.add(new GenomeSketch(currentGenome, sketch));
+			result.add(rs.getInt("taxon_id"));
 		}
+		return result;
+	}
 
-		this.logger.fine("Finished getting genomes and sketches from DB!");
+	/**
+	 * Returns the accessions of all genomes of the database.
+	 *
+	 * @return
+	 * @throws SQLException
+	 */
+	public Set<String> getGenomeAccessions() throws SQLException {
+		Set<String> result = new HashSet<>();
+		ResultSet rs = this.connection.createStatement().executeQuery("SELECT genome_accession FROM genomes;");
+		while (rs.next()) {
+			result.add(rs.getString("genome_accession"));
+		}
 		return result;
 	}
 
-	public void insertSketches(Collection<GenomeSketch> sketches) throws SQLException {
+	/**
+	 * Inserts the genomes and their sketches. Only the first genome of each
+	 * taxon is inserted, further genomes of a taxon that is already part of
+	 * the database are skipped. Failures that were recorded for the
+	 * accessions before are removed. Each batch of BATCH_SIZE genomes is
+	 * committed in its own transaction, so a failure only loses the current
+	 * batch. Can be called from multiple threads.
+	 *
+	 * @param sketches the sketches to insert
+	 * @return the number of inserted genomes
+	 * @throws SQLException
+	 */
+	public synchronized int insertSketches(Collection<GenomeSketch> sketches) throws SQLException {
 		this.logger.fine("Inserting genomes and sketches in DB...");
-		PreparedStatement genome_statement = this.connection.prepareStatement("INSERT INTO genomes (taxon_id, genome_accession, genome_size, fasta_url) VALUES (?, ?, ?, ?);");
-		PreparedStatement sketch_statement = this.connection.prepareStatement("INSERT INTO frac_min_hash_sketches (taxon_id, frac_min_hash_sketch) VALUES (?, ?);");
-		PreparedStatement check_unique_statement = this.connection.prepareStatement("SELECT 1 FROM genomes WHERE taxon_id = ?");
-		for (GenomeSketch g : sketches) {
-			// Is Taxon already known?
-			check_unique_statement.setInt(1, g.getGenome().getTaxonId());
-			ResultSet rs = check_unique_statement.executeQuery();
-			if (rs.next()) {
-				this.logger.fine(String.format("multiple accession codes for taxon %d found. Skipping...", g.getGenome().getTaxonId()));
-				continue;
-			}
+		// Inserting in the order of the primary key appends to the B-trees.
+		// The sort is stable, so the first genome of a taxon is kept.
+		List<GenomeSketch> sorted = new ArrayList<>(sketches);
+		sorted.sort(Comparator.comparingInt(g -> g.getGenome().getTaxonId()));
+		Set<Integer> knownTaxa = this.getGenomeTaxonIds();
+		final int[] inserted = new int[1];
+
+		PreparedStatement genome_statement = this.connection.prepareStatement(INSERT_GENOME);
+		PreparedStatement sketch_statement = this.connection.prepareStatement(INSERT_SKETCH);
+		PreparedStatement failure_statement = this.connection.prepareStatement("DELETE FROM failed_genomes WHERE genome_accession = ?;");
+		for (int from = 0; from < sorted.size(); from += BATCH_SIZE) {
+			final List<GenomeSketch> batch = sorted.subList(from, Math.min(sorted.size(), from + BATCH_SIZE));
+			this.inTransaction(() -> {
+				for (GenomeSketch g : batch) {
+					failure_statement.setString(1, g.getGenome().getAccession());
+					failure_statement.addBatch();
 
-			genome_statement.setInt(1, g.getGenome().getTaxonId());
-			genome_statement.setString(2, g.getGenome().getAccession());
-			genome_statement.setLong(3, g.getGenome().getGenomeSize());
-			genome_statement.setString(4, g.getGenome().getFastaUrl());
-			genome_statement.executeUpdate();
+					// Is Taxon already known?
+					if (!knownTaxa.add(g.getGenome().getTaxonId())) {
+						this.logger.fine(String.format("multiple accession codes for taxon %d found. Skipping...", g.getGenome().getTaxonId()));
+						continue;
+					}
 
-			sketch_statement.setInt(1, g.getGenome().getTaxonId());
-			sketch_statement.setString(2, HexUtils.encodeHexString(g.getSketch().getBytes()));
-			sketch_statement.executeUpdate();
+					this.setSketchParameters(genome_statement, sketch_statement, g);
+					genome_statement.addBatch();
+					sketch_statement.addBatch();
+					inserted[0]++;
+				}
+				genome_statement.executeBatch();
+				sketch_statement.executeBatch();
+				failure_statement.executeBatch();
+			});
 		}
+		genome_statement.close();
+		sketch_statement.close();
+		failure_statement.close();
 		this.logger.fine("Finished inserting genome sketches in DB!");
+		return inserted[0];
+	}
+
+	private void setSketchParameters(PreparedStatement genome_statement, PreparedStatement sketch_statement, GenomeSketch g) throws SQLException {
+		genome_statement.setInt(1, g.getGenome().getTaxonId());
+		genome_statement.setString(2, g.getGenome().getAccession());
+		genome_statement.setLong(3, g.getGenome().getGenomeSize());
+		genome_statement.setString(4, g.getGenome().getFastaUrl());
+
+		sketch_statement.setInt(1, g.getGenome().getTaxonId());
+		sketch_statement.setBytes(2, SketchFile.toBytes(g.getSketch()));
+	}
+
+	/**
+	 * Records that the genome of the given accession could not be sketched.
+	 * A previous error of the accession is replaced. Can be called from
+	 * multiple threads.
+	 *
+	 * @param accession the accession code of the genome
+	 * @param error     a description of the error
+	 * @throws SQLException
+	 */
+	public synchronized void insertFailure(String accession, String error) throws SQLException {
+		PreparedStatement s = this.connection.prepareStatement("INSERT OR REPLACE INTO failed_genomes (genome_accession, error) VALUES (?, ?);");
+		s.setString(1, accession);
+		s.setString(2, error);
+		s.execute();
+		s.close();
 	}
 
+	/**
+	 * Records that the given genomes were not added because their taxa
+	 * already have a genome in the database, so later updates skip them
+	 * without looking them up again.
+	 *
+	 * @param genomes the skipped genomes
+	 * @throws SQLException
+	 */
+	public synchronized void insertSkippedGenomes(Collection<Genome> genomes) throws SQLException {
+		this.inTransaction(() -> {
+			PreparedStatement s = this.connection.prepareStatement("INSERT OR REPLACE INTO skipped_genomes (genome_accession, taxon_id) VALUES (?, ?);");
+			for (Genome genome : genomes) {
+				s.setString(1, genome.getAccession());
+				s.setInt(2, genome.getTaxonId());
+				s.addBatch();
+			}
+			s.executeBatch();
+			s.close();
+		});
+	}
+
+	/**
+	 * Returns the accessions of all genomes that were skipped because their
+	 * taxa already have a genome in the database.
+	 *
+	 * @return
+	 * @throws SQLException
+	 */
+	public Set<String> getSkippedAccessions() throws SQLException {
+		Set<String> result = new HashSet<>();
+		ResultSet rs = this.connection.createStatement().executeQuery("SELECT genome_accession FROM skipped_genomes;");
+		while (rs.next()) {
+			result.add(rs.getString("genome_accession"));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the accessions of all genomes that could not be sketched,
+	 * together with the recorded error.
+	 *
+	 * @return
+	 * @throws SQLException
+	 */
+	public Map<String, String> getFailedGenomes() throws SQLException {
+		Map<String, String> result = new HashMap<>();
+		ResultSet rs = this.connection.createStatement().executeQuery("SELECT genome_accession, error FROM failed_genomes;");
+		while (rs.next()) {
+			result.put(rs.getString("genome_accession"), rs.getString("error"));
+		}
+		return result;
+	}
+
+	/**
+	 * Inserts all taxa of the taxonomy in a single transaction. Taxa that are
+	 * already part of the database are kept unchanged, so the lineages of
+	 * new genomes can be merged into an existing taxonomy.
+	 *
+	 * @param taxonomy the taxonomy to insert
+	 * @throws SQLException
+	 */
 	public void insertTaxonomy(TaxonomyTree taxonomy) throws SQLException {
 		this.logger.fine("Inserting taxa in DB...");
-		PreparedStatement s = this.connection.prepareStatement("INSERT INTO taxa (taxon_id, taxon_name, taxon_display_name, parent_id) VALUES (?, ?, ?, ?)");
-		for (Taxon t : taxonomy.getTaxa().values()) {
-			s.setInt(1, t.getTaxonId());
-			s.setString(2, t.getOrganismName());
-			s.setString(3, t.getOrganismName());
-			int parent = 0;
-			if (!taxonomy.getRoot().equals(t)) {
-				for (Taxon p : taxonomy.getTree().predecessors(t)) { // there is only one
-					parent = p.getTaxonId();
+		final Graph<Taxon> tree = taxonomy.getTree();
+		final Taxon root = taxonomy.getRoot();
+		final List<Taxon> taxa = new ArrayList<>(taxonomy.getTaxa().values());
+		taxa.sort(Comparator.comparingInt(Taxon::getTaxonId));
+
+		this.inTransaction(() -> {
+			PreparedStatement s = this.connection.prepareStatement("INSERT OR IGNORE INTO taxa (taxon_id, taxon_name, taxon_display_name, parent_id) VALUES (?, ?, ?, ?)");
+			int batched = 0;
+			for (Taxon t : taxa) {
+				s.setInt(1, t.getTaxonId());
+				s.setString(2, t.getOrganismName());
+				s.setString(3, t.getOrganismName());
+				int parent = 0;
+				if (!root.equals(t)) {
+					for (Taxon p : tree.predecessors(t)) { // there is only one
+						parent = p.getTaxonId();
+					}
+				}
+				s.setInt(4, parent);
+				s.addBatch();
+				if (++batched % BATCH_SIZE == 0) {
+					s.executeBatch();
 				}
 			}
-			s.setInt(4, parent);
-			s.executeUpdate();
-		}
+			s.executeBatch();
+			s.close();
+		});
 		this.logger.fine("Finished inserting taxa in DB!");
 	}
 
 	public void insertFullInfo(int kSize, int sParam, int seed, String hashFunction) throws SQLException {
+		this.insertFullInfo(kSize, sParam, seed, hashFunction, false);
+	}
+
+	public void insertFullInfo(int kSize, int sParam, int seed, String hashFunction, boolean packed) throws SQLException {
 		this.logger.fine("Inserting sketch creation info...");
-		PreparedStatement s = this.connection.prepareStatement("INSERT INTO info (key, value) VALUES (?, ?);");
-		int[] values = new int[]{kSize, sParam, seed};
-		String[] keys = new String[]{"sketch_k", "sketch_s", "sketch_seed"};
-		for (int i = 0; i < 3; i++) {
-			s.setString(1, keys[i]);
-			s.setInt(2, values[i]);
-			s.executeUpdate();
-		}
-		s.setString(1, "hash_function");
-		s.setString(2, hashFunction);
-		s.executeUpdate();
+		this.inTransaction(() -> {
+			PreparedStatement s = this.connection.prepareStatement("INSERT INTO info (key, value) VALUES (?, ?);");
+			int[] values = new int[]{kSize, sParam, seed, packed ? 1 : 0};
+			String[] keys = new String[]{"sketch_k", "sketch_s", "sketch_seed", "sketch_packed"};
+			for (int i = 0; i < keys.length; i++) {
+				s.setString(1, keys[i]);
+				s.setInt(2, values[i]);
+				s.addBatch();
+			}
+			s.setString(1, "hash_function");
+			s.setString(2, hashFunction);
+			s.addBatch();
+			s.executeBatch();
+			s.close();
+		});
 	}
 
 	public Map<String, Integer> getNumericalInfo() throws SQLException {
@@ -157,6 +539,12 @@ public class ReferenceDatabase implements Closeable {
 	@Override
 	public void close() throws IOException {
 		try {
+			if (this.bulkLoad) {
+				this.logger.fine("Building indexes...");
+				this.createIndexes();
+				this.connection.createStatement().execute("PRAGMA journal_mode = DELETE;");
+				this.bulkLoad = false;
+			}
 			this.connection.close();
 		} catch (SQLException e) {
 			throw new IOException(e);
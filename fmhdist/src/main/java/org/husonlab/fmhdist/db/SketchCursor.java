@@ -0,0 +1,60 @@
+package org.husonlab.fmhdist.db;
+
+import org.husonlab.fmhdist.ncbi.Genome;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Iterates over the sketches of a ReferenceDatabase one row at a time,
+ * without holding all sketches in memory. Opened by
+ * ReferenceDatabase.openSketchCursor().
+ */
+public class SketchCursor implements Closeable {
+	private final PreparedStatement statement;
+	private final ResultSet rs;
+	private final boolean includeGenomes;
+
+	SketchCursor(PreparedStatement statement, boolean includeGenomes) throws SQLException {
+		this.statement = statement;
+		this.rs = statement.executeQuery();
+		this.includeGenomes = includeGenomes;
+	}
+
+	/**
+	 * Reads the next row.
+	 *
+	 * @return the next row or null if all rows have been read
+	 * @throws SQLException
+	 */
+	public SketchRow next() throws SQLException {
+		if (!this.rs.next()) {
+			return null;
+		}
+		int taxonId = this.rs.getInt("taxon_id");
+		String taxonName = this.rs.getString("taxon_name");
+		// databases of earlier versions store the sketch as hex TEXT
+		byte[] serializedSketch = this.rs.getBytes("sketch");
+		Genome genome = null;
+		if (this.includeGenomes) {
+			long genomeSize = this.rs.getLong("genome_size");
+			String accession = this.rs.getString("genome_accession");
+			String fastaUrl = this.rs.getString("fasta_url");
+			genome = new Genome(taxonName, accession, taxonId, taxonName, fastaUrl, genomeSize);
+		}
+		return new SketchRow(taxonId, taxonName, serializedSketch, genome);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			this.rs.close();
+			this.statement.close();
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package org.husonlab.fmhdist.db;
+
+import org.husonlab.fmhdist.ncbi.Genome;
+import org.husonlab.fmhdist.sketch.FracMinHashSketch;
+import org.husonlab.fmhdist.sketch.GenomeSketch;
+import org.husonlab.fmhdist.sketch.SketchFile;
+
+import java.io.IOException;
+
+/**
+ * A row of the sketch table of a ReferenceDatabase, see SketchCursor. The
+ * sketch is kept in its serialized form until getSketch() is called, so the
+ * rows can be read on one thread and decoded on others.
+ */
+public class SketchRow {
+	private final int taxonId;
+	private final String taxonName;
+	private final byte[] serializedSketch;
+	private final Genome genome;
+
+	SketchRow(int taxonId, String taxonName, byte[] serializedSketch, Genome genome) {
+		this.taxonId = taxonId;
+		this.taxonName = taxonName;
+		this.serializedSketch = serializedSketch;
+		this.genome = genome;
+	}
+
+	public int getTaxonId() {
+		return this.taxonId;
+	}
+
+	public String getTaxonName() {
+		return this.taxonName;
+	}
+
+	/**
+	 * Returns the sketch as stored in the database, either in the binary
+	 * format of SketchFile or as hex text for databases of earlier versions.
+	 *
+	 * @return
+	 */
+	public byte[] getSerializedSketch() {
+		return this.serializedSketch;
+	}
+
+	/**
+	 * Decodes the sketch. The name of the sketch is set to the taxon name.
+	 *
+	 * @return
+	 * @throws IOException if the stored sketch is invalid
+	 */
+	public FracMinHashSketch getSketch() throws IOException {
+		FracMinHashSketch sketch = SketchFile.read(this.serializedSketch);
+		sketch.setName(this.taxonName);
+		return sketch;
+	}
+
+	/**
+	 * Returns the genome of the row, or null if the cursor was opened without
+	 * genomes.
+	 *
+	 * @return
+	 */
+	public Genome getGenome() {
+		return this.genome;
+	}
+
+	/**
+	 * Decodes the sketch and combines it with the genome of the row.
+	 *
+	 * @return
+	 * @throws IOException if the stored sketch is invalid
+	 */
+	public GenomeSketch toGenomeSketch() throws IOException {
+		if (this.genome == null) {
+			throw new IllegalStateException("the cursor was opened without genomes");
+		}
+		return new GenomeSketch(this.genome, this.getSketch());
+	}
+}
@@ -0,0 +1,217 @@
+package org.husonlab.fmhdist.ncbi;
+
+import jloda.util.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Reads the metadata of genome assemblies from local files instead of the
+ * NCBI API, either from an assembly_summary.txt or from a mirror of the NCBI
+ * genomes FTP directory (genomes/all/GCF/000/819/615/GCF_000819615.1_ViralProj14015/...).
+ * <p>
+ * The returned genomes point to the local *_genomic.fna.gz files, so the
+ * pipeline sketches them without downloading anything.
+ */
+public class LocalAssemblies {
+	public static final String GENOMIC_SUFFIX = "_genomic.fna.gz";
+	public static final String REPORT_SUFFIX = "_assembly_report.txt";
+
+	// columns of assembly_summary.txt, by header name and by their position
+	// in files without header
+	private static final String[] SUMMARY_COLUMNS = {"assembly_accession", "taxid", "organism_name", "ftp_path", "genome_size"};
+	private static final int[] SUMMARY_DEFAULT_POSITIONS = {0, 5, 7, 19, 25};
+
+	private static Logger logger = Logger.getLogger(LocalAssemblies.class.getName());
+
+	/**
+	 * Reads the genomes of an assembly_summary.txt as provided by NCBI, e.g.
+	 * https://ftp.ncbi.nlm.nih.gov/genomes/refseq/assembly_summary_refseq.txt.
+	 * Rows without FTP path are skipped.
+	 *
+	 * @param summary the summary file
+	 * @param mirror  the local directory that mirrors the root of the NCBI
+	 *                FTP server, i.e. that contains the genomes directory.
+	 *                If null, the genomes are downloaded from the FTP paths
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Genome> readAssemblySummary(Path summary, Path mirror) throws IOException {
+		List<Genome> result = new ArrayList<>();
+		int[] positions = SUMMARY_DEFAULT_POSITIONS.clone();
+		try (BufferedReader reader = Files.newBufferedReader(summary, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("#")) {
+					String[] header = line.substring(1).trim().split("\t");
+					if (header[0].equals(SUMMARY_COLUMNS[0])) {
+						positions = getPositions(header);
+					}
+					continue;
+				}
+				String[] columns = line.split("\t", -1);
+				if (line.isBlank() || columns.length <= positions[3]) {
+					continue;
+				}
+				final String accession = columns[positions[0]];
+				final String ftpPath = columns[positions[3]].replaceFirst("/+$", "");
+				if (ftpPath.isEmpty() || ftpPath.equals("na")) {
+					logger.warning(String.format("no FTP path for %s. Skipping...", accession));
+					continue;
+				}
+
+				String directory = ftpPath;
+				if (mirror != null) {
+					try {
+						directory = mirror.resolve(new URI(ftpPath).getPath().replaceFirst("^/+", "")).toString();
+					} catch (URISyntaxException e) {
+						logger.warning(String.format("invalid FTP path for %s: %s. Skipping...", accession, ftpPath));
+						continue;
+					}
+				} else if (ftpPath.startsWith("ftp://")) {
+					// the FTP server is also served via HTTPS, which is more reliable
+					directory = "https://" + ftpPath.substring("ftp://".length());
+				}
+				final String fasta = getFastaFile(directory);
+
+				long genomeSize = -1;
+				if (positions[4] >= 0 && positions[4] < columns.length) {
+					try {
+						genomeSize = Long.parseLong(columns[positions[4]]);
+					} catch (NumberFormatException e) {
+						// older summaries do not state the size
+					}
+				}
+				if (genomeSize < 0) {
+					genomeSize = mirror != null ? FileUtils.guessUncompressedSizeOfFile(fasta) : 0;
+				}
+
+				result.add(createGenome(columns[positions[2]], accession, Integer.parseInt(columns[positions[1]]), directory, genomeSize));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Finds all genomes in a mirror of the NCBI genomes FTP directory. Each
+	 * assembly directory is expected to contain the genomic sequences and the
+	 * assembly report, which states the organism and its taxon id. Assemblies
+	 * without report are skipped.
+	 *
+	 * @param root the root directory to search, e.g. the genomes/all directory
+	 *             of the mirror or any of its subdirectories
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Genome> scanDirectory(Path root) throws IOException {
+		List<Path> directories;
+		try (Stream<Path> stream = Files.walk(root)) {
+			directories = stream
+					.filter(file -> file.getParent() != null &&
+									file.getFileName().toString().equals(file.getParent().getFileName() + GENOMIC_SUFFIX))
+					.map(Path::getParent)
+					.sorted()
+					.collect(Collectors.toList());
+		}
+
+		List<Genome> result = new ArrayList<>();
+		for (Path directory : directories) {
+			final String name = directory.getFileName().toString();
+			final Path report = directory.resolve(name + REPORT_SUFFIX);
+			if (!Files.isRegularFile(report)) {
+				logger.warning(String.format("no assembly report in %s. Skipping...", directory));
+				continue;
+			}
+			Map<String, String> fields = readReportHeader(report);
+			if (!fields.containsKey("Taxid") || !fields.containsKey("Organism name")) {
+				logger.warning(String.format("no taxon in %s. Skipping...", report));
+				continue;
+			}
+			// the directory is named after the accession and the assembly name
+			final String[] parts = name.split("_", 3);
+			if (parts.length < 3) {
+				logger.warning(String.format("unexpected assembly directory %s. Skipping...", directory));
+				continue;
+			}
+			final String accession = parts[0] + "_" + parts[1];
+			// the report adds the kingdom to the organism, e.g. "Escherichia phage phiX174 (viruses)"
+			final String organismName = fields.get("Organism name").replaceFirst("\\s*\\([^()]*\\)$", "");
+			final String fasta = getFastaFile(directory.toString());
+			result.add(createGenome(
+					organismName,
+					accession,
+					Integer.parseInt(fields.get("Taxid")),
+					directory.toString(),
+					FileUtils.guessUncompressedSizeOfFile(fasta)));
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the "# key: value" lines at the start of an assembly report.
+	 */
+	private static Map<String, String> readReportHeader(Path report) throws IOException {
+		Map<String, String> fields = new HashMap<>();
+		try (BufferedReader reader = Files.newBufferedReader(report, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null && line.startsWith("#")) {
+				final int separator = line.indexOf(':');
+				if (separator > 0) {
+					fields.put(line.substring(1, separator).trim(), line.substring(separator + 1).trim());
+				}
+			}
+		}
+		return fields;
+	}
+
+	private static int[] getPositions(String[] header) {
+		int[] positions = new int[SUMMARY_COLUMNS.length];
+		for (int i = 0; i < SUMMARY_COLUMNS.length; i++) {
+			positions[i] = -1;
+			for (int j = 0; j < header.length; j++) {
+				if (header[j].equals(SUMMARY_COLUMNS[i])) {
+					positions[i] = j;
+				}
+			}
+			// only the genome size is optional
+			if (positions[i] < 0 && i < SUMMARY_COLUMNS.length - 1) {
+				throw new IllegalArgumentException(String.format("column %s missing in assembly summary", SUMMARY_COLUMNS[i]));
+			}
+		}
+		return positions;
+	}
+
+	/**
+	 * The assembly name is taken from the directory, which already has the
+	 * form used in the file names of NCBI, see Genome.getFastaUrl().
+	 */
+	private static Genome createGenome(String organismName, String accession, int taxonId, String directory, long genomeSize) {
+		final String name = getName(directory);
+		final String assemblyName = name.startsWith(accession + "_") ? name.substring(accession.length() + 1) : name;
+		return new Genome(organismName, accession, taxonId, assemblyName, directory, genomeSize);
+	}
+
+	private static String getFastaFile(String directory) {
+		return directory + "/" + getName(directory) + GENOMIC_SUFFIX;
+	}
+
+	/**
+	 * The last element of a local path or URL.
+	 */
+	private static String getName(String directory) {
+		return directory.substring(Math.max(directory.lastIndexOf('/'), directory.lastIndexOf(File.separatorChar)) + 1);
+	}
+}
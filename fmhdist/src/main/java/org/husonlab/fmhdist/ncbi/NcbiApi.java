@@ -14,8 +14,12 @@ import org.openapitools.client.api.TaxonomyApi;
 import org.openapitools.client.model.*;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 public class NcbiApi {
@@ -23,9 +27,11 @@ public class NcbiApi {
 	private final int TAXON_PAGE_SIZE = 100;
 	private final int MAX_TRY_COUNT = 5;
 	private final int RETRY_BACKOFF_DELAY = 10;
+	private final int MAX_PARALLEL_REQUESTS = 4;
 	private final Logger logger;
 	private final GenomeApi genomes;
 	private final TaxonomyApi taxonomy;
+	private TaxonomyCache taxonomyCache = new TaxonomyCache();
 
 	public NcbiApi(String basePath) {
 		this.client = new ApiClient();
@@ -146,105 +152,146 @@ public class NcbiApi {
 		return result;
 	}
 
-	private void fetchLeafBatch(
-			MutableGraph<Taxon> tree,
-			Map<Integer, Taxon> taxa,
-			Queue<List<String>> lineageQueryQueue,
-			List<String> taxonBatch,
-			Map<Integer, Integer> genomeParents) throws ApiException {
-		V2TaxonomyMetadataResponse response = this.taxonomy.taxonomyMetadata(taxonBatch,
-				V2TaxonomyMetadataRequestContentType.COMPLETE);
-		List<V2TaxonomyMatch> nodes = response.getTaxonomyNodes();
-		if (nodes != null) {
-			for (V2TaxonomyMatch node : nodes) {
-				List<String> lineage = new ArrayList<>();
-				int directParent = 0;
-				for (int parent : node.getTaxonomy().getLineage()) {
-					lineage.add(String.valueOf(parent));
-					directParent = parent;
-				}
-				lineageQueryQueue.add(lineage);
-				Taxon taxon = new Taxon(node.getTaxonomy().getOrganismName(), node.getTaxonomy().getTaxId());
-				taxa.put(taxon.getTaxonId(), taxon);
-				tree.addNode(taxon);
-				genomeParents.put(taxon.getTaxonId(), directParent);
+	/**
+	 * Caches the fetched taxonomy nodes in the given file, so they are not
+	 * fetched again by later runs.
+	 *
+	 * @param file the cache file, see TaxonomyCache
+	 * @throws IOException if the existing cache could not be read
+	 */
+	public void setTaxonomyCache(Path file) throws IOException {
+		this.taxonomyCache = new TaxonomyCache(file);
+	}
+
+	/**
+	 * Fetches the taxonomy nodes of the given taxon ids that are not cached
+	 * yet. The ids are requested in pages of TAXON_PAGE_SIZE, with at most
+	 * MAX_PARALLEL_REQUESTS requests at the same time.
+	 */
+	private void fetchTaxa(Collection<Integer> taxonIds) throws ApiException {
+		List<String> unknown = new ArrayList<>();
+		for (int taxonId : taxonIds) {
+			if (!this.taxonomyCache.contains(taxonId)) {
+				unknown.add(String.valueOf(taxonId));
 			}
 		}
+		if (unknown.isEmpty()) {
+			return;
+		}
+		logger.fine(String.format("Fetching %d taxa in %d batches...", unknown.size(), (unknown.size() - 1) / TAXON_PAGE_SIZE + 1));
+
+		ExecutorService executor = Executors.newFixedThreadPool(MAX_PARALLEL_REQUESTS);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (List<String> page : Lists.partition(unknown, TAXON_PAGE_SIZE)) {
+				futures.add(executor.submit(() -> {
+					V2TaxonomyMetadataResponse response = this.taxonomy.taxonomyMetadata(page,
+							V2TaxonomyMetadataRequestContentType.COMPLETE);
+					List<V2TaxonomyMatch> nodes = response.getTaxonomyNodes();
+					if (nodes != null) {
+						for (V2TaxonomyMatch node : nodes) {
+							V2TaxonomyNode taxon = node.getTaxonomy();
+							if (taxon == null || taxon.getTaxId() == null) {
+								// unknown taxon id
+								continue;
+							}
+							List<Integer> lineage = taxon.getLineage() == null ? List.of() : taxon.getLineage();
+							this.taxonomyCache.put(taxon.getTaxId(), Objects.toString(taxon.getOrganismName(), ""),
+									lineage.stream().mapToInt(Integer::intValue).toArray());
+						}
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ApiException) {
+				throw (ApiException) e.getCause();
+			}
+			throw new ApiException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ApiException(e);
+		} finally {
+			executor.shutdownNow();
+		}
 	}
 
+	/**
+	 * Builds the taxonomy tree of the given genomes. First, the taxa of the
+	 * genomes are fetched, then all ancestors in their lineages. Each taxon
+	 * is fetched only once, no matter how many lineages it is part of, and
+	 * taxa that are part of the taxonomy cache are not fetched at all.
+	 *
+	 * @param genomes the genomes
+	 * @return
+	 * @throws ApiException
+	 */
 	public TaxonomyTree getTaxonomyTreeForGenomes(List<Genome> genomes) throws ApiException {
 		logger.fine("Fetching taxonomy tree...");
 
-		Map<Integer, Taxon> taxa = new HashMap<>();
-		Map<Integer, Integer> genomeParents = new HashMap<>();
-		MutableGraph<Taxon> tree = GraphBuilder.directed().build();
-		// The taxonomy API does not support pagination as of now but the
-		// requests could be come very large if we query the complete lineage of
-		// all taxa. So, maybe query the lineage for one taxon.
-		Queue<List<String>> lineageQueryQueue = new LinkedList<>();
-
 		logger.fine("Processing leaves...");
-		// First, get the lineage of all given genomes and create taxon for genome
-		List<String> taxonBatch = new ArrayList<>();
+		Set<Integer> leaves = new LinkedHashSet<>();
 		for (Genome g : genomes) {
-			taxonBatch.add(String.valueOf(g.getTaxonId()));
-			if (taxonBatch.size() >= TAXON_PAGE_SIZE) {
-				logger.fine("Leaf batch for " + taxonBatch.toString());
-				fetchLeafBatch(tree, taxa, lineageQueryQueue, taxonBatch, genomeParents);
-				taxonBatch.clear();
-			}
+			leaves.add(g.getTaxonId());
 		}
-		// Process final batch
-		logger.fine("Leaf batch for " + taxonBatch.toString());
-		fetchLeafBatch(tree, taxa, lineageQueryQueue, taxonBatch, genomeParents);
+		this.fetchTaxa(leaves);
 
-		// Now, resolve all lineages, all elements are findable by construction
 		logger.fine("Processing lineages...");
-		while (!lineageQueryQueue.isEmpty()) {
-			List<String> lineageQuery = lineageQueryQueue.remove();
-			logger.fine("Fetching lineage " + lineageQuery.toString());
-
-			V2TaxonomyMetadataResponse response = taxonomy.taxonomyMetadata(lineageQuery,
-					V2TaxonomyMetadataRequestContentType.COMPLETE);
-
-			// First, create all nodes (their order is not the same as in the query!)
-			List<V2TaxonomyMatch> nodes = response.getTaxonomyNodes();
-			if (nodes != null) {
-				for (V2TaxonomyMatch node : nodes) {
-					logger.fine("processing taxon " + node.getTaxonomy().getTaxId() + "...");
-					Taxon current;
-					// We might have seen this taxon before (shared lineage)
-					if (!taxa.containsKey(node.getTaxonomy().getTaxId())) {
-						logger.fine("taxon not known, creating new...");
-						current = new Taxon(node.getTaxonomy().getOrganismName(), node.getTaxonomy().getTaxId());
-						taxa.put(current.getTaxonId(), current);
-						tree.addNode(current);
-					}
-				}
-
-				// Then, add relationships as indicated by the lineage order
-				logger.fine("checking edges...");
-				Taxon prev = null;
-				for (String lineageItem : lineageQuery) {
-					Taxon current = taxa.get(Integer.parseInt(lineageItem));
-					if (prev != null && !tree.hasEdgeConnecting(prev, current)) {
-						logger.fine("inserting edge (" + prev.getTaxonId() + "," + current.getTaxonId() + ")...");
-						tree.putEdge(prev, current);
-					}
-					prev = current;
+		Set<Integer> ancestors = new LinkedHashSet<>();
+		for (int leaf : leaves) {
+			int[] lineage = this.taxonomyCache.getLineage(leaf);
+			if (lineage != null) {
+				for (int parent : lineage) {
+					ancestors.add(parent);
 				}
 			}
 		}
+		this.fetchTaxa(ancestors);
+		try {
+			this.taxonomyCache.save();
+		} catch (IOException e) {
+			logger.warning(String.format("Could not save taxonomy cache: %s", e.getMessage()));
+		}
 
-		// Finally, insert the leaves
-		logger.fine("Adding genome linkes...");
-		for (Entry<Integer, Integer> genomeLink : genomeParents.entrySet()) {
-			if (!tree.hasEdgeConnecting(taxa.get(genomeLink.getValue()), taxa.get(genomeLink.getKey()))) {
-				logger.fine("inserting edge (" + genomeLink.getValue() + "," + genomeLink.getKey() + ")...");
-				tree.putEdge(taxa.get(genomeLink.getValue()), taxa.get(genomeLink.getKey()));
+		Map<Integer, Taxon> taxa = new HashMap<>();
+		MutableGraph<Taxon> tree = GraphBuilder.directed().build();
+		for (int leaf : leaves) {
+			int[] lineage = this.taxonomyCache.getLineage(leaf);
+			if (lineage == null) {
+				logger.warning(String.format("taxon %d not found", leaf));
+				continue;
+			}
+			// the lineage runs from the root to the direct parent of the leaf
+			int[] path = Arrays.copyOf(lineage, lineage.length + 1);
+			path[lineage.length] = leaf;
+			Taxon prev = null;
+			for (int taxonId : path) {
+				Taxon current = this.getTaxon(taxa, tree, taxonId);
+				if (current == null) {
+					logger.warning(String.format("taxon %d of lineage of %d not found", taxonId, leaf));
+					continue;
+				}
+				if (prev != null && !tree.hasEdgeConnecting(prev, current)) {
+					logger.fine("inserting edge (" + prev.getTaxonId() + "," + current.getTaxonId() + ")...");
+					tree.putEdge(prev, current);
+				}
+				prev = current;
 			}
 		}
 		logger.fine("Fetched taxonomy tree!");
 		return new TaxonomyTree(tree, taxa);
 	}
+
+	private Taxon getTaxon(Map<Integer, Taxon> taxa, MutableGraph<Taxon> tree, int taxonId) {
+		Taxon taxon = taxa.get(taxonId);
+		if (taxon == null && this.taxonomyCache.contains(taxonId)) {
+			taxon = new Taxon(this.taxonomyCache.getName(taxonId), taxonId);
+			taxa.put(taxonId, taxon);
+			tree.addNode(taxon);
+		}
+		return taxon;
+	}
 }
@@ -0,0 +1,129 @@
+package org.husonlab.fmhdist.ncbi;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Cache of the taxonomy nodes that were fetched from the NCBI API, i.e. the
+ * name and the lineage (from the root to the direct parent) of each taxon.
+ * <p>
+ * If a file is given, the cache is loaded from it and save() writes it back.
+ * The file is a TSV with one taxon per line: taxon id, name and the comma
+ * separated lineage. It is replaced atomically, so an interrupted run never
+ * leaves a truncated cache. Without a file, the cache only lives in memory.
+ * <p>
+ * The cache can be used from multiple threads.
+ */
+public class TaxonomyCache {
+	private static Logger logger = Logger.getLogger(TaxonomyCache.class.getName());
+
+	private final Path file;
+	private final Map<Integer, String> names = new HashMap<>();
+	private final Map<Integer, int[]> lineages = new HashMap<>();
+	private boolean isModified;
+
+	/**
+	 * Creates an empty cache that is not persisted.
+	 */
+	public TaxonomyCache() {
+		this.file = null;
+	}
+
+	/**
+	 * Loads the cache from the given file, if it exists.
+	 *
+	 * @param file the cache file
+	 * @throws IOException
+	 */
+	public TaxonomyCache(Path file) throws IOException {
+		this.file = file;
+		if (!Files.exists(file)) {
+			return;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] columns = line.split("\t", -1);
+				if (columns.length != 3) {
+					logger.warning(String.format("Skipping malformed taxonomy cache line: %s", line));
+					continue;
+				}
+				int[] lineage = columns[2].isEmpty() ? new int[0] : Arrays.stream(columns[2].split(",")).mapToInt(Integer::parseInt).toArray();
+				this.names.put(Integer.parseInt(columns[0]), columns[1]);
+				this.lineages.put(Integer.parseInt(columns[0]), lineage);
+			}
+		}
+		logger.fine(String.format("Loaded %d taxa from taxonomy cache", this.names.size()));
+	}
+
+	public synchronized boolean contains(int taxonId) {
+		return this.names.containsKey(taxonId);
+	}
+
+	public synchronized String getName(int taxonId) {
+		return this.names.get(taxonId);
+	}
+
+	/**
+	 * Returns the lineage of the taxon, from the root to its direct parent.
+	 *
+	 * @param taxonId the taxon id
+	 * @return the lineage, or null if the taxon is not cached
+	 */
+	public synchronized int[] getLineage(int taxonId) {
+		return this.lineages.get(taxonId);
+	}
+
+	public synchronized void put(int taxonId, String name, int[] lineage) {
+		this.names.put(taxonId, name);
+		this.lineages.put(taxonId, lineage);
+		this.isModified = true;
+	}
+
+	public synchronized int size() {
+		return this.names.size();
+	}
+
+	/**
+	 * Writes the cache to its file, if it has one and was modified.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		if (this.file == null || !this.isModified) {
+			return;
+		}
+		final Path directory = this.file.toAbsolutePath().getParent();
+		Files.createDirectories(directory);
+		final Path temp = Files.createTempFile(directory, this.file.getFileName().toString(), ".tmp");
+		try {
+			try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				for (Map.Entry<Integer, String> entry : this.names.entrySet()) {
+					StringBuilder lineage = new StringBuilder();
+					for (int parent : this.lineages.get(entry.getKey())) {
+						if (lineage.length() > 0) {
+							lineage.append(',');
+						}
+						lineage.append(parent);
+					}
+					// tabs and line breaks in names would break the format
+					writer.write(String.format("%d\t%s\t%s\n", entry.getKey(), entry.getValue().replaceAll("[\t\n\r]", " "), lineage));
+				}
+			}
+			Files.move(temp, this.file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		this.isModified = false;
+	}
+}
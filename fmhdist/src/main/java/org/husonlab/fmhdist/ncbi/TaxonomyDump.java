@@ -0,0 +1,207 @@
+package org.husonlab.fmhdist.ncbi;
+
+import com.google.common.graph.GraphBuilder;
+import com.google.common.graph.MutableGraph;
+import org.husonlab.fmhdist.util.LongIntHashMap;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Offline source of the NCBI taxonomy, read from the nodes.dmp and names.dmp
+ * files of the taxdump archive (https://ftp.ncbi.nlm.nih.gov/pub/taxonomy/).
+ * Both files may be gzipped.
+ * <p>
+ * The files are streamed once per tree. Only the parent of each node is kept
+ * in a primitive map while reading nodes.dmp, and only the names of the
+ * requested taxa and their ancestors are read from names.dmp. The returned
+ * tree therefore has the same shape as the one built by
+ * NcbiApi.getTaxonomyTreeForGenomes(), without a single request.
+ */
+public class TaxonomyDump {
+	public static final String NODES_FILE = "nodes.dmp";
+	public static final String NAMES_FILE = "names.dmp";
+
+	private static final String SEPARATOR = "\t|\t";
+	private static final String SCIENTIFIC_NAME = "scientific name";
+	private static final int ROOT_ID = 1;
+
+	private static Logger logger = Logger.getLogger(TaxonomyDump.class.getName());
+
+	private final Path nodesFile;
+	private final Path namesFile;
+
+	/**
+	 * Uses the taxdump files in the given directory.
+	 *
+	 * @param directory the directory that contains nodes.dmp and names.dmp,
+	 *                  or their gzipped versions
+	 * @throws FileNotFoundException if one of the files does not exist
+	 */
+	public TaxonomyDump(Path directory) throws FileNotFoundException {
+		this.nodesFile = findFile(directory, NODES_FILE);
+		this.namesFile = findFile(directory, NAMES_FILE);
+	}
+
+	/**
+	 * Builds the taxonomy tree of the given genomes, see
+	 * getTaxonomyTree().
+	 *
+	 * @param genomes the genomes
+	 * @return
+	 * @throws IOException
+	 */
+	public TaxonomyTree getTaxonomyTreeForGenomes(List<Genome> genomes) throws IOException {
+		List<Integer> taxonIds = new ArrayList<>();
+		for (Genome g : genomes) {
+			taxonIds.add(g.getTaxonId());
+		}
+		return this.getTaxonomyTree(taxonIds);
+	}
+
+	/**
+	 * Builds the tree that consists of the given taxa and all their
+	 * ancestors. Taxa that are not part of the dump are logged and skipped.
+	 *
+	 * @param taxonIds the ids of the leaves of the tree
+	 * @return
+	 * @throws IOException
+	 */
+	public TaxonomyTree getTaxonomyTree(Collection<Integer> taxonIds) throws IOException {
+		logger.fine("Reading taxonomy nodes...");
+		final LongIntHashMap parents = this.readParents();
+		logger.fine(String.format("Read %d taxonomy nodes", parents.size()));
+
+		// the requested taxa and all their ancestors, mapped to their parent
+		final LongIntHashMap selected = new LongIntHashMap();
+		final Map<Integer, Taxon> taxa = new HashMap<>();
+		final Set<Integer> leaves = new LinkedHashSet<>(taxonIds);
+		for (int leaf : leaves) {
+			int taxonId = leaf;
+			while (selected.get(taxonId, -1) == -1) {
+				final int parent = parents.get(taxonId, -1);
+				if (parent == -1) {
+					logger.warning(taxonId == leaf
+							? String.format("taxon %d not found", leaf)
+							: String.format("taxon %d of lineage of %d not found", taxonId, leaf));
+					break;
+				}
+				selected.put(taxonId, parent);
+				taxa.put(taxonId, new Taxon("", taxonId));
+				if (parent == taxonId) {
+					// only the root is its own parent
+					break;
+				}
+				taxonId = parent;
+			}
+		}
+
+		logger.fine("Reading taxonomy names...");
+		this.readNames(taxa);
+
+		final MutableGraph<Taxon> tree = GraphBuilder.directed().build();
+		for (Taxon taxon : taxa.values()) {
+			tree.addNode(taxon);
+			final int parent = selected.get(taxon.getTaxonId(), -1);
+			// the parent is missing if the lineage is broken
+			if (parent != taxon.getTaxonId() && taxa.containsKey(parent)) {
+				tree.putEdge(taxa.get(parent), taxon);
+			}
+		}
+		if (!taxa.containsKey(ROOT_ID)) {
+			logger.warning("the taxonomy does not contain the root");
+		}
+		logger.fine(String.format("Built taxonomy tree of %d taxa", taxa.size()));
+		return new TaxonomyTree(tree, taxa);
+	}
+
+	/**
+	 * Reads the parent of each node from nodes.dmp. Each line starts with
+	 * the taxon id and the parent id, separated by "\t|\t".
+	 */
+	private LongIntHashMap readParents() throws IOException {
+		final LongIntHashMap parents = new LongIntHashMap();
+		try (BufferedReader reader = open(this.nodesFile)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final int end = line.indexOf(SEPARATOR);
+				if (end < 0) {
+					continue;
+				}
+				final int parentStart = end + SEPARATOR.length();
+				final int parentEnd = line.indexOf('\t', parentStart);
+				if (parentEnd < 0) {
+					continue;
+				}
+				parents.put(
+						Integer.parseInt(line, 0, end, 10),
+						Integer.parseInt(line, parentStart, parentEnd, 10));
+			}
+		}
+		return parents;
+	}
+
+	/**
+	 * Sets the scientific names of the given taxa from names.dmp. Each
+	 * line consists of the taxon id, the name, a unique variant of the name
+	 * and the name class, e.g. "2\t|\tBacteria\t|\tBacteria <bacteria>\t|\tscientific name\t|".
+	 */
+	private void readNames(Map<Integer, Taxon> taxa) throws IOException {
+		int found = 0;
+		try (BufferedReader reader = open(this.namesFile)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final int end = line.indexOf(SEPARATOR);
+				if (end < 0) {
+					continue;
+				}
+				final Taxon taxon = taxa.get(Integer.parseInt(line, 0, end, 10));
+				if (taxon == null || !line.contains(SEPARATOR + SCIENTIFIC_NAME)) {
+					continue;
+				}
+				final int nameStart = end + SEPARATOR.length();
+				final int nameEnd = line.indexOf(SEPARATOR, nameStart);
+				taxon.setOrganismName(line.substring(nameStart, nameEnd < 0 ? line.length() : nameEnd));
+				found++;
+			}
+		}
+		if (found < taxa.size()) {
+			logger.warning(String.format("%d taxa have no scientific name", taxa.size() - found));
+		}
+	}
+
+	private static Path findFile(Path directory, String name) throws FileNotFoundException {
+		final Path file = directory.resolve(name);
+		if (Files.isRegularFile(file)) {
+			return file;
+		}
+		final Path gzipped = directory.resolve(name + ".gz");
+		if (Files.isRegularFile(gzipped)) {
+			return gzipped;
+		}
+		throw new FileNotFoundException(String.format("%s not found in %s", name, directory));
+	}
+
+	private static BufferedReader open(Path file) throws IOException {
+		InputStream in = Files.newInputStream(file);
+		if (file.getFileName().toString().endsWith(".gz")) {
+			in = new GZIPInputStream(in, 1 << 16);
+		}
+		return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+	}
+}
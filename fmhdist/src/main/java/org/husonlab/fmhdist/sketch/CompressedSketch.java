@@ -0,0 +1,318 @@
+package org.husonlab.fmhdist.sketch;
+
+/**
+ * A FracMinHash sketch whose sorted hash values are stored with the
+ * Elias-Fano encoding instead of a long[] array. Each value x (shifted by
+ * Long.MIN_VALUE to be non-negative) is split into its lowBits lower bits,
+ * which are stored verbatim in a packed bit array, and the remaining upper
+ * bits, which are stored as a unary coded gap in a bit vector: the value
+ * with index i sets bit (x >>> lowBits) + i. With lowBits = log2(u / n) for
+ * n values below u, this takes lowBits + 2 bits per value.
+ * <p>
+ * The hashes of a FracMinHash sketch are uniformly distributed below
+ * 2^64 / s, which leaves log2(2^64 / (s n)) + 2 bits per hash, e.g. about 43
+ * instead of 64 bits for 5000 hashes with s = 1000. The saving grows with the
+ * sketch size and the scaling parameter.
+ * <p>
+ * Every SKIP-th value and its position in the upper bit vector are sampled
+ * as skip pointers. A Cursor iterates over the values and can skip ahead to
+ * a target value using these samples, so Distance can intersect compressed
+ * sketches without decoding them in full.
+ */
+public class CompressedSketch {
+	/**
+	 * Distance between two skip pointers, in values.
+	 */
+	public static final int SKIP = 128;
+
+	private final int sParam;
+	private final int kSize;
+	private final int seed;
+	private final long hashedMagicNumber;
+	private String name;
+
+	private final int size;
+	private final int lowBits;
+	private final long lowMask;
+	private final long[] lower;
+	private final long[] upper;
+	private final long[] skipValues;
+	private final int[] skipPositions;
+
+	private CompressedSketch(int sParam, int kSize, int seed, long hashedMagicNumber, String name, long[] values) {
+		this.sParam = sParam;
+		this.kSize = kSize;
+		this.seed = seed;
+		this.hashedMagicNumber = hashedMagicNumber;
+		this.name = name;
+
+		final int n = values.length;
+		if (n > Integer.MAX_VALUE / 4) {
+			throw new IllegalArgumentException("too many hashes for a compressed sketch");
+		}
+		this.size = n;
+		final long max = n == 0 ? 0 : values[n - 1] - Long.MIN_VALUE;
+		final long quotient = n == 0 ? 0 : Long.divideUnsigned(max, n);
+		this.lowBits = quotient == 0 ? 0 : 63 - Long.numberOfLeadingZeros(quotient);
+		this.lowMask = (1L << this.lowBits) - 1;
+
+		this.lower = new long[(int) (((long) n * this.lowBits + 63) >>> 6)];
+		// n ones and at most (max >>> lowBits) + 1 < 2n + 1 zeros
+		final long upperBits = n + (max >>> this.lowBits) + 1;
+		this.upper = new long[(int) ((upperBits + 63) >>> 6)];
+		this.skipValues = new long[(n + SKIP - 1) / SKIP];
+		this.skipPositions = new int[this.skipValues.length];
+
+		for (int i = 0; i < n; i++) {
+			if (i > 0 && values[i] < values[i - 1]) {
+				throw new IllegalArgumentException("hash values of the sketch are not sorted");
+			}
+			final long x = values[i] - Long.MIN_VALUE;
+			this.setLow(i, x & this.lowMask);
+			final int position = (int) ((x >>> this.lowBits) + i);
+			this.upper[position >>> 6] |= 1L << position;
+			if (i % SKIP == 0) {
+				this.skipValues[i / SKIP] = values[i];
+				this.skipPositions[i / SKIP] = position;
+			}
+		}
+	}
+
+	/**
+	 * Compresses the hash values of the given sketch.
+	 *
+	 * @param sketch the sketch to compress
+	 * @return
+	 */
+	public static CompressedSketch compress(FracMinHashSketch sketch) {
+		return new CompressedSketch(sketch.getSParam(), sketch.getKSize(), sketch.getSeed(), sketch.getHashedMagicNumber(), sketch.getName(), sketch.getValues());
+	}
+
+	/**
+	 * Decodes all hash values into a regular sketch.
+	 *
+	 * @return
+	 */
+	public FracMinHashSketch decompress() {
+		final FracMinHashSketch sketch = FracMinHashSketch.fromValues(this.sParam, this.kSize, this.seed, this.hashedMagicNumber, this.getValues());
+		sketch.setName(this.name);
+		return sketch;
+	}
+
+	/**
+	 * Decodes all hash values.
+	 *
+	 * @return the sorted hash values
+	 */
+	public long[] getValues() {
+		final long[] values = new long[this.size];
+		final Cursor cursor = this.cursor();
+		for (int i = 0; i < this.size; i++) {
+			values[i] = cursor.value();
+			cursor.next();
+		}
+		return values;
+	}
+
+	/**
+	 * Returns the number of hash values of the sketch.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the approximate number of bytes used by the encoded values,
+	 * excluding object headers.
+	 *
+	 * @return
+	 */
+	public long getSizeInBytes() {
+		return 8L * (this.lower.length + this.upper.length + this.skipValues.length) + 4L * this.skipPositions.length;
+	}
+
+	public int getKSize() {
+		return this.kSize;
+	}
+
+	public int getSParam() {
+		return this.sParam;
+	}
+
+	public int getSeed() {
+		return this.seed;
+	}
+
+	public long getHashedMagicNumber() {
+		return this.hashedMagicNumber;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Returns a new cursor positioned at the smallest hash value.
+	 *
+	 * @return
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	private void setLow(int index, long low) {
+		if (this.lowBits == 0) {
+			return;
+		}
+		final long bit = (long) index * this.lowBits;
+		final int word = (int) (bit >>> 6);
+		final int offset = (int) (bit & 63);
+		this.lower[word] |= low << offset;
+		if (offset + this.lowBits > 64) {
+			this.lower[word + 1] |= low >>> (64 - offset);
+		}
+	}
+
+	private long getLow(int index) {
+		if (this.lowBits == 0) {
+			return 0;
+		}
+		final long bit = (long) index * this.lowBits;
+		final int word = (int) (bit >>> 6);
+		final int offset = (int) (bit & 63);
+		long low = this.lower[word] >>> offset;
+		if (offset + this.lowBits > 64) {
+			low |= this.lower[word + 1] << (64 - offset);
+		}
+		return low & this.lowMask;
+	}
+
+	private int nextSetBit(int from) {
+		int word = from >>> 6;
+		long bits = this.upper[word] & (-1L << from);
+		while (bits == 0) {
+			bits = this.upper[++word];
+		}
+		return (word << 6) + Long.numberOfTrailingZeros(bits);
+	}
+
+	/**
+	 * Iterates over the hash values in ascending order. A cursor is not
+	 * thread-safe, but any number of cursors may be used concurrently on the
+	 * same sketch.
+	 */
+	public class Cursor {
+		private int index;
+		private int position;
+		private long value;
+
+		private Cursor() {
+			this.index = 0;
+			if (size > 0) {
+				this.position = nextSetBit(0);
+				this.decode();
+			}
+		}
+
+		private void decode() {
+			final long high = this.position - this.index;
+			this.value = ((high << lowBits) | getLow(this.index)) + Long.MIN_VALUE;
+		}
+
+		/**
+		 * Returns false if the cursor moved past the largest value.
+		 *
+		 * @return
+		 */
+		public boolean isValid() {
+			return this.index < size;
+		}
+
+		/**
+		 * Returns the current value. Only defined if isValid() is true.
+		 *
+		 * @return
+		 */
+		public long value() {
+			return this.value;
+		}
+
+		/**
+		 * Returns the index of the current value.
+		 *
+		 * @return
+		 */
+		public int index() {
+			return this.index;
+		}
+
+		/**
+		 * Moves to the next value.
+		 */
+		public void next() {
+			if (++this.index < size) {
+				this.position = nextSetBit(this.position + 1);
+				this.decode();
+			}
+		}
+
+		/**
+		 * Moves to the first value that is greater than or equal to the
+		 * target. The cursor never moves backwards. Uses the skip pointers to
+		 * jump close to the target with an exponential search, then scans the
+		 * upper bits and only decodes the values that share the upper bits of
+		 * the target.
+		 *
+		 * @param target the value to search
+		 */
+		public void skipTo(long target) {
+			if (this.index >= size || this.value >= target) {
+				return;
+			}
+			final int current = this.index / SKIP;
+			if (current + 1 < skipValues.length && skipValues[current + 1] <= target) {
+				// gallop over the samples, then binary search for the last
+				// sample <= target
+				int from = current + 1;
+				int step = 1;
+				while (from + step < skipValues.length && skipValues[from + step] <= target) {
+					from += step;
+					step <<= 1;
+				}
+				int to = Math.min(skipValues.length - 1, from + step);
+				while (from < to) {
+					final int mid = (from + to + 1) >>> 1;
+					if (skipValues[mid] <= target) {
+						from = mid;
+					} else {
+						to = mid - 1;
+					}
+				}
+				this.index = from * SKIP;
+				this.position = skipPositions[from];
+				this.value = skipValues[from];
+			}
+			// values with smaller upper bits than the target are skipped
+			// without decoding their lower bits
+			final long targetHigh = (target - Long.MIN_VALUE) >>> lowBits;
+			if (this.position - this.index < targetHigh) {
+				do {
+					if (++this.index >= size) {
+						return;
+					}
+					this.position = nextSetBit(this.position + 1);
+				} while (this.position - this.index < targetHigh);
+				this.decode();
+			}
+			while (this.index < size && this.value < target) {
+				this.next();
+			}
+		}
+	}
+}
@@ -1,9 +1,112 @@
 package org.husonlab.fmhdist.sketch;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.logging.Logger;
+
 /**
  * Distance between to sequences based on jaccard index estimation estimation
  */
 public class Distance {
+	/**
+	 * If one sketch is more than GALLOPING_RATIO times larger than the other
+	 * one, the intersection is calculated by searching the hashes of the
+	 * smaller sketch in the larger one instead of merging both.
+	 */
+	public static final int GALLOPING_RATIO = 16;
+
+	/**
+	 * Implementations of the intersection of sketches of similar size.
+	 * SCALAR merges both arrays element by element, VECTOR compares blocks of
+	 * both arrays with the Vector API, see VectorIntersection. VECTOR requires
+	 * a build with the vector profile (mvn -Pvector) and the JVM to be
+	 * started with "--add-modules jdk.incubator.vector".
+	 */
+	public enum IntersectionBackend {
+		SCALAR, VECTOR
+	}
+
+	/**
+	 * System property to select the initial IntersectionBackend ("scalar" or
+	 * "vector"). If not set, VECTOR is used if it is available.
+	 */
+	public static final String INTERSECTION_BACKEND_PROPERTY = "fmhdist.intersection";
+
+	private static final Logger logger = Logger.getLogger(Distance.class.getName());
+
+	// VectorIntersection.getIntersectionSize(), null if the class or the
+	// module is missing. The class is only referenced through this handle,
+	// so it is never loaded without the module.
+	private static final MethodHandle vectorIntersection = findVectorIntersection();
+
+	private static final boolean isVectorAvailable = vectorIntersection != null;
+
+	private static volatile IntersectionBackend intersectionBackend = getDefaultBackend();
+
+	private static MethodHandle findVectorIntersection() {
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+			return null;
+		}
+		try {
+			final MethodHandle handle = MethodHandles.lookup().findStatic(
+					Class.forName(Distance.class.getPackageName() + ".VectorIntersection"),
+					"getIntersectionSize",
+					MethodType.methodType(int.class, long[].class, long[].class));
+			final int size = (int) handle.invokeExact(new long[]{1, 2, 3, 4, 5, 6, 7, 8, 9}, new long[]{2, 4, 6, 8, 10, 12, 14, 16, 18});
+			return size == 4 ? handle : null;
+		} catch (Throwable e) {
+			// not part of the build (see the vector profile) or not usable
+			return null;
+		}
+	}
+
+	private static IntersectionBackend getDefaultBackend() {
+		final String name = System.getProperty(INTERSECTION_BACKEND_PROPERTY);
+		if (name == null) {
+			return isVectorAvailable ? IntersectionBackend.VECTOR : IntersectionBackend.SCALAR;
+		}
+		final IntersectionBackend backend = IntersectionBackend.valueOf(name.toUpperCase());
+		if (backend == IntersectionBackend.VECTOR && !isVectorAvailable) {
+			logger.warning("vector intersection is not available, using scalar intersection");
+			return IntersectionBackend.SCALAR;
+		}
+		return backend;
+	}
+
+	/**
+	 * Returns true if the Vector API can be used, i.e. if VectorIntersection
+	 * was compiled and the module jdk.incubator.vector is part of the boot
+	 * layer.
+	 *
+	 * @return
+	 */
+	public static boolean isVectorIntersectionAvailable() {
+		return isVectorAvailable;
+	}
+
+	public static IntersectionBackend getIntersectionBackend() {
+		return intersectionBackend;
+	}
+
+	/**
+	 * Selects the implementation used by getIntersectionSize() for sketches
+	 * of similar size. If VECTOR is requested but not available, SCALAR is
+	 * used instead.
+	 *
+	 * @param backend the backend to use
+	 * @return true if the requested backend is used
+	 */
+	public static boolean setIntersectionBackend(IntersectionBackend backend) {
+		if (backend == IntersectionBackend.VECTOR && !isVectorAvailable) {
+			logger.warning("vector intersection is not available, build with -Pvector and start the JVM with --add-modules jdk.incubator.vector");
+			intersectionBackend = IntersectionBackend.SCALAR;
+			return false;
+		}
+		intersectionBackend = backend;
+		return true;
+	}
+
 	/**
 	 * Calculates the jaccard index of two FracMinHash sketches that are
 	 * represented by arrays. Includes the scaling parameter s that was applied
@@ -12,11 +115,28 @@ public class Distance {
 	 * @param a First sketch
 	 * @param b Second sketch
 	 * @param s Scaling parameter s to correct bias.
-	 * @return Jaccard index between 0 and 1
+	 * @return Jaccard index between 0 and 1, 0 if both sketches are empty
 	 */
 	public static double calculateJaccardIndex(long[] a, long[] b, int s) {
-		int intersectionSize = getIntersectionSize(a, b);
-		int unionSize = (a.length + b.length - intersectionSize);
+		return calculateJaccardIndex(getIntersectionSize(a, b), a.length, b.length, s);
+	}
+
+	/**
+	 * Calculates the jaccard index of two FracMinHash sketches from the size
+	 * of their intersection. This allows to derive the jaccard index and both
+	 * containment indices from a single intersection.
+	 *
+	 * @param intersectionSize Number of hashes that are part of both sketches
+	 * @param sizeA            Number of hashes of the first sketch
+	 * @param sizeB            Number of hashes of the second sketch
+	 * @param s                Scaling parameter s to correct bias.
+	 * @return Jaccard index between 0 and 1, 0 if both sketches are empty
+	 */
+	public static double calculateJaccardIndex(int intersectionSize, int sizeA, int sizeB, int s) {
+		int unionSize = (sizeA + sizeB - intersectionSize);
+		if (unionSize == 0) {
+			return 0.0;
+		}
 		double jHat = (double) intersectionSize / (double) unionSize;
 		double j = jHat / (1.0 - Math.pow(1.0 - (1.0 / (double) s), unionSize));
 		return Math.min(1.0, j);
@@ -30,12 +150,31 @@ public class Distance {
 	 * @param a First sketch
 	 * @param b Second sketch
 	 * @param s Scaling parameter s to correct bias.
-	 * @return Containment index between 0 and 1
+	 * @return Containment index between 0 and 1, 0 if a is empty
 	 */
 	public static double calculateContainmentIndex(long[] a, long[] b, int s) {
-		int intersectionSize = getIntersectionSize(a, b);
-		double cHat = (double) intersectionSize / (double) a.length;
-		double c = cHat / (1.0 - Math.pow(1.0 - (1.0 / (double) s), a.length));
+		if (a.length == 0) {
+			return 0.0;
+		}
+		return calculateContainmentIndex(getIntersectionSize(a, b), a.length, s);
+	}
+
+	/**
+	 * Calculates the containment index of the first sketch in the second one
+	 * from the size of their intersection.
+	 *
+	 * @param intersectionSize Number of hashes that are part of both sketches
+	 * @param sizeA            Number of hashes of the first sketch
+	 * @param s                Scaling parameter s to correct bias.
+	 * @return Containment index between 0 and 1, 0 if the first sketch is
+	 * empty
+	 */
+	public static double calculateContainmentIndex(int intersectionSize, int sizeA, int s) {
+		if (sizeA == 0) {
+			return 0.0;
+		}
+		double cHat = (double) intersectionSize / (double) sizeA;
+		double c = cHat / (1.0 - Math.pow(1.0 - (1.0 / (double) s), sizeA));
 		return Math.min(1.0, c);
 	}
 
@@ -76,14 +215,79 @@ public class Distance {
 	}
 
 	/**
+	 * Calculates the number of hashes that are part of both sketches. Merges
+	 * both arrays if they have a similar size, using the selected
+	 * IntersectionBackend. If one array is much larger
+	 * than the other one (see GALLOPING_RATIO), the hashes of the smaller one
+	 * are searched in the larger one with an exponential search, which only
+	 * touches O(n log(m/n)) elements of the larger array.
+	 *
+	 * @param a sorted array, may be empty
+	 * @param b sorted array, may be empty
+	 * @return
+	 */
+	public static int getIntersectionSize(long[] a, long[] b) {
+		if (a.length == 0 || b.length == 0) {
+			return 0;
+		}
+		if ((long) a.length * GALLOPING_RATIO < b.length) {
+			return getGallopingIntersectionSize(a, b);
+		}
+		if ((long) b.length * GALLOPING_RATIO < a.length) {
+			return getGallopingIntersectionSize(b, a);
+		}
+		// the backend is only VECTOR if it is available
+		if (intersectionBackend == IntersectionBackend.VECTOR) {
+			return getVectorIntersectionSize(a, b);
+		}
+		return getMergeIntersectionSize(a, b);
+	}
+
+	/**
+	 * Calculates the intersection size with the Vector API, see
+	 * VectorIntersection. If it is not available (see
+	 * isVectorIntersectionAvailable()), both arrays are merged instead.
+	 *
+	 * @param a sorted array, may be empty
+	 * @param b sorted array, may be empty
+	 * @return
+	 */
+	public static int getVectorIntersectionSize(long[] a, long[] b) {
+		if (!isVectorAvailable) {
+			return getMergeIntersectionSize(a, b);
+		}
+		try {
+			return (int) vectorIntersection.invokeExact(a, b);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			// VectorIntersection throws no checked exceptions
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Calculates the intersection size by a linear merge of both arrays.
+	 *
 	 * @param a sorted array
 	 * @param b sorted array
 	 * @return
 	 */
-	public static int getIntersectionSize(long[] a, long[] b) {
+	public static int getMergeIntersectionSize(long[] a, long[] b) {
+		return getMergeIntersectionSize(a, 0, b, 0);
+	}
+
+	/**
+	 * Calculates the intersection size of a[aFrom..] and b[bFrom..] by a
+	 * linear merge.
+	 */
+	static int getMergeIntersectionSize(long[] a, int aFrom, long[] b, int bFrom) {
 		int intersectionSize = 0;
-		int i = 0;
-		int j = 0;
+		int i = aFrom;
+		int j = bFrom;
+		if (i >= a.length || j >= b.length) {
+			return 0;
+		}
 		while (true) {
 			if (a[i] < b[j]) {
 				if (++i >= a.length) {
@@ -102,4 +306,154 @@ public class Distance {
 		}
 		return intersectionSize;
 	}
+
+	/**
+	 * Calculates the intersection size by searching each element of the
+	 * smaller array in the larger one. As both arrays are sorted, the search
+	 * starts at the position of the previous match and doubles its step size
+	 * until it passes the element, then a binary search finds the exact
+	 * position within the last step.
+	 *
+	 * @param small sorted array
+	 * @param large sorted array
+	 * @return
+	 */
+	public static int getGallopingIntersectionSize(long[] small, long[] large) {
+		int intersectionSize = 0;
+		int lo = 0;
+		for (long x : small) {
+			lo = gallop(large, lo, x);
+			if (lo >= large.length) {
+				break;
+			}
+			if (large[lo] == x) {
+				intersectionSize++;
+				lo++;
+			}
+		}
+		return intersectionSize;
+	}
+
+	/**
+	 * Returns the index of the first element of large[lo..] that is >= x, or
+	 * large.length if there is none. Starts at lo and doubles the step size
+	 * until it passes x, then a binary search finds the exact position within
+	 * the last step.
+	 */
+	private static int gallop(long[] large, int lo, long x) {
+		// gallop: find a bound such that large[lo + bound] >= x or the end of
+		// the array is reached
+		final int remaining = large.length - lo;
+		int bound = 1;
+		while (bound < remaining && large[lo + bound] < x) {
+			bound = bound > remaining >> 1 ? remaining : bound << 1;
+		}
+
+		// binary search for the first element >= x in the last step
+		int from = lo + (bound >> 1);
+		int to = lo + Math.min(bound, remaining);
+		while (from < to) {
+			final int mid = (from + to) >>> 1;
+			if (large[mid] < x) {
+				from = mid + 1;
+			} else {
+				to = mid;
+			}
+		}
+		return from;
+	}
+
+	/**
+	 * Calculates the number of hashes that are part of both compressed
+	 * sketches without decoding them in full. Sketches of similar size are
+	 * merged value by value, otherwise the values of the smaller sketch are
+	 * searched in the larger one using its skip pointers, see
+	 * CompressedSketch.Cursor.skipTo().
+	 *
+	 * @param a compressed sketch, may be empty
+	 * @param b compressed sketch, may be empty
+	 * @return
+	 */
+	public static int getIntersectionSize(CompressedSketch a, CompressedSketch b) {
+		if (a.size() == 0 || b.size() == 0) {
+			return 0;
+		}
+		if ((long) b.size() * GALLOPING_RATIO < a.size()) {
+			return getIntersectionSize(b, a);
+		}
+		final CompressedSketch.Cursor x = a.cursor();
+		final CompressedSketch.Cursor y = b.cursor();
+		final boolean skip = (long) a.size() * GALLOPING_RATIO < b.size();
+		int intersectionSize = 0;
+		while (x.isValid() && y.isValid()) {
+			if (x.value() < y.value()) {
+				x.next();
+			} else if (x.value() > y.value()) {
+				if (skip) {
+					y.skipTo(x.value());
+				} else {
+					y.next();
+				}
+			} else {
+				intersectionSize++;
+				x.next();
+				y.next();
+			}
+		}
+		return intersectionSize;
+	}
+
+	/**
+	 * Calculates the number of hashes that are part of a sorted array and a
+	 * compressed sketch without decoding the compressed sketch in full. The
+	 * strategy depends on the sizes as in getIntersectionSize(long[], long[]).
+	 *
+	 * @param a sorted array, may be empty
+	 * @param b compressed sketch, may be empty
+	 * @return
+	 */
+	public static int getIntersectionSize(long[] a, CompressedSketch b) {
+		if (a.length == 0 || b.size() == 0) {
+			return 0;
+		}
+		final CompressedSketch.Cursor cursor = b.cursor();
+		int intersectionSize = 0;
+		if ((long) a.length * GALLOPING_RATIO < b.size()) {
+			for (long x : a) {
+				cursor.skipTo(x);
+				if (!cursor.isValid()) {
+					break;
+				}
+				if (cursor.value() == x) {
+					intersectionSize++;
+				}
+			}
+		} else if ((long) b.size() * GALLOPING_RATIO < a.length) {
+			int lo = 0;
+			for (; cursor.isValid(); cursor.next()) {
+				lo = gallop(a, lo, cursor.value());
+				if (lo >= a.length) {
+					break;
+				}
+				if (a[lo] == cursor.value()) {
+					intersectionSize++;
+					lo++;
+				}
+			}
+		} else {
+			int i = 0;
+			while (i < a.length && cursor.isValid()) {
+				if (a[i] < cursor.value()) {
+					i++;
+				} else if (a[i] > cursor.value()) {
+					cursor.next();
+				} else {
+					intersectionSize++;
+					i++;
+					cursor.next();
+				}
+			}
+		}
+		return intersectionSize;
+	}
 }
@@ -6,11 +6,16 @@ import jloda.util.ByteOutputBuffer;
 import net.openhft.hashing.LongHashFunction;
 import org.husonlab.fmhdist.util.KMerCoordinates;
 import org.husonlab.fmhdist.util.KMerIterator;
+import org.husonlab.fmhdist.util.KMerScanner;
+import org.husonlab.fmhdist.util.LongHashSet;
+import org.husonlab.fmhdist.util.PackedKMerIterator;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.TreeSet;
+import java.util.logging.Logger;
 
 
 /**
@@ -22,6 +27,10 @@ import java.util.TreeSet;
  */
 public class FracMinHashSketch {
 	public static final int MAGIC_INT = 1213415759; // for starters, I've just increased the number
+	// Sketches of 2-bit packed k-mers hash different values than sketches of
+	// byte k-mers. Hashing a different magic number ensures that both are
+	// never considered compatible.
+	public static final int PACKED_MAGIC_INT = 1213415760;
 
 	private static final byte[] complementTable = new byte[128];
 
@@ -47,6 +56,8 @@ public class FracMinHashSketch {
 
 	private List<KMerCoordinates> coordinates;
 
+	private static Logger logger = Logger.getLogger(FracMinHashSketch.class.getName());
+
 	private FracMinHashSketch(int sParam, int kSize, String name, int seed) {
 		this.sParam = sParam;
 		this.kSize = kSize;
@@ -81,7 +92,14 @@ public class FracMinHashSketch {
 	 *                           that are part of the sketch should be prepared. This slows down the
 	 *                           process and should be disabled when not needed. To use this feature in a
 	 *                           meaningful way, the passed KMerIterator needs to provide the coordinates.
+	 *                           If the iterator is a PackedKMerIterator, the packed canonical k-mers are
+	 *                           hashed with hashLong() instead, see computePacked().
+	 *                           If no coordinates are needed and the iterator is a KMerScanner, the
+	 *                           k-mers are pushed to a SketchKernel instead of being iterated, see
+	 *                           computeWithKernel(). All other iterators use the iterator based
+	 *                           computation.
 	 * @return A new FracMinHashSketch
+	 * @throws UncheckedIOException if a KMerScanner fails to read its input
 	 */
 	public static FracMinHashSketch compute(
 			String name,
@@ -91,6 +109,12 @@ public class FracMinHashSketch {
 			int seed,
 			boolean prepareCoordinates
 	) {
+		if (!prepareCoordinates && kmers instanceof KMerScanner) {
+			return computeWithKernel(name, (KMerScanner) kmers, sParam, hashFunction, seed);
+		}
+		if (kmers instanceof PackedKMerIterator) {
+			return computePacked(name, (PackedKMerIterator) kmers, sParam, hashFunction, seed, prepareCoordinates);
+		}
 		// Use swith on that level instead of inside the computation to remove
 		// unnecessary runtime comparisons
 		if (prepareCoordinates) {
@@ -99,6 +123,30 @@ public class FracMinHashSketch {
 		return computeWithoutCoordinates(name, kmers, sParam, hashFunction, seed);
 	}
 
+	/**
+	 * Computes the sketch by letting the scanner push all k-mers to a
+	 * SketchKernel. The kernel hashes exactly like the iterator based
+	 * computations, thus the resulting sketch is the same.
+	 */
+	private static FracMinHashSketch computeWithKernel(
+			String name,
+			KMerScanner kmers,
+			int sParam,
+			LongHashFunction hashFunction,
+			int seed
+	) {
+		final FracMinHashSketch sketch = new FracMinHashSketch(sParam, kmers.getK(), name, seed);
+		final SketchKernel kernel = new SketchKernel(kmers.getK(), sParam, hashFunction);
+		try {
+			kmers.scan(kernel);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		sketch.setHashValues(kernel.getHashes());
+		sketch.hashedMagicNumber = getHashedMagicNumber(hashFunction, kmers instanceof PackedKMerIterator);
+		return sketch;
+	}
+
 	private static FracMinHashSketch computeWithoutCoordinates(
 			String name,
 			KMerIterator kmers,
@@ -107,7 +155,7 @@ public class FracMinHashSketch {
 			int seed
 	) {
 		final FracMinHashSketch sketch = new FracMinHashSketch(sParam, kmers.getK(), name, seed);
-		final TreeSet<Long> sortedSet = new TreeSet<>();
+		final LongHashSet hashes = new LongHashSet();
 
 		// Irber et al define the hash function as h: o -> [0, H]. However, in
 		// the case of our Java Long hashes, the range is h: o -> [-H, H-1].
@@ -129,14 +177,10 @@ public class FracMinHashSketch {
 			final long hash = hashFunction.hashBytes(kMerUse);
 
 			if (hash < threshold) {
-				sortedSet.add(hash);
+				hashes.add(hash);
 			}
 		}
-		sketch.hashValues = new long[sortedSet.size()];
-		int pos = 0;
-		for (Long value : sortedSet) {
-			sketch.hashValues[pos++] = value;
-		}
+		sketch.setHashValues(hashes);
 
 		sketch.hashedMagicNumber = hashFunction.hashInt(MAGIC_INT);
 		return sketch;
@@ -151,7 +195,7 @@ public class FracMinHashSketch {
 	) {
 		final FracMinHashSketch sketch = new FracMinHashSketch(sParam, kmers.getK(), name, seed);
 
-		final TreeSet<Long> sortedSet = new TreeSet<>();
+		final LongHashSet hashes = new LongHashSet();
 
 		// Irber et al define the hash function as h: o -> [0, H]. However, in
 		// the case of our Java Long hashes, the range is h: o -> [-H, H-1].
@@ -175,19 +219,130 @@ public class FracMinHashSketch {
 			if (hash < threshold) {
 				KMerCoordinates coords = kmers.getCoordinates();
 				coords.setHash(hash);
-				sortedSet.add(hash);
+				hashes.add(hash);
 				sketch.coordinates.add(coords);
 			}
 		}
-		sketch.hashValues = new long[sortedSet.size()];
-		int pos = 0;
-		for (Long value : sortedSet) {
-			sketch.hashValues[pos++] = value;
-		}
+		sketch.setHashValues(hashes);
 		sketch.hashedMagicNumber = hashFunction.hashInt(MAGIC_INT);
 		return sketch;
 	}
 
+	/**
+	 * Computes the sketch for 2-bit packed k-mers. The canonical k-mer is
+	 * selected by the iterator with a single integer comparison and hashed
+	 * using hashLong(). The resulting hash values differ from the ones of the
+	 * byte k-mers, thus the sketch uses the PACKED_MAGIC_INT as compatibility
+	 * marker.
+	 */
+	private static FracMinHashSketch computePacked(
+			String name,
+			PackedKMerIterator kmers,
+			int sParam,
+			LongHashFunction hashFunction,
+			int seed,
+			boolean prepareCoordinates
+	) {
+		final FracMinHashSketch sketch = new FracMinHashSketch(sParam, kmers.getK(), name, seed);
+		final LongHashSet hashes = new LongHashSet();
+
+		// See computeWithoutCoordinates() for the shift of the threshold
+		final double fraction = Long.MAX_VALUE * (1 / (double) sParam) * 2;
+		final double threshold = Long.MIN_VALUE + fraction;
+
+		while (kmers.hasNext()) {
+			final long hash = hashFunction.hashLong(kmers.nextCanonical());
+
+			if (hash < threshold) {
+				hashes.add(hash);
+				// only checked for hashes that are part of the sketch, so
+				// this is rarely evaluated
+				if (prepareCoordinates) {
+					KMerCoordinates coords = kmers.getCoordinates();
+					coords.setHash(hash);
+					sketch.coordinates.add(coords);
+				}
+			}
+		}
+		sketch.setHashValues(hashes);
+		sketch.hashedMagicNumber = getHashedMagicNumber(hashFunction, true);
+		return sketch;
+	}
+
+	/**
+	 * Merges partial sketches, e.g. of different parts of the same genome, into
+	 * a single sketch. As FracMinHash sketches are sets of all hashes below the
+	 * threshold, the union of the partial sketches equals the sketch of the
+	 * concatenated input. The coordinates of the partial sketches are not
+	 * merged.
+	 *
+	 * @param name     the name of the resulting sketch
+	 * @param sketches the partial sketches, must not be empty
+	 * @return A new FracMinHashSketch
+	 * @throws IncompatibleParameterException if the partial sketches were
+	 *                                        computed with different parameters
+	 */
+	public static FracMinHashSketch union(String name, List<FracMinHashSketch> sketches) throws IncompatibleParameterException {
+		final FracMinHashSketch first = sketches.get(0);
+		int total = 0;
+		for (FracMinHashSketch sketch : sketches) {
+			if (sketch.sParam != first.sParam || sketch.kSize != first.kSize || sketch.seed != first.seed
+					|| sketch.hashedMagicNumber != first.hashedMagicNumber) {
+				throw new IncompatibleParameterException("partial sketches have incompatible parameters");
+			}
+			total += sketch.hashValues.length;
+		}
+
+		final FracMinHashSketch result = new FracMinHashSketch(first.sParam, first.kSize, name, first.seed);
+		result.hashedMagicNumber = first.hashedMagicNumber;
+		long[] merged = new long[0];
+		for (FracMinHashSketch sketch : sketches) {
+			merged = mergeSorted(merged, sketch.hashValues);
+		}
+		result.hashValues = merged;
+		logger.fine(String.format("Merged %d partial sketches of %s, %d of %d hash values are distinct",
+				sketches.size(), name, merged.length, total));
+		return result;
+	}
+
+	/**
+	 * Merges two sorted arrays of distinct values into a new sorted array of
+	 * distinct values.
+	 */
+	private static long[] mergeSorted(long[] a, long[] b) {
+		final long[] result = new long[a.length + b.length];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) {
+				result[n++] = a[i++];
+			} else if (a[i] > b[j]) {
+				result[n++] = b[j++];
+			} else {
+				result[n++] = a[i++];
+				j++;
+			}
+		}
+		while (i < a.length) {
+			result[n++] = a[i++];
+		}
+		while (j < b.length) {
+			result[n++] = b[j++];
+		}
+		return n == result.length ? result : Arrays.copyOf(result, n);
+	}
+
+	/**
+	 * Stores the accumulated hash values as sorted array.
+	 *
+	 * @param hashes
+	 */
+	private void setHashValues(LongHashSet hashes) {
+		this.hashValues = hashes.toSortedArray();
+		logger.fine(String.format(
+				"Sketch %s has %d hash values, peak memory of accumulation: %d KB",
+				this.name, this.hashValues.length, hashes.getPeakMemory() / 1024));
+	}
+
 	/**
 	 * Returns all hash values that are part of the sketch.
 	 *
@@ -285,6 +440,18 @@ public class FracMinHashSketch {
 		return hashFunction.hashInt(MAGIC_INT);
 	}
 
+	/**
+	 * Returns the hashed magic number for sketches of the given hash function
+	 * and k-mer encoding.
+	 *
+	 * @param hashFunction the hash function that was used for the sketch
+	 * @param packed       true if the sketch was computed from 2-bit packed k-mers
+	 * @return
+	 */
+	public static long getHashedMagicNumber(LongHashFunction hashFunction, boolean packed) {
+		return hashFunction.hashInt(packed ? PACKED_MAGIC_INT : MAGIC_INT);
+	}
+
 	/**
 	 * Parses a byte sequence as a FracMinHashSketch. The byte sequence is
 	 * described in the getBytes() documentation.
@@ -313,6 +480,19 @@ public class FracMinHashSketch {
 		return sketch;
 	}
 
+	/**
+	 * Creates a sketch from already computed values, e.g. when reading them
+	 * from a sketch file or a reference store.
+	 *
+	 * @param values the sorted hash values, the array is not copied
+	 */
+	public static FracMinHashSketch fromValues(int sParam, int kSize, int seed, long hashedMagicNumber, long[] values) {
+		final FracMinHashSketch sketch = new FracMinHashSketch(sParam, kSize, "", seed);
+		sketch.hashValues = values;
+		sketch.hashedMagicNumber = hashedMagicNumber;
+		return sketch;
+	}
+
 	/**
 	 * Returns the coordinates of a freshly computed sketch. This is not
 	 * applicable if the sketch was reconstructed using the parse() method, i.e.
@@ -1,11 +1,25 @@
 package org.husonlab.fmhdist.sketch;
 
+import jloda.util.FileUtils;
 import net.openhft.hashing.LongHashFunction;
 import org.husonlab.fmhdist.ncbi.Genome;
+import org.husonlab.fmhdist.util.ByteKMerIterator;
+import org.husonlab.fmhdist.util.ByteSource;
+import org.husonlab.fmhdist.util.FastaSplitter;
 import org.husonlab.fmhdist.util.KMerIterator;
-import org.husonlab.fmhdist.util.LineKMerIterator;
+import org.husonlab.fmhdist.util.MappedFileByteSource;
+import org.husonlab.fmhdist.util.ParallelGzipByteSource;
+import org.husonlab.fmhdist.util.PrefetchByteSource;
+import org.husonlab.fmhdist.util.PackedKMerIterator;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 /**
@@ -31,16 +45,135 @@ public class GenomeSketch {
 	 * @throws IOException
 	 */
 	public static GenomeSketch sketch(Genome genome, int kSize, int sParam, LongHashFunction hashFunction, int seed, boolean prepareCoordinates) throws IOException {
+		return sketch(genome, kSize, sParam, hashFunction, seed, prepareCoordinates, false);
+	}
+
+	/**
+	 * Creates a new GenomeSketch by calculating the FracMinHash sketch of the
+	 * given genome.
+	 *
+	 * @param genome             the input genome to sketch
+	 * @param kSize              the k-mer size to apply
+	 * @param sParam             the scaling parameter to apply
+	 * @param hashFunction       the hash function to use
+	 * @param seed               the random seed that was used to generate the hash function
+	 * @param prepareCoordinates boolean flag to indicate if the KMerCoordinates
+	 *                           will be exported later.
+	 * @param packed             boolean flag to indicate if the k-mers should be
+	 *                           2-bit packed (k <= 32). The resulting sketch is
+	 *                           not compatible with sketches of unpacked k-mers.
+	 * @return A new GenomeSketch
+	 * @throws IOException
+	 */
+	public static GenomeSketch sketch(Genome genome, int kSize, int sParam, LongHashFunction hashFunction, int seed, boolean prepareCoordinates, boolean packed) throws IOException {
+		return sketch(genome, kSize, sParam, hashFunction, seed, prepareCoordinates, packed, 1);
+	}
+
+	/**
+	 * Creates a new GenomeSketch by calculating the FracMinHash sketch of the
+	 * given genome. If the genome is a local, uncompressed file and more than
+	 * one thread is available, the file is split into overlapping ranges that
+	 * are sketched in parallel and merged afterwards. The result is identical
+	 * to the sequentially computed sketch. Compressed or remote files and
+	 * sketches with coordinates are always computed sequentially.
+	 * <p>
+	 * Local, uncompressed files (and their ranges) are memory mapped instead
+	 * of read through a stream. Local gzip files that consist of multiple
+	 * members (e.g. BGZF) are inflated using the given number of threads.
+	 *
+	 * @param genome             the input genome to sketch
+	 * @param kSize              the k-mer size to apply
+	 * @param sParam             the scaling parameter to apply
+	 * @param hashFunction       the hash function to use
+	 * @param seed               the random seed that was used to generate the hash function
+	 * @param prepareCoordinates boolean flag to indicate if the KMerCoordinates
+	 *                           will be exported later.
+	 * @param packed             boolean flag to indicate if the k-mers should be
+	 *                           2-bit packed (k <= 32).
+	 * @param parallelism        the number of threads to use for this genome
+	 * @return A new GenomeSketch
+	 * @throws IOException
+	 */
+	public static GenomeSketch sketch(Genome genome, int kSize, int sParam, LongHashFunction hashFunction, int seed, boolean prepareCoordinates, boolean packed, int parallelism) throws IOException {
 		logger.fine("Calculating sketch for " + genome.getAccession());
 		final GenomeSketch result = new GenomeSketch(genome);
+		final String path = genome.getFastaUrl();
+
+		if (parallelism > 1 && !prepareCoordinates && FastaSplitter.isSplittable(path)) {
+			List<FastaSplitter.Range> ranges = FastaSplitter.split(path, kSize, parallelism);
+			if (ranges.size() > 1) {
+				result.sketch = sketchRanges(genome.getAccession(), path, ranges, kSize, sParam, hashFunction, seed, packed);
+				return result;
+			}
+		}
 
-		KMerIterator kmers;
-		kmers = new LineKMerIterator(kSize, genome.getFastaUrl(), true);
-		result.sketch = FracMinHashSketch.compute(genome.getAccession(), kmers, sParam, hashFunction, seed, prepareCoordinates);
-		kmers.close();
+		try (KMerIterator kmers = createIterator(kSize, openSource(path, parallelism), packed)) {
+			result.sketch = FracMinHashSketch.compute(genome.getAccession(), kmers, sParam, hashFunction, seed, prepareCoordinates);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
 		return result;
 	}
 
+	/**
+	 * Sketches the given ranges of the file in parallel and merges the partial
+	 * sketches.
+	 */
+	static FracMinHashSketch sketchRanges(String name, String path, List<FastaSplitter.Range> ranges, int kSize, int sParam, LongHashFunction hashFunction, int seed, boolean packed) throws IOException {
+		logger.fine(String.format("Sketching %s in %d ranges", name, ranges.size()));
+		final ExecutorService executor = Executors.newFixedThreadPool(ranges.size());
+		try {
+			List<Future<FracMinHashSketch>> partials = new ArrayList<>();
+			for (FastaSplitter.Range range : ranges) {
+				partials.add(executor.submit(() -> {
+					try (KMerIterator kmers = createIterator(kSize, FastaSplitter.mapRange(path, range), packed)) {
+						return FracMinHashSketch.compute(name, kmers, sParam, hashFunction, seed, false);
+					}
+				}));
+			}
+			List<FracMinHashSketch> sketches = new ArrayList<>();
+			for (Future<FracMinHashSketch> partial : partials) {
+				sketches.add(partial.get());
+			}
+			return FracMinHashSketch.union(name, sketches);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) e.getCause()).getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (InterruptedException | IncompatibleParameterException e) {
+			throw new IOException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Opens the given genome file. Local, uncompressed files are mapped into
+	 * memory. Local gzip files are inflated on a pool of the given size and
+	 * everything else is read as (possibly compressed) stream on a prefetch
+	 * thread.
+	 */
+	private static ByteSource openSource(String path, int parallelism) throws IOException {
+		if (FastaSplitter.isSplittable(path)) {
+			return new MappedFileByteSource(path);
+		}
+		if (ParallelGzipByteSource.isLocalGzipFile(path)) {
+			return new ParallelGzipByteSource(path, parallelism);
+		}
+		return new PrefetchByteSource(FileUtils.getInputStreamPossiblyZIPorGZIP(path));
+	}
+
+	private static KMerIterator createIterator(int kSize, ByteSource source, boolean packed) throws IOException {
+		if (packed) {
+			return new PackedKMerIterator(kSize, source);
+		}
+		return new ByteKMerIterator(kSize, source, true);
+	}
+
 	private GenomeSketch(Genome genome) {
 		this.genome = genome;
 	}
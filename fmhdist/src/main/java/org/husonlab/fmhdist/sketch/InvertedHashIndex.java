@@ -0,0 +1,170 @@
+package org.husonlab.fmhdist.sketch;
+
+import org.husonlab.fmhdist.util.LongIntHashMap;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Inverted index from hash values to the reference sketches that contain
+ * them. With the index, the intersection sizes of a query with all references
+ * are obtained by looking up only the hashes of the query instead of merging
+ * the query with every reference sketch.
+ * <p>
+ * Each distinct hash is mapped to a dense id by a LongIntHashMap. The posting
+ * lists of all ids are stored back to back in a single int array, the
+ * postings of id i are postings[offsets[i]] to postings[offsets[i + 1] - 1].
+ * Thus, there is no object per hash or per posting list. The total number of
+ * postings (i.e. the sum of all sketch sizes) must be below 2^31.
+ */
+public class InvertedHashIndex {
+	/**
+	 * Receives the references that share at least one hash with the query.
+	 */
+	public interface OverlapConsumer {
+		/**
+		 * @param reference        index of the reference sketch
+		 * @param intersectionSize number of hashes shared by the query and
+		 *                         the reference, always > 0
+		 */
+		public void accept(int reference, int intersectionSize);
+	}
+
+	/**
+	 * The per-thread state of forEachOverlap(). The counters of the touched
+	 * references are reset after each query, so the array is all zeros
+	 * between two calls.
+	 */
+	private static class Counters {
+		final int[] intersectionSizes;
+		int[] touched = new int[64];
+
+		Counters(int references) {
+			this.intersectionSizes = new int[references];
+		}
+	}
+
+	private static Logger logger = Logger.getLogger(InvertedHashIndex.class.getName());
+
+	private final LongIntHashMap ids;
+	private final int[] offsets;
+	private final int[] postings;
+	private final int[] sizes;
+	private final ThreadLocal<Counters> counters = ThreadLocal.withInitial(() -> new Counters(this.size()));
+
+	/**
+	 * Builds the index for the given reference sketches.
+	 *
+	 * @param sketches the hash values of the reference sketches. The index of
+	 *                 a sketch in the list is used as reference id.
+	 */
+	public InvertedHashIndex(List<long[]> sketches) {
+		this.sizes = new int[sketches.size()];
+		long totalPostings = 0;
+		for (int i = 0; i < sketches.size(); i++) {
+			this.sizes[i] = sketches.get(i).length;
+			totalPostings += this.sizes[i];
+		}
+		if (totalPostings > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("too many hashes for a single index");
+		}
+
+		// first pass: assign ids and count the postings per id
+		this.ids = new LongIntHashMap();
+		int[] counts = new int[1024];
+		for (long[] sketch : sketches) {
+			for (long hash : sketch) {
+				int id = this.ids.get(hash, -1);
+				if (id < 0) {
+					id = this.ids.size();
+					this.ids.put(hash, id);
+					if (id >= counts.length) {
+						counts = Arrays.copyOf(counts, counts.length << 1);
+					}
+				}
+				counts[id]++;
+			}
+		}
+
+		final int distinct = this.ids.size();
+		this.offsets = new int[distinct + 1];
+		for (int id = 0; id < distinct; id++) {
+			this.offsets[id + 1] = this.offsets[id] + counts[id];
+		}
+
+		// second pass: fill the posting lists, reuse counts as write cursor
+		System.arraycopy(this.offsets, 0, counts, 0, distinct);
+		this.postings = new int[(int) totalPostings];
+		for (int reference = 0; reference < sketches.size(); reference++) {
+			for (long hash : sketches.get(reference)) {
+				this.postings[counts[this.ids.get(hash, -1)]++] = reference;
+			}
+		}
+		logger.fine(String.format("Indexed %d sketches with %d distinct hashes", sketches.size(), distinct));
+	}
+
+	/**
+	 * Returns the number of indexed reference sketches.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return this.sizes.length;
+	}
+
+	/**
+	 * Returns the number of hashes of the given reference sketch.
+	 *
+	 * @param reference index of the reference sketch
+	 * @return
+	 */
+	public int getSketchSize(int reference) {
+		return this.sizes[reference];
+	}
+
+	/**
+	 * Calculates the intersection sizes of the query with all references and
+	 * passes every reference with a non-empty intersection to the consumer.
+	 * The cost only depends on the size of the query and the number of
+	 * postings of its hashes, not on the number of references. This method
+	 * may be called concurrently. Each thread reuses its own counters, so the
+	 * consumer must not query the same index again.
+	 *
+	 * @param query    the hash values of the query sketch
+	 * @param consumer receives the references with a non-empty intersection
+	 *                 in the order in which they were first encountered
+	 */
+	public void forEachOverlap(long[] query, OverlapConsumer consumer) {
+		final Counters counters = this.counters.get();
+		final int[] intersectionSizes = counters.intersectionSizes;
+		int[] touched = counters.touched;
+		int touchedCount = 0;
+		for (long hash : query) {
+			final int id = this.ids.get(hash, -1);
+			if (id < 0) {
+				continue;
+			}
+			for (int p = this.offsets[id]; p < this.offsets[id + 1]; p++) {
+				final int reference = this.postings[p];
+				if (intersectionSizes[reference]++ == 0) {
+					if (touchedCount == touched.length) {
+						touched = Arrays.copyOf(touched, touched.length << 1);
+						counters.touched = touched;
+					}
+					touched[touchedCount++] = reference;
+				}
+			}
+		}
+		try {
+			for (int i = 0; i < touchedCount; i++) {
+				consumer.accept(touched[i], intersectionSizes[touched[i]]);
+			}
+		} finally {
+			// only the touched counters need to be reset
+			for (int i = 0; i < touchedCount; i++) {
+				intersectionSizes[touched[i]] = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package org.husonlab.fmhdist.sketch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+
+/**
+ * Calculates the distances of all pairs of a list of sketches (including each
+ * sketch with itself). For each pair, the intersection of both sketches is
+ * calculated only once and the jaccard distance, the Mash distance and both
+ * containment distances are derived from it.
+ * <p>
+ * The upper triangle of the distance matrix is split into tiles of
+ * tileSize x tileSize pairs. The sketches of a tile are small enough to stay
+ * in the cache while all pairs of the tile are processed. The tiles are
+ * scheduled on a ForkJoinPool with the given number of threads.
+ */
+public class PairwiseDistanceEngine {
+	/**
+	 * Approximate number of bytes of the sketches of a tile, chosen to fit
+	 * into the L2 cache of common CPUs.
+	 */
+	public static final long TILE_BYTES = 1L << 20;
+
+	/**
+	 * Receives the distances of a pair of sketches. The consumer is called
+	 * concurrently from multiple threads, but never twice for the same pair.
+	 */
+	public interface PairConsumer {
+		/**
+		 * @param i                     index of the first sketch
+		 * @param j                     index of the second sketch, j >= i
+		 * @param jaccardDistance       the FracMinHash distance, see
+		 *                              Distance.jaccardToDistance()
+		 * @param mashDistance          the Mash distance, see
+		 *                              Distance.jaccardToMashDistance()
+		 * @param containmentDistanceIJ the containment distance of sketch i
+		 *                              in sketch j
+		 * @param containmentDistanceJI the containment distance of sketch j
+		 *                              in sketch i
+		 */
+		public void accept(int i, int j, double jaccardDistance, double mashDistance, double containmentDistanceIJ, double containmentDistanceJI);
+	}
+
+	private static Logger logger = Logger.getLogger(PairwiseDistanceEngine.class.getName());
+
+	private final int kParameter;
+	private final int sParameter;
+	private final int threads;
+	private final int tileSize;
+
+	/**
+	 * @param kParameter the k-mer size of the sketches
+	 * @param sParameter the scaling parameter s of the sketches
+	 * @param threads    the number of threads to use
+	 */
+	public PairwiseDistanceEngine(int kParameter, int sParameter, int threads) {
+		this(kParameter, sParameter, threads, 0);
+	}
+
+	/**
+	 * @param tileSize fixed tile size, 0 to derive it from the sketch sizes
+	 */
+	PairwiseDistanceEngine(int kParameter, int sParameter, int threads, int tileSize) {
+		this.kParameter = kParameter;
+		this.sParameter = sParameter;
+		this.threads = Math.max(1, threads);
+		this.tileSize = tileSize;
+	}
+
+	/**
+	 * Calculates the distances of all pairs (i, j) with j >= i and passes them
+	 * to the consumer. Returns after all pairs have been processed.
+	 *
+	 * @param sketches the hash values of the sketches, each sorted
+	 * @param consumer receives the distances of each pair
+	 */
+	public void compute(List<long[]> sketches, PairConsumer consumer) {
+		final long[][] values = sketches.toArray(new long[0][]);
+		final int tileSize = this.tileSize > 0 ? this.tileSize : getTileSize(values);
+		final List<int[]> tiles = new ArrayList<>();
+		for (int rowStart = 0; rowStart < values.length; rowStart += tileSize) {
+			for (int columnStart = rowStart; columnStart < values.length; columnStart += tileSize) {
+				tiles.add(new int[]{rowStart, columnStart});
+			}
+		}
+		logger.fine(String.format("Calculating %d sketches in %d tiles of size %d", values.length, tiles.size(), tileSize));
+
+		final ForkJoinPool pool = new ForkJoinPool(this.threads);
+		try {
+			pool.invoke(new TileTask(values, tiles, 0, tiles.size(), tileSize, consumer));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Chooses the tile size such that the sketches of the rows and the
+	 * columns of a tile take about TILE_BYTES.
+	 */
+	static int getTileSize(long[][] values) {
+		if (values.length == 0) {
+			return 1;
+		}
+		long totalBytes = 0;
+		for (long[] sketch : values) {
+			totalBytes += 8L * sketch.length;
+		}
+		final long averageBytes = Math.max(1, totalBytes / values.length);
+		return (int) Math.max(1, Math.min(values.length, TILE_BYTES / (2 * averageBytes)));
+	}
+
+	private void computeTile(long[][] values, int rowStart, int columnStart, int tileSize, PairConsumer consumer) {
+		final int rowEnd = Math.min(values.length, rowStart + tileSize);
+		final int columnEnd = Math.min(values.length, columnStart + tileSize);
+		for (int i = rowStart; i < rowEnd; i++) {
+			final long[] a = values[i];
+			// tiles on the diagonal only contain the upper triangle
+			for (int j = Math.max(i, columnStart); j < columnEnd; j++) {
+				final long[] b = values[j];
+				final int intersectionSize = Distance.getIntersectionSize(a, b);
+				final double jaccard = Distance.calculateJaccardIndex(intersectionSize, a.length, b.length, this.sParameter);
+				// Containment is not symmetrical
+				final double containmentIJ = Distance.calculateContainmentIndex(intersectionSize, a.length, this.sParameter);
+				final double containmentJI = Distance.calculateContainmentIndex(intersectionSize, b.length, this.sParameter);
+				consumer.accept(
+						i,
+						j,
+						Distance.jaccardToDistance(jaccard, this.kParameter),
+						Distance.jaccardToMashDistance(jaccard, this.kParameter),
+						Distance.containmentToDistance(containmentIJ, this.kParameter),
+						Distance.containmentToDistance(containmentJI, this.kParameter));
+			}
+		}
+	}
+
+	/**
+	 * Splits the list of tiles in halves until a single tile remains.
+	 */
+	private class TileTask extends RecursiveAction {
+		private final long[][] values;
+		private final List<int[]> tiles;
+		private final int from;
+		private final int to;
+		private final int tileSize;
+		private final PairConsumer consumer;
+
+		TileTask(long[][] values, List<int[]> tiles, int from, int to, int tileSize, PairConsumer consumer) {
+			this.values = values;
+			this.tiles = tiles;
+			this.from = from;
+			this.to = to;
+			this.tileSize = tileSize;
+			this.consumer = consumer;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.to - this.from <= 1) {
+				if (this.from < this.to) {
+					int[] tile = this.tiles.get(this.from);
+					computeTile(this.values, tile[0], tile[1], this.tileSize, this.consumer);
+				}
+				return;
+			}
+			final int middle = (this.from + this.to) >>> 1;
+			invokeAll(
+					new TileTask(this.values, this.tiles, this.from, middle, this.tileSize, this.consumer),
+					new TileTask(this.values, this.tiles, middle, this.to, this.tileSize, this.consumer));
+		}
+	}
+}
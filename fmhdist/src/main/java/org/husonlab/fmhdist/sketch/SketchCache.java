@@ -0,0 +1,218 @@
+package org.husonlab.fmhdist.sketch;
+
+import net.openhft.hashing.LongHashFunction;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Persistent cache of computed sketches. An entry is keyed by a fingerprint
+ * of the input file and the sketch parameters, so a sketch is only computed
+ * again if the file or the parameters changed.
+ * <p>
+ * The fingerprint consists of the file size, the last modified time and the
+ * xxHash of SAMPLES blocks of SAMPLE_SIZE bytes that are spread evenly over
+ * the file (including its first and last block). It is cheap to compute even
+ * for large files, but unlike a full hash, it may miss changes that keep
+ * the size and the modification time and lie between the samples.
+ * <p>
+ * Entries are stored in the binary format of SketchFile, which detects
+ * corrupted entries by their checksum. They are written to a temporary file
+ * and moved to their final name atomically. The last modified time of an
+ * entry is updated on each hit, so prune() can remove the entries that were
+ * not used for some time.
+ */
+public class SketchCache {
+	public static final int SAMPLES = 16;
+	public static final int SAMPLE_SIZE = 4096;
+
+	private static final String TEMP_SUFFIX = ".tmp";
+	// temporary files of writes that may still be in progress
+	private static final long TEMP_MIN_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+	private static Logger logger = Logger.getLogger(SketchCache.class.getName());
+
+	private final Path directory;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Opens the cache in the given directory, which is created if necessary.
+	 *
+	 * @param directory the cache directory
+	 * @throws IOException
+	 */
+	public SketchCache(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+	}
+
+	/**
+	 * Calculates the fingerprint of the given file.
+	 *
+	 * @param file the input file
+	 * @return
+	 * @throws IOException
+	 */
+	public static String fingerprint(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			final long blocks = Math.max(1, (size + SAMPLE_SIZE - 1) / SAMPLE_SIZE);
+			final int samples = (int) Math.min(SAMPLES, blocks);
+			final ByteBuffer buffer = ByteBuffer.allocate(samples * SAMPLE_SIZE);
+			for (int i = 0; i < samples; i++) {
+				// the first and the last block are always part of the samples
+				final long block = samples == 1 ? 0 : i * (blocks - 1) / (samples - 1);
+				final int end = Math.min(buffer.position() + SAMPLE_SIZE, buffer.capacity());
+				buffer.limit(end);
+				long position = block * SAMPLE_SIZE;
+				while (buffer.hasRemaining()) {
+					final int read = channel.read(buffer, position);
+					if (read < 0) {
+						break;
+					}
+					position += read;
+				}
+			}
+			buffer.flip();
+			return String.format("%d-%d-%016x",
+					size,
+					Files.getLastModifiedTime(file).toMillis(),
+					LongHashFunction.xx().hashBytes(buffer));
+		}
+	}
+
+	/**
+	 * Returns the key of the sketch of the given file with the given
+	 * parameters. The hash function and the k-mer encoding are identified
+	 * by the hashed magic number of the sketch.
+	 *
+	 * @param file         the input file
+	 * @param kSize        the k-mer size
+	 * @param sParam       the scaling parameter
+	 * @param hashFunction the hash function
+	 * @param seed         the random seed that was used to generate the hash function
+	 * @param packed       boolean flag to indicate if the k-mers are 2-bit packed
+	 * @return
+	 * @throws IOException
+	 */
+	public static String getKey(Path file, int kSize, int sParam, LongHashFunction hashFunction, int seed, boolean packed) throws IOException {
+		final String descriptor = String.format("%s|k=%d|s=%d|seed=%d|hash=%d",
+				fingerprint(file), kSize, sParam, seed, FracMinHashSketch.getHashedMagicNumber(hashFunction, packed));
+		try {
+			final byte[] hash = MessageDigest.getInstance("SHA-256").digest(descriptor.getBytes(StandardCharsets.UTF_8));
+			final StringBuilder key = new StringBuilder();
+			for (byte b : hash) {
+				key.append(String.format("%02x", b));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM supports SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the cached sketch of the given key, or null if there is none.
+	 * Corrupted entries are deleted and count as miss.
+	 *
+	 * @param key the key, see getKey()
+	 * @return
+	 */
+	public FracMinHashSketch get(String key) {
+		final Path file = this.directory.resolve(key + SketchFile.EXTENSION);
+		try {
+			final FracMinHashSketch sketch = SketchFile.read(file);
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			this.hits.incrementAndGet();
+			return sketch;
+		} catch (NoSuchFileException e) {
+			// not cached
+		} catch (IOException e) {
+			logger.warning(String.format("Removing corrupted sketch cache entry %s: %s", key, e.getMessage()));
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException ex) {
+				logger.warning(ex.getMessage());
+			}
+		}
+		this.misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Stores the sketch under the given key.
+	 *
+	 * @param key    the key, see getKey()
+	 * @param sketch the sketch to store
+	 * @throws IOException
+	 */
+	public void put(String key, FracMinHashSketch sketch) throws IOException {
+		final Path temp = Files.createTempFile(this.directory, key, TEMP_SUFFIX);
+		try {
+			SketchFile.write(sketch, temp);
+			Files.move(temp, this.directory.resolve(key + SketchFile.EXTENSION), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Removes all entries that were not used for the given time, as well as
+	 * leftovers of interrupted writes. Temporary files younger than a day
+	 * are kept, as another process may still be writing them.
+	 *
+	 * @param maxAgeMillis the maximum time since the last use of an entry
+	 * @return the number of removed entries
+	 * @throws IOException
+	 */
+	public int prune(long maxAgeMillis) throws IOException {
+		final long threshold = System.currentTimeMillis() - maxAgeMillis;
+		final long tempThreshold = System.currentTimeMillis() - Math.max(maxAgeMillis, TEMP_MIN_AGE_MILLIS);
+		List<Path> files;
+		try (Stream<Path> stream = Files.list(this.directory)) {
+			files = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+		}
+		int removed = 0;
+		for (Path file : files) {
+			final String name = file.getFileName().toString();
+			final long modified;
+			try {
+				modified = Files.getLastModifiedTime(file).toMillis();
+			} catch (NoSuchFileException e) {
+				// renamed or removed concurrently
+				continue;
+			}
+			if (name.endsWith(TEMP_SUFFIX) && modified < tempThreshold ||
+				name.endsWith(SketchFile.EXTENSION) && modified < threshold) {
+				Files.deleteIfExists(file);
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	public long getMisses() {
+		return this.misses.get();
+	}
+}
@@ -0,0 +1,369 @@
+package org.husonlab.fmhdist.sketch;
+
+import jloda.thirdparty.HexUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes FracMinHash sketches in the binary .fmh file format. All
+ * values are encoded in little endian in the following order:
+ * <p>
+ * 1. File magic "FMHB" (4B)
+ * 2. Format version (4B)
+ * 3. The header of FracMinHashSketch.getBytes(), i.e. magic number (4B),
+ * hashed magic number (8B), s param (4B), k size (4B), random seed (4B) and
+ * sketch size (4B)
+ * 4. The sorted hash values as unsigned varints (7 bits per byte, least
+ * significant group first). The first value is stored as its distance to
+ * Long.MIN_VALUE, every further value as the distance to its predecessor.
+ * 5. CRC32 of all preceding bytes (4B)
+ * <p>
+ * As the n hash values of a FracMinHash sketch are all below a threshold of
+ * about 2^64/s, the deltas are about 2^64/(s n) and need fewer bytes than the
+ * full 8 byte values, e.g. 6 bytes for 5000 hashes with s = 1000.
+ * <p>
+ * The readers also accept the hex encoded getBytes() files that were written
+ * by earlier versions, as well as the raw getBytes() layout.
+ */
+public class SketchFile {
+	public static final String EXTENSION = ".fmh";
+	public static final int VERSION = 1;
+
+	private static final byte[] FILE_MAGIC = new byte[]{'F', 'M', 'H', 'B'};
+	private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 4 + 4 + 4 + 4;
+	private static final int MAX_VARINT_SIZE = 10;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Files of at least this size are memory mapped when read from a path,
+	 * smaller files are cheaper to read through the buffer.
+	 */
+	private static final long MAP_THRESHOLD = 1L << 20;
+
+	/**
+	 * Writes the sketch in the binary format to the given path.
+	 *
+	 * @param sketch the sketch to write
+	 * @param path   the target file, an existing file is replaced
+	 * @throws IOException
+	 */
+	public static void write(FracMinHashSketch sketch, Path path) throws IOException {
+		try (OutputStream out = Files.newOutputStream(path)) {
+			write(sketch, out);
+		}
+	}
+
+	/**
+	 * Encodes the sketch in the binary format.
+	 *
+	 * @param sketch the sketch to encode
+	 * @return
+	 */
+	public static byte[] toBytes(FracMinHashSketch sketch) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			write(sketch, out);
+		} catch (IOException e) {
+			// not thrown by ByteArrayOutputStream
+			throw new UncheckedIOException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes the sketch in the binary format to the given stream. The stream
+	 * is not closed.
+	 *
+	 * @param sketch the sketch to write
+	 * @param out    the target stream
+	 * @throws IOException
+	 */
+	public static void write(FracMinHashSketch sketch, OutputStream out) throws IOException {
+		final long[] values = sketch.getValues();
+		final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		final CRC32 crc = new CRC32();
+
+		buffer.put(FILE_MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(FracMinHashSketch.MAGIC_INT);
+		buffer.putLong(sketch.getHashedMagicNumber());
+		buffer.putInt(sketch.getSParam());
+		buffer.putInt(sketch.getKSize());
+		buffer.putInt(sketch.getSeed());
+		buffer.putInt(values.length);
+
+		long previous = Long.MIN_VALUE;
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0 && values[i] < previous) {
+				throw new IllegalArgumentException("hash values of the sketch are not sorted");
+			}
+			if (buffer.remaining() < MAX_VARINT_SIZE) {
+				flush(buffer, crc, out);
+			}
+			putVarLong(buffer, values[i] - previous);
+			previous = values[i];
+		}
+		flush(buffer, crc, out);
+		buffer.putInt((int) crc.getValue());
+		buffer.flip();
+		out.write(buffer.array(), 0, buffer.limit());
+	}
+
+	private static void flush(ByteBuffer buffer, CRC32 crc, OutputStream out) throws IOException {
+		crc.update(buffer.array(), 0, buffer.position());
+		out.write(buffer.array(), 0, buffer.position());
+		buffer.clear();
+	}
+
+	private static void putVarLong(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	/**
+	 * Reads a sketch from the given file. The format (binary, raw getBytes()
+	 * or hex text) is detected from the content. Large binary files are
+	 * memory mapped, all others are streamed.
+	 *
+	 * @param path the sketch file
+	 * @return
+	 * @throws IOException if the file is not a valid sketch file or its
+	 *                     checksum does not match
+	 */
+	public static FracMinHashSketch read(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final ByteBuffer start = ByteBuffer.allocate(FILE_MAGIC.length);
+			while (start.hasRemaining() && channel.read(start) >= 0) {
+				// fill the first bytes
+			}
+			channel.position(0);
+			if (!isBinary(start.array(), start.position())) {
+				return parseLegacy(Files.readAllBytes(path));
+			}
+			if (channel.size() >= MAP_THRESHOLD) {
+				return new Decoder(null, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())).decode();
+			}
+			return new Decoder(channel, ByteBuffer.allocate(BUFFER_SIZE)).decode();
+		}
+	}
+
+	/**
+	 * Reads a sketch from the given stream. The format (binary, raw getBytes()
+	 * or hex text) is detected from the content. Binary sketches are decoded
+	 * while streaming. The stream is not closed.
+	 *
+	 * @param in the stream containing a single sketch
+	 * @return
+	 * @throws IOException if the stream does not contain a valid sketch or
+	 *                     its checksum does not match
+	 */
+	public static FracMinHashSketch read(InputStream in) throws IOException {
+		final InputStream buffered = in.markSupported() ? in : new BufferedInputStream(in);
+		buffered.mark(FILE_MAGIC.length);
+		final byte[] start = buffered.readNBytes(FILE_MAGIC.length);
+		buffered.reset();
+		if (!isBinary(start, start.length)) {
+			return parseLegacy(buffered.readAllBytes());
+		}
+		return new Decoder(Channels.newChannel(buffered), ByteBuffer.allocate(BUFFER_SIZE)).decode();
+	}
+
+	/**
+	 * Reads a sketch from the given bytes, e.g. a database column. The format
+	 * (binary, raw getBytes() or hex text) is detected from the content.
+	 *
+	 * @param bytes the encoded sketch
+	 * @return
+	 * @throws IOException if the bytes are not a valid sketch or the checksum
+	 *                     does not match
+	 */
+	public static FracMinHashSketch read(byte[] bytes) throws IOException {
+		if (!isBinary(bytes, bytes.length)) {
+			return parseLegacy(bytes);
+		}
+		return new Decoder(null, ByteBuffer.wrap(bytes)).decode();
+	}
+
+	/**
+	 * Decodes a binary sketch from the given buffer, starting at its current
+	 * position.
+	 *
+	 * @param buffer the buffer containing a binary sketch
+	 * @return
+	 * @throws IOException if the buffer does not contain a valid sketch or
+	 *                     its checksum does not match
+	 */
+	public static FracMinHashSketch read(ByteBuffer buffer) throws IOException {
+		return new Decoder(null, buffer.slice()).decode();
+	}
+
+	/**
+	 * Checks if the given bytes start with the magic of the binary format.
+	 *
+	 * @param bytes  the first bytes of a file
+	 * @param length the number of valid bytes
+	 * @return
+	 */
+	public static boolean isBinary(byte[] bytes, int length) {
+		if (length < FILE_MAGIC.length) {
+			return false;
+		}
+		for (int i = 0; i < FILE_MAGIC.length; i++) {
+			if (bytes[i] != FILE_MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static FracMinHashSketch parseLegacy(byte[] content) throws IOException {
+		final int magic = content.length < 4 ? 0 : ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN).getInt();
+		if (magic == FracMinHashSketch.MAGIC_INT) {
+			return FracMinHashSketch.parse(content);
+		}
+		return FracMinHashSketch.parse(HexUtils.decodeHexString(new String(content).trim()));
+	}
+
+	/**
+	 * Decodes the binary format from a buffer. If a channel is given, the
+	 * buffer is refilled from it whenever it runs empty, otherwise the buffer
+	 * must contain the whole sketch. The checksum is updated with the consumed
+	 * parts of the buffer before each refill.
+	 */
+	private static class Decoder {
+		private final ReadableByteChannel channel;
+		private final ByteBuffer buffer;
+		private final CRC32 crc = new CRC32();
+		private int unchecked;
+
+		Decoder(ReadableByteChannel channel, ByteBuffer buffer) {
+			this.channel = channel;
+			this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (channel != null) {
+				this.buffer.limit(0);
+			}
+			this.unchecked = this.buffer.position();
+		}
+
+		FracMinHashSketch decode() throws IOException {
+			this.require(HEADER_SIZE);
+			for (byte b : FILE_MAGIC) {
+				if (this.buffer.get() != b) {
+					throw new IOException("Incorrect file magic");
+				}
+			}
+			final int version = this.buffer.getInt();
+			if (version < 1 || version > VERSION) {
+				throw new IOException(String.format("Unsupported sketch file version %d", version));
+			}
+			if (this.buffer.getInt() != FracMinHashSketch.MAGIC_INT) {
+				throw new IOException("Incorrect magic number");
+			}
+			final long hashedMagicNumber = this.buffer.getLong();
+			final int sParam = this.buffer.getInt();
+			final int kSize = this.buffer.getInt();
+			final int seed = this.buffer.getInt();
+			final int size = this.buffer.getInt();
+			// each value takes at least one byte, followed by the checksum
+			final long available = this.available();
+			if (size < 0 || (available >= 0 && size > available - 4)) {
+				throw new IOException("Incorrect sketch size");
+			}
+
+			// The length of a stream is unknown, so the values array grows
+			// while reading instead of trusting the size of the header
+			long[] values = new long[available >= 0 ? size : Math.min(size, BUFFER_SIZE)];
+			long previous = Long.MIN_VALUE;
+			for (int i = 0; i < size; i++) {
+				if (i == values.length) {
+					values = Arrays.copyOf(values, (int) Math.min(size, 2L * values.length));
+				}
+				previous += this.readVarLong();
+				values[i] = previous;
+			}
+
+			this.updateChecksum();
+			this.require(4);
+			if (this.buffer.getInt() != (int) this.crc.getValue()) {
+				throw new IOException("Checksum mismatch, the sketch file is corrupted");
+			}
+			return FracMinHashSketch.fromValues(sParam, kSize, seed, hashedMagicNumber, values);
+		}
+
+		/**
+		 * Returns the number of bytes that are left to decode, or -1 if the
+		 * channel is a stream of unknown length.
+		 */
+		private long available() throws IOException {
+			if (this.channel == null) {
+				return this.buffer.remaining();
+			}
+			if (this.channel instanceof SeekableByteChannel) {
+				final SeekableByteChannel seekable = (SeekableByteChannel) this.channel;
+				return this.buffer.remaining() + seekable.size() - seekable.position();
+			}
+			return -1;
+		}
+
+		private long readVarLong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (!this.buffer.hasRemaining()) {
+					this.require(1);
+				}
+				final byte b = this.buffer.get();
+				value |= (long) (b & 0x7F) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+			throw new IOException("Malformed varint in sketch file");
+		}
+
+		private void require(int bytes) throws IOException {
+			if (this.buffer.remaining() >= bytes) {
+				return;
+			}
+			if (this.channel == null) {
+				throw new EOFException("Unexpected end of sketch file");
+			}
+			this.updateChecksum();
+			this.buffer.compact();
+			while (this.buffer.position() < bytes && this.channel.read(this.buffer) >= 0) {
+				// read until enough bytes are available
+			}
+			this.buffer.flip();
+			this.unchecked = 0;
+			if (this.buffer.remaining() < bytes) {
+				throw new EOFException("Unexpected end of sketch file");
+			}
+		}
+
+		private void updateChecksum() {
+			final ByteBuffer consumed = this.buffer.duplicate();
+			consumed.limit(this.buffer.position()).position(this.unchecked);
+			this.crc.update(consumed);
+			this.unchecked = this.buffer.position();
+		}
+	}
+}
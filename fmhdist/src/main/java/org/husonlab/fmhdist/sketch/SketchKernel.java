@@ -0,0 +1,73 @@
+package org.husonlab.fmhdist.sketch;
+
+import net.openhft.hashing.LongHashFunction;
+import org.husonlab.fmhdist.util.KMerVisitor;
+import org.husonlab.fmhdist.util.LongHashSet;
+
+/**
+ * KMerVisitor that selects the canonical k-mer, hashes it and keeps the hash
+ * if it is below the FracMinHash threshold, all in a single call. The class is
+ * final and the only KMerVisitor used for sketching, so the call from the
+ * scanning loop of a KMerScanner stays monomorphic and can be inlined.
+ * <p>
+ * Byte k-mers are hashed with hashBytes() and packed k-mers with hashLong(),
+ * exactly as in FracMinHashSketch.compute(), so the resulting sketches are
+ * identical to the ones of the iterator based computation.
+ */
+public final class SketchKernel implements KMerVisitor {
+	private final int kSize;
+	private final LongHashFunction hashFunction;
+	private final double threshold;
+	private final LongHashSet hashes;
+
+	/**
+	 * @param kSize        the k-mer size of the scanner
+	 * @param sParam       the scaling parameter s
+	 * @param hashFunction the hash function to apply
+	 */
+	public SketchKernel(int kSize, int sParam, LongHashFunction hashFunction) {
+		this.kSize = kSize;
+		this.hashFunction = hashFunction;
+		// See FracMinHashSketch.computeWithoutCoordinates() for the shift of
+		// the threshold
+		final double fraction = Long.MAX_VALUE * (1 / (double) sParam) * 2;
+		this.threshold = Long.MIN_VALUE + fraction;
+		this.hashes = new LongHashSet();
+	}
+
+	@Override
+	public void visit(byte[] kmer, int kmerOffset, byte[] reverseComplement, int reverseComplementOffset) {
+		// lexicographical comparison as in SequenceUtils.compare(), but on the
+		// ranges of the arrays
+		int i = 0;
+		while (i < this.kSize && kmer[kmerOffset + i] == reverseComplement[reverseComplementOffset + i]) {
+			i++;
+		}
+		final long hash;
+		if (i < this.kSize && kmer[kmerOffset + i] > reverseComplement[reverseComplementOffset + i]) {
+			hash = this.hashFunction.hashBytes(reverseComplement, reverseComplementOffset, this.kSize);
+		} else {
+			hash = this.hashFunction.hashBytes(kmer, kmerOffset, this.kSize);
+		}
+		if (hash < this.threshold) {
+			this.hashes.add(hash);
+		}
+	}
+
+	@Override
+	public void visitPacked(long kmer, long reverseComplement) {
+		final long hash = this.hashFunction.hashLong(Long.compareUnsigned(kmer, reverseComplement) <= 0 ? kmer : reverseComplement);
+		if (hash < this.threshold) {
+			this.hashes.add(hash);
+		}
+	}
+
+	/**
+	 * Returns the set of hashes below the threshold collected so far.
+	 *
+	 * @return
+	 */
+	public LongHashSet getHashes() {
+		return this.hashes;
+	}
+}
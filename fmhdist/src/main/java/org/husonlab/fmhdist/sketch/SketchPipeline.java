@@ -0,0 +1,396 @@
+package org.husonlab.fmhdist.sketch;
+
+import net.openhft.hashing.LongHashFunction;
+import org.husonlab.fmhdist.ncbi.Genome;
+import org.husonlab.fmhdist.util.GenomeCache;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Sketches genomes in two stages. A pool of download threads spools remote
+ * genome files to local temporary files, and a separate pool of sketch
+ * threads sketches the files that are ready. The stages are connected by a
+ * bounded queue: if the sketch threads fall behind, the download threads
+ * block until a slot is free, so at most queueCapacity + downloadThreads
+ * files are spooled at any time. This way, the number of parallel
+ * downloads is independent of the number of CPU threads, and the CPU
+ * threads never wait for the network.
+ * <p>
+ * Downloads can be limited to a number of starts per second. Genomes that
+ * are local files skip the download stage. With a GenomeCache, remote files
+ * are kept in the cache instead of temporary files, and cached files are
+ * sketched from the local copy.
+ * <p>
+ * A remote genome is downloaded up to DOWNLOAD_ATTEMPTS times before it is
+ * reported as failure, with a delay that doubles after each attempt. Besides
+ * broken connections, this covers truncated files that only fail once they
+ * are sketched. Such files are downloaded again by the sketch thread itself,
+ * and a cached copy is removed from the cache.
+ */
+public class SketchPipeline {
+	private static final int DOWNLOAD_ATTEMPTS = 3;
+
+	private static Logger logger = Logger.getLogger(SketchPipeline.class.getName());
+
+	private final int downloadThreads;
+	private final int sketchThreads;
+	private final int queueCapacity;
+	private final long downloadIntervalNanos;
+	private final Path spoolDirectory;
+	private long nextDownloadSlot;
+	private long retryDelayMillis = 1000;
+	private GenomeCache genomeCache;
+
+	/**
+	 * Receives the results of the pipeline. The methods are called
+	 * concurrently from the pipeline threads. If a method throws, the
+	 * pipeline is aborted.
+	 */
+	public interface Listener {
+		public void onSketch(GenomeSketch sketch) throws Exception;
+
+		public void onFailure(Genome genome, Exception error) throws Exception;
+	}
+
+	/**
+	 * Creates a new pipeline.
+	 *
+	 * @param downloadThreads    number of parallel downloads
+	 * @param sketchThreads      number of genomes that are sketched in parallel
+	 * @param queueCapacity      number of downloaded genomes that may wait for
+	 *                           a sketch thread
+	 * @param downloadsPerSecond maximum number of downloads that are started
+	 *                           per second, 0 for no limit
+	 * @param spoolDirectory     directory for the downloaded files, null for
+	 *                           the default temporary directory
+	 */
+	public SketchPipeline(int downloadThreads, int sketchThreads, int queueCapacity, double downloadsPerSecond, Path spoolDirectory) {
+		if (downloadThreads < 1 || sketchThreads < 1 || queueCapacity < 1) {
+			throw new IllegalArgumentException("the pipeline requires at least one thread and queue slot per stage");
+		}
+		this.downloadThreads = downloadThreads;
+		this.sketchThreads = sketchThreads;
+		this.queueCapacity = queueCapacity;
+		this.downloadIntervalNanos = downloadsPerSecond > 0 ? (long) (1e9 / downloadsPerSecond) : 0;
+		this.spoolDirectory = spoolDirectory;
+	}
+
+	/**
+	 * Downloads remote genome files through the given cache instead of
+	 * spooling them to temporary files. Cached files are not downloaded
+	 * again and don't count towards the download rate.
+	 *
+	 * @param genomeCache the cache, null to disable it
+	 */
+	public void setGenomeCache(GenomeCache genomeCache) {
+		this.genomeCache = genomeCache;
+	}
+
+	/**
+	 * Sets the delay before the second attempt to download a genome, each
+	 * further attempt waits twice as long.
+	 *
+	 * @param retryDelayMillis the delay in milliseconds
+	 */
+	public void setRetryDelay(long retryDelayMillis) {
+		this.retryDelayMillis = retryDelayMillis;
+	}
+
+	/**
+	 * Sketches all genomes and passes each result to the listener as soon as
+	 * it is available, so only the sketches that are currently being
+	 * calculated are held in memory. Returns after all genomes have been
+	 * processed.
+	 *
+	 * @param genomes      the genomes to sketch
+	 * @param kSize        the k-mer size to apply
+	 * @param sParam       the scaling parameter to apply
+	 * @param hashFunction the hash function to use
+	 * @param seed         the random seed that was used to generate the hash function
+	 * @param packed       boolean flag to indicate if the k-mers should be
+	 *                     2-bit packed (k <= 32)
+	 * @param listener     receives the sketches and failures
+	 * @throws IOException          if the listener failed or a thread died
+	 *                              with an error
+	 * @throws InterruptedException
+	 */
+	public void run(List<Genome> genomes, int kSize, int sParam, LongHashFunction hashFunction, int seed, boolean packed, Listener listener) throws IOException, InterruptedException {
+		final Execution execution = new Execution(listener, kSize, sParam, hashFunction, seed, packed);
+		try {
+			for (int i = 0; i < this.sketchThreads; i++) {
+				execution.sketcher.submit(execution::sketchAll);
+			}
+			for (Genome genome : genomes) {
+				execution.downloader.submit(() -> execution.download(genome));
+			}
+			execution.downloader.shutdown();
+			execution.downloader.awaitTermination(1000, TimeUnit.DAYS);
+			// the sketch threads may have been aborted while the queue is full
+			for (int i = 0; i < this.sketchThreads; i++) {
+				while (execution.error == null && !execution.queue.offer(Download.END, 100, TimeUnit.MILLISECONDS)) {
+					// wait for a free slot
+				}
+			}
+			execution.sketcher.shutdown();
+			execution.sketcher.awaitTermination(1000, TimeUnit.DAYS);
+		} finally {
+			execution.downloader.shutdownNow();
+			execution.sketcher.shutdownNow();
+			execution.downloader.awaitTermination(1000, TimeUnit.DAYS);
+			execution.sketcher.awaitTermination(1000, TimeUnit.DAYS);
+			// files that were spooled but not sketched after an abort
+			for (Download download : execution.queue) {
+				download.delete();
+			}
+		}
+		if (execution.error != null) {
+			throw new IOException("sketching was aborted", execution.error);
+		}
+	}
+
+	/**
+	 * Returns the number of nanoseconds to wait before the next download may
+	 * start and reserves the following slot.
+	 */
+	private synchronized long reserveDownloadSlot() {
+		final long now = System.nanoTime();
+		final long slot = this.nextDownloadSlot == 0 ? now : Math.max(now, this.nextDownloadSlot);
+		this.nextDownloadSlot = slot + this.downloadIntervalNanos;
+		return slot - now;
+	}
+
+	/**
+	 * A genome whose file is ready to be sketched.
+	 */
+	private static class Download {
+		static final Download END = new Download(null, null, false, null);
+
+		final Genome genome;
+		final String path;
+		final boolean isSpooled;
+		final GenomeCache.Entry entry;
+		int attempts;
+
+		Download(Genome genome, String path, boolean isSpooled, GenomeCache.Entry entry) {
+			this.genome = genome;
+			this.path = path;
+			this.isSpooled = isSpooled;
+			this.entry = entry;
+		}
+
+		boolean isRemote() {
+			return this.isSpooled || this.entry != null;
+		}
+
+		/**
+		 * Deletes the spooled file or releases the cache entry.
+		 */
+		void delete() {
+			if (this.entry != null) {
+				this.entry.close();
+			}
+			if (this.isSpooled) {
+				try {
+					Files.deleteIfExists(Path.of(this.path));
+				} catch (IOException e) {
+					logger.warning(e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * The state of a single run.
+	 */
+	private class Execution {
+		final BlockingQueue<Download> queue = new ArrayBlockingQueue<>(queueCapacity);
+		final ExecutorService downloader = Executors.newFixedThreadPool(downloadThreads);
+		final ExecutorService sketcher = Executors.newFixedThreadPool(sketchThreads);
+		final Listener listener;
+		final int kSize;
+		final int sParam;
+		final LongHashFunction hashFunction;
+		final int seed;
+		final boolean packed;
+		volatile Throwable error;
+
+		Execution(Listener listener, int kSize, int sParam, LongHashFunction hashFunction, int seed, boolean packed) {
+			this.listener = listener;
+			this.kSize = kSize;
+			this.sParam = sParam;
+			this.hashFunction = hashFunction;
+			this.seed = seed;
+			this.packed = packed;
+		}
+
+		synchronized void abort(Throwable error) {
+			if (this.error == null) {
+				logger.severe(String.valueOf(error.getMessage()));
+				this.error = error;
+				this.downloader.shutdownNow();
+				this.sketcher.shutdownNow();
+			}
+		}
+
+		void download(Genome genome) {
+			if (this.error != null) {
+				return;
+			}
+			final String url = genome.getFastaUrl();
+			try {
+				if (!GenomeCache.isRemote(url)) {
+					this.queue.put(new Download(genome, url, false, null));
+					return;
+				}
+				Exception failure = null;
+				for (int attempt = 1; attempt <= DOWNLOAD_ATTEMPTS; attempt++) {
+					if (attempt > 1) {
+						this.backoff(attempt);
+					}
+					// cache hits don't touch the network
+					if (genomeCache == null || !genomeCache.contains(genome.getAccession(), url)) {
+						final long wait = reserveDownloadSlot();
+						if (wait > 0) {
+							TimeUnit.NANOSECONDS.sleep(wait);
+						}
+					}
+					Download download;
+					try {
+						download = this.fetch(genome, url);
+					} catch (FileNotFoundException e) {
+						// the file does not exist, no need to try again
+						failure = e;
+						break;
+					} catch (IOException e) {
+						// Sometimes, the connection to NCBI breaks - try again
+						logger.warning(String.format("download of %s failed: %s", url, e.getMessage()));
+						failure = e;
+						continue;
+					}
+					download.attempts = attempt;
+					try {
+						this.queue.put(download);
+					} catch (InterruptedException e) {
+						download.delete();
+						throw e;
+					}
+					return;
+				}
+				this.listener.onFailure(genome, failure);
+			} catch (InterruptedException e) {
+				// aborted
+			} catch (Throwable e) {
+				this.abort(e);
+			}
+		}
+
+		/**
+		 * Waits before the given attempt to download a genome.
+		 */
+		void backoff(int attempt) throws InterruptedException {
+			TimeUnit.MILLISECONDS.sleep(retryDelayMillis << (attempt - 2));
+		}
+
+		/**
+		 * Downloads the file of the genome to the cache or, without a cache,
+		 * to a temporary file.
+		 */
+		Download fetch(Genome genome, String url) throws IOException {
+			if (genomeCache != null) {
+				final GenomeCache.Entry entry = genomeCache.get(genome.getAccession(), url);
+				return new Download(genome, entry.getPath().toString(), false, entry);
+			}
+			final Path file = Files.createTempFile(spoolDirectory == null ? Path.of(System.getProperty("java.io.tmpdir")) : spoolDirectory, "genome", url.endsWith(".gz") ? ".fna.gz" : ".fna");
+			try {
+				GenomeCache.download(url, file);
+			} catch (IOException e) {
+				Files.deleteIfExists(file);
+				throw e;
+			}
+			return new Download(genome, file.toString(), true, null);
+		}
+
+		void sketchAll() {
+			try {
+				while (true) {
+					Download download = this.queue.take();
+					if (download == Download.END) {
+						return;
+					}
+					final Genome genome = download.genome;
+					GenomeSketch result = null;
+					Exception failure = null;
+					while (download != null) {
+						try {
+							final Genome local = new Genome(genome.getAccession(), download.path);
+							result = new GenomeSketch(genome, GenomeSketch.sketch(local, this.kSize, this.sParam, this.hashFunction, this.seed, false, this.packed).getSketch());
+							download.delete();
+							download = null;
+						} catch (IOException e) {
+							logger.warning(String.format("sketching %s failed: %s", genome.getAccession(), e.getMessage()));
+							failure = e;
+							download = this.retry(download);
+						} catch (Exception e) {
+							logger.warning(String.format("sketching %s failed: %s", genome.getAccession(), e.getMessage()));
+							failure = e;
+							download.delete();
+							download = null;
+						}
+					}
+					if (result != null) {
+						this.listener.onSketch(result);
+					} else {
+						this.listener.onFailure(genome, failure);
+					}
+				}
+			} catch (InterruptedException e) {
+				// aborted
+			} catch (Throwable e) {
+				this.abort(e);
+			}
+		}
+
+		/**
+		 * Downloads a remote file that could not be sketched again, as it may
+		 * have been truncated. A cached copy is removed from the cache first.
+		 * Returns null if the file is local or all attempts are used up.
+		 */
+		Download retry(Download download) throws InterruptedException {
+			if (download.entry != null) {
+				download.entry.discard();
+			}
+			download.delete();
+			if (!download.isRemote()) {
+				return null;
+			}
+			final String url = download.genome.getFastaUrl();
+			for (int attempt = download.attempts + 1; attempt <= DOWNLOAD_ATTEMPTS; attempt++) {
+				this.backoff(attempt);
+				final long wait = reserveDownloadSlot();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				try {
+					final Download result = this.fetch(download.genome, url);
+					result.attempts = attempt;
+					return result;
+				} catch (FileNotFoundException e) {
+					return null;
+				} catch (IOException e) {
+					logger.warning(String.format("download of %s failed: %s", url, e.getMessage()));
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package org.husonlab.fmhdist.sketch;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Sorted set intersection using the (incubating) Vector API. This class must
+ * only be loaded if the jdk.incubator.vector module is available, see
+ * Distance.isVectorIntersectionAvailable().
+ * <p>
+ * Both arrays are processed in blocks of as many longs as fit into a vector
+ * register (4 with AVX2, 8 with AVX-512). Each element of the block of b is
+ * broadcast and compared with the whole block of a, so all pairs of both
+ * blocks are compared without any shuffles. As sketches are sets, each
+ * element of a matches at most once, thus the number of set bits in the
+ * combined mask is the number of matches. Afterwards, the block with the
+ * smaller maximum is advanced (or both if they are equal). This replaces the
+ * data dependent branch per element of the scalar merge with one branch per
+ * block.
+ */
+final class VectorIntersection {
+	private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+	private VectorIntersection() {
+	}
+
+	static int getIntersectionSize(long[] a, long[] b) {
+		final int lanes = SPECIES.length();
+		final int aBound = a.length - lanes;
+		final int bBound = b.length - lanes;
+		int intersectionSize = 0;
+		int i = 0;
+		int j = 0;
+		while (i <= aBound && j <= bBound) {
+			final LongVector block = LongVector.fromArray(SPECIES, a, i);
+			VectorMask<Long> matches = block.eq(b[j]);
+			for (int l = 1; l < lanes; l++) {
+				matches = matches.or(block.eq(b[j + l]));
+			}
+			intersectionSize += matches.trueCount();
+
+			final long maxA = a[i + lanes - 1];
+			final long maxB = b[j + lanes - 1];
+			if (maxA <= maxB) {
+				i += lanes;
+			}
+			if (maxB <= maxA) {
+				j += lanes;
+			}
+		}
+		return intersectionSize + Distance.getMergeIntersectionSize(a, i, b, j);
+	}
+}
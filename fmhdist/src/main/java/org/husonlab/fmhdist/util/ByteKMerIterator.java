@@ -0,0 +1,403 @@
+package org.husonlab.fmhdist.util;
+
+import jloda.util.FileUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Iterator that produces k-mers of a fixed size for a given FASTA file. In
+ * contrast to the LineKMerIterator, this iterator does not split the input
+ * into lines. Instead, it scans the raw bytes of a ByteSource and finds line
+ * breaks and headers in place, so there are no allocations per line or per
+ * k-mer. Runs of ambiguous bases are skipped with a single scan.
+ * <p>
+ * The k-mer and its reverse complement are kept in two ring buffers of size
+ * 2k in which every base is written twice. This way, the current window is
+ * always a contiguous range of the ring and can be copied with a single
+ * System.arraycopy(). K-mers will never span multiple sequences in the FASTA.
+ * <p>
+ * For FASTA files whose lines end with a line break, the produced k-mers,
+ * reverse complements and coordinates equal the ones of the
+ * LineKMerIterator. In contrast to the LineKMerIterator, the last record is
+ * not dropped if it consists of a single line without trailing line break,
+ * and spaces or tabs within a sequence line are skipped instead of ending the
+ * line. Thus, every record contributes all of its k-mers, independent of
+ * where the input ends. Errors while reading the source are rethrown by
+ * next() as UncheckedIOException.
+ * <p>
+ * Instead of iterating, the k-mers can also be pushed to a KMerVisitor with
+ * scan(). The visitor then reads them directly from the ring buffers.
+ */
+public class ByteKMerIterator implements KMerScanner {
+	private static final byte SEQUENCE = 0;
+	private static final byte AMBIGUOUS = 1;
+	private static final byte WHITESPACE = 2;
+	private static final byte NEWLINE = 3;
+	private static final byte HEADER = 4;
+
+	private static final byte[] classTable = new byte[256];
+	private static final byte[] classTableSkipN = new byte[256];
+
+	static {
+		classTable['\t'] = WHITESPACE;
+		classTable['\r'] = WHITESPACE;
+		classTable[' '] = WHITESPACE;
+		classTable['\n'] = NEWLINE;
+		classTable['>'] = HEADER;
+		System.arraycopy(classTable, 0, classTableSkipN, 0, classTable.length);
+		classTableSkipN['N'] = AMBIGUOUS;
+		classTableSkipN['n'] = AMBIGUOUS;
+	}
+
+	// Same mapping as the LineKMerIterator: unknown characters are kept as 0
+	private static final byte[] toUpperTable = new byte[256];
+	private static final byte[] complementTable = new byte[256];
+
+	static {
+		toUpperTable['A'] = 'A';
+		toUpperTable['T'] = 'T';
+		toUpperTable['G'] = 'G';
+		toUpperTable['C'] = 'C';
+		toUpperTable['a'] = 'A';
+		toUpperTable['t'] = 'T';
+		toUpperTable['g'] = 'G';
+		toUpperTable['c'] = 'C';
+		toUpperTable['n'] = 'N';
+		toUpperTable['N'] = 'N';
+
+		complementTable['A'] = 'T';
+		complementTable['T'] = 'A';
+		complementTable['G'] = 'C';
+		complementTable['C'] = 'G';
+		complementTable['a'] = 'T';
+		complementTable['t'] = 'A';
+		complementTable['g'] = 'C';
+		complementTable['c'] = 'G';
+	}
+
+	private final int k;
+	private final byte[] classes;
+	private final ByteSource source;
+
+	private ByteBuffer buffer;
+	private int bufferPos;
+	private int bufferLimit;
+	private boolean isLineStart;
+	private boolean isInHeader;
+
+	// rolling state of the scanner
+	private final byte[] ring;
+	private final byte[] reverseRing;
+	private int ringPos;
+	private int reverseRingPos;
+	private int validBases;
+	private int basesInRecord;
+	private int recordIndexInFile = -1;
+	private int kmersInRecord;
+	private int kmersInFile;
+	private int positionsBeforeRecord;
+
+	// the k-mer that will be returned by the next call to next()
+	private boolean hasPending;
+	private int pendingRingPos;
+	private int pendingReverseRingPos;
+	private int pendingRecordIndexInFile;
+	private int pendingSequenceIndexInRecord;
+	private int pendingSequenceIndexInFile;
+	private int pendingPositionInRecord;
+	private int pendingPositionsBeforeRecord;
+
+	// the k-mer that was returned by the last call to next()
+	private final byte[] kmer;
+	private final byte[] kmerReverseComplement;
+	private int currentRecordIndexInFile;
+	private int currentSequenceIndexInRecord;
+	private int currentSequenceIndexInFile;
+	private int currentPositionInRecord;
+	private int currentPositionsBeforeRecord;
+
+	/**
+	 * Creates a new ByteKMerIterator that decomposes the content of the given
+	 * source into its k-mers.
+	 *
+	 * @param k      The k-mer size to apply
+	 * @param source The source from which the FASTA file should be read
+	 * @param skipN  Bool flag, if set to false, k-mers containing ambiguous
+	 *               bases won't be skipped.
+	 * @throws IOException
+	 */
+	public ByteKMerIterator(int k, ByteSource source, boolean skipN) throws IOException {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be positive");
+		}
+		this.k = k;
+		this.classes = skipN ? classTableSkipN : classTable;
+		this.source = source;
+		this.isLineStart = true;
+		this.ring = new byte[2 * k];
+		this.reverseRing = new byte[2 * k];
+		this.kmer = new byte[k];
+		this.kmerReverseComplement = new byte[k];
+		this.advance();
+	}
+
+	/**
+	 * Creates a new ByteKMerIterator that decomposes the given stream into its
+	 * k-mers.
+	 *
+	 * @param k     The k-mer size to apply
+	 * @param in    The stream from which the FASTA file should be read
+	 * @param skipN Bool flag, if set to false, k-mers containing ambiguous
+	 *              bases won't be skipped.
+	 * @throws IOException
+	 */
+	public ByteKMerIterator(int k, InputStream in, boolean skipN) throws IOException {
+		this(k, new InputStreamByteSource(in), skipN);
+	}
+
+	/**
+	 * Creates a new ByteKMerIterator that decomposes underlying file into its
+	 * k-mers.
+	 *
+	 * @param k        The k-mer size to apply
+	 * @param fileName Path to the Fasta file to read. This could also be a URL
+	 *                 or a path to a zip/gzip file.
+	 * @param skipN    Bool flag, if set to false, k-mers containing ambiguous
+	 *                 bases won't be skipped.
+	 * @throws IOException
+	 */
+	public ByteKMerIterator(int k, String fileName, boolean skipN) throws IOException {
+		this(k, FileUtils.getInputStreamPossiblyZIPorGZIP(fileName), skipN);
+	}
+
+	private boolean refill() throws IOException {
+		this.buffer = this.source.nextBuffer();
+		if (this.buffer == null) {
+			this.bufferPos = 0;
+			this.bufferLimit = 0;
+			return false;
+		}
+		this.bufferPos = this.buffer.position();
+		this.bufferLimit = this.buffer.limit();
+		return true;
+	}
+
+	private void handleSequenceStart() {
+		this.positionsBeforeRecord += Math.max(0, this.basesInRecord - this.k + 1);
+		this.recordIndexInFile++;
+		this.basesInRecord = 0;
+		this.kmersInRecord = 0;
+		this.validBases = 0;
+		this.isInHeader = true;
+	}
+
+	/**
+	 * Scans the input until the next valid k-mer is complete and stores its
+	 * position in the ring buffers as the pending k-mer.
+	 *
+	 * @throws IOException
+	 */
+	private void advance() throws IOException {
+		final int k = this.k;
+		final byte[] classes = this.classes;
+		final byte[] ring = this.ring;
+		final byte[] reverseRing = this.reverseRing;
+		while (true) {
+			final ByteBuffer buf = this.buffer;
+			int pos = this.bufferPos;
+			final int limit = this.bufferLimit;
+
+			if (this.isInHeader) {
+				while (pos < limit && buf.get(pos) != '\n') {
+					pos++;
+				}
+				if (pos < limit) {
+					this.isInHeader = false;
+					this.isLineStart = true;
+					pos++;
+				}
+			}
+
+			while (pos < limit) {
+				final int b = buf.get(pos++) & 0xFF;
+				final byte cls = classes[b];
+				if (cls == SEQUENCE) {
+					this.isLineStart = false;
+					final byte base = toUpperTable[b];
+					final byte complement = complementTable[b];
+					ring[this.ringPos] = base;
+					ring[this.ringPos + k] = base;
+					this.ringPos = this.ringPos + 1 == k ? 0 : this.ringPos + 1;
+					this.reverseRingPos = this.reverseRingPos == 0 ? k - 1 : this.reverseRingPos - 1;
+					reverseRing[this.reverseRingPos] = complement;
+					reverseRing[this.reverseRingPos + k] = complement;
+					this.basesInRecord++;
+					if (++this.validBases >= k) {
+						this.bufferPos = pos;
+						this.hasPending = true;
+						this.pendingRingPos = this.ringPos;
+						this.pendingReverseRingPos = this.reverseRingPos;
+						this.pendingRecordIndexInFile = this.recordIndexInFile;
+						this.pendingSequenceIndexInRecord = this.kmersInRecord++;
+						this.pendingSequenceIndexInFile = this.kmersInFile++;
+						this.pendingPositionInRecord = this.basesInRecord - k;
+						this.pendingPositionsBeforeRecord = this.positionsBeforeRecord;
+						return;
+					}
+				} else if (cls == AMBIGUOUS) {
+					// skip the whole run of ambiguous bases at once
+					int run = 1;
+					while (pos < limit && classes[buf.get(pos) & 0xFF] == AMBIGUOUS) {
+						pos++;
+						run++;
+					}
+					this.isLineStart = false;
+					this.validBases = 0;
+					this.basesInRecord += run;
+				} else if (cls == NEWLINE) {
+					this.isLineStart = true;
+				} else if (cls == HEADER && this.isLineStart) {
+					this.handleSequenceStart();
+					break;
+				} else if (cls == HEADER) {
+					// a '>' within a sequence line can't be part of a k-mer
+					this.isLineStart = false;
+					this.validBases = 0;
+					this.basesInRecord++;
+				}
+			}
+			this.bufferPos = pos;
+
+			if (pos >= limit && !this.refill()) {
+				this.hasPending = false;
+				return;
+			}
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return this.hasPending;
+	}
+
+	@Override
+	public byte[] next() {
+		System.arraycopy(this.ring, this.pendingRingPos, this.kmer, 0, this.k);
+		System.arraycopy(this.reverseRing, this.pendingReverseRingPos, this.kmerReverseComplement, 0, this.k);
+		this.currentRecordIndexInFile = this.pendingRecordIndexInFile;
+		this.currentSequenceIndexInRecord = this.pendingSequenceIndexInRecord;
+		this.currentSequenceIndexInFile = this.pendingSequenceIndexInFile;
+		this.currentPositionInRecord = this.pendingPositionInRecord;
+		this.currentPositionsBeforeRecord = this.pendingPositionsBeforeRecord;
+		try {
+			this.advance();
+		} catch (IOException e) {
+			this.hasPending = false;
+			throw new UncheckedIOException(e);
+		}
+		return this.kmer;
+	}
+
+	@Override
+	public void scan(KMerVisitor visitor) throws IOException {
+		if (!this.hasPending) {
+			return;
+		}
+		final int k = this.k;
+		final byte[] classes = this.classes;
+		final byte[] ring = this.ring;
+		final byte[] reverseRing = this.reverseRing;
+		int ringPos = this.ringPos;
+		int reverseRingPos = this.reverseRingPos;
+		int validBases = this.validBases;
+		boolean isLineStart = this.isLineStart;
+		boolean isInHeader = this.isInHeader;
+		this.hasPending = false;
+		visitor.visit(ring, this.pendingRingPos, reverseRing, this.pendingReverseRingPos);
+
+		// Same state machine as advance(), but without the bookkeeping of
+		// pending k-mers and coordinates
+		ByteBuffer buf = this.buffer;
+		int pos = this.bufferPos;
+		int limit = this.bufferLimit;
+		while (true) {
+			if (isInHeader) {
+				while (pos < limit && buf.get(pos) != '\n') {
+					pos++;
+				}
+				if (pos < limit) {
+					isInHeader = false;
+					isLineStart = true;
+					pos++;
+				}
+			}
+
+			while (pos < limit) {
+				final int b = buf.get(pos++) & 0xFF;
+				final byte cls = classes[b];
+				if (cls == SEQUENCE) {
+					isLineStart = false;
+					final byte base = toUpperTable[b];
+					final byte complement = complementTable[b];
+					ring[ringPos] = base;
+					ring[ringPos + k] = base;
+					ringPos = ringPos + 1 == k ? 0 : ringPos + 1;
+					reverseRingPos = reverseRingPos == 0 ? k - 1 : reverseRingPos - 1;
+					reverseRing[reverseRingPos] = complement;
+					reverseRing[reverseRingPos + k] = complement;
+					if (++validBases >= k) {
+						visitor.visit(ring, ringPos, reverseRing, reverseRingPos);
+					}
+				} else if (cls == NEWLINE) {
+					isLineStart = true;
+				} else if (cls == HEADER && isLineStart) {
+					validBases = 0;
+					isInHeader = true;
+					break;
+				} else if (cls != WHITESPACE) {
+					isLineStart = false;
+					validBases = 0;
+				}
+			}
+
+			if (pos >= limit) {
+				if (!this.refill()) {
+					return;
+				}
+				buf = this.buffer;
+				pos = this.bufferPos;
+				limit = this.bufferLimit;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.source.close();
+	}
+
+	@Override
+	public int getK() {
+		return this.k;
+	}
+
+	@Override
+	public byte[] getReverseComplement() {
+		return this.kmerReverseComplement;
+	}
+
+	@Override
+	public KMerCoordinates getCoordinates() {
+		return new KMerCoordinates(
+				this.currentRecordIndexInFile,
+				this.currentSequenceIndexInFile,
+				this.currentSequenceIndexInRecord,
+				this.currentPositionsBeforeRecord + this.currentPositionInRecord,
+				this.currentPositionInRecord,
+				this.kmer
+		);
+	}
+}
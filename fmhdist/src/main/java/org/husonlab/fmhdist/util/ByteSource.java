@@ -0,0 +1,22 @@
+package org.husonlab.fmhdist.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A source of raw bytes that hands out its content as a sequence of buffers.
+ * Implementations are free to reuse the same buffer for each call, thus the
+ * content of a returned buffer is only valid until the next call to
+ * "nextBuffer()".
+ */
+public interface ByteSource extends Closeable {
+	/**
+	 * Returns the next chunk of the content. The readable bytes of the chunk
+	 * are between the position and the limit of the buffer.
+	 *
+	 * @return the next chunk or null if the end of the content is reached
+	 * @throws IOException
+	 */
+	public ByteBuffer nextBuffer() throws IOException;
+}
@@ -0,0 +1,340 @@
+package org.husonlab.fmhdist.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a local, uncompressed FASTA file into byte ranges that can be
+ * decomposed into k-mers independently. Each range is extended by k-1 bases
+ * beyond its nominal end (unless a new record starts there), so every k-mer of
+ * the file is contained in at least one range. As FracMinHash sketches are
+ * sets, k-mers that appear in two ranges are harmless.
+ */
+public class FastaSplitter {
+	/**
+	 * Files are not split into ranges smaller than this, the overhead would
+	 * outweigh the benefit.
+	 */
+	public static final long MIN_RANGE_SIZE = 8L << 20;
+
+	// We assume that no FASTA header is longer than this
+	private static final int HEADER_SCAN_SIZE = 1 << 16;
+
+	private static final byte[] RANGE_HEADER = ">\n".getBytes();
+
+	/**
+	 * A byte range [start, end) of a FASTA file.
+	 */
+	public static class Range {
+		private final long start;
+		private final long end;
+
+		public Range(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		public long getStart() {
+			return this.start;
+		}
+
+		public long getEnd() {
+			return this.end;
+		}
+
+		public long getLength() {
+			return this.end - this.start;
+		}
+	}
+
+	/**
+	 * Returns true if the given path denotes a local file that is not
+	 * compressed (as indicated by the gzip or zip magic bytes), i.e. a file
+	 * that allows random access.
+	 *
+	 * @param fileName the path to check
+	 * @return
+	 */
+	public static boolean isSplittable(String fileName) {
+		File file = new File(fileName);
+		if (!file.isFile()) {
+			return false;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer magic = ByteBuffer.allocate(2);
+			channel.read(magic, 0);
+			if (magic.position() < 2) {
+				return true;
+			}
+			int b0 = magic.get(0) & 0xFF;
+			int b1 = magic.get(1) & 0xFF;
+			boolean isGzip = b0 == 0x1f && b1 == 0x8b;
+			boolean isZip = b0 == 'P' && b1 == 'K';
+			return !isGzip && !isZip;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Splits the file into at most the given number of ranges. The ranges are
+	 * roughly of equal size but never smaller than MIN_RANGE_SIZE.
+	 *
+	 * @param fileName path to a local, uncompressed FASTA file
+	 * @param k        the k-mer size, determines the overlap of the ranges
+	 * @param parts    the maximum number of ranges
+	 * @return the ranges in the order of the file
+	 * @throws IOException
+	 */
+	public static List<Range> split(String fileName, int k, int parts) throws IOException {
+		return split(fileName, k, parts, MIN_RANGE_SIZE);
+	}
+
+	/**
+	 * Splits the file into at most the given number of ranges. The ranges are
+	 * roughly of equal size but never smaller than the given minimum.
+	 *
+	 * @param fileName     path to a local, uncompressed FASTA file
+	 * @param k            the k-mer size, determines the overlap of the ranges
+	 * @param parts        the maximum number of ranges
+	 * @param minRangeSize the minimum number of bytes per range
+	 * @return the ranges in the order of the file
+	 * @throws IOException
+	 */
+	public static List<Range> split(String fileName, int k, int parts, long minRangeSize) throws IOException {
+		List<Range> result = new ArrayList<>();
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			final long length = channel.size();
+			parts = (int) Math.max(1, Math.min(parts, length / Math.max(1, minRangeSize)));
+
+			long[] splits = new long[parts + 1];
+			for (int i = 0; i <= parts; i++) {
+				splits[i] = length * i / parts;
+			}
+
+			// the first range needs to contain more than the first header line
+			final long firstLineEnd = skipLine(channel, 0);
+			for (int i = 0; i < parts; i++) {
+				long start = splits[i];
+				if (i > 0) {
+					if (isInHeader(channel, start)) {
+						start = skipLine(channel, start);
+					}
+					// the synthetic header must not be followed by an empty line
+					start = skipLineBreaks(channel, start);
+				}
+				long end = extendEnd(channel, splits[i + 1], k);
+				if (start < end && (start > 0 || end > firstLineEnd)) {
+					result.add(new Range(start, end));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Opens a stream that provides the content of the given range. If the
+	 * range does not start at the beginning of the file, a synthetic header
+	 * line is prepended such that the stream is a valid FASTA file on its own.
+	 *
+	 * @param fileName path to the FASTA file
+	 * @param range    the range to read
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream openRange(String fileName, Range range) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		InputStream content = new RangeInputStream(channel, range.getStart(), range.getEnd());
+		if (range.getStart() == 0) {
+			return content;
+		}
+		return new SequenceInputStream(new ByteArrayInputStream(RANGE_HEADER), content);
+	}
+
+	/**
+	 * Maps the given range into memory. Like openRange(), a synthetic header
+	 * is prepended if the range does not start at the beginning of the file.
+	 *
+	 * @param fileName path to the FASTA file
+	 * @param range    the range to map
+	 * @return
+	 * @throws IOException
+	 */
+	public static ByteSource mapRange(String fileName, Range range) throws IOException {
+		return new MappedFileByteSource(fileName, range.getStart(), range.getEnd(), range.getStart() == 0 ? null : RANGE_HEADER);
+	}
+
+	/**
+	 * Returns true if the byte at the given position belongs to a header line.
+	 */
+	private static boolean isInHeader(FileChannel channel, long position) throws IOException {
+		long lineStart = findLineStart(channel, position);
+		if (lineStart < 0) {
+			return false;
+		}
+		ByteBuffer first = ByteBuffer.allocate(1);
+		return channel.read(first, lineStart) == 1 && first.get(0) == '>';
+	}
+
+	/**
+	 * Returns the start of the line that contains the given position, or -1 if
+	 * the line is longer than HEADER_SCAN_SIZE. Such a line must be a sequence
+	 * line.
+	 */
+	private static long findLineStart(FileChannel channel, long position) throws IOException {
+		long windowStart = Math.max(0, position - HEADER_SCAN_SIZE);
+		ByteBuffer window = ByteBuffer.allocate((int) (position - windowStart));
+		readFully(channel, window, windowStart);
+
+		for (int i = window.limit() - 1; i >= 0; i--) {
+			if (window.get(i) == '\n') {
+				return windowStart + i + 1;
+			}
+		}
+		return windowStart == 0 ? 0 : -1;
+	}
+
+	/**
+	 * Returns the position of the first byte after the line break that follows
+	 * the given position.
+	 */
+	private static long skipLine(FileChannel channel, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SCAN_SIZE);
+		while (true) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read <= 0) {
+				return channel.size();
+			}
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += read;
+		}
+	}
+
+	/**
+	 * Returns the position of the first byte at or after the given position
+	 * that is not a line break.
+	 */
+	private static long skipLineBreaks(FileChannel channel, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1);
+		while (true) {
+			buffer.clear();
+			if (channel.read(buffer, position) != 1) {
+				return position;
+			}
+			byte b = buffer.get(0);
+			if (b != '\n' && b != '\r') {
+				return position;
+			}
+			position++;
+		}
+	}
+
+	/**
+	 * Moves the end of a range such that it includes the next k-1 bases, as
+	 * long as they belong to the same record. If the end lies within a header,
+	 * the range ends before that header instead, as a header without sequence
+	 * is not a valid FASTA record.
+	 */
+	private static long extendEnd(FileChannel channel, long end, int k) throws IOException {
+		final long length = channel.size();
+		if (end >= length) {
+			return length;
+		}
+		if (isInHeader(channel, end)) {
+			return findLineStart(channel, end);
+		}
+		if (k <= 1) {
+			return end;
+		}
+
+		ByteBuffer previous = ByteBuffer.allocate(1);
+		boolean isLineStart = end == 0 || (channel.read(previous, end - 1) == 1 && previous.get(0) == '\n');
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SCAN_SIZE);
+		int bases = 0;
+		long position = end;
+		while (position < length) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read <= 0) {
+				break;
+			}
+			for (int i = 0; i < read; i++) {
+				byte b = buffer.get(i);
+				if (isLineStart && b == '>') {
+					return position + i;
+				}
+				isLineStart = b == '\n';
+				if (b != '\n' && b != '\r' && b != ' ' && b != '\t' && ++bases >= k - 1) {
+					return position + i + 1;
+				}
+			}
+			position += read;
+		}
+		return length;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				break;
+			}
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * InputStream on a byte range of a file channel. Closing the stream closes
+	 * the channel.
+	 */
+	private static class RangeInputStream extends InputStream {
+		private final FileChannel channel;
+		private final long end;
+		private long position;
+
+		RangeInputStream(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.position = start;
+			this.end = end;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return this.read(single, 0, 1) == 1 ? single[0] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (this.position >= this.end) {
+				return -1;
+			}
+			len = (int) Math.min(len, this.end - this.position);
+			int read = this.channel.read(ByteBuffer.wrap(b, off, len), this.position);
+			if (read > 0) {
+				this.position += read;
+			}
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.channel.close();
+		}
+	}
+}
@@ -0,0 +1,363 @@
+package org.husonlab.fmhdist.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Disk cache for remote genome files. Each file is stored under the SHA-256
+ * of its accession and URL, so the same genome is downloaded only once, no
+ * matter with which parameters it is sketched.
+ * <p>
+ * Files are downloaded to a temporary .part file and moved to their final
+ * name atomically, so an interrupted download never leaves a truncated
+ * entry. If the total size of the cache exceeds the limit, the least
+ * recently used files are deleted. The access order is kept in the last
+ * modified time of an empty .access file next to each cached file, so it
+ * survives restarts. The cached files themselves keep the modification time
+ * of the remote file, so they look the same to the SketchCache on every run,
+ * even if they are downloaded again. Files that are in use (see Entry) are
+ * never evicted.
+ * <p>
+ * The cache can be used from multiple threads of a single process.
+ */
+public class GenomeCache {
+	private static final String PART_SUFFIX = ".part";
+	private static final String ACCESS_SUFFIX = ".access";
+	private static final int TIMEOUT_MILLIS = 60000;
+
+	private static Logger logger = Logger.getLogger(GenomeCache.class.getName());
+
+	private final Path directory;
+	private final long maxBytes;
+	// file name -> size, in access order
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<String, Integer> pinned = new HashMap<>();
+	// file name -> lock of the threads that get the file, removed by the last one
+	private final Map<String, Lock> locks = new ConcurrentHashMap<>();
+	private long size;
+
+	private static class Lock {
+		int holders;
+	}
+
+	/**
+	 * A cached file that is protected from eviction until it is closed.
+	 */
+	public class Entry implements Closeable {
+		private final String name;
+		private boolean isClosed;
+
+		private Entry(String name) {
+			this.name = name;
+		}
+
+		public Path getPath() {
+			return directory.resolve(this.name);
+		}
+
+		@Override
+		public void close() {
+			synchronized (GenomeCache.this) {
+				if (!this.isClosed) {
+					this.isClosed = true;
+					unpin(this.name);
+					// the cache may have grown beyond its limit while all
+					// files were in use
+					evict();
+				}
+			}
+		}
+
+		/**
+		 * Closes the entry and removes the file from the cache, e.g. because
+		 * it turned out to be corrupted. The file is kept as long as it is
+		 * used by other entries.
+		 */
+		public void discard() {
+			synchronized (GenomeCache.this) {
+				if (!this.isClosed) {
+					this.isClosed = true;
+					unpin(this.name);
+					if (!pinned.containsKey(this.name)) {
+						remove(this.name);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Opens the cache in the given directory, which is created if necessary.
+	 * Leftovers of interrupted downloads are removed.
+	 *
+	 * @param directory the cache directory
+	 * @param maxBytes  the maximum total size of the cached files
+	 * @throws IOException
+	 */
+	public GenomeCache(Path directory, long maxBytes) throws IOException {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		Files.createDirectories(directory);
+
+		List<Path> files;
+		try (Stream<Path> stream = Files.list(directory)) {
+			files = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+		}
+		List<Path> cached = new ArrayList<>();
+		for (Path file : files) {
+			final String name = file.getFileName().toString();
+			if (name.endsWith(PART_SUFFIX)) {
+				Files.deleteIfExists(file);
+			} else if (name.endsWith(ACCESS_SUFFIX)) {
+				// access times of files that were deleted
+				if (!Files.exists(directory.resolve(name.substring(0, name.length() - ACCESS_SUFFIX.length())))) {
+					Files.deleteIfExists(file);
+				}
+			} else {
+				cached.add(file);
+			}
+		}
+		Map<Path, FileTime> times = new HashMap<>();
+		for (Path file : cached) {
+			final Path access = getAccessFile(file);
+			times.put(file, Files.getLastModifiedTime(Files.exists(access) ? access : file));
+		}
+		cached.sort(Comparator.comparing(times::get));
+		for (Path file : cached) {
+			long fileSize = Files.size(file);
+			this.entries.put(file.getFileName().toString(), fileSize);
+			this.size += fileSize;
+		}
+	}
+
+	/**
+	 * Checks if the given paths refers to a file that has to be downloaded.
+	 *
+	 * @param path a path or URL
+	 * @return
+	 */
+	public static boolean isRemote(String path) {
+		return path.startsWith("http://") || path.startsWith("https://") || path.startsWith("ftp://");
+	}
+
+	/**
+	 * Downloads the given URL to the target file, replacing it if it exists.
+	 *
+	 * @param url    the URL to download
+	 * @param target the target file
+	 * @throws IOException, e.g. FileNotFoundException if the URL does not
+	 *                      exist
+	 */
+	public static void download(String url, Path target) throws IOException {
+		URLConnection connection = new URL(url).openConnection();
+		connection.setConnectTimeout(TIMEOUT_MILLIS);
+		connection.setReadTimeout(TIMEOUT_MILLIS);
+		try (InputStream in = connection.getInputStream()) {
+			final long size = Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+			if (connection.getContentLengthLong() >= 0 && size != connection.getContentLengthLong()) {
+				throw new IOException(String.format("truncated download of %s: %d of %d bytes", url, size, connection.getContentLengthLong()));
+			}
+		}
+		// keep the time of the remote file (0 if unknown), so a file that is
+		// downloaded again is not taken for a changed file
+		if (connection.getLastModified() > 0) {
+			Files.setLastModifiedTime(target, FileTime.fromMillis(connection.getLastModified()));
+		}
+	}
+
+	/**
+	 * Checks if the file of the given accession and URL is cached.
+	 *
+	 * @param accession the accession of the genome
+	 * @param url       the URL of the genome file
+	 * @return
+	 */
+	public synchronized boolean contains(String accession, String url) {
+		return this.entries.containsKey(getFileName(accession, url));
+	}
+
+	/**
+	 * Returns the cached file of the given accession and URL. If the file is
+	 * not cached yet, it is downloaded first. Concurrent calls for the same
+	 * file download it only once. The returned entry must be closed after
+	 * the file was read.
+	 *
+	 * @param accession the accession of the genome
+	 * @param url       the URL of the genome file
+	 * @return
+	 * @throws IOException if the download failed
+	 */
+	public Entry get(String accession, String url) throws IOException {
+		final String name = getFileName(accession, url);
+		final Lock lock = this.locks.compute(name, (n, l) -> {
+			l = l == null ? new Lock() : l;
+			l.holders++;
+			return l;
+		});
+		try {
+			synchronized (lock) {
+				return this.getLocked(name, url);
+			}
+		} finally {
+			this.locks.computeIfPresent(name, (n, l) -> --l.holders == 0 ? null : l);
+		}
+	}
+
+	/**
+	 * Returns the cached file, downloading it if necessary. The caller holds
+	 * the lock of the file.
+	 */
+	private Entry getLocked(String name, String url) throws IOException {
+		final Path file = this.directory.resolve(name);
+		synchronized (this) {
+			if (this.entries.get(name) != null && Files.exists(file)) {
+				touch(file);
+				return this.pin(name);
+			}
+		}
+
+		logger.fine(String.format("Downloading %s to cache...", url));
+		final Path part = Files.createTempFile(this.directory, name, PART_SUFFIX);
+		try {
+			download(url, part);
+			Files.move(part, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			touch(file);
+		} catch (IOException e) {
+			Files.deleteIfExists(part);
+			throw e;
+		}
+
+		synchronized (this) {
+			final Long previous = this.entries.put(name, Files.size(file));
+			this.size += this.entries.get(name) - (previous == null ? 0 : previous);
+			final Entry entry = this.pin(name);
+			this.evict();
+			return entry;
+		}
+	}
+
+	/**
+	 * Returns the total size of the cached files.
+	 *
+	 * @return
+	 */
+	public synchronized long getSize() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the number of files that are currently fetched, for tests.
+	 */
+	int getLockCount() {
+		return this.locks.size();
+	}
+
+	private Entry pin(String name) {
+		this.pinned.merge(name, 1, Integer::sum);
+		return new Entry(name);
+	}
+
+	private void unpin(String name) {
+		this.pinned.computeIfPresent(name, (n, count) -> count > 1 ? count - 1 : null);
+	}
+
+	/**
+	 * Deletes the least recently used files that are not in use until the
+	 * cache is below its size limit.
+	 */
+	private void evict() {
+		final Iterator<Map.Entry<String, Long>> it = this.entries.entrySet().iterator();
+		while (this.size > this.maxBytes && it.hasNext()) {
+			final Map.Entry<String, Long> entry = it.next();
+			if (this.pinned.containsKey(entry.getKey())) {
+				continue;
+			}
+			if (this.deleteFile(entry.getKey())) {
+				logger.fine(String.format("Evicted %s from cache", entry.getKey()));
+				this.size -= entry.getValue();
+				it.remove();
+			}
+		}
+	}
+
+	private void remove(String name) {
+		final Long fileSize = this.entries.get(name);
+		if (fileSize != null && this.deleteFile(name)) {
+			logger.fine(String.format("Removed %s from cache", name));
+			this.size -= fileSize;
+			this.entries.remove(name);
+		}
+	}
+
+	private boolean deleteFile(String name) {
+		try {
+			final Path file = this.directory.resolve(name);
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(getAccessFile(file));
+			return true;
+		} catch (IOException e) {
+			logger.warning(e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Records the access to a cached file in the modification time of its
+	 * access file, without touching the cached file.
+	 */
+	private static void touch(Path file) throws IOException {
+		final Path access = getAccessFile(file);
+		if (!Files.exists(access)) {
+			try {
+				Files.createFile(access);
+			} catch (FileAlreadyExistsException e) {
+				// created by another process
+			}
+		}
+		Files.setLastModifiedTime(access, FileTime.fromMillis(System.currentTimeMillis()));
+	}
+
+	private static Path getAccessFile(Path file) {
+		return file.resolveSibling(file.getFileName() + ACCESS_SUFFIX);
+	}
+
+	/**
+	 * The name of a cached file, the extension of the URL is kept.
+	 */
+	private static String getFileName(String accession, String url) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			final byte[] hash = digest.digest((accession + "\n" + url).getBytes(StandardCharsets.UTF_8));
+			final StringBuilder name = new StringBuilder();
+			for (byte b : hash) {
+				name.append(String.format("%02x", b));
+			}
+			return name.append(url.endsWith(".gz") ? ".fna.gz" : ".fna").toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM supports SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+}
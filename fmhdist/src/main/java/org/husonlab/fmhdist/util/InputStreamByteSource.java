@@ -0,0 +1,45 @@
+package org.husonlab.fmhdist.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * ByteSource that reads an InputStream into a single reusable buffer.
+ */
+public class InputStreamByteSource implements ByteSource {
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+	private final InputStream in;
+	private final byte[] bytes;
+	private final ByteBuffer buffer;
+
+	public InputStreamByteSource(InputStream in) {
+		this(in, DEFAULT_BUFFER_SIZE);
+	}
+
+	public InputStreamByteSource(InputStream in, int bufferSize) {
+		this.in = in;
+		this.bytes = new byte[bufferSize];
+		this.buffer = ByteBuffer.wrap(this.bytes);
+	}
+
+	@Override
+	public ByteBuffer nextBuffer() throws IOException {
+		int read = this.in.read(this.bytes, 0, this.bytes.length);
+		while (read == 0) {
+			read = this.in.read(this.bytes, 0, this.bytes.length);
+		}
+		if (read < 0) {
+			return null;
+		}
+		this.buffer.clear();
+		this.buffer.limit(read);
+		return this.buffer;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.in.close();
+	}
+}
@@ -0,0 +1,19 @@
+package org.husonlab.fmhdist.util;
+
+import java.io.IOException;
+
+/**
+ * A KMerIterator that is also able to push its k-mers to a KMerVisitor. This
+ * avoids the hasNext()/next()/getReverseComplement() calls per k-mer and the
+ * copies of the k-mer into the arrays returned by the iterator.
+ */
+public interface KMerScanner extends KMerIterator {
+	/**
+	 * Passes all remaining k-mers to the visitor. Afterwards, "hasNext()"
+	 * returns false. The coordinates of the k-mers are not tracked.
+	 *
+	 * @param visitor the sink for the k-mers
+	 * @throws IOException
+	 */
+	public void scan(KMerVisitor visitor) throws IOException;
+}
@@ -0,0 +1,30 @@
+package org.husonlab.fmhdist.util;
+
+/**
+ * Sink for k-mers that are pushed by a KMerScanner. In contrast to the
+ * KMerIterator, the scanner drives the loop and hands out each k-mer in place,
+ * i.e. the arrays are owned by the scanner and are only valid during the
+ * call.
+ */
+public interface KMerVisitor {
+	/**
+	 * Called for each k-mer of a byte based scanner.
+	 *
+	 * @param kmer                    array that contains the k-mer
+	 * @param kmerOffset              start of the k-mer in kmer
+	 * @param reverseComplement       array that contains the reverse
+	 *                                complement of the k-mer
+	 * @param reverseComplementOffset start of the reverse complement in
+	 *                                reverseComplement
+	 */
+	public void visit(byte[] kmer, int kmerOffset, byte[] reverseComplement, int reverseComplementOffset);
+
+	/**
+	 * Called for each k-mer of a scanner that produces 2-bit packed k-mers,
+	 * see PackedKMerIterator.
+	 *
+	 * @param kmer              the 2-bit packed k-mer
+	 * @param reverseComplement the 2-bit packed reverse complement
+	 */
+	public void visitPacked(long kmer, long reverseComplement);
+}
@@ -0,0 +1,168 @@
+package org.husonlab.fmhdist.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive long values based on open addressing with linear probing.
+ * In contrast to a TreeSet&lt;Long&gt;, no object is allocated per value which
+ * makes this suitable to accumulate the hash values of a sketch.
+ * <p>
+ * The value 0 marks empty slots in the table and is thus tracked separately.
+ */
+public class LongHashSet {
+	private static final int DEFAULT_CAPACITY = 1024;
+	// The set is resized once it is half full, this keeps the probe sequences
+	// short.
+	private static final double MAX_LOAD_FACTOR = 0.5;
+
+	private long[] table;
+	private int bits;
+	private int size;
+	private int resizeThreshold;
+	private boolean containsZero;
+	private long peakMemory;
+
+	public LongHashSet() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new set that can hold the given number of values without
+	 * resizing.
+	 *
+	 * @param expectedSize the number of values that are expected to be added
+	 */
+	public LongHashSet(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(2, (int) Math.ceil(expectedSize / MAX_LOAD_FACTOR)) - 1) << 1;
+		this.allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		this.table = new long[capacity];
+		this.bits = Integer.numberOfTrailingZeros(capacity);
+		this.resizeThreshold = (int) (capacity * MAX_LOAD_FACTOR);
+		this.peakMemory = Math.max(this.peakMemory, (long) capacity * Long.BYTES);
+	}
+
+	private int slot(long value) {
+		// Fibonacci hashing: the hash values in a sketch are all below the
+		// threshold, i.e. their upper bits are almost constant. The
+		// multiplication spreads all bits into the upper bits that are used as
+		// slot index.
+		return (int) ((value * 0x9E3779B97F4A7C15L) >>> (64 - this.bits));
+	}
+
+	/**
+	 * Adds the value to the set.
+	 *
+	 * @param value the value to add
+	 * @return true if the value was not part of the set before
+	 */
+	public boolean add(long value) {
+		if (value == 0) {
+			if (this.containsZero) {
+				return false;
+			}
+			this.containsZero = true;
+			this.size++;
+			return true;
+		}
+
+		final int mask = this.table.length - 1;
+		int pos = this.slot(value);
+		long current;
+		while ((current = this.table[pos]) != 0) {
+			if (current == value) {
+				return false;
+			}
+			pos = (pos + 1) & mask;
+		}
+		this.table[pos] = value;
+		if (++this.size > this.resizeThreshold) {
+			this.resize();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the value is part of the set.
+	 *
+	 * @param value the value to look up
+	 * @return
+	 */
+	public boolean contains(long value) {
+		if (value == 0) {
+			return this.containsZero;
+		}
+		final int mask = this.table.length - 1;
+		int pos = this.slot(value);
+		long current;
+		while ((current = this.table[pos]) != 0) {
+			if (current == value) {
+				return true;
+			}
+			pos = (pos + 1) & mask;
+		}
+		return false;
+	}
+
+	private void resize() {
+		final long[] old = this.table;
+		final long oldMemory = (long) old.length * Long.BYTES;
+		this.allocate(old.length << 1);
+		// during rehashing, both tables are alive
+		this.peakMemory = Math.max(this.peakMemory, oldMemory + (long) this.table.length * Long.BYTES);
+
+		final int mask = this.table.length - 1;
+		for (long value : old) {
+			if (value != 0) {
+				int pos = this.slot(value);
+				while (this.table[pos] != 0) {
+					pos = (pos + 1) & mask;
+				}
+				this.table[pos] = value;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of values in the set.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns all values of the set as a new array in ascending order.
+	 *
+	 * @return
+	 */
+	public long[] toSortedArray() {
+		final long[] result = new long[this.size];
+		int pos = 0;
+		if (this.containsZero) {
+			result[pos++] = 0;
+		}
+		for (long value : this.table) {
+			if (value != 0) {
+				result[pos++] = value;
+			}
+		}
+		Arrays.sort(result);
+		this.peakMemory = Math.max(this.peakMemory, (long) this.table.length * Long.BYTES + (long) result.length * Long.BYTES);
+		return result;
+	}
+
+	/**
+	 * Returns the maximum number of bytes that were occupied by the set at any
+	 * point in time, including the temporary memory for resizing and for
+	 * toSortedArray().
+	 *
+	 * @return
+	 */
+	public long getPeakMemory() {
+		return this.peakMemory;
+	}
+}
@@ -0,0 +1,133 @@
+package org.husonlab.fmhdist.util;
+
+/**
+ * A map from primitive long keys to primitive int values based on open
+ * addressing with linear probing, see LongHashSet. No object is allocated per
+ * entry, which makes this suitable for maps with millions of hash values as
+ * keys.
+ * <p>
+ * The key 0 marks empty slots in the table and is thus tracked separately.
+ */
+public class LongIntHashMap {
+	private static final int DEFAULT_CAPACITY = 1024;
+	private static final double MAX_LOAD_FACTOR = 0.5;
+
+	private long[] keys;
+	private int[] values;
+	private int bits;
+	private int size;
+	private int resizeThreshold;
+	private boolean containsZero;
+	private int zeroValue;
+
+	public LongIntHashMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new map that can hold the given number of entries without
+	 * resizing.
+	 *
+	 * @param expectedSize the number of entries that are expected to be added
+	 */
+	public LongIntHashMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(2, (int) Math.ceil(expectedSize / MAX_LOAD_FACTOR)) - 1) << 1;
+		this.allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		this.values = new int[capacity];
+		this.bits = Integer.numberOfTrailingZeros(capacity);
+		this.resizeThreshold = (int) (capacity * MAX_LOAD_FACTOR);
+	}
+
+	private int slot(long key) {
+		// Fibonacci hashing, see LongHashSet
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - this.bits));
+	}
+
+	/**
+	 * Associates the key with the value. An existing value is replaced.
+	 *
+	 * @param key   the key
+	 * @param value the value
+	 */
+	public void put(long key, int value) {
+		if (key == 0) {
+			if (!this.containsZero) {
+				this.containsZero = true;
+				this.size++;
+			}
+			this.zeroValue = value;
+			return;
+		}
+
+		final int mask = this.keys.length - 1;
+		int pos = this.slot(key);
+		long current;
+		while ((current = this.keys[pos]) != 0) {
+			if (current == key) {
+				this.values[pos] = value;
+				return;
+			}
+			pos = (pos + 1) & mask;
+		}
+		this.keys[pos] = key;
+		this.values[pos] = value;
+		if (++this.size > this.resizeThreshold) {
+			this.resize();
+		}
+	}
+
+	/**
+	 * Returns the value of the key.
+	 *
+	 * @param key          the key to look up
+	 * @param defaultValue the value to return if the key is not part of the
+	 *                     map
+	 * @return
+	 */
+	public int get(long key, int defaultValue) {
+		if (key == 0) {
+			return this.containsZero ? this.zeroValue : defaultValue;
+		}
+		final int mask = this.keys.length - 1;
+		int pos = this.slot(key);
+		long current;
+		while ((current = this.keys[pos]) != 0) {
+			if (current == key) {
+				return this.values[pos];
+			}
+			pos = (pos + 1) & mask;
+		}
+		return defaultValue;
+	}
+
+	private void resize() {
+		final long[] oldKeys = this.keys;
+		final int[] oldValues = this.values;
+		this.allocate(oldKeys.length << 1);
+
+		final int mask = this.keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0) {
+				int pos = this.slot(oldKeys[i]);
+				while (this.keys[pos] != 0) {
+					pos = (pos + 1) & mask;
+				}
+				this.keys[pos] = oldKeys[i];
+				this.values[pos] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of entries in the map.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return this.size;
+	}
+}
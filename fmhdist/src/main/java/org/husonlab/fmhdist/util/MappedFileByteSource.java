@@ -0,0 +1,77 @@
+package org.husonlab.fmhdist.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * ByteSource that maps a byte range of a local file into memory. Since a
+ * single mapping is limited to 2 GB, the range is mapped in consecutive
+ * segments of at most SEGMENT_SIZE bytes. Only one segment is handed out at a
+ * time, there is no copying and no charset decoding involved.
+ */
+public class MappedFileByteSource implements ByteSource {
+	public static final long SEGMENT_SIZE = 1L << 30;
+
+	private final FileChannel channel;
+	private final long end;
+	private final long segmentSize;
+	private long position;
+	private ByteBuffer prefix;
+
+	/**
+	 * Maps the complete file.
+	 *
+	 * @param fileName path to a local file
+	 * @throws IOException
+	 */
+	public MappedFileByteSource(String fileName) throws IOException {
+		this(fileName, 0, -1, null);
+	}
+
+	/**
+	 * Maps the given byte range of the file.
+	 *
+	 * @param fileName path to a local file
+	 * @param start    the first byte of the range
+	 * @param end      the first byte after the range, -1 for the end of the
+	 *                 file
+	 * @param prefix   optional bytes that are handed out before the content of
+	 *                 the range, e.g. a synthetic FASTA header. May be null.
+	 * @throws IOException
+	 */
+	public MappedFileByteSource(String fileName, long start, long end, byte[] prefix) throws IOException {
+		this(fileName, start, end, prefix, SEGMENT_SIZE);
+	}
+
+	MappedFileByteSource(String fileName, long start, long end, byte[] prefix, long segmentSize) throws IOException {
+		this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		this.end = end < 0 ? this.channel.size() : Math.min(end, this.channel.size());
+		this.position = start;
+		this.segmentSize = segmentSize;
+		this.prefix = prefix == null || prefix.length == 0 ? null : ByteBuffer.wrap(prefix);
+	}
+
+	@Override
+	public ByteBuffer nextBuffer() throws IOException {
+		if (this.prefix != null) {
+			ByteBuffer result = this.prefix;
+			this.prefix = null;
+			return result;
+		}
+		if (this.position >= this.end) {
+			return null;
+		}
+		long length = Math.min(this.segmentSize, this.end - this.position);
+		ByteBuffer segment = this.channel.map(FileChannel.MapMode.READ_ONLY, this.position, length);
+		this.position += length;
+		return segment;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+	}
+}
@@ -0,0 +1,384 @@
+package org.husonlab.fmhdist.util;
+
+import jloda.util.FileUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Iterator that produces k-mers of a fixed size k <= 32 for a given FASTA
+ * file. Instead of byte arrays, the k-mer and its reverse complement are kept
+ * as 2-bit packed longs (A=0, C=1, G=2, T=3) that are rolled forward with a
+ * single shift per base. As the encoding preserves the lexicographical order,
+ * the canonical k-mer can be selected with a single (unsigned) integer
+ * comparison, see nextCanonical().
+ * <p>
+ * Characters that cannot be encoded using 2 bits (N, IUPAC codes, ...) are
+ * always treated as ambiguous, i.e. k-mers containing them are skipped. K-mers
+ * will never span multiple sequences in the FASTA.
+ * <p>
+ * The byte[] based methods of the KMerIterator interface are supported for
+ * compatibility, but they decode the packed k-mer on each call. The fastest
+ * way to consume the k-mers is scan(), which pushes them to
+ * KMerVisitor.visitPacked().
+ */
+public class PackedKMerIterator implements KMerScanner {
+	public static final int MAX_K = 32;
+
+	// Non-negative values are the 2-bit codes of the bases
+	private static final byte AMBIGUOUS = -1;
+	private static final byte WHITESPACE = -2;
+	private static final byte NEWLINE = -3;
+	private static final byte HEADER = -4;
+
+	private static final byte[] codeTable = new byte[256];
+
+	static {
+		Arrays.fill(codeTable, AMBIGUOUS);
+		codeTable['A'] = 0;
+		codeTable['C'] = 1;
+		codeTable['G'] = 2;
+		codeTable['T'] = 3;
+		codeTable['a'] = 0;
+		codeTable['c'] = 1;
+		codeTable['g'] = 2;
+		codeTable['t'] = 3;
+		codeTable['\t'] = WHITESPACE;
+		codeTable['\r'] = WHITESPACE;
+		codeTable[' '] = WHITESPACE;
+		codeTable['\n'] = NEWLINE;
+		codeTable['>'] = HEADER;
+	}
+
+	private static final byte[] decodeTable = new byte[]{'A', 'C', 'G', 'T'};
+
+	private final int k;
+	private final long mask;
+	private final int shift;
+
+	private final ByteSource source;
+	private ByteBuffer buffer;
+	private int bufferPos;
+	private int bufferLimit;
+	private boolean isLineStart;
+	private boolean isInHeader;
+
+	// rolling state of the scanner
+	private long forward;
+	private long reverse;
+	private int validBases;
+	private int basesInRecord;
+	private int recordIndexInFile = -1;
+	private int kmersInRecord;
+	private int kmersInFile;
+	private int positionsBeforeRecord;
+
+	// the k-mer that will be returned by the next call to next()
+	private boolean hasPending;
+	private long pendingForward;
+	private long pendingReverse;
+	private int pendingRecordIndexInFile;
+	private int pendingSequenceIndexInRecord;
+	private int pendingSequenceIndexInFile;
+	private int pendingPositionInRecord;
+	private int pendingPositionsBeforeRecord;
+
+	// the k-mer that was returned by the last call to next()
+	private long currentForward;
+	private long currentReverse;
+	private int currentRecordIndexInFile;
+	private int currentSequenceIndexInRecord;
+	private int currentSequenceIndexInFile;
+	private int currentPositionInRecord;
+	private int currentPositionsBeforeRecord;
+
+	private final byte[] kmer;
+	private final byte[] kmerReverseComplement;
+
+	/**
+	 * Creates a new PackedKMerIterator that decomposes the content of the
+	 * given source into its k-mers.
+	 *
+	 * @param k      The k-mer size to apply, at most 32
+	 * @param source The source from which the FASTA file should be read
+	 * @throws IOException
+	 */
+	public PackedKMerIterator(int k, ByteSource source) throws IOException {
+		if (k < 1 || k > MAX_K) {
+			throw new IllegalArgumentException(String.format("packed k-mers require 1 <= k <= %d", MAX_K));
+		}
+		this.k = k;
+		this.mask = k == MAX_K ? -1L : (1L << (2 * k)) - 1;
+		this.shift = 2 * (k - 1);
+		this.source = source;
+		this.isLineStart = true;
+		this.kmer = new byte[k];
+		this.kmerReverseComplement = new byte[k];
+		this.advance();
+	}
+
+	/**
+	 * Creates a new PackedKMerIterator that decomposes the given stream into
+	 * its k-mers.
+	 *
+	 * @param k  The k-mer size to apply, at most 32
+	 * @param in The stream from which the FASTA file should be read
+	 * @throws IOException
+	 */
+	public PackedKMerIterator(int k, InputStream in) throws IOException {
+		this(k, new InputStreamByteSource(in));
+	}
+
+	/**
+	 * Creates a new PackedKMerIterator that decomposes underlying file into its
+	 * k-mers.
+	 *
+	 * @param k        The k-mer size to apply, at most 32
+	 * @param fileName Path to the Fasta file to read. This could also be a URL
+	 *                 or a path to a zip/gzip file.
+	 * @throws IOException
+	 */
+	public PackedKMerIterator(int k, String fileName) throws IOException {
+		this(k, FileUtils.getInputStreamPossiblyZIPorGZIP(fileName));
+	}
+
+	private boolean refill() throws IOException {
+		this.buffer = this.source.nextBuffer();
+		if (this.buffer == null) {
+			this.bufferPos = 0;
+			this.bufferLimit = 0;
+			return false;
+		}
+		this.bufferPos = this.buffer.position();
+		this.bufferLimit = this.buffer.limit();
+		return true;
+	}
+
+	private void handleSequenceStart() {
+		this.positionsBeforeRecord += Math.max(0, this.basesInRecord - this.k + 1);
+		this.recordIndexInFile++;
+		this.basesInRecord = 0;
+		this.kmersInRecord = 0;
+		this.validBases = 0;
+		this.isInHeader = true;
+	}
+
+	/**
+	 * Scans the input until the next valid k-mer is complete and stores it as
+	 * the pending k-mer.
+	 *
+	 * @throws IOException
+	 */
+	private void advance() throws IOException {
+		while (true) {
+			final ByteBuffer buf = this.buffer;
+			int pos = this.bufferPos;
+			final int limit = this.bufferLimit;
+
+			if (this.isInHeader) {
+				while (pos < limit && buf.get(pos) != '\n') {
+					pos++;
+				}
+				if (pos < limit) {
+					this.isInHeader = false;
+					this.isLineStart = true;
+					pos++;
+				}
+			}
+
+			while (pos < limit) {
+				final byte code = codeTable[buf.get(pos++) & 0xFF];
+				if (code >= 0) {
+					this.isLineStart = false;
+					this.forward = ((this.forward << 2) | code) & this.mask;
+					this.reverse = (this.reverse >>> 2) | ((long) (3 - code) << this.shift);
+					this.basesInRecord++;
+					if (++this.validBases >= this.k) {
+						this.bufferPos = pos;
+						this.hasPending = true;
+						this.pendingForward = this.forward;
+						this.pendingReverse = this.reverse;
+						this.pendingRecordIndexInFile = this.recordIndexInFile;
+						this.pendingSequenceIndexInRecord = this.kmersInRecord++;
+						this.pendingSequenceIndexInFile = this.kmersInFile++;
+						this.pendingPositionInRecord = this.basesInRecord - this.k;
+						this.pendingPositionsBeforeRecord = this.positionsBeforeRecord;
+						return;
+					}
+				} else if (code == NEWLINE) {
+					this.isLineStart = true;
+				} else if (code == HEADER && this.isLineStart) {
+					this.handleSequenceStart();
+					break;
+				} else if (code != WHITESPACE) {
+					this.isLineStart = false;
+					this.validBases = 0;
+					this.basesInRecord++;
+				}
+			}
+			this.bufferPos = pos;
+
+			if (pos >= limit && !this.refill()) {
+				this.hasPending = false;
+				return;
+			}
+		}
+	}
+
+	private void decode(long packed, byte[] target) {
+		for (int i = 0; i < this.k; i++) {
+			target[i] = decodeTable[(int) (packed >>> (2 * (this.k - i - 1))) & 3];
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return this.hasPending;
+	}
+
+	/**
+	 * Moves to the next k-mer and returns its canonical form, i.e. the smaller
+	 * of the packed k-mer and its packed reverse complement. Only call this if
+	 * "hasNext()" returns true.
+	 *
+	 * @return the canonical 2-bit packed k-mer
+	 */
+	public long nextCanonical() {
+		this.currentForward = this.pendingForward;
+		this.currentReverse = this.pendingReverse;
+		this.currentRecordIndexInFile = this.pendingRecordIndexInFile;
+		this.currentSequenceIndexInRecord = this.pendingSequenceIndexInRecord;
+		this.currentSequenceIndexInFile = this.pendingSequenceIndexInFile;
+		this.currentPositionInRecord = this.pendingPositionInRecord;
+		this.currentPositionsBeforeRecord = this.pendingPositionsBeforeRecord;
+		try {
+			this.advance();
+		} catch (IOException e) {
+			this.hasPending = false;
+		}
+		return Long.compareUnsigned(this.currentForward, this.currentReverse) <= 0 ? this.currentForward : this.currentReverse;
+	}
+
+	/**
+	 * Returns the 2-bit packed k-mer that belongs to the last call to
+	 * "next()" or "nextCanonical()".
+	 *
+	 * @return
+	 */
+	public long getPackedKMer() {
+		return this.currentForward;
+	}
+
+	/**
+	 * Returns the 2-bit packed reverse complement of the k-mer that belongs to
+	 * the last call to "next()" or "nextCanonical()".
+	 *
+	 * @return
+	 */
+	public long getPackedReverseComplement() {
+		return this.currentReverse;
+	}
+
+	@Override
+	public byte[] next() {
+		this.nextCanonical();
+		this.decode(this.currentForward, this.kmer);
+		return this.kmer;
+	}
+
+	@Override
+	public void scan(KMerVisitor visitor) throws IOException {
+		if (!this.hasPending) {
+			return;
+		}
+		final int k = this.k;
+		final long mask = this.mask;
+		final int shift = this.shift;
+		long forward = this.forward;
+		long reverse = this.reverse;
+		int validBases = this.validBases;
+		boolean isLineStart = this.isLineStart;
+		boolean isInHeader = this.isInHeader;
+		this.hasPending = false;
+		visitor.visitPacked(this.pendingForward, this.pendingReverse);
+
+		// Same state machine as advance(), but without the bookkeeping of
+		// pending k-mers and coordinates
+		ByteBuffer buf = this.buffer;
+		int pos = this.bufferPos;
+		int limit = this.bufferLimit;
+		while (true) {
+			if (isInHeader) {
+				while (pos < limit && buf.get(pos) != '\n') {
+					pos++;
+				}
+				if (pos < limit) {
+					isInHeader = false;
+					isLineStart = true;
+					pos++;
+				}
+			}
+
+			while (pos < limit) {
+				final byte code = codeTable[buf.get(pos++) & 0xFF];
+				if (code >= 0) {
+					isLineStart = false;
+					forward = ((forward << 2) | code) & mask;
+					reverse = (reverse >>> 2) | ((long) (3 - code) << shift);
+					if (++validBases >= k) {
+						visitor.visitPacked(forward, reverse);
+					}
+				} else if (code == NEWLINE) {
+					isLineStart = true;
+				} else if (code == HEADER && isLineStart) {
+					validBases = 0;
+					isInHeader = true;
+					break;
+				} else if (code != WHITESPACE) {
+					isLineStart = false;
+					validBases = 0;
+				}
+			}
+
+			if (pos >= limit) {
+				if (!this.refill()) {
+					return;
+				}
+				buf = this.buffer;
+				pos = this.bufferPos;
+				limit = this.bufferLimit;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.source.close();
+	}
+
+	@Override
+	public int getK() {
+		return this.k;
+	}
+
+	@Override
+	public byte[] getReverseComplement() {
+		this.decode(this.currentReverse, this.kmerReverseComplement);
+		return this.kmerReverseComplement;
+	}
+
+	@Override
+	public KMerCoordinates getCoordinates() {
+		this.decode(this.currentForward, this.kmer);
+		return new KMerCoordinates(
+				this.currentRecordIndexInFile,
+				this.currentSequenceIndexInFile,
+				this.currentSequenceIndexInRecord,
+				this.currentPositionsBeforeRecord + this.currentPositionInRecord,
+				this.currentPositionInRecord,
+				this.kmer
+		);
+	}
+}
@@ -0,0 +1,446 @@
+package org.husonlab.fmhdist.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * ByteSource that inflates a local gzip file consisting of multiple members
+ * (e.g. BGZF) on a pool of threads. A producer thread splits the file into
+ * members and submits them to the pool, the inflated members are handed out
+ * in the original order.
+ * <p>
+ * For BGZF, the size of each member is given in its header. For other
+ * multi-member files, the members are found by searching for gzip headers.
+ * Such a split is speculative: it is only accepted if the member inflates to
+ * the end of its deflate stream right before its trailer. An accepted member
+ * whose CRC32 or size do not match the trailer is corrupt and reading fails
+ * with an IOException. If a split is not accepted or a member is too large,
+ * the remaining file is inflated sequentially on a prefetch thread. Thus, the
+ * output is always the same as the one of a GZIPInputStream.
+ */
+public class ParallelGzipByteSource implements ByteSource {
+	/**
+	 * Members whose compressed size exceeds this are not inflated in parallel.
+	 */
+	public static final int MAX_MEMBER_SIZE = 8 << 20;
+
+	// gzip header (10 bytes) + empty deflate block (2 bytes) + trailer (8 bytes)
+	private static final int MIN_MEMBER_SIZE = 20;
+	private static final int HEADER_SIZE = 10;
+	private static final int BGZF_HEADER_SIZE = 18;
+
+	private static final int FLAG_HCRC = 2;
+	private static final int FLAG_EXTRA = 4;
+	private static final int FLAG_NAME = 8;
+	private static final int FLAG_COMMENT = 16;
+
+	private static Logger logger = Logger.getLogger(ParallelGzipByteSource.class.getName());
+
+	/**
+	 * Result of inflating a single member. If the member could not be
+	 * inflated, the content is null and the remaining file starting at offset
+	 * needs to be inflated sequentially.
+	 */
+	private static class Member {
+		final ByteBuffer content;
+		final long offset;
+		final boolean isEnd;
+
+		Member(ByteBuffer content, long offset, boolean isEnd) {
+			this.content = content;
+			this.offset = offset;
+			this.isEnd = isEnd;
+		}
+	}
+
+	private final String fileName;
+	private final FileChannel channel;
+	private final long size;
+	private final boolean isBgzf;
+	private final ExecutorService pool;
+	private final BlockingQueue<Future<Member>> members;
+	private final Thread producer;
+	private volatile boolean isClosed;
+
+	// sliding window over the compressed file, used by the producer
+	private final byte[] window = new byte[MAX_MEMBER_SIZE];
+	private long windowOffset;
+	private int windowLength;
+
+	private ByteSource fallback;
+	private boolean isEOF;
+
+	/**
+	 * Opens the given local gzip file.
+	 *
+	 * @param fileName path to a local gzip file
+	 * @param threads  the number of threads that inflate members
+	 * @throws IOException
+	 */
+	public ParallelGzipByteSource(String fileName, int threads) throws IOException {
+		this.fileName = fileName;
+		this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		this.size = this.channel.size();
+		this.fill(0, BGZF_HEADER_SIZE);
+		this.isBgzf = getBgzfBlockSize(this.window, 0, this.windowLength) > 0;
+
+		final int poolSize = Math.max(1, threads);
+		this.pool = Executors.newFixedThreadPool(poolSize, r -> {
+			Thread thread = new Thread(r, "inflate");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// limits the number of members that are kept in memory
+		this.members = new ArrayBlockingQueue<>(2 * poolSize + 2);
+		this.producer = new Thread(this::produce, "inflate-producer");
+		this.producer.setDaemon(true);
+		this.producer.start();
+	}
+
+	/**
+	 * Returns true if the given path denotes a local file that starts with the
+	 * gzip magic bytes.
+	 *
+	 * @param fileName the path to check
+	 * @return
+	 */
+	public static boolean isLocalGzipFile(String fileName) {
+		File file = new File(fileName);
+		if (!file.isFile()) {
+			return false;
+		}
+		try (FileInputStream in = new FileInputStream(file)) {
+			return in.read() == 0x1f && in.read() == 0x8b;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns true if the file is in the blocked gzip format (BGZF).
+	 *
+	 * @return
+	 */
+	public boolean isBgzf() {
+		return this.isBgzf;
+	}
+
+	/**
+	 * Makes sure that the window contains at least the given number of bytes
+	 * starting at the given position (unless the end of the file is reached).
+	 *
+	 * @return the number of available bytes starting at position
+	 */
+	private int fill(long position, int needed) throws IOException {
+		int available = (int) (this.windowOffset + this.windowLength - position);
+		if (position < this.windowOffset || available < 0) {
+			this.windowOffset = position;
+			this.windowLength = 0;
+			available = 0;
+		}
+		if (available >= needed || this.windowOffset + this.windowLength >= this.size) {
+			return available;
+		}
+		// move the remaining bytes to the beginning of the window and read
+		// as much as fits
+		int start = (int) (position - this.windowOffset);
+		System.arraycopy(this.window, start, this.window, 0, available);
+		this.windowOffset = position;
+		this.windowLength = available;
+		ByteBuffer target = ByteBuffer.wrap(this.window, available, this.window.length - available);
+		while (target.hasRemaining()) {
+			int read = this.channel.read(target, this.windowOffset + target.position());
+			if (read < 0) {
+				break;
+			}
+		}
+		this.windowLength = target.position();
+		return this.windowLength;
+	}
+
+	/**
+	 * Returns the position of the next member after the one that starts at
+	 * the given position, the file size for the last member, or -1 if the
+	 * member can't be inflated in parallel.
+	 */
+	private long findMemberEnd(long position) throws IOException {
+		if (this.isBgzf) {
+			int available = this.fill(position, BGZF_HEADER_SIZE);
+			int blockSize = getBgzfBlockSize(this.window, (int) (position - this.windowOffset), available);
+			if (blockSize <= 0 || this.fill(position, blockSize) < blockSize) {
+				return -1;
+			}
+			return position + blockSize;
+		}
+
+		int scanFrom = MIN_MEMBER_SIZE;
+		while (true) {
+			int available = this.fill(position, scanFrom + HEADER_SIZE);
+			int start = (int) (position - this.windowOffset);
+			for (int i = scanFrom; i + HEADER_SIZE <= available; i++) {
+				if (isMemberHeader(this.window, start + i)) {
+					return position + i;
+				}
+			}
+			if (position + available >= this.size) {
+				return this.size;
+			}
+			if (available >= MAX_MEMBER_SIZE) {
+				return -1;
+			}
+			scanFrom = Math.max(scanFrom, available - HEADER_SIZE + 1);
+			// request more bytes than available to trigger a refill
+			if (this.fill(position, available + 1) <= available) {
+				return this.size;
+			}
+		}
+	}
+
+	private void produce() {
+		long position = 0;
+		try {
+			while (!this.isClosed && position < this.size) {
+				long end = this.findMemberEnd(position);
+				if (end < 0) {
+					this.put(CompletableFuture.completedFuture(new Member(null, position, false)));
+					return;
+				}
+				final int start = (int) (position - this.windowOffset);
+				final byte[] data = Arrays.copyOfRange(this.window, start, start + (int) (end - position));
+				final long offset = position;
+				Future<Member> member;
+				try {
+					member = this.pool.submit(() -> inflate(data, offset));
+				} catch (RejectedExecutionException e) {
+					// the source was closed in the meantime
+					return;
+				}
+				this.put(member);
+				position = end;
+			}
+			this.put(CompletableFuture.completedFuture(new Member(null, this.size, true)));
+		} catch (IOException e) {
+			this.put(CompletableFuture.failedFuture(e));
+		}
+	}
+
+	private void put(Future<Member> member) {
+		try {
+			while (!this.isClosed && !this.members.offer(member, 100, TimeUnit.MILLISECONDS)) {
+				// wait for the consumer
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Inflates a single member. If the member is not complete (i.e. it was
+	 * split at a wrong position), the returned member has no content. The
+	 * output buffer grows while inflating, so the size in the trailer (which
+	 * is garbage for a truncated file) does not determine the allocation.
+	 *
+	 * @throws IOException if the deflate stream ends right before the trailer
+	 *                     but the CRC32 or size in the trailer do not match
+	 *                     the inflated content
+	 */
+	private static Member inflate(byte[] data, long offset) throws IOException {
+		final Member failed = new Member(null, offset, false);
+		final int headerSize = getHeaderSize(data);
+		if (headerSize < 0 || data.length - headerSize < 8) {
+			return failed;
+		}
+		final int crc = readIntLittleEndian(data, data.length - 8);
+		final long inflatedSize = readIntLittleEndian(data, data.length - 4) & 0xFFFFFFFFL;
+		// deflate can't compress by more than a factor of 1032
+		final long maxSize = Math.min(1032L * data.length, Integer.MAX_VALUE - 8);
+
+		byte[] out = new byte[(int) Math.min(maxSize, Math.max(1 << 16, 4L * data.length))];
+		final Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(data, headerSize, data.length - headerSize - 8);
+			int length = 0;
+			while (!inflater.finished()) {
+				if (length == out.length) {
+					if (out.length >= maxSize) {
+						return failed;
+					}
+					out = Arrays.copyOf(out, (int) Math.min(maxSize, 2L * out.length));
+				}
+				int inflated = inflater.inflate(out, length, out.length - length);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				length += inflated;
+			}
+			if (!inflater.finished() || inflater.getRemaining() != 0) {
+				return failed;
+			}
+
+			// the deflate stream ends right before the trailer, so the
+			// member was split correctly and the trailer belongs to it
+			if (length != inflatedSize) {
+				throw new IOException(String.format("corrupt gzip member at offset %d: size %d does not match trailer (%d)", offset, length, inflatedSize));
+			}
+			CRC32 checksum = new CRC32();
+			checksum.update(out, 0, length);
+			if ((int) checksum.getValue() != crc) {
+				throw new IOException(String.format("corrupt gzip member at offset %d: CRC32 does not match trailer", offset));
+			}
+			return new Member(ByteBuffer.wrap(out, 0, length), offset, false);
+		} catch (DataFormatException e) {
+			return failed;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	@Override
+	public ByteBuffer nextBuffer() throws IOException {
+		while (true) {
+			if (this.fallback != null) {
+				return this.fallback.nextBuffer();
+			}
+			if (this.isEOF) {
+				return null;
+			}
+			Member member;
+			try {
+				member = this.members.take().get();
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted while waiting for input", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+			if (member.isEnd) {
+				this.isEOF = true;
+				return null;
+			}
+			if (member.content == null) {
+				logger.fine(String.format("Inflating %s sequentially from offset %d", this.fileName, member.offset));
+				this.stopProducer();
+				FileInputStream in = new FileInputStream(this.fileName);
+				in.getChannel().position(member.offset);
+				this.fallback = new PrefetchByteSource(new GZIPInputStream(in, 1 << 16));
+				continue;
+			}
+			if (member.content.hasRemaining()) {
+				return member.content;
+			}
+		}
+	}
+
+	private void stopProducer() {
+		this.isClosed = true;
+		this.members.clear();
+		this.pool.shutdownNow();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.stopProducer();
+		this.channel.close();
+		if (this.fallback != null) {
+			this.fallback.close();
+		}
+	}
+
+	/**
+	 * Returns the size of the BGZF block starting at the given offset, or -1
+	 * if there is no BGZF header.
+	 */
+	static int getBgzfBlockSize(byte[] data, int offset, int available) {
+		if (available < BGZF_HEADER_SIZE || !isMemberHeader(data, offset)
+				|| (data[offset + 3] & FLAG_EXTRA) == 0) {
+			return -1;
+		}
+		int extraLength = readShortLittleEndian(data, offset + 10);
+		if (extraLength < 6 || data[offset + 12] != 'B' || data[offset + 13] != 'C'
+				|| readShortLittleEndian(data, offset + 14) != 2) {
+			return -1;
+		}
+		return readShortLittleEndian(data, offset + 16) + 1;
+	}
+
+	/**
+	 * Returns true if the bytes at the given offset look like the start of a
+	 * gzip member.
+	 */
+	static boolean isMemberHeader(byte[] data, int offset) {
+		if ((data[offset] & 0xFF) != 0x1f || (data[offset + 1] & 0xFF) != 0x8b || data[offset + 2] != 8) {
+			return false;
+		}
+		// reserved flags must be zero
+		if ((data[offset + 3] & 0xE0) != 0) {
+			return false;
+		}
+		int extraFlags = data[offset + 8] & 0xFF;
+		int os = data[offset + 9] & 0xFF;
+		return (extraFlags == 0 || extraFlags == 2 || extraFlags == 4) && (os <= 13 || os == 255);
+	}
+
+	/**
+	 * Returns the size of the gzip header at the beginning of the member or -1
+	 * if the header is invalid.
+	 */
+	private static int getHeaderSize(byte[] data) {
+		if (data.length < HEADER_SIZE || !isMemberHeader(data, 0)) {
+			return -1;
+		}
+		int flags = data[3];
+		int pos = HEADER_SIZE;
+		if ((flags & FLAG_EXTRA) != 0) {
+			if (pos + 2 > data.length) {
+				return -1;
+			}
+			pos += 2 + readShortLittleEndian(data, pos);
+		}
+		if ((flags & FLAG_NAME) != 0) {
+			while (pos < data.length && data[pos] != 0) {
+				pos++;
+			}
+			pos++;
+		}
+		if ((flags & FLAG_COMMENT) != 0) {
+			while (pos < data.length && data[pos] != 0) {
+				pos++;
+			}
+			pos++;
+		}
+		if ((flags & FLAG_HCRC) != 0) {
+			pos += 2;
+		}
+		return pos <= data.length ? pos : -1;
+	}
+
+	private static int readShortLittleEndian(byte[] data, int offset) {
+		return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+	}
+
+	private static int readIntLittleEndian(byte[] data, int offset) {
+		return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8 | (data[offset + 2] & 0xFF) << 16 | (data[offset + 3] & 0xFF) << 24;
+	}
+}
@@ -0,0 +1,123 @@
+package org.husonlab.fmhdist.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * ByteSource that reads an InputStream on a separate thread. This way, the
+ * work done by the stream (e.g. inflating a gzip file or reading from the
+ * network) overlaps with the processing of the previous buffer. A fixed
+ * number of buffers is allocated once and recycled.
+ */
+public class PrefetchByteSource implements ByteSource {
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+	public static final int DEFAULT_BUFFER_COUNT = 4;
+
+	private static class Chunk {
+		final byte[] data;
+		final ByteBuffer buffer;
+		final IOException error;
+
+		Chunk(int size) {
+			this.data = new byte[size];
+			this.buffer = ByteBuffer.wrap(this.data);
+			this.error = null;
+		}
+
+		Chunk(IOException error) {
+			this.data = null;
+			this.buffer = null;
+			this.error = error;
+		}
+	}
+
+	private static final Chunk EOF = new Chunk(0);
+
+	private final InputStream in;
+	private final BlockingQueue<Chunk> free;
+	private final BlockingQueue<Chunk> filled;
+	private final Thread reader;
+	private Chunk current;
+	private boolean isEOF;
+	private volatile boolean isClosed;
+
+	public PrefetchByteSource(InputStream in) {
+		this(in, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+	}
+
+	public PrefetchByteSource(InputStream in, int bufferSize, int bufferCount) {
+		this.in = in;
+		this.free = new ArrayBlockingQueue<>(bufferCount);
+		// one additional slot for the EOF or error marker
+		this.filled = new ArrayBlockingQueue<>(bufferCount + 1);
+		for (int i = 0; i < bufferCount; i++) {
+			this.free.add(new Chunk(bufferSize));
+		}
+		this.reader = new Thread(this::read, "prefetch");
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+
+	private void read() {
+		try {
+			while (!this.isClosed) {
+				Chunk chunk = this.free.take();
+				int length = 0;
+				int read = 0;
+				while (length < chunk.data.length && (read = this.in.read(chunk.data, length, chunk.data.length - length)) >= 0) {
+					length += read;
+				}
+				if (length > 0) {
+					chunk.buffer.clear();
+					chunk.buffer.limit(length);
+					this.filled.put(chunk);
+				}
+				if (read < 0) {
+					this.filled.put(EOF);
+					return;
+				}
+			}
+		} catch (IOException e) {
+			this.filled.offer(new Chunk(e));
+		} catch (InterruptedException e) {
+			// closed by the consumer
+		}
+	}
+
+	@Override
+	public ByteBuffer nextBuffer() throws IOException {
+		if (this.isEOF) {
+			return null;
+		}
+		if (this.current != null) {
+			this.free.offer(this.current);
+			this.current = null;
+		}
+		Chunk chunk;
+		try {
+			chunk = this.filled.take();
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while waiting for input", e);
+		}
+		if (chunk == EOF) {
+			this.isEOF = true;
+			return null;
+		}
+		if (chunk.error != null) {
+			this.isEOF = true;
+			throw chunk.error;
+		}
+		this.current = chunk;
+		return chunk.buffer;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.isClosed = true;
+		this.reader.interrupt();
+		this.in.close();
+	}
+}
@@ -0,0 +1,87 @@
+package org.husonlab.fmhdist.cmd;
+
+import com.sun.net.httpserver.HttpServer;
+import net.openhft.hashing.LongHashFunction;
+import org.husonlab.fmhdist.sketch.SketchCache;
+import org.husonlab.fmhdist.sketch.SketchFile;
+import org.husonlab.fmhdist.util.GenomeCache;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class SequenceSketcherTests {
+	private final AtomicInteger requests = new AtomicInteger();
+
+	private HttpServer serve() throws IOException {
+		final byte[] content = Files.readAllBytes(Paths.get("src/test/resources/virus1.fasta"));
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", exchange -> {
+			requests.incrementAndGet();
+			exchange.getResponseHeaders().add("Last-Modified", "Wed, 01 Mar 2023 12:00:00 GMT");
+			exchange.sendResponseHeaders(200, content.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(content);
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	private Path createDirectory(String prefix) throws IOException {
+		Path directory = Files.createTempDirectory(prefix);
+		directory.toFile().deleteOnExit();
+		return directory;
+	}
+
+	private SketchCache sketch(Path input, Path genomes, long maxBytes, Path sketches) throws IOException {
+		SequenceSketcher sketcher = new SequenceSketcher();
+		SketchCache sketchCache = new SketchCache(sketches);
+		sketcher.setGenomeCache(new GenomeCache(genomes, maxBytes));
+		sketcher.setSketchCache(sketchCache);
+		Path output = createDirectory("output");
+		sketcher.run(input.toString(), output.toString(), 21, 10, LongHashFunction.farmUo(42), 42, false, false);
+		assertThat(Files.exists(output.resolve("virus" + SketchFile.EXTENSION)), equalTo(true));
+		return sketchCache;
+	}
+
+	@Test
+	public void shouldUseSketchCacheForCachedGenomes() throws IOException {
+		HttpServer server = serve();
+		try {
+			Path input = Files.createTempFile("input", ".csv");
+			input.toFile().deleteOnExit();
+			Files.write(input, String.format("http://localhost:%d/virus1.fna,virus\n", server.getAddress().getPort())
+					.getBytes(StandardCharsets.UTF_8));
+			Path genomes = createDirectory("genomes");
+			Path sketches = createDirectory("sketches");
+
+			SketchCache cache = sketch(input, genomes, 1L << 30, sketches);
+			assertThat(cache.getMisses(), equalTo(1L));
+			assertThat(requests.get(), equalTo(1));
+
+			// the second run reads the cached genome and its cached sketch
+			cache = sketch(input, genomes, 1L << 30, sketches);
+			assertThat(cache.getHits(), equalTo(1L));
+			assertThat(cache.getMisses(), equalTo(0L));
+			assertThat(requests.get(), equalTo(1));
+
+			// a genome that was evicted and downloaded again still hits
+			cache = sketch(input, createDirectory("genomes"), 0, sketches);
+			assertThat(cache.getHits(), equalTo(1L));
+			assertThat(requests.get(), equalTo(2));
+			assertThat(sketches.toFile().listFiles().length, equalTo(1));
+		} finally {
+			server.stop(0);
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package org.husonlab.fmhdist.db;
+
+import org.husonlab.fmhdist.sketch.FracMinHashSketch;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class MappedReferenceStoreTests {
+	private Path createStore(long[][] values) throws IOException {
+		Path file = Files.createTempFile("fmhdist", ".store");
+		file.toFile().deleteOnExit();
+		try (MappedReferenceStore.Writer writer = new MappedReferenceStore.Writer(file, 21, 1000, 42, true, 1234L, "farm")) {
+			for (int i = 0; i < values.length; i++) {
+				writer.add(100 + i, "GCF_" + i, 1000L * i, "taxon " + i + " \u00e9", values[i]);
+			}
+		}
+		return file;
+	}
+
+	private long[][] createValues(int count) {
+		Random random = new Random(42);
+		long[][] values = new long[count][];
+		for (int i = 0; i < count; i++) {
+			// every third sketch is empty
+			values[i] = i % 3 == 1 ? new long[0] : random.longs(random.nextInt(500)).sorted().toArray();
+		}
+		return values;
+	}
+
+	@Test
+	public void shouldReadWrittenStore() throws IOException {
+		long[][] values = createValues(50);
+		Path file = createStore(values);
+		assertThat(MappedReferenceStore.isStore(file.toString()), equalTo(true));
+
+		for (long windowBytes : new long[]{4000, 1L << 30}) {
+			try (MappedReferenceStore store = MappedReferenceStore.open(file.toString(), windowBytes)) {
+				assertThat(store.size(), equalTo(values.length));
+				assertThat(store.getKSize(), equalTo(21));
+				assertThat(store.getSParam(), equalTo(1000));
+				assertThat(store.getSeed(), equalTo(42));
+				assertThat(store.isPacked(), equalTo(true));
+				assertThat(store.getHashedMagicNumber(), equalTo(1234L));
+				assertThat(store.getHashFunction(), equalTo("farm"));
+				for (int i = 0; i < values.length; i++) {
+					assertThat(store.getTaxonId(i), equalTo(100 + i));
+					assertThat(store.getAccession(i), equalTo("GCF_" + i));
+					assertThat(store.getGenomeSize(i), equalTo(1000L * i));
+					assertThat(store.getTaxonName(i), equalTo("taxon " + i + " \u00e9"));
+					assertThat(store.getSketchSize(i), equalTo(values[i].length));
+					assertThat(store.getValues(i), equalTo(values[i]));
+				}
+
+				List<FracMinHashSketch> sketches = store.asSketchList();
+				assertThat(sketches.size(), equalTo(values.length));
+				assertThat(sketches.get(2).getValues(), equalTo(values[2]));
+				assertThat(sketches.get(2).getName(), equalTo("taxon 2 \u00e9"));
+				assertThat(sketches.get(2).getSParam(), equalTo(1000));
+			}
+		}
+	}
+
+	@Test
+	public void shouldReadEmptyStore() throws IOException {
+		try (MappedReferenceStore store = MappedReferenceStore.open(createStore(new long[0][]).toString())) {
+			assertThat(store.size(), equalTo(0));
+			assertThat(store.asValuesList().isEmpty(), equalTo(true));
+		}
+	}
+
+	@Test
+	public void shouldDetectOtherFiles() throws IOException {
+		assertThat(MappedReferenceStore.isStore("src/test/resources/virus1.fasta"), equalTo(false));
+		assertThat(MappedReferenceStore.isStore("does/not/exist.db"), equalTo(false));
+		Path empty = Files.createTempFile("fmhdist", ".store");
+		empty.toFile().deleteOnExit();
+		assertThat(MappedReferenceStore.isStore(empty.toString()), equalTo(false));
+	}
+}
@@ -1,10 +1,26 @@
 package org.husonlab.fmhdist.db;
 
+import com.google.common.graph.GraphBuilder;
+import com.google.common.graph.MutableGraph;
+import net.openhft.hashing.LongHashFunction;
+import org.husonlab.fmhdist.ncbi.Genome;
+import org.husonlab.fmhdist.ncbi.Taxon;
+import org.husonlab.fmhdist.ncbi.TaxonomyTree;
+import org.husonlab.fmhdist.sketch.CompressedSketch;
+import org.husonlab.fmhdist.sketch.GenomeSketch;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertTrue;
 
 public class ReferenceDatabaseTests {
@@ -14,4 +30,142 @@ public class ReferenceDatabaseTests {
 		assertTrue(new File("target/test.db").exists());
 		(new File("target/test.db")).delete();
 	}
+
+	@Test
+	public void shouldReadInsertedSketches() throws SQLException, IOException {
+		Taxon root = new Taxon("root", 1);
+		Taxon virus1 = new Taxon("virus1", 10);
+		Taxon virus2 = new Taxon("virus2", 20);
+		MutableGraph<Taxon> graph = GraphBuilder.directed().build();
+		graph.putEdge(root, virus1);
+		graph.putEdge(root, virus2);
+		Map<Integer, Taxon> taxa = new HashMap<>();
+		for (Taxon t : new Taxon[]{root, virus1, virus2}) {
+			taxa.put(t.getTaxonId(), t);
+		}
+
+		List<GenomeSketch> sketches = new ArrayList<>();
+		for (Taxon t : new Taxon[]{virus2, virus1}) {
+			Genome genome = new Genome(t.getOrganismName(), String.format("src/test/resources/%s.fasta", t.getOrganismName()));
+			GenomeSketch sketch = GenomeSketch.sketch(genome, 21, 10, LongHashFunction.farmUo(42), 42, false, false);
+			sketches.add(new GenomeSketch(new Genome(t.getOrganismName(), "GCF_" + t.getTaxonId(), t.getTaxonId(), t.getOrganismName(), "file://", 1000), sketch.getSketch()));
+		}
+
+		for (boolean bulkLoad : new boolean[]{false, true}) {
+			File file = new File("target/test.db");
+			file.delete();
+			ReferenceDatabase db = ReferenceDatabase.create(file.getPath(), bulkLoad);
+			db.insertTaxonomy(new TaxonomyTree(graph, taxa));
+			db.insertSketches(sketches);
+			db.insertFullInfo(21, 10, 42, "farm");
+			db.close();
+
+			db = ReferenceDatabase.open(file.getPath());
+			Collection<GenomeSketch> result = db.getSketches();
+			assertThat(db.getNumericalInfo().get("sketch_s"), equalTo(10));
+
+			// rows are ordered by taxon id
+			List<CompressedSketch> loaded = db.loadSketches(2);
+			assertThat(loaded.size(), equalTo(2));
+			assertThat(loaded.get(0).getName(), equalTo("virus1"));
+			assertThat(loaded.get(0).getValues(), equalTo(sketches.get(1).getSketch().getValues()));
+
+			try (SketchCursor cursor = db.openSketchCursor(false)) {
+				SketchRow row = cursor.next();
+				assertThat(row.getTaxonId(), equalTo(10));
+				assertThat(row.getGenome(), nullValue());
+				assertThat(cursor.next().getSketch().getValues(), equalTo(sketches.get(0).getSketch().getValues()));
+				assertThat(cursor.next(), nullValue());
+			}
+			db.close();
+			file.delete();
+
+			assertThat(result.size(), equalTo(2));
+			for (GenomeSketch actual : result) {
+				GenomeSketch expected = sketches.get(actual.getGenome().getTaxonId() == 20 ? 0 : 1);
+				assertThat(actual.getGenome().getAccession(), equalTo(expected.getGenome().getAccession()));
+				assertThat(actual.getSketch().getValues(), equalTo(expected.getSketch().getValues()));
+			}
+		}
+	}
+
+	@Test
+	public void shouldMergeIntoExistingDatabase() throws SQLException, IOException {
+		Taxon root = new Taxon("root", 1);
+		Taxon virus1 = new Taxon("virus1", 10);
+		Taxon virus2 = new Taxon("virus2", 20);
+		MutableGraph<Taxon> first = GraphBuilder.directed().build();
+		first.putEdge(root, virus1);
+		MutableGraph<Taxon> second = GraphBuilder.directed().build();
+		second.putEdge(root, virus2);
+
+		List<GenomeSketch> sketches = new ArrayList<>();
+		for (Taxon t : new Taxon[]{virus1, virus2}) {
+			Genome genome = new Genome(t.getOrganismName(), String.format("src/test/resources/%s.fasta", t.getOrganismName()));
+			GenomeSketch sketch = GenomeSketch.sketch(genome, 21, 10, LongHashFunction.farmUo(42), 42, false, false);
+			sketches.add(new GenomeSketch(new Genome(t.getOrganismName(), "GCF_" + t.getTaxonId(), t.getTaxonId(), t.getOrganismName(), "file://", 1000), sketch.getSketch()));
+		}
+
+		File file = new File("target/test.db");
+		file.delete();
+		ReferenceDatabase db = ReferenceDatabase.create(file.getPath());
+		db.insertTaxonomy(new TaxonomyTree(first, Map.of(1, root, 10, virus1)));
+		db.insertSketches(sketches.subList(0, 1));
+		db.insertFullInfo(21, 10, 42, "farm");
+		db.close();
+
+		db = ReferenceDatabase.open(file.getPath());
+		assertThat(db.getGenomeAccessions(), contains("GCF_10"));
+		// the root is part of both lineages
+		db.insertTaxonomy(new TaxonomyTree(second, Map.of(1, root, 20, virus2)));
+		db.insertSketches(sketches.subList(1, 2));
+		db.close();
+
+		db = ReferenceDatabase.open(file.getPath());
+		assertThat(db.getGenomeAccessions(), containsInAnyOrder("GCF_10", "GCF_20"));
+		assertThat(db.getSketches().size(), equalTo(2));
+		db.close();
+		file.delete();
+	}
+
+	@Test
+	public void shouldRecordProgress() throws SQLException, IOException {
+		Genome genome = new Genome("virus1", "src/test/resources/virus1.fasta");
+		GenomeSketch sketch = GenomeSketch.sketch(genome, 21, 10, LongHashFunction.farmUo(42), 42, false, false);
+		GenomeSketch first = new GenomeSketch(new Genome("virus1", "GCF_10", 10, "virus1", "file://", 1000), sketch.getSketch());
+		GenomeSketch second = new GenomeSketch(new Genome("virus2", "GCF_20", 10, "virus2", "file://", 1000), sketch.getSketch());
+
+		File file = new File("target/test.db");
+		file.delete();
+		ReferenceDatabase db = ReferenceDatabase.create(file.getPath(), true);
+		db.insertFailure("GCF_10", "connection reset");
+		db.insertFailure("GCF_30", "not found");
+		// the second genome belongs to the same taxon
+		assertThat(db.insertSketches(List.of(first, second)), equalTo(1));
+		db.close();
+
+		db = ReferenceDatabase.openForUpdate(file.getPath(), true);
+		assertThat(db.getGenomeAccessions(), contains("GCF_10"));
+		assertThat(db.getFailedGenomes(), equalTo(Map.of("GCF_30", "not found")));
+		db.close();
+		file.delete();
+	}
+
+	@Test
+	public void shouldRecordSkippedGenomes() throws SQLException, IOException {
+		File file = new File("target/test.db");
+		file.delete();
+		ReferenceDatabase db = ReferenceDatabase.create(file.getPath(), true);
+		db.insertSkippedGenomes(List.of(
+				new Genome("virus1", "GCF_10", 10, "virus1", "file://", 1000),
+				new Genome("virus2", "GCF_20", 10, "virus2", "file://", 1000)));
+		db.close();
+
+		db = ReferenceDatabase.openForUpdate(file.getPath(), false);
+		assertThat(db.getSkippedAccessions(), containsInAnyOrder("GCF_10", "GCF_20"));
+		// skipped genomes are not part of the database
+		assertThat(db.getGenomeAccessions(), empty());
+		db.close();
+		file.delete();
+	}
 }
@@ -0,0 +1,89 @@
+package org.husonlab.fmhdist.ncbi;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class LocalAssembliesTests {
+	private static final String SUMMARY =
+			"#   See ftp://ftp.ncbi.nlm.nih.gov/genomes/README_assembly_summary.txt for a description of the columns in this file.\n" +
+			"#assembly_accession\tbioproject\tbiosample\twgs_master\trefseq_category\ttaxid\tspecies_taxid\torganism_name\tinfraspecific_name\tisolate\tversion_status\tassembly_level\trelease_type\tgenome_rep\tseq_rel_date\tasm_name\tasm_submitter\tgbrs_paired_asm\tpaired_asm_comp\tftp_path\texcluded_from_refseq\trelation_to_type_material\tasm_not_live_date\tassembly_type\tgroup\tgenome_size\n" +
+			"GCF_000819615.1\tPRJNA14015\tna\t\tna\t10847\t10847\tEscherichia phage phiX174\t\t\tlatest\tComplete Genome\tMajor\tFull\t2000/01/01\tViralProj14015\tNCBI\tGCA_000819615.1\tidentical\thttps://ftp.ncbi.nlm.nih.gov/genomes/all/GCF/000/819/615/GCF_000819615.1_ViralProj14015\t\t\tna\thaploid\tviral\t5386\n" +
+			"GCF_000001405.40\tPRJNA168\tna\t\treference genome\t9606\t9606\tHomo sapiens\t\t\tlatest\tChromosome\tMajor\tFull\t2022/02/03\tGRCh38.p14\tGRC\tGCA_000001405.29\tdifferent\tna\t\t\tna\thaploid-with-alt-loci\tvertebrate_mammalian\t3099441038\n";
+
+	private static final String REPORT =
+			"# Assembly name:  ViralProj14015\n" +
+			"# Organism name:  Escherichia phage phiX174 (viruses)\n" +
+			"# Taxid:          10847\n" +
+			"# RefSeq assembly accession: GCF_000819615.1\n" +
+			"#\n" +
+			"# Sequence-Name\tSequence-Role\n" +
+			"phiX174\tassembled-molecule\n";
+
+	private Path createMirror() throws IOException {
+		Path mirror = Files.createTempDirectory("mirror");
+		mirror.toFile().deleteOnExit();
+		Path directory = Files.createDirectories(mirror.resolve("genomes/all/GCF/000/819/615/GCF_000819615.1_ViralProj14015"));
+		Path fasta = directory.resolve("GCF_000819615.1_ViralProj14015" + LocalAssemblies.GENOMIC_SUFFIX);
+		Files.copy(Paths.get("src/test/resources/virus1.fasta"), fasta, StandardCopyOption.REPLACE_EXISTING);
+		Files.write(directory.resolve("GCF_000819615.1_ViralProj14015" + LocalAssemblies.REPORT_SUFFIX), REPORT.getBytes(StandardCharsets.UTF_8));
+		// other files of the assembly must not be taken for genomes
+		Files.createFile(directory.resolve("GCF_000819615.1_ViralProj14015_cds_from" + LocalAssemblies.GENOMIC_SUFFIX));
+		return mirror;
+	}
+
+	private Path createSummary() throws IOException {
+		Path summary = Files.createTempFile("assembly_summary", ".txt");
+		summary.toFile().deleteOnExit();
+		Files.write(summary, SUMMARY.getBytes(StandardCharsets.UTF_8));
+		return summary;
+	}
+
+	@Test
+	public void shouldReadAssemblySummary() throws IOException {
+		Path mirror = createMirror();
+		List<Genome> genomes = LocalAssemblies.readAssemblySummary(createSummary(), mirror);
+		assertThat(genomes, hasSize(1));
+		Genome genome = genomes.get(0);
+		assertThat(genome.getAccession(), equalTo("GCF_000819615.1"));
+		assertThat(genome.getOrganismName(), equalTo("Escherichia phage phiX174"));
+		assertThat(genome.getTaxonId(), equalTo(10847));
+		assertThat(genome.getGenomeSize(), equalTo(5386L));
+		assertThat(Paths.get(genome.getFastaUrl()), equalTo(
+				mirror.resolve("genomes/all/GCF/000/819/615/GCF_000819615.1_ViralProj14015/GCF_000819615.1_ViralProj14015_genomic.fna.gz")));
+		assertThat(Files.exists(Paths.get(genome.getFastaUrl())), equalTo(true));
+	}
+
+	@Test
+	public void shouldDownloadWithoutMirror() throws IOException {
+		List<Genome> genomes = LocalAssemblies.readAssemblySummary(createSummary(), null);
+		assertThat(genomes.get(0).getFastaUrl(), equalTo(
+				"https://ftp.ncbi.nlm.nih.gov/genomes/all/GCF/000/819/615/GCF_000819615.1_ViralProj14015/GCF_000819615.1_ViralProj14015_genomic.fna.gz"));
+	}
+
+	@Test
+	public void shouldScanDirectory() throws IOException {
+		Path mirror = createMirror();
+		// an assembly without report is skipped
+		Path incomplete = Files.createDirectories(mirror.resolve("genomes/all/GCF/000/000/001/GCF_000000001.1_Test"));
+		Files.createFile(incomplete.resolve("GCF_000000001.1_Test" + LocalAssemblies.GENOMIC_SUFFIX));
+
+		List<Genome> genomes = LocalAssemblies.scanDirectory(mirror.resolve("genomes"));
+		assertThat(genomes, hasSize(1));
+		Genome genome = genomes.get(0);
+		assertThat(genome.getAccession(), equalTo("GCF_000819615.1"));
+		assertThat(genome.getAssemblyName(), equalTo("ViralProj14015"));
+		assertThat(genome.getOrganismName(), equalTo("Escherichia phage phiX174"));
+		assertThat(genome.getTaxonId(), equalTo(10847));
+		assertThat(Files.exists(Paths.get(genome.getFastaUrl())), equalTo(true));
+	}
+}
@@ -1,14 +1,26 @@
 package org.husonlab.fmhdist.ncbi;
 
+import com.sun.net.httpserver.HttpServer;
 import org.junit.Test;
 import org.openapitools.client.ApiException;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 public class NcbiApiTests {
 	@Test
@@ -50,5 +62,90 @@ public class NcbiApiTests {
 		assertEquals(16, tree.getTree().nodes().size());
 	}
 
+	/**
+	 * Taxonomy of the mock server: 1 - 10 - 100 + i for the leaves i, and
+	 * 1 - 20 - 200 for a second branch.
+	 */
+	private int[] getMockLineage(int taxonId) {
+		if (taxonId == 1) {
+			return new int[0];
+		}
+		if (taxonId == 10 || taxonId == 20) {
+			return new int[]{1};
+		}
+		if (taxonId == 200) {
+			return new int[]{1, 20};
+		}
+		return new int[]{1, 10};
+	}
+
+	private HttpServer serveTaxonomy(List<String> requestedIds, AtomicInteger requests) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/taxonomy/taxon/", exchange -> {
+			requests.incrementAndGet();
+			String path = URLDecoder.decode(exchange.getRequestURI().getRawPath(), StandardCharsets.UTF_8);
+			List<String> nodes = new ArrayList<>();
+			for (String id : path.substring("/taxonomy/taxon/".length()).split(",")) {
+				synchronized (requestedIds) {
+					requestedIds.add(id);
+				}
+				int taxonId = Integer.parseInt(id);
+				String lineage = Arrays.stream(getMockLineage(taxonId)).mapToObj(String::valueOf).collect(Collectors.joining(","));
+				nodes.add(String.format("{\"taxonomy\":{\"tax_id\":%d,\"organism_name\":\"taxon %d\",\"lineage\":[%s]}}", taxonId, taxonId, lineage));
+			}
+			byte[] response = String.format("{\"taxonomy_nodes\":[%s]}", String.join(",", nodes)).getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, response.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(response);
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	@Test
+	public void shouldFetchEachTaxonOnce() throws ApiException, IOException {
+		List<String> requestedIds = new ArrayList<>();
+		AtomicInteger requests = new AtomicInteger();
+		HttpServer server = serveTaxonomy(requestedIds, requests);
+		try {
+			Path cacheFile = Files.createTempFile("taxonomy", ".tsv");
+			cacheFile.toFile().deleteOnExit();
+			Files.delete(cacheFile);
 
+			List<Genome> genomes = new ArrayList<>();
+			for (int i = 0; i < 250; i++) {
+				genomes.add(new Genome("genome " + i, "GCF_" + i, 1000 + i, "assembly", "", 1000));
+			}
+			// two genomes of the same taxon and one of another branch
+			genomes.add(new Genome("genome", "GCF_X", 1000, "assembly", "", 1000));
+			genomes.add(new Genome("genome", "GCF_Y", 200, "assembly", "", 1000));
+
+			String basePath = String.format("http://localhost:%d", server.getAddress().getPort());
+			NcbiApi api = new NcbiApi(basePath);
+			api.setTaxonomyCache(cacheFile);
+			TaxonomyTree tree = api.getTaxonomyTreeForGenomes(genomes);
+
+			// 251 leaves in 3 pages, then 1, 10 and 20 in a single page
+			assertEquals(4, requests.get());
+			assertEquals(254, requestedIds.size());
+			assertEquals(254, new HashSet<>(requestedIds).size());
+
+			assertEquals(254, tree.getTree().nodes().size());
+			assertEquals(1, tree.getRoot().getTaxonId());
+			assertEquals("taxon 1000", tree.getTaxa().get(1000).getOrganismName());
+			assertEquals(250, tree.getTree().successors(tree.getTaxa().get(10)).size());
+			assertTrue(tree.getTree().hasEdgeConnecting(tree.getTaxa().get(20), tree.getTaxa().get(200)));
+
+			// a second run is answered from the cache file
+			api = new NcbiApi(basePath);
+			api.setTaxonomyCache(cacheFile);
+			TaxonomyTree cached = api.getTaxonomyTreeForGenomes(genomes);
+			assertEquals(4, requests.get());
+			assertEquals(tree.getNewick(), cached.getNewick());
+		} finally {
+			server.stop(0);
+		}
+	}
 }
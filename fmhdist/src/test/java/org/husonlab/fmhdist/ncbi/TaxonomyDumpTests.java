@@ -0,0 +1,86 @@
+package org.husonlab.fmhdist.ncbi;
+
+import com.google.common.graph.Graph;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class TaxonomyDumpTests {
+	// 1 -> 2 -> 10 -> {100, 101}, 1 -> 3 -> 30
+	private static final String NODES =
+			"1\t|\t1\t|\tno rank\t|\t\t|\n" +
+			"2\t|\t1\t|\tsuperkingdom\t|\t\t|\n" +
+			"3\t|\t1\t|\tsuperkingdom\t|\t\t|\n" +
+			"10\t|\t2\t|\tgenus\t|\t\t|\n" +
+			"30\t|\t3\t|\tgenus\t|\t\t|\n" +
+			"100\t|\t10\t|\tspecies\t|\t\t|\n" +
+			"101\t|\t10\t|\tspecies\t|\t\t|\n";
+	private static final String NAMES =
+			"1\t|\troot\t|\t\t|\tscientific name\t|\n" +
+			"2\t|\tBacteria\t|\tBacteria <bacteria>\t|\tscientific name\t|\n" +
+			"2\t|\teubacteria\t|\t\t|\tgenbank common name\t|\n" +
+			"3\t|\tArchaea\t|\t\t|\tscientific name\t|\n" +
+			"10\t|\tEscherichia\t|\t\t|\tscientific name\t|\n" +
+			"30\t|\tMethanobrevibacter\t|\t\t|\tscientific name\t|\n" +
+			"100\t|\tEscherichia coli\t|\t\t|\tscientific name\t|\n" +
+			"100\t|\tBacterium coli\t|\t\t|\tsynonym\t|\n" +
+			"101\t|\tEscherichia fergusonii\t|\t\t|\tscientific name\t|\n";
+
+	private Path createDump(boolean gzipped) throws IOException {
+		Path directory = Files.createTempDirectory("taxdump");
+		directory.toFile().deleteOnExit();
+		write(directory.resolve(TaxonomyDump.NODES_FILE + (gzipped ? ".gz" : "")), NODES, gzipped);
+		write(directory.resolve(TaxonomyDump.NAMES_FILE + (gzipped ? ".gz" : "")), NAMES, gzipped);
+		return directory;
+	}
+
+	private void write(Path file, String content, boolean gzipped) throws IOException {
+		try (OutputStream out = gzipped ? new GZIPOutputStream(Files.newOutputStream(file)) : Files.newOutputStream(file)) {
+			out.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+		file.toFile().deleteOnExit();
+	}
+
+	@Test
+	public void shouldKeepOnlyAncestors() throws IOException {
+		for (boolean gzipped : new boolean[]{false, true}) {
+			TaxonomyDump dump = new TaxonomyDump(createDump(gzipped));
+			TaxonomyTree tree = dump.getTaxonomyTree(Arrays.asList(100, 101, 100));
+			Map<Integer, Taxon> taxa = tree.getTaxa();
+			assertThat(taxa.keySet(), containsInAnyOrder(1, 2, 10, 100, 101));
+			assertThat(taxa.get(2).getOrganismName(), equalTo("Bacteria"));
+			assertThat(taxa.get(100).getOrganismName(), equalTo("Escherichia coli"));
+			assertThat(tree.getRoot().getTaxonId(), equalTo(1));
+			assertThat(tree.getNewick(), anyOf(equalTo("(((100,101)10)2)1"), equalTo("(((101,100)10)2)1")));
+		}
+	}
+
+	@Test
+	public void shouldSkipUnknownTaxa() throws IOException {
+		TaxonomyDump dump = new TaxonomyDump(createDump(false));
+		TaxonomyTree tree = dump.getTaxonomyTree(List.of(30, 999));
+		assertThat(tree.getTaxa().keySet(), containsInAnyOrder(1, 3, 30));
+		Graph<Taxon> graph = tree.getTree();
+		assertThat(graph.edges().size(), equalTo(2));
+		assertThat(graph.predecessors(tree.getTaxa().get(30)), contains(tree.getTaxa().get(3)));
+	}
+
+	@Test(expected = FileNotFoundException.class)
+	public void shouldRequireBothFiles() throws IOException {
+		Path directory = createDump(false);
+		Files.delete(directory.resolve(TaxonomyDump.NAMES_FILE));
+		new TaxonomyDump(directory);
+	}
+}
@@ -0,0 +1,105 @@
+package org.husonlab.fmhdist.sketch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class CompressedSketchTests {
+	private long[] createValues(Random random, int size, int shift) {
+		long[] values = new long[size];
+		for (int i = 0; i < size; i++) {
+			values[i] = Long.MIN_VALUE + (random.nextLong() >>> shift);
+		}
+		return Arrays.stream(values).sorted().distinct().toArray();
+	}
+
+	private CompressedSketch compress(long[] values) {
+		return CompressedSketch.compress(FracMinHashSketch.fromValues(1000, 21, 42, 1234L, values));
+	}
+
+	@Test
+	public void shouldDecodeValues() {
+		Random random = new Random(42);
+		for (long[] values : new long[][]{
+				new long[0],
+				new long[]{0},
+				new long[]{Long.MIN_VALUE},
+				new long[]{Long.MAX_VALUE},
+				new long[]{Long.MIN_VALUE, -1, 0, 1, Long.MAX_VALUE},
+				createValues(random, 1000, 0),
+				createValues(random, 100000, 10),
+				createValues(random, 1000, 60)}) {
+			CompressedSketch sketch = compress(values);
+			assertThat(sketch.size(), equalTo(values.length));
+			assertThat(sketch.getValues(), equalTo(values));
+			assertThat(sketch.decompress().getValues(), equalTo(values));
+		}
+	}
+
+	@Test
+	public void shouldKeepParameters() {
+		FracMinHashSketch sketch = FracMinHashSketch.fromValues(1000, 21, 42, 1234L, new long[]{1, 2, 3});
+		sketch.setName("test");
+		FracMinHashSketch result = CompressedSketch.compress(sketch).decompress();
+		assertThat(result.getSParam(), equalTo(1000));
+		assertThat(result.getKSize(), equalTo(21));
+		assertThat(result.getSeed(), equalTo(42));
+		assertThat(result.getHashedMagicNumber(), equalTo(1234L));
+		assertThat(result.getName(), equalTo("test"));
+	}
+
+	@Test
+	public void shouldUseLessMemory() {
+		// 5000 hashes below the threshold of s = 1000
+		long[] values = createValues(new Random(42), 5000, 10);
+		CompressedSketch sketch = compress(values);
+		assertThat(sketch.getSizeInBytes(), lessThan(6L * values.length));
+	}
+
+	@Test
+	public void shouldSkipToTargets() {
+		Random random = new Random(42);
+		long[] values = createValues(random, 20000, 8);
+		CompressedSketch sketch = compress(values);
+		for (int run = 0; run < 100; run++) {
+			CompressedSketch.Cursor cursor = sketch.cursor();
+			long target = Long.MIN_VALUE;
+			while (true) {
+				target += random.nextLong() >>> (14 + random.nextInt(10));
+				cursor.skipTo(target);
+				int expected = Arrays.binarySearch(values, target);
+				expected = expected < 0 ? -expected - 1 : expected;
+				if (expected >= values.length) {
+					assertThat(cursor.isValid(), equalTo(false));
+					break;
+				}
+				assertThat(cursor.index(), equalTo(expected));
+				assertThat(cursor.value(), equalTo(values[expected]));
+			}
+		}
+	}
+
+	@Test
+	public void shouldCalculateSameIntersections() {
+		Random random = new Random(42);
+		long[] large = createValues(random, 200000, 10);
+		for (int size : new int[]{0, 1, 100, 5000, 200000, 1000000}) {
+			long[] other = createValues(random, size, 10);
+			// share about half of the hashes
+			for (int i = 0; i < other.length; i += 2) {
+				other[i] = large[random.nextInt(large.length)];
+			}
+			other = Arrays.stream(other).sorted().distinct().toArray();
+
+			int expected = Distance.getMergeIntersectionSize(other, large);
+			assertThat(Distance.getIntersectionSize(compress(other), compress(large)), equalTo(expected));
+			assertThat(Distance.getIntersectionSize(compress(large), compress(other)), equalTo(expected));
+			assertThat(Distance.getIntersectionSize(other, compress(large)), equalTo(expected));
+			assertThat(Distance.getIntersectionSize(large, compress(other)), equalTo(expected));
+		}
+	}
+}
@@ -7,7 +7,11 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
@@ -20,6 +24,102 @@ public class DistanceTests {
 		assertThat(Distance.getIntersectionSize(a, b), equalTo(1));
 	}
 
+	private long[] randomSketch(Random random, int size, int range) {
+		Set<Long> values = new HashSet<>();
+		while (values.size() < size) {
+			values.add((long) (random.nextInt(range) - range / 2));
+		}
+		return values.stream().mapToLong(Long::longValue).sorted().toArray();
+	}
+
+	private int naiveIntersectionSize(long[] a, long[] b) {
+		int result = 0;
+		for (long x : a) {
+			if (Arrays.binarySearch(b, x) >= 0) {
+				result++;
+			}
+		}
+		return result;
+	}
+
+	@Test
+	public void intersectionShouldNotDependOnSizeRatio() {
+		Random random = new Random(42);
+		for (int small : new int[]{1, 2, 10, 100}) {
+			for (int large : new int[]{1, 5, 100, 1000, 20000}) {
+				for (int range : new int[]{2 * large, 10 * large}) {
+					long[] a = randomSketch(random, small, Math.max(range, 2 * small));
+					long[] b = randomSketch(random, large, Math.max(range, 2 * large));
+					int expected = naiveIntersectionSize(a, b);
+					assertThat(Distance.getIntersectionSize(a, b), equalTo(expected));
+					assertThat(Distance.getIntersectionSize(b, a), equalTo(expected));
+					assertThat(Distance.getGallopingIntersectionSize(a, b), equalTo(expected));
+					assertThat(Distance.getMergeIntersectionSize(a, b), equalTo(expected));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void vectorIntersectionShouldEqualMerge() {
+		// falls back to the merge if the Vector API is not available
+		Random random = new Random(42);
+		for (int sizeA : new int[]{0, 1, 3, 4, 7, 8, 9, 17, 100, 5000}) {
+			for (int sizeB : new int[]{0, 1, 4, 8, 15, 16, 100, 5000}) {
+				long[] a = randomSketch(random, sizeA, 3 * Math.max(sizeA, sizeB) + 10);
+				long[] b = randomSketch(random, sizeB, 3 * Math.max(sizeA, sizeB) + 10);
+				int expected = naiveIntersectionSize(a, b);
+				assertThat(Distance.getVectorIntersectionSize(a, b), equalTo(expected));
+				assertThat(Distance.getVectorIntersectionSize(b, a), equalTo(expected));
+			}
+		}
+		long[] all = randomSketch(random, 1000, 5000);
+		assertThat(Distance.getVectorIntersectionSize(all, all), equalTo(all.length));
+	}
+
+	@Test
+	public void backendShouldNotChangeResult() {
+		Distance.IntersectionBackend previous = Distance.getIntersectionBackend();
+		try {
+			Random random = new Random(42);
+			long[] a = randomSketch(random, 3000, 10000);
+			long[] b = randomSketch(random, 2000, 10000);
+			int expected = naiveIntersectionSize(a, b);
+			for (Distance.IntersectionBackend backend : Distance.IntersectionBackend.values()) {
+				boolean isUsed = Distance.setIntersectionBackend(backend);
+				assertThat(isUsed, equalTo(backend == Distance.IntersectionBackend.SCALAR || Distance.isVectorIntersectionAvailable()));
+				assertThat(Distance.getIntersectionSize(a, b), equalTo(expected));
+			}
+		} finally {
+			Distance.setIntersectionBackend(previous);
+		}
+	}
+
+	@Test
+	public void gallopingShouldHandleBoundaries() {
+		long[] large = new long[1000];
+		for (int i = 0; i < large.length; i++) {
+			large[i] = 2 * i;
+		}
+		assertThat(Distance.getGallopingIntersectionSize(new long[]{-1, 0}, large), equalTo(1));
+		assertThat(Distance.getGallopingIntersectionSize(new long[]{1998, 1999, 2000}, large), equalTo(1));
+		assertThat(Distance.getGallopingIntersectionSize(new long[]{Long.MIN_VALUE, Long.MAX_VALUE}, large), equalTo(0));
+		assertThat(Distance.getGallopingIntersectionSize(large, large), equalTo(large.length));
+	}
+
+	@Test
+	public void shouldHandleEmptySketches() {
+		long[] empty = new long[0];
+		long[] a = new long[]{1, 2, 3};
+		assertThat(Distance.getIntersectionSize(empty, a), equalTo(0));
+		assertThat(Distance.getIntersectionSize(a, empty), equalTo(0));
+		assertThat(Distance.getIntersectionSize(empty, empty), equalTo(0));
+		assertThat(Distance.calculateJaccardIndex(empty, empty, 1000), equalTo(0.0));
+		assertThat(Distance.calculateJaccardIndex(a, empty, 1000), equalTo(0.0));
+		assertThat(Distance.calculateContainmentIndex(empty, a, 1000), equalTo(0.0));
+		assertThat(Distance.calculateContainmentIndex(a, empty, 1000), equalTo(0.0));
+	}
+
 	@Test
 	public void testJaccardIndex() {
 		long[] a = new long[]{1, 2, 3};
@@ -1,15 +1,24 @@
 package org.husonlab.fmhdist.sketch;
 
 import net.openhft.hashing.LongHashFunction;
+import org.husonlab.fmhdist.ncbi.Genome;
+import org.husonlab.fmhdist.util.ByteKMerIterator;
+import org.husonlab.fmhdist.util.FastaSplitter;
 import org.husonlab.fmhdist.util.KMerCoordinates;
 import org.husonlab.fmhdist.util.KMerIterator;
+import org.husonlab.fmhdist.util.LineKMerIterator;
+import org.husonlab.fmhdist.util.PackedKMerIterator;
 import org.husonlab.fmhdist.util.experimental.FastKMerIterator;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
@@ -106,6 +115,121 @@ public class FracMinHashSketchTests {
 	}
 
 
+	@Test
+	public void packedKMersShouldGenerateIncompatibleSerializations() throws IOException {
+		try (FastKMerIterator kmers = new FastKMerIterator(21, "src/test/resources/virus1.fasta", true);
+			 PackedKMerIterator packedKmers = new PackedKMerIterator(21, "src/test/resources/virus1.fasta")) {
+			FracMinHashSketch sketch = FracMinHashSketch.compute("test", kmers, 10, LongHashFunction.farmUo(42), 42, false);
+			FracMinHashSketch packedSketch = FracMinHashSketch.compute("test", packedKmers, 10, LongHashFunction.farmUo(42), 42, false);
+
+			assertThat(sketch.getHashedMagicNumber(), not(equalTo(packedSketch.getHashedMagicNumber())));
+			assertThat(packedSketch.getHashedMagicNumber(), equalTo(FracMinHashSketch.getHashedMagicNumber(LongHashFunction.farmUo(42), true)));
+			assertThat(packedSketch.getValues().length, greaterThan(0));
+		}
+	}
+
+	@Test
+	public void unionOfRangesShouldEqualSketchOfFile() throws IOException, IncompatibleParameterException {
+		String path = "src/test/resources/fastaWith2Seq.fasta";
+		for (boolean packed : new boolean[]{false, true}) {
+			FracMinHashSketch expected = GenomeSketch.sketch(new Genome("test", path), 21, 2, LongHashFunction.farmUo(42), 42, false, packed).getSketch();
+
+			List<FracMinHashSketch> partials = new ArrayList<>();
+			for (FastaSplitter.Range range : FastaSplitter.split(path, 21, 4, 1)) {
+				KMerIterator kmers = packed
+						? new PackedKMerIterator(21, FastaSplitter.openRange(path, range))
+						: new ByteKMerIterator(21, FastaSplitter.mapRange(path, range), true);
+				partials.add(FracMinHashSketch.compute("test", kmers, 2, LongHashFunction.farmUo(42), 42, false));
+				kmers.close();
+			}
+			FracMinHashSketch union = FracMinHashSketch.union("test", partials);
+
+			assertThat(partials.size(), equalTo(4));
+			assertThat(union.getValues(), equalTo(expected.getValues()));
+			assertThat(union.getHashedMagicNumber(), equalTo(expected.getHashedMagicNumber()));
+		}
+	}
+
+	private Path writeFasta(int records, int length, int lineWidth, boolean trailingLineBreak) throws IOException {
+		Random random = new Random(42);
+		StringBuilder fasta = new StringBuilder();
+		for (int r = 0; r < records; r++) {
+			fasta.append(">record").append(r).append(" some description\n");
+			for (int i = 0; i < length; i++) {
+				fasta.append(random.nextInt(100) == 0 ? 'N' : "ACGT".charAt(random.nextInt(4)));
+				if ((i + 1) % lineWidth == 0 && i + 1 < length) {
+					fasta.append('\n');
+				}
+			}
+			if (r < records - 1 || trailingLineBreak) {
+				fasta.append('\n');
+			}
+		}
+		Path path = Files.createTempFile("ranges", ".fasta");
+		path.toFile().deleteOnExit();
+		Files.write(path, fasta.toString().getBytes());
+		return path;
+	}
+
+	@Test
+	public void sketchOfRangesShouldEqualSequentialSketch() throws IOException {
+		for (int lineWidth : new int[]{5000, 60}) {
+			for (boolean trailingLineBreak : new boolean[]{false, true}) {
+				String path = writeFasta(3, 5000, lineWidth, trailingLineBreak).toString();
+				for (boolean packed : new boolean[]{false, true}) {
+					FracMinHashSketch expected = GenomeSketch.sketch(new Genome("test", path), 21, 1, LongHashFunction.farmUo(42), 42, false, packed).getSketch();
+					assertThat(expected.getValues().length, greaterThan(3 * 4000));
+					for (int parts : new int[]{2, 4, 8}) {
+						List<FastaSplitter.Range> ranges = FastaSplitter.split(path, 21, parts, 1);
+						assertThat(ranges, hasSize(parts));
+						FracMinHashSketch actual = GenomeSketch.sketchRanges("test", path, ranges, 21, 1, LongHashFunction.farmUo(42), 42, packed);
+						assertThat(actual.getValues(), equalTo(expected.getValues()));
+						assertThat(actual.getHashedMagicNumber(), equalTo(expected.getHashedMagicNumber()));
+					}
+				}
+			}
+		}
+	}
+
+	@Test(expected = IncompatibleParameterException.class)
+	public void unionShouldRejectIncompatibleSketches() throws IOException, IncompatibleParameterException {
+		FracMinHashSketch sketch1 = FracMinHashSketch.compute("Test", new TestKMerIterator(), 1, LongHashFunction.farmNa(42), 42, false);
+		FracMinHashSketch sketch2 = FracMinHashSketch.compute("Test", new TestKMerIterator(), 2, LongHashFunction.farmNa(42), 42, false);
+		FracMinHashSketch.union("Test", List.of(sketch1, sketch2));
+	}
+
+	@Test
+	public void kernelShouldComputeSameSketchAsIterator() throws IOException {
+		for (String file : new String[]{"fastaWith2Seq.fasta", "fastaWithAmbSeq.fasta", "virus1.fasta"}) {
+			String path = "src/test/resources/" + file;
+			for (int k : new int[]{3, 21}) {
+				// LineKMerIterator is not a KMerScanner, so it uses the
+				// iterator based computation
+				FracMinHashSketch expected = FracMinHashSketch.compute("Test", new LineKMerIterator(k, path, true), 2, LongHashFunction.farmNa(42), 42, false);
+				FracMinHashSketch actual = FracMinHashSketch.compute("Test", new ByteKMerIterator(k, path, true), 2, LongHashFunction.farmNa(42), 42, false);
+				assertThat(actual.getValues(), equalTo(expected.getValues()));
+				assertThat(actual.getHashedMagicNumber(), equalTo(expected.getHashedMagicNumber()));
+
+				// the packed sketch with coordinates is computed without the
+				// kernel
+				FracMinHashSketch expectedPacked = FracMinHashSketch.compute("Test", new PackedKMerIterator(k, path), 2, LongHashFunction.farmNa(42), 42, true);
+				FracMinHashSketch actualPacked = FracMinHashSketch.compute("Test", new PackedKMerIterator(k, path), 2, LongHashFunction.farmNa(42), 42, false);
+				assertThat(actualPacked.getValues(), equalTo(expectedPacked.getValues()));
+				assertThat(actualPacked.getHashedMagicNumber(), equalTo(expectedPacked.getHashedMagicNumber()));
+			}
+		}
+	}
+
+	@Test
+	public void kernelShouldIncludeAlreadyPendingKMer() throws IOException {
+		// the first k-mer is scanned by the constructor of the iterator
+		try (KMerIterator kmers = new ByteKMerIterator(4, new ByteArrayInputStream(">h\nACGT\n".getBytes()), true)) {
+			FracMinHashSketch sketch = FracMinHashSketch.compute("Test", kmers, 1, LongHashFunction.farmNa(42), 42, false);
+			assertThat(sketch.getValues().length, equalTo(1));
+			assertThat(kmers.hasNext(), equalTo(false));
+		}
+	}
+
 	@Test
 	@Ignore // Not a real test, but for understanding the performance
 	public void benchmarkBloomPerformance() throws IOException {
@@ -0,0 +1,103 @@
+package org.husonlab.fmhdist.sketch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class InvertedHashIndexTests {
+	private List<long[]> createSketches(Random random, int count) {
+		List<long[]> result = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			int size = i % 9 == 0 ? 0 : random.nextInt(300);
+			result.add(random.longs(size, -5000, 5000).sorted().distinct().toArray());
+		}
+		return result;
+	}
+
+	@Test
+	public void shouldFindIntersectionSizesOfAllOverlappingReferences() {
+		Random random = new Random(42);
+		List<long[]> references = createSketches(random, 200);
+		InvertedHashIndex index = new InvertedHashIndex(references);
+		assertThat(index.size(), equalTo(references.size()));
+
+		for (long[] query : createSketches(random, 20)) {
+			Map<Integer, Integer> found = new HashMap<>();
+			index.forEachOverlap(query, (reference, intersectionSize) -> {
+				assertThat(found.put(reference, intersectionSize), nullValue());
+			});
+			for (int reference = 0; reference < references.size(); reference++) {
+				int expected = Distance.getIntersectionSize(query, references.get(reference));
+				assertThat(found.getOrDefault(reference, 0), equalTo(expected));
+				assertThat(index.getSketchSize(reference), equalTo(references.get(reference).length));
+			}
+		}
+	}
+
+	@Test
+	public void shouldReuseCountersAcrossQueriesAndThreads() throws Exception {
+		Random random = new Random(42);
+		List<long[]> references = createSketches(random, 200);
+		List<long[]> queries = createSketches(random, 50);
+		InvertedHashIndex index = new InvertedHashIndex(references);
+
+		// a failing consumer must not leave counts behind
+		try {
+			index.forEachOverlap(queries.get(1), (reference, intersectionSize) -> {
+				throw new IllegalStateException();
+			});
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (int thread = 0; thread < 4; thread++) {
+				results.add(executor.submit(() -> {
+					for (int round = 0; round < 3; round++) {
+						for (long[] query : queries) {
+							Map<Integer, Integer> found = new HashMap<>();
+							index.forEachOverlap(query, found::put);
+							for (int reference = 0; reference < references.size(); reference++) {
+								int expected = Distance.getIntersectionSize(query, references.get(reference));
+								assertThat(found.getOrDefault(reference, 0), equalTo(expected));
+							}
+						}
+					}
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void shouldHandleZeroAndEmptyIndex() {
+		List<long[]> references = new ArrayList<>();
+		references.add(new long[]{-1, 0, 1});
+		references.add(new long[]{0});
+		InvertedHashIndex index = new InvertedHashIndex(references);
+		Map<Integer, Integer> found = new HashMap<>();
+		index.forEachOverlap(new long[]{0, 1}, found::put);
+		assertThat(found.get(0), equalTo(2));
+		assertThat(found.get(1), equalTo(1));
+
+		new InvertedHashIndex(new ArrayList<>()).forEachOverlap(new long[]{1, 2}, (reference, intersectionSize) -> {
+			throw new AssertionError("no references expected");
+		});
+	}
+}
@@ -0,0 +1,74 @@
+package org.husonlab.fmhdist.sketch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class PairwiseDistanceEngineTests {
+	private List<long[]> createSketches(int count) {
+		Random random = new Random(42);
+		List<long[]> result = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			// some sketches are empty, some are much larger than others
+			int size = i % 7 == 0 ? 0 : random.nextInt(i % 5 == 0 ? 5000 : 200);
+			result.add(random.longs(size, 0, 20000).sorted().distinct().toArray());
+		}
+		return result;
+	}
+
+	@Test
+	public void shouldCalculateSameDistancesAsSinglePairs() {
+		final List<long[]> sketches = createSketches(37);
+		final int k = 21;
+		final int s = 10;
+		for (int threads : new int[]{1, 4}) {
+			for (int tileSize : new int[]{0, 1, 5, 100}) {
+				final double[][] jaccard = new double[sketches.size()][sketches.size()];
+				final double[][] mash = new double[sketches.size()][sketches.size()];
+				final double[][] containment = new double[sketches.size()][sketches.size()];
+				final AtomicInteger pairs = new AtomicInteger();
+				new PairwiseDistanceEngine(k, s, threads, tileSize).compute(sketches, (i, j, jaccardDistance, mashDistance, containmentDistanceIJ, containmentDistanceJI) -> {
+					assertThat(j, greaterThanOrEqualTo(i));
+					pairs.incrementAndGet();
+					jaccard[i][j] = jaccardDistance;
+					mash[i][j] = mashDistance;
+					containment[i][j] = containmentDistanceIJ;
+					containment[j][i] = containmentDistanceJI;
+				});
+
+				assertThat(pairs.get(), equalTo(sketches.size() * (sketches.size() + 1) / 2));
+				for (int i = 0; i < sketches.size(); i++) {
+					for (int j = i; j < sketches.size(); j++) {
+						double expectedJaccard = Distance.calculateJaccardIndex(sketches.get(i), sketches.get(j), s);
+						assertThat(jaccard[i][j], equalTo(Distance.jaccardToDistance(expectedJaccard, k)));
+						assertThat(mash[i][j], equalTo(Distance.jaccardToMashDistance(expectedJaccard, k)));
+						assertThat(containment[i][j], equalTo(Distance.containmentToDistance(Distance.calculateContainmentIndex(sketches.get(i), sketches.get(j), s), k)));
+						assertThat(containment[j][i], equalTo(Distance.containmentToDistance(Distance.calculateContainmentIndex(sketches.get(j), sketches.get(i), s), k)));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void shouldHandleEmptyInput() {
+		new PairwiseDistanceEngine(21, 10, 2).compute(new ArrayList<>(), (i, j, jaccardDistance, mashDistance, containmentDistanceIJ, containmentDistanceJI) -> {
+			throw new AssertionError("no pairs expected");
+		});
+	}
+
+	@Test
+	public void tilesShouldFitIntoCache() {
+		long[][] small = new long[1000][100];
+		assertThat(PairwiseDistanceEngine.getTileSize(small), equalTo((int) (PairwiseDistanceEngine.TILE_BYTES / (2 * 800))));
+		long[][] large = new long[10][1 << 20];
+		assertThat(PairwiseDistanceEngine.getTileSize(large), equalTo(1));
+		assertThat(PairwiseDistanceEngine.getTileSize(new long[3][0]), equalTo(3));
+	}
+}
@@ -0,0 +1,125 @@
+package org.husonlab.fmhdist.sketch;
+
+import net.openhft.hashing.LongHashFunction;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class SketchCacheTests {
+	private Path createDirectory() throws IOException {
+		Path directory = Files.createTempDirectory("sketches");
+		directory.toFile().deleteOnExit();
+		return directory;
+	}
+
+	private Path copy(String resource) throws IOException {
+		Path file = Files.createTempFile("genome", ".fasta");
+		file.toFile().deleteOnExit();
+		Files.copy(Paths.get(resource), file, StandardCopyOption.REPLACE_EXISTING);
+		return file;
+	}
+
+	@Test
+	public void shouldReturnStoredSketch() throws IOException {
+		SketchCache cache = new SketchCache(createDirectory());
+		Path file = copy("src/test/resources/virus1.fasta");
+		LongHashFunction hashFunction = LongHashFunction.farmUo(42);
+		String key = SketchCache.getKey(file, 21, 10, hashFunction, 42, false);
+
+		assertThat(cache.get(key), nullValue());
+		FracMinHashSketch sketch = FracMinHashSketch.fromValues(10, 21, 42, FracMinHashSketch.getHashedMagicNumber(hashFunction, false), new long[]{1, 5, 7});
+		cache.put(key, sketch);
+		FracMinHashSketch cached = cache.get(key);
+		assertThat(cached.getValues(), equalTo(sketch.getValues()));
+		assertThat(cached.getHashedMagicNumber(), equalTo(sketch.getHashedMagicNumber()));
+		assertThat(cache.getHits(), equalTo(1L));
+		assertThat(cache.getMisses(), equalTo(1L));
+	}
+
+	@Test
+	public void shouldDependOnParameters() throws IOException {
+		Path file = copy("src/test/resources/virus1.fasta");
+		String key = SketchCache.getKey(file, 21, 10, LongHashFunction.farmUo(42), 42, false);
+		assertThat(SketchCache.getKey(file, 21, 10, LongHashFunction.farmUo(42), 42, false), equalTo(key));
+		assertThat(SketchCache.getKey(file, 20, 10, LongHashFunction.farmUo(42), 42, false), not(equalTo(key)));
+		assertThat(SketchCache.getKey(file, 21, 11, LongHashFunction.farmUo(42), 42, false), not(equalTo(key)));
+		assertThat(SketchCache.getKey(file, 21, 10, LongHashFunction.farmUo(43), 43, false), not(equalTo(key)));
+		assertThat(SketchCache.getKey(file, 21, 10, LongHashFunction.murmur_3(42), 42, false), not(equalTo(key)));
+		assertThat(SketchCache.getKey(file, 21, 10, LongHashFunction.farmUo(42), 42, true), not(equalTo(key)));
+	}
+
+	@Test
+	public void shouldDependOnContent() throws IOException {
+		Path file = Files.createTempFile("genome", ".fasta");
+		file.toFile().deleteOnExit();
+		byte[] content = new byte[1 << 20];
+		new Random(42).nextBytes(content);
+		Files.write(file, content);
+		FileTime time = Files.getLastModifiedTime(file);
+		String fingerprint = SketchCache.fingerprint(file);
+
+		// same size and time, but a changed first byte
+		content[0]++;
+		Files.write(file, content);
+		Files.setLastModifiedTime(file, time);
+		assertThat(SketchCache.fingerprint(file), not(equalTo(fingerprint)));
+
+		// same content, other time
+		Files.setLastModifiedTime(file, FileTime.fromMillis(time.toMillis() - 1000));
+		assertThat(SketchCache.fingerprint(file), not(equalTo(fingerprint)));
+
+		Path empty = Files.createTempFile("genome", ".fasta");
+		empty.toFile().deleteOnExit();
+		assertThat(SketchCache.fingerprint(empty), startsWith("0-"));
+	}
+
+	@Test
+	public void shouldRemoveCorruptedEntries() throws IOException {
+		Path directory = createDirectory();
+		SketchCache cache = new SketchCache(directory);
+		cache.put("key", FracMinHashSketch.fromValues(10, 21, 42, 1234L, new long[]{1, 5, 7}));
+		Path entry = directory.resolve("key" + SketchFile.EXTENSION);
+		byte[] bytes = Files.readAllBytes(entry);
+		bytes[bytes.length - 6]++;
+		Files.write(entry, bytes);
+		assertThat(cache.get("key"), nullValue());
+		assertThat(Files.exists(entry), equalTo(false));
+		assertThat(cache.getMisses(), equalTo(1L));
+	}
+
+	@Test
+	public void shouldPruneUnusedEntries() throws IOException {
+		Path directory = createDirectory();
+		SketchCache cache = new SketchCache(directory);
+		FracMinHashSketch sketch = FracMinHashSketch.fromValues(10, 21, 42, 1234L, new long[]{1, 5, 7});
+		cache.put("old", sketch);
+		cache.put("new", sketch);
+		Files.setLastModifiedTime(directory.resolve("old" + SketchFile.EXTENSION),
+				FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(31)));
+		Files.createFile(directory.resolve("interrupted.tmp"));
+		Files.setLastModifiedTime(directory.resolve("interrupted.tmp"),
+				FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(31)));
+		// may be in the middle of a put()
+		Files.createFile(directory.resolve("writing.tmp"));
+
+		assertThat(cache.prune(TimeUnit.DAYS.toMillis(30)), equalTo(2));
+		assertThat(cache.get("old"), nullValue());
+		assertThat(cache.get("new"), notNullValue());
+		assertThat(Files.exists(directory.resolve("interrupted.tmp")), equalTo(false));
+		assertThat(Files.exists(directory.resolve("writing.tmp")), equalTo(true));
+
+		// even if all entries are removed
+		assertThat(cache.prune(-1000), equalTo(1));
+		assertThat(Files.exists(directory.resolve("writing.tmp")), equalTo(true));
+	}
+}
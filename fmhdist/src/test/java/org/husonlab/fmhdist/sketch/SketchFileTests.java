@@ -0,0 +1,173 @@
+package org.husonlab.fmhdist.sketch;
+
+import jloda.thirdparty.HexUtils;
+import net.openhft.hashing.LongHashFunction;
+import org.husonlab.fmhdist.ncbi.Genome;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class SketchFileTests {
+	private FracMinHashSketch createSketch() throws IOException {
+		return GenomeSketch.sketch(new Genome("test", "src/test/resources/virus1.fasta"), 21, 10, LongHashFunction.farmUo(42), 42, false, false).getSketch();
+	}
+
+	private FracMinHashSketch createRandomSketch(int size) {
+		Random random = new Random(42);
+		long[] values = new long[size];
+		for (int i = 0; i < size; i++) {
+			values[i] = random.nextLong();
+		}
+		values[0] = Long.MIN_VALUE;
+		values[size - 1] = Long.MAX_VALUE;
+		Arrays.sort(values);
+		return FracMinHashSketch.fromValues(1000, 21, 42, 1234L, values);
+	}
+
+	private byte[] toBytes(FracMinHashSketch sketch) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SketchFile.write(sketch, out);
+		return out.toByteArray();
+	}
+
+	private Path write(byte[] content) throws IOException {
+		Path file = Files.createTempFile("fmhdist", SketchFile.EXTENSION);
+		file.toFile().deleteOnExit();
+		Files.write(file, content);
+		return file;
+	}
+
+	private void assertSameSketch(FracMinHashSketch actual, FracMinHashSketch expected) {
+		assertThat(actual.getValues(), equalTo(expected.getValues()));
+		assertThat(actual.getKSize(), equalTo(expected.getKSize()));
+		assertThat(actual.getSParam(), equalTo(expected.getSParam()));
+		assertThat(actual.getSeed(), equalTo(expected.getSeed()));
+		assertThat(actual.getHashedMagicNumber(), equalTo(expected.getHashedMagicNumber()));
+	}
+
+	@Test
+	public void shouldReadWrittenSketch() throws IOException {
+		FracMinHashSketch sketch = createSketch();
+		Path file = Files.createTempFile("fmhdist", SketchFile.EXTENSION);
+		file.toFile().deleteOnExit();
+		SketchFile.write(sketch, file);
+
+		assertSameSketch(SketchFile.read(file), sketch);
+	}
+
+	@Test
+	public void shouldBeSmallerThanRawValues() throws IOException {
+		// 100000 hashes below the threshold of s = 1000 are about 2^44 apart
+		Random random = new Random(42);
+		long[] values = new long[100000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = Long.MIN_VALUE + (random.nextLong() >>> 10);
+		}
+		Arrays.sort(values);
+		FracMinHashSketch sketch = FracMinHashSketch.fromValues(1000, 21, 42, 1234L, values);
+		byte[] content = toBytes(sketch);
+		assertThat(content.length, lessThan(values.length * 7));
+		assertSameSketch(SketchFile.read(write(content)), sketch);
+	}
+
+	@Test
+	public void shouldReadLegacyFormats() throws IOException {
+		FracMinHashSketch sketch = createSketch();
+		String hex = HexUtils.encodeHexString(sketch.getBytes());
+		assertSameSketch(SketchFile.read(write(hex.getBytes())), sketch);
+		assertSameSketch(SketchFile.read(write((hex + "\n").getBytes())), sketch);
+		assertSameSketch(SketchFile.read(write(sketch.getBytes())), sketch);
+		assertSameSketch(SketchFile.read(new ByteArrayInputStream(hex.getBytes())), sketch);
+	}
+
+	@Test
+	public void shouldReadExtremeValues() throws IOException {
+		// the larger sketch exceeds the size for memory mapping
+		for (int size : new int[]{2, 200000}) {
+			FracMinHashSketch sketch = createRandomSketch(size);
+			byte[] content = toBytes(sketch);
+			assertSameSketch(SketchFile.read(write(content)), sketch);
+			assertSameSketch(SketchFile.read(ByteBuffer.wrap(content)), sketch);
+		}
+		FracMinHashSketch empty = FracMinHashSketch.fromValues(1000, 21, 42, 1234L, new long[0]);
+		assertSameSketch(SketchFile.read(new ByteArrayInputStream(toBytes(empty))), empty);
+	}
+
+	@Test
+	public void shouldStreamInSmallChunks() throws IOException {
+		FracMinHashSketch sketch = createRandomSketch(50000);
+		// returns at most 3 bytes per read call
+		InputStream in = new FilterInputStream(new ByteArrayInputStream(toBytes(sketch))) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return super.read(b, off, Math.min(3, len));
+			}
+		};
+		assertSameSketch(SketchFile.read(in), sketch);
+	}
+
+	@Test
+	public void shouldDetectCorruption() throws IOException {
+		byte[] content = toBytes(createSketch());
+		content[content.length / 2] ^= 0x10;
+		try {
+			SketchFile.read(write(content));
+			assertThat("corruption was not detected", false);
+		} catch (IOException e) {
+			assertThat(e.getMessage(), notNullValue());
+		}
+
+		byte[] truncated = Arrays.copyOf(toBytes(createSketch()), 100);
+		try {
+			SketchFile.read(new ByteArrayInputStream(truncated));
+			assertThat("truncation was not detected", false);
+		} catch (IOException e) {
+			assertThat(e.getMessage(), notNullValue());
+		}
+	}
+
+	@Test
+	public void shouldRejectIncorrectSize() throws IOException {
+		byte[] content = toBytes(createSketch());
+		// the size in the header exceeds the remaining bytes
+		ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN).putInt(32, Integer.MAX_VALUE - 8);
+		for (int i = 0; i < 2; i++) {
+			try {
+				if (i == 0) {
+					SketchFile.read(content);
+				} else {
+					SketchFile.read(write(content));
+				}
+				assertThat("incorrect size was not detected", false);
+			} catch (IOException e) {
+				assertThat(e.getMessage(), equalTo("Incorrect sketch size"));
+			}
+		}
+		// the length of a stream is unknown, so it ends early instead
+		try {
+			SketchFile.read(new ByteArrayInputStream(content));
+			assertThat("incorrect size was not detected", false);
+		} catch (EOFException e) {
+			assertThat(e.getMessage(), equalTo("Unexpected end of sketch file"));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectUnsortedSketch() throws IOException {
+		toBytes(FracMinHashSketch.fromValues(1000, 21, 42, 1234L, new long[]{5, 3}));
+	}
+}
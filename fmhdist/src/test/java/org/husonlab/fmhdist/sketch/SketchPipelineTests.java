@@ -0,0 +1,251 @@
+package org.husonlab.fmhdist.sketch;
+
+import com.sun.net.httpserver.HttpServer;
+import net.openhft.hashing.LongHashFunction;
+import org.husonlab.fmhdist.ncbi.Genome;
+import org.husonlab.fmhdist.util.GenomeCache;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class SketchPipelineTests {
+	private HttpServer serve(byte[] content) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", exchange -> {
+			if (exchange.getRequestURI().getPath().contains("missing")) {
+				exchange.sendResponseHeaders(404, -1);
+				exchange.close();
+				return;
+			}
+			exchange.sendResponseHeaders(200, content.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(content);
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	private byte[] gzip(byte[] content) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		try (GZIPOutputStream out = new GZIPOutputStream(buffer)) {
+			out.write(content);
+		}
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Serves only the first half of the gzipped content for the first
+	 * truncatedResponses requests of each file.
+	 */
+	private HttpServer serveTruncated(byte[] gzipped, int truncatedResponses, Map<String, AtomicInteger> requests) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", exchange -> {
+			final int request = requests.computeIfAbsent(exchange.getRequestURI().getPath(), path -> new AtomicInteger()).incrementAndGet();
+			final int length = request <= truncatedResponses ? gzipped.length / 2 : gzipped.length;
+			exchange.sendResponseHeaders(200, length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(gzipped, 0, length);
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	private Genome remoteGenome(HttpServer server, String name) {
+		return new Genome(name, String.format("http://localhost:%d/%s.fasta", server.getAddress().getPort(), name));
+	}
+
+	@Test
+	public void shouldSketchDownloadedGenomes() throws IOException, InterruptedException {
+		HttpServer server = serve(Files.readAllBytes(Paths.get("src/test/resources/virus1.fasta")));
+		Path spool = Files.createTempDirectory("spool");
+		spool.toFile().deleteOnExit();
+		try {
+			LongHashFunction hashFunction = LongHashFunction.farmUo(42);
+			FracMinHashSketch expected = GenomeSketch.sketch(new Genome("virus1", "src/test/resources/virus1.fasta"), 21, 10, hashFunction, 42, false).getSketch();
+
+			List<Genome> genomes = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				genomes.add(remoteGenome(server, "genome" + i));
+			}
+			genomes.add(remoteGenome(server, "missing"));
+			genomes.add(new Genome("local", "src/test/resources/virus1.fasta"));
+
+			Map<String, GenomeSketch> sketches = new ConcurrentHashMap<>();
+			Map<String, Exception> failures = new ConcurrentHashMap<>();
+			AtomicInteger maxSpooled = new AtomicInteger();
+			SketchPipeline pipeline = new SketchPipeline(4, 2, 1, 0, spool);
+			pipeline.run(genomes, 21, 10, hashFunction, 42, false, new SketchPipeline.Listener() {
+				@Override
+				public void onSketch(GenomeSketch sketch) throws Exception {
+					maxSpooled.accumulateAndGet(spool.toFile().list().length, Math::max);
+					// slow consumer
+					Thread.sleep(20);
+					sketches.put(sketch.getGenome().getAccession(), sketch);
+				}
+
+				@Override
+				public void onFailure(Genome genome, Exception error) {
+					failures.put(genome.getAccession(), error);
+				}
+			});
+
+			assertThat(sketches.size(), equalTo(21));
+			assertThat(failures.keySet(), contains("missing"));
+			for (Genome genome : genomes) {
+				if (!genome.getAccession().equals("missing")) {
+					GenomeSketch sketch = sketches.get(genome.getAccession());
+					// the result refers to the original genome, not the spooled file
+					assertThat(sketch.getGenome(), sameInstance(genome));
+					assertThat(sketch.getSketch().getValues(), equalTo(expected.getValues()));
+				}
+			}
+			// queue capacity + download threads + the other sketch thread
+			assertThat(maxSpooled.get(), lessThanOrEqualTo(1 + 4 + 1));
+			assertThat(spool.toFile().list().length, equalTo(0));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void shouldLimitDownloadRate() throws IOException, InterruptedException {
+		HttpServer server = serve(Files.readAllBytes(Paths.get("src/test/resources/virus1.fasta")));
+		try {
+			List<Genome> genomes = new ArrayList<>();
+			for (int i = 0; i < 10; i++) {
+				genomes.add(remoteGenome(server, "genome" + i));
+			}
+			AtomicInteger count = new AtomicInteger();
+			long start = System.nanoTime();
+			new SketchPipeline(10, 2, 10, 20, null).run(genomes, 21, 10, LongHashFunction.farmUo(42), 42, false, new SketchPipeline.Listener() {
+				@Override
+				public void onSketch(GenomeSketch sketch) {
+					count.incrementAndGet();
+				}
+
+				@Override
+				public void onFailure(Genome genome, Exception error) {
+				}
+			});
+			// 10 downloads started at most every 50ms
+			assertThat(count.get(), equalTo(10));
+			assertThat(System.nanoTime() - start, greaterThanOrEqualTo(450_000_000L));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void shouldAbortIfListenerFails() throws IOException, InterruptedException {
+		HttpServer server = serve(Files.readAllBytes(Paths.get("src/test/resources/virus1.fasta")));
+		try {
+			List<Genome> genomes = new ArrayList<>();
+			for (int i = 0; i < 50; i++) {
+				genomes.add(remoteGenome(server, "genome" + i));
+			}
+			new SketchPipeline(4, 2, 1, 0, null).run(genomes, 21, 10, LongHashFunction.farmUo(42), 42, false, new SketchPipeline.Listener() {
+				@Override
+				public void onSketch(GenomeSketch sketch) throws Exception {
+					throw new IllegalStateException("database is gone");
+				}
+
+				@Override
+				public void onFailure(Genome genome, Exception error) {
+				}
+			});
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	private SketchPipeline.Listener collect(Map<String, GenomeSketch> sketches, Map<String, Exception> failures) {
+		return new SketchPipeline.Listener() {
+			@Override
+			public void onSketch(GenomeSketch sketch) {
+				sketches.put(sketch.getGenome().getAccession(), sketch);
+			}
+
+			@Override
+			public void onFailure(Genome genome, Exception error) {
+				failures.put(genome.getAccession(), error);
+			}
+		};
+	}
+
+	@Test
+	public void shouldRetryTruncatedDownloads() throws IOException, InterruptedException {
+		final byte[] gzipped = gzip(Files.readAllBytes(Paths.get("src/test/resources/virus1.fasta")));
+		for (boolean cached : new boolean[]{false, true}) {
+			Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+			HttpServer server = serveTruncated(gzipped, 2, requests);
+			try {
+				List<Genome> genomes = new ArrayList<>();
+				for (int i = 0; i < 4; i++) {
+					genomes.add(new Genome("genome" + i, String.format("http://localhost:%d/genome%d.fna.gz", server.getAddress().getPort(), i)));
+				}
+				SketchPipeline pipeline = new SketchPipeline(2, 2, 1, 0, null);
+				pipeline.setRetryDelay(1);
+				GenomeCache cache = null;
+				if (cached) {
+					Path directory = Files.createTempDirectory("genomes");
+					directory.toFile().deleteOnExit();
+					cache = new GenomeCache(directory, 1L << 30);
+					pipeline.setGenomeCache(cache);
+				}
+				Map<String, GenomeSketch> sketches = new ConcurrentHashMap<>();
+				Map<String, Exception> failures = new ConcurrentHashMap<>();
+				pipeline.run(genomes, 21, 10, LongHashFunction.farmUo(42), 42, false, collect(sketches, failures));
+
+				assertThat(failures.keySet(), empty());
+				assertThat(sketches.size(), equalTo(4));
+				assertThat(requests.size(), equalTo(4));
+				for (AtomicInteger count : requests.values()) {
+					assertThat(count.get(), equalTo(3));
+				}
+				if (cache != null) {
+					// truncated files were removed from the cache
+					assertThat(cache.getSize(), equalTo(4L * gzipped.length));
+				}
+			} finally {
+				server.stop(0);
+			}
+		}
+	}
+
+	@Test
+	public void shouldGiveUpAfterThreeAttempts() throws IOException, InterruptedException {
+		Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+		HttpServer server = serveTruncated(gzip(Files.readAllBytes(Paths.get("src/test/resources/virus1.fasta"))), 10, requests);
+		try {
+			Genome genome = new Genome("genome", String.format("http://localhost:%d/genome.fna.gz", server.getAddress().getPort()));
+			SketchPipeline pipeline = new SketchPipeline(1, 1, 1, 0, null);
+			pipeline.setRetryDelay(1);
+			Map<String, GenomeSketch> sketches = new ConcurrentHashMap<>();
+			Map<String, Exception> failures = new ConcurrentHashMap<>();
+			pipeline.run(List.of(genome), 21, 10, LongHashFunction.farmUo(42), 42, false, collect(sketches, failures));
+
+			assertThat(sketches.keySet(), empty());
+			assertThat(failures.keySet(), contains("genome"));
+			assertThat(requests.get("/genome.fna.gz").get(), equalTo(3));
+		} finally {
+			server.stop(0);
+		}
+	}
+}
@@ -0,0 +1,288 @@
+package org.husonlab.fmhdist.util;
+
+import jloda.util.FileUtils;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ByteKMerIteratorTests {
+	private void assertSameKmers(KMerIterator reference, KMerIterator km) throws IOException {
+		while (reference.hasNext()) {
+			assertThat(km.hasNext(), equalTo(true));
+			assertThat(new String(km.next()), equalTo(new String(reference.next())));
+			assertThat(new String(km.getReverseComplement()), equalTo(new String(reference.getReverseComplement())));
+			assertThat(km.getCoordinates().toString(), equalTo(reference.getCoordinates().toString()));
+		}
+		assertThat(km.hasNext(), equalTo(false));
+		km.close();
+		reference.close();
+	}
+
+	@Test
+	public void shouldIterateSameKmersAsLineKMerIterator() throws IOException {
+		for (String file : new String[]{"fastaWith1Seq.fasta", "fastaWith2Seq.fasta", "fastaWithAmbSeq.fasta", "virus1.fasta"}) {
+			for (int k : new int[]{3, 8, 21, 40}) {
+				for (boolean skipN : new boolean[]{true, false}) {
+					assertSameKmers(
+							new LineKMerIterator(k, "src/test/resources/" + file, skipN),
+							new ByteKMerIterator(k, "src/test/resources/" + file, skipN));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void shouldBeIndependentOfBufferSize() throws IOException {
+		for (int bufferSize : new int[]{1, 2, 7, 64}) {
+			assertSameKmers(
+					new LineKMerIterator(21, "src/test/resources/fastaWith2Seq.fasta", true),
+					new ByteKMerIterator(21, new InputStreamByteSource(
+							FileUtils.getInputStreamPossiblyZIPorGZIP("src/test/resources/fastaWith2Seq.fasta"), bufferSize), true));
+		}
+	}
+
+	@Test
+	public void shouldIterateKmersInMultipleSequences() throws IOException {
+		try (KMerIterator km = new ByteKMerIterator(21, "src/test/resources/fastaWith2Seq.fasta", true)) {
+			int i = 0;
+			while (km.hasNext()) {
+				km.next();
+				i++;
+			}
+			assertThat(i, equalTo(800));
+		}
+	}
+
+	@Test
+	public void checkDiscardAmbiguousChars() throws IOException {
+		try (KMerIterator km = new ByteKMerIterator(21, "src/test/resources/fastaWithAmbSeq.fasta", true)) {
+			int i = 0;
+			while (km.hasNext()) {
+				km.next();
+				i++;
+			}
+			assertThat(i, equalTo((70 * 6) - 21 + 1 - 21));
+		}
+	}
+
+	@Test
+	public void checkCoordinates() throws IOException {
+		// In contrast to the LineKMerIterator, the last record is not dropped
+		// even though the file does not end with a line break.
+		try (KMerIterator km = new ByteKMerIterator(8, "src/test/resources/fastaWithMultipleAmbSeq.fasta", true)) {
+			int i = 0;
+			int[] ambigPos = new int[]{0, 1, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20};
+			while (km.hasNext()) {
+				km.next();
+				var c = km.getCoordinates();
+				if (i < 13) {
+					assertThat(c.getRecordIndexInFile(), equalTo(0));
+					assertThat(c.getSequenceIndexInRecord(), equalTo(i));
+					assertThat(c.getSequenceIndexInRecordIncludingAmbiguous(), equalTo(ambigPos[i]));
+				} else {
+					assertThat(c.getRecordIndexInFile(), equalTo(1));
+					assertThat(c.getSequenceIndexInRecord(), equalTo(i - 13));
+					assertThat(c.getSequenceIndexInRecordIncludingAmbiguous(), equalTo(ambigPos[i - 13]));
+				}
+				i++;
+			}
+			assertThat(i, equalTo(26));
+		}
+	}
+
+	private static List<String> expectedKmers(String fasta, int k, boolean skipN) {
+		List<String> result = new ArrayList<>();
+		for (String record : ("\n" + fasta).split("\n>")) {
+			int bodyStart = record.indexOf('\n');
+			if (bodyStart < 0) {
+				continue;
+			}
+			String sequence = record.substring(bodyStart).replaceAll("\\s", "").toUpperCase();
+			for (String part : skipN ? sequence.split("N") : new String[]{sequence}) {
+				for (int i = 0; i + k <= part.length(); i++) {
+					result.add(part.substring(i, i + k));
+				}
+			}
+		}
+		return result;
+	}
+
+	@Test
+	public void shouldProduceAllKmersOfEachRecord() throws IOException {
+		Random random = new Random(42);
+		String alphabet = "ACGTACGTACGTNNacgtn";
+		for (int test = 0; test < 2000; test++) {
+			StringBuilder fasta = new StringBuilder();
+			int records = 1 + random.nextInt(3);
+			for (int r = 0; r < records; r++) {
+				fasta.append(">h").append(r).append('\n');
+				int lines = 1 + random.nextInt(3);
+				for (int l = 0; l < lines; l++) {
+					int length = 1 + random.nextInt(8);
+					for (int i = 0; i < length; i++) {
+						fasta.append(alphabet.charAt(random.nextInt(alphabet.length())));
+					}
+					// the last line may end without line break
+					if (r < records - 1 || l < lines - 1 || random.nextBoolean()) {
+						fasta.append('\n');
+					}
+				}
+			}
+			int k = 1 + random.nextInt(5);
+			boolean skipN = random.nextInt(4) != 0;
+			byte[] bytes = fasta.toString().getBytes();
+			List<String> expected = expectedKmers(fasta.toString(), k, skipN);
+
+			List<String> iterated = new ArrayList<>();
+			try (KMerIterator km = new ByteKMerIterator(k, new InputStreamByteSource(new ByteArrayInputStream(bytes), 1 + random.nextInt(8)), skipN)) {
+				while (km.hasNext()) {
+					iterated.add(new String(km.next()));
+				}
+			}
+			assertThat(iterated, equalTo(expected));
+
+			List<String> scanned = new ArrayList<>();
+			try (ByteKMerIterator km = new ByteKMerIterator(k, new InputStreamByteSource(new ByteArrayInputStream(bytes), 1 + random.nextInt(8)), skipN)) {
+				km.scan(new KMerVisitor() {
+					@Override
+					public void visit(byte[] kmer, int kmerOffset, byte[] reverseComplement, int reverseComplementOffset) {
+						scanned.add(new String(kmer, kmerOffset, k));
+					}
+
+					@Override
+					public void visitPacked(long kmer, long reverseComplement) {
+						throw new UnsupportedOperationException();
+					}
+				});
+			}
+			assertThat(scanned, equalTo(expected));
+		}
+	}
+
+	@Test(expected = UncheckedIOException.class)
+	public void shouldRethrowReadErrors() throws IOException {
+		ByteSource truncated = new ByteSource() {
+			private boolean isRead = false;
+
+			@Override
+			public ByteBuffer nextBuffer() throws IOException {
+				if (this.isRead) {
+					throw new IOException("unexpected end of stream");
+				}
+				this.isRead = true;
+				return ByteBuffer.wrap(">header\nACGTACGTAC".getBytes());
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		try (KMerIterator km = new ByteKMerIterator(3, truncated, true)) {
+			while (km.hasNext()) {
+				km.next();
+			}
+		}
+	}
+
+	@Test
+	public void shouldNotCreateKmers() throws IOException {
+		try (KMerIterator km = new ByteKMerIterator(21, "src/test/resources/fastaWithTwoShortSeq.fasta", true)) {
+			assertThat(km.hasNext(), equalTo(false));
+		}
+	}
+
+	@Test
+	public void shouldHandleWindowsLineBreaks() throws IOException {
+		String fasta = ">header1\r\nACTG\r\nNACT\r\n>header2\r\nANNT\r\nGCCA\r\n";
+		assertSameKmers(
+				new LineKMerIterator(3, new BufferedReader(new InputStreamReader(new ByteArrayInputStream(fasta.getBytes()))), true),
+				new ByteKMerIterator(3, new ByteArrayInputStream(fasta.getBytes()), true));
+	}
+
+	@Test
+	public void testFullFunctionality() throws IOException {
+		for (String fasta : new String[]{
+				">header1\nACTG\nNACT\n>header2\nANNT\nGCCA\n",
+				">header1\nACTG\nNACT\nCTG\n",
+				">header1\nACTN\nNACT\nA\n"}) {
+			for (int k = 1; k <= 4; k++) {
+				assertSameKmers(
+						new LineKMerIterator(k, new BufferedReader(new InputStreamReader(new ByteArrayInputStream(fasta.getBytes()))), true),
+						new ByteKMerIterator(k, new ByteArrayInputStream(fasta.getBytes()), true));
+			}
+		}
+	}
+
+	@Test
+	public void scanShouldVisitSameKmersAsIteration() throws IOException {
+		for (String file : new String[]{"fastaWith2Seq.fasta", "fastaWithMultipleAmbSeq.fasta", "virus1.fasta"}) {
+			for (int k : new int[]{1, 8, 21}) {
+				for (int bufferSize : new int[]{3, 1 << 16}) {
+					String path = "src/test/resources/" + file;
+					List<String> expected = new ArrayList<>();
+					try (KMerIterator km = new ByteKMerIterator(k, path, true)) {
+						while (km.hasNext()) {
+							expected.add(new String(km.next()) + "/" + new String(km.getReverseComplement()));
+						}
+					}
+					List<String> actual = new ArrayList<>();
+					try (ByteKMerIterator km = new ByteKMerIterator(k, new InputStreamByteSource(FileUtils.getInputStreamPossiblyZIPorGZIP(path), bufferSize), true)) {
+						km.scan(new KMerVisitor() {
+							@Override
+							public void visit(byte[] kmer, int kmerOffset, byte[] reverseComplement, int reverseComplementOffset) {
+								actual.add(new String(kmer, kmerOffset, k) + "/" + new String(reverseComplement, reverseComplementOffset, k));
+							}
+
+							@Override
+							public void visitPacked(long kmer, long reverseComplement) {
+								throw new UnsupportedOperationException();
+							}
+						});
+						assertThat(km.hasNext(), equalTo(false));
+					}
+					assertThat(actual, equalTo(expected));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void packedScanShouldVisitSameKmersAsIteration() throws IOException {
+		for (int k : new int[]{1, 8, 21, 32}) {
+			String path = "src/test/resources/fastaWithMultipleAmbSeq.fasta";
+			List<String> expected = new ArrayList<>();
+			try (PackedKMerIterator km = new PackedKMerIterator(k, path)) {
+				while (km.hasNext()) {
+					km.next();
+					expected.add(km.getPackedKMer() + "/" + km.getPackedReverseComplement());
+				}
+			}
+			List<String> actual = new ArrayList<>();
+			try (PackedKMerIterator km = new PackedKMerIterator(k, new InputStreamByteSource(FileUtils.getInputStreamPossiblyZIPorGZIP(path), 5))) {
+				km.scan(new KMerVisitor() {
+					@Override
+					public void visit(byte[] kmer, int kmerOffset, byte[] reverseComplement, int reverseComplementOffset) {
+						throw new UnsupportedOperationException();
+					}
+
+					@Override
+					public void visitPacked(long kmer, long reverseComplement) {
+						actual.add(kmer + "/" + reverseComplement);
+					}
+				});
+			}
+			assertThat(actual, equalTo(expected));
+		}
+	}
+}
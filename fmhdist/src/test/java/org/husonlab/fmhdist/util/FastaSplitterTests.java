@@ -0,0 +1,62 @@
+package org.husonlab.fmhdist.util;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class FastaSplitterTests {
+	private Set<String> getKmers(KMerIterator km) throws IOException {
+		Set<String> result = new HashSet<>();
+		while (km.hasNext()) {
+			result.add(new String(km.next()));
+		}
+		km.close();
+		return result;
+	}
+
+	@Test
+	public void rangesShouldContainSameKmersAsFile() throws IOException {
+		for (String file : new String[]{"fastaWith1Seq.fasta", "fastaWith2Seq.fasta", "fastaWithAmbSeq.fasta", "fastaWithMultipleAmbSeq.fasta"}) {
+			String path = "src/test/resources/" + file;
+			for (int k : new int[]{3, 21}) {
+				Set<String> expected = getKmers(new LineKMerIterator(k, path, true));
+				for (int parts = 2; parts <= 16; parts++) {
+					List<FastaSplitter.Range> ranges = FastaSplitter.split(path, k, parts, 1);
+					assertThat(ranges.size(), greaterThan(1));
+
+					Set<String> kmers = new HashSet<>();
+					Set<String> packedKmers = new HashSet<>();
+					for (FastaSplitter.Range range : ranges) {
+						kmers.addAll(getKmers(new LineKMerIterator(k, new BufferedReader(new InputStreamReader(FastaSplitter.openRange(path, range))), true)));
+						packedKmers.addAll(getKmers(new PackedKMerIterator(k, FastaSplitter.openRange(path, range))));
+					}
+					assertThat(kmers, equalTo(expected));
+					assertThat(packedKmers, equalTo(getKmers(new PackedKMerIterator(k, path))));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void shouldNotSplitSmallFiles() throws IOException {
+		List<FastaSplitter.Range> ranges = FastaSplitter.split("src/test/resources/fastaWith2Seq.fasta", 21, 8);
+		assertThat(ranges, hasSize(1));
+		assertThat(ranges.get(0).getStart(), equalTo(0L));
+		assertThat(ranges.get(0).getEnd(), equalTo(989L));
+	}
+
+	@Test
+	public void shouldDetectSplittableFiles() {
+		assertThat(FastaSplitter.isSplittable("src/test/resources/virus1.fasta"), equalTo(true));
+		assertThat(FastaSplitter.isSplittable("src/test/resources/doesNotExist.fasta"), equalTo(false));
+		assertThat(FastaSplitter.isSplittable("https://ftp.ncbi.nlm.nih.gov/genomes/all/test.fna.gz"), equalTo(false));
+	}
+}
@@ -0,0 +1,163 @@
+package org.husonlab.fmhdist.util;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class GenomeCacheTests {
+	private final AtomicInteger requests = new AtomicInteger();
+
+	private HttpServer serve() throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", exchange -> {
+			requests.incrementAndGet();
+			if (exchange.getRequestURI().getPath().contains("missing")) {
+				exchange.sendResponseHeaders(404, -1);
+				exchange.close();
+				return;
+			}
+			// 100 bytes per file
+			byte[] content = new byte[100];
+			Arrays.fill(content, (byte) exchange.getRequestURI().getPath().charAt(1));
+			exchange.sendResponseHeaders(200, content.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(content);
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	private String url(HttpServer server, String name) {
+		return String.format("http://localhost:%d/%s.fna.gz", server.getAddress().getPort(), name);
+	}
+
+	private Path createDirectory() throws IOException {
+		Path directory = Files.createTempDirectory("genomes");
+		directory.toFile().deleteOnExit();
+		return directory;
+	}
+
+	@Test
+	public void shouldDownloadOnlyOnce() throws IOException {
+		HttpServer server = serve();
+		try {
+			Path directory = createDirectory();
+			GenomeCache cache = new GenomeCache(directory, 1000);
+			assertThat(cache.contains("GCF_1", url(server, "a")), equalTo(false));
+			try (GenomeCache.Entry entry = cache.get("GCF_1", url(server, "a"))) {
+				assertThat(Files.readAllBytes(entry.getPath())[0], equalTo((byte) 'a'));
+				assertThat(entry.getPath().toString(), endsWith(".fna.gz"));
+			}
+			try (GenomeCache.Entry entry = cache.get("GCF_1", url(server, "a"))) {
+				assertThat(Files.size(entry.getPath()), equalTo(100L));
+			}
+			assertThat(requests.get(), equalTo(1));
+			assertThat(cache.contains("GCF_1", url(server, "a")), equalTo(true));
+
+			// same URL, other accession
+			cache.get("GCF_2", url(server, "a")).close();
+			assertThat(requests.get(), equalTo(2));
+
+			// entries are found again after a restart
+			cache = new GenomeCache(directory, 1000);
+			cache.get("GCF_1", url(server, "a")).close();
+			assertThat(requests.get(), equalTo(2));
+			assertThat(cache.getSize(), equalTo(200L));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void shouldEvictLeastRecentlyUsedFiles() throws IOException {
+		HttpServer server = serve();
+		try {
+			GenomeCache cache = new GenomeCache(createDirectory(), 250);
+			cache.get("a", url(server, "a")).close();
+			cache.get("b", url(server, "b")).close();
+			cache.get("a", url(server, "a")).close();
+			cache.get("c", url(server, "c")).close();
+			assertThat(cache.getSize(), equalTo(200L));
+			assertThat(cache.contains("a", url(server, "a")), equalTo(true));
+			assertThat(cache.contains("b", url(server, "b")), equalTo(false));
+			assertThat(cache.contains("c", url(server, "c")), equalTo(true));
+
+			// files in use are not evicted
+			GenomeCache.Entry a = cache.get("a", url(server, "a"));
+			GenomeCache.Entry c = cache.get("c", url(server, "c"));
+			cache.get("d", url(server, "d")).close();
+			assertThat(Files.exists(a.getPath()), equalTo(true));
+			assertThat(Files.exists(c.getPath()), equalTo(true));
+			assertThat(cache.contains("d", url(server, "d")), equalTo(false));
+			a.close();
+			c.close();
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void shouldNotKeepFailedDownloads() throws IOException {
+		HttpServer server = serve();
+		try {
+			Path directory = createDirectory();
+			Files.createFile(directory.resolve("interrupted.fna.gz.part"));
+			GenomeCache cache = new GenomeCache(directory, 1000);
+			try {
+				cache.get("missing", url(server, "missing"));
+			} catch (FileNotFoundException e) {
+				// expected
+			}
+			assertThat(cache.contains("missing", url(server, "missing")), equalTo(false));
+			assertThat(cache.getSize(), equalTo(0L));
+			File[] files = directory.toFile().listFiles();
+			assertThat(files.length, equalTo(0));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void shouldDownloadConcurrentRequestsOnce() throws Exception {
+		HttpServer server = serve();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			GenomeCache cache = new GenomeCache(createDirectory(), 10000);
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < 64; i++) {
+				final String name = String.valueOf((char) ('a' + i % 4));
+				futures.add(executor.submit(() -> {
+					cache.get(name, url(server, name)).close();
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			assertThat(requests.get(), equalTo(4));
+			// the locks of the files are released
+			assertThat(cache.getLockCount(), equalTo(0));
+		} finally {
+			executor.shutdown();
+			server.stop(0);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package org.husonlab.fmhdist.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class LongHashSetTests {
+	@Test
+	public void shouldDeduplicateValues() {
+		LongHashSet set = new LongHashSet();
+		assertThat(set.add(5), equalTo(true));
+		assertThat(set.add(-3), equalTo(true));
+		assertThat(set.add(5), equalTo(false));
+		assertThat(set.add(0), equalTo(true));
+		assertThat(set.add(0), equalTo(false));
+		assertThat(set.size(), equalTo(3));
+		assertThat(set.contains(0), equalTo(true));
+		assertThat(set.contains(4), equalTo(false));
+		assertThat(set.toSortedArray(), equalTo(new long[]{-3, 0, 5}));
+	}
+
+	@Test
+	public void shouldBehaveLikeTreeSet() {
+		Random random = new Random(42);
+		LongHashSet set = new LongHashSet(4);
+		TreeSet<Long> expected = new TreeSet<>();
+		for (int i = 0; i < 100000; i++) {
+			// only few distinct values in the lower part of the range, similar
+			// to the hash values of a sketch
+			long value = Long.MIN_VALUE + random.nextInt(50000) * 1024L;
+			assertThat(set.add(value), equalTo(expected.add(value)));
+		}
+
+		long[] result = set.toSortedArray();
+		assertThat(result.length, equalTo(expected.size()));
+		int pos = 0;
+		for (long value : expected) {
+			assertThat(result[pos++], equalTo(value));
+		}
+	}
+
+	@Test
+	public void shouldReportPeakMemory() {
+		LongHashSet set = new LongHashSet(10);
+		long initial = set.getPeakMemory();
+		for (int i = 1; i <= 1000; i++) {
+			set.add(i);
+		}
+		assertThat(set.getPeakMemory(), greaterThan(initial));
+		assertThat(set.getPeakMemory(), greaterThanOrEqualTo(1000L * Long.BYTES));
+	}
+}
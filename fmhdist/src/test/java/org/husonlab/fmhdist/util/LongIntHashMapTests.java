@@ -0,0 +1,43 @@
+package org.husonlab.fmhdist.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class LongIntHashMapTests {
+	@Test
+	public void shouldStoreValues() {
+		LongIntHashMap map = new LongIntHashMap();
+		map.put(5, 1);
+		map.put(-3, 2);
+		map.put(0, 3);
+		map.put(5, 4);
+		assertThat(map.size(), equalTo(3));
+		assertThat(map.get(5, -1), equalTo(4));
+		assertThat(map.get(-3, -1), equalTo(2));
+		assertThat(map.get(0, -1), equalTo(3));
+		assertThat(map.get(7, -1), equalTo(-1));
+		assertThat(new LongIntHashMap().get(0, -1), equalTo(-1));
+	}
+
+	@Test
+	public void shouldBehaveLikeHashMap() {
+		Random random = new Random(42);
+		LongIntHashMap map = new LongIntHashMap(4);
+		Map<Long, Integer> expected = new HashMap<>();
+		for (int i = 0; i < 100000; i++) {
+			long key = Long.MIN_VALUE + random.nextInt(50000) * 1024L;
+			map.put(key, i);
+			expected.put(key, i);
+		}
+		assertThat(map.size(), equalTo(expected.size()));
+		for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+			assertThat(map.get(entry.getKey(), -1), equalTo(entry.getValue()));
+		}
+	}
+}
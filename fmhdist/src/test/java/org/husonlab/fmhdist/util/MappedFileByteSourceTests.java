@@ -0,0 +1,65 @@
+package org.husonlab.fmhdist.util;
+
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class MappedFileByteSourceTests {
+	private static final String FILE = "src/test/resources/fastaWith2Seq.fasta";
+
+	private byte[] readAll(ByteSource source) throws IOException {
+		StringBuilder result = new StringBuilder();
+		ByteBuffer buffer;
+		while ((buffer = source.nextBuffer()) != null) {
+			byte[] chunk = new byte[buffer.remaining()];
+			buffer.get(buffer.position(), chunk);
+			result.append(new String(chunk));
+		}
+		source.close();
+		return result.toString().getBytes();
+	}
+
+	@Test
+	public void shouldMapFileInSegments() throws IOException {
+		byte[] expected = Files.readAllBytes(Paths.get(FILE));
+		assertThat(readAll(new MappedFileByteSource(FILE)), equalTo(expected));
+		for (long segmentSize : new long[]{1, 7, 100, 1 << 20}) {
+			assertThat(readAll(new MappedFileByteSource(FILE, 0, -1, null, segmentSize)), equalTo(expected));
+		}
+	}
+
+	@Test
+	public void shouldMapRangeWithPrefix() throws IOException {
+		byte[] bytes = Files.readAllBytes(Paths.get(FILE));
+		byte[] result = readAll(new MappedFileByteSource(FILE, 10, 20, ">\n".getBytes(), 3));
+		assertThat(new String(result), equalTo(">\n" + new String(bytes, 10, 10)));
+	}
+
+	@Test
+	public void kmersShouldNotDependOnSegments() throws IOException {
+		for (long segmentSize : new long[]{1, 5, 64}) {
+			try (KMerIterator reference = new ByteKMerIterator(21, new FileInputStream(FILE), true);
+				 KMerIterator km = new ByteKMerIterator(21, new MappedFileByteSource(FILE, 0, -1, null, segmentSize), true);
+				 PackedKMerIterator packedReference = new PackedKMerIterator(21, new FileInputStream(FILE));
+				 PackedKMerIterator packed = new PackedKMerIterator(21, new MappedFileByteSource(FILE, 0, -1, null, segmentSize))) {
+				while (reference.hasNext()) {
+					assertThat(km.hasNext(), equalTo(true));
+					assertThat(new String(km.next()), equalTo(new String(reference.next())));
+				}
+				assertThat(km.hasNext(), equalTo(false));
+				while (packedReference.hasNext()) {
+					assertThat(packed.hasNext(), equalTo(true));
+					assertThat(packed.nextCanonical(), equalTo(packedReference.nextCanonical()));
+				}
+				assertThat(packed.hasNext(), equalTo(false));
+			}
+		}
+	}
+}
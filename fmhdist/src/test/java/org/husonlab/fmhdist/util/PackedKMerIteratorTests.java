@@ -0,0 +1,97 @@
+package org.husonlab.fmhdist.util;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class PackedKMerIteratorTests {
+	@Test
+	public void shouldIterateSameKmersAsLineKMerIterator() throws IOException {
+		for (String file : new String[]{"fastaWith1Seq.fasta", "fastaWith2Seq.fasta", "fastaWithAmbSeq.fasta"}) {
+			List<String> expected = new ArrayList<>();
+			try (KMerIterator km = new LineKMerIterator(21, "src/test/resources/" + file, true)) {
+				while (km.hasNext()) {
+					expected.add(new String(km.next()) + new String(km.getReverseComplement()));
+				}
+			}
+
+			List<String> kmers = new ArrayList<>();
+			try (KMerIterator km = new PackedKMerIterator(21, "src/test/resources/" + file)) {
+				while (km.hasNext()) {
+					kmers.add(new String(km.next()) + new String(km.getReverseComplement()));
+				}
+			}
+			assertThat(kmers, equalTo(expected));
+		}
+	}
+
+	@Test
+	public void shouldSelectCanonicalKmer() throws IOException {
+		String fasta = ">header1\nACTT\n";
+		PackedKMerIterator km = new PackedKMerIterator(4, new ByteArrayInputStream(fasta.getBytes()));
+		assertThat(km.hasNext(), equalTo(true));
+		long canonical = km.nextCanonical();
+		// reverse complement is AAGT, which is smaller than ACTT
+		assertThat(canonical, equalTo(km.getPackedReverseComplement()));
+		assertThat(canonical, equalTo(0b00_00_10_11L));
+		assertThat(km.hasNext(), equalTo(false));
+		km.close();
+	}
+
+	@Test
+	public void shouldSupportMaximumK() throws IOException {
+		String fasta = ">header1\nTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTG\n";
+		PackedKMerIterator km = new PackedKMerIterator(32, new ByteArrayInputStream(fasta.getBytes()));
+		assertThat(new String(km.next()), equalTo("TTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTT"));
+		assertThat(new String(km.getReverseComplement()), equalTo("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA"));
+		assertThat(new String(km.next()), equalTo("TTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTG"));
+		assertThat(new String(km.getReverseComplement()), equalTo("CAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA"));
+		assertThat(km.hasNext(), equalTo(false));
+		km.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectLargeK() throws IOException {
+		new PackedKMerIterator(33, new ByteArrayInputStream(">header1\nACGT\n".getBytes()));
+	}
+
+	@Test
+	public void shouldHandleLastLineWithoutLineBreak() throws IOException {
+		try (KMerIterator km = new PackedKMerIterator(3, "src/test/resources/fastaWithTwoShortSeq.fasta")) {
+			int i = 0;
+			while (km.hasNext()) {
+				km.next();
+				i++;
+			}
+			assertThat(i, equalTo(16 + 8));
+		}
+	}
+
+	@Test
+	public void testFullFunctionality() throws IOException {
+		String fasta = ">header1\nACTG\nNACT\n>header2\nANNT\nGCCA\n";
+		KMerIterator km = new PackedKMerIterator(3, new ByteArrayInputStream(fasta.getBytes()));
+		KMerIterator reference = new LineKMerIterator(3, new BufferedReader(new InputStreamReader(new ByteArrayInputStream(fasta.getBytes()))), true);
+		while (reference.hasNext()) {
+			assertThat(km.hasNext(), equalTo(true));
+			assertThat(new String(km.next()), equalTo(new String(reference.next())));
+			assertThat(new String(km.getReverseComplement()), equalTo(new String(reference.getReverseComplement())));
+			assertThat(km.getCoordinates().getRecordIndexInFile(), equalTo(reference.getCoordinates().getRecordIndexInFile()));
+			assertThat(km.getCoordinates().getSequenceIndexInFile(), equalTo(reference.getCoordinates().getSequenceIndexInFile()));
+			assertThat(km.getCoordinates().getSequenceIndexInRecord(), equalTo(reference.getCoordinates().getSequenceIndexInRecord()));
+			assertThat(km.getCoordinates().getSequenceIndexInFileIncludingAmbiguous(), equalTo(reference.getCoordinates().getSequenceIndexInFileIncludingAmbiguous()));
+			assertThat(km.getCoordinates().getSequenceIndexInRecordIncludingAmbiguous(), equalTo(reference.getCoordinates().getSequenceIndexInRecordIncludingAmbiguous()));
+		}
+		assertThat(km.hasNext(), equalTo(false));
+		km.close();
+		reference.close();
+	}
+}
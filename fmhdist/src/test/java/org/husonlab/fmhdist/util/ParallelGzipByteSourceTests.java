@@ -0,0 +1,232 @@
+package org.husonlab.fmhdist.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ParallelGzipByteSourceTests {
+	private byte[] readAll(ByteSource source) throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		ByteBuffer buffer;
+		while ((buffer = source.nextBuffer()) != null) {
+			byte[] chunk = new byte[buffer.remaining()];
+			buffer.get(buffer.position(), chunk);
+			result.write(chunk);
+		}
+		source.close();
+		return result.toByteArray();
+	}
+
+	private byte[] createContent(int size) {
+		// pseudo FASTA content that compresses like a genome
+		Random random = new Random(42);
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = i % 81 == 80 ? (byte) '\n' : (byte) "ACGT".charAt(random.nextInt(4));
+		}
+		return content;
+	}
+
+	private byte[] gzip(byte[] content, int from, int to) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+			out.write(content, from, to - from);
+		}
+		return bytes.toByteArray();
+	}
+
+	private byte[] bgzfBlock(byte[] content, int from, int to, int level) {
+		Deflater deflater = new Deflater(level, true);
+		deflater.setInput(content, from, to - from);
+		deflater.finish();
+		byte[] compressed = new byte[2 * (to - from) + 64];
+		int length = deflater.deflate(compressed);
+		deflater.end();
+
+		CRC32 crc = new CRC32();
+		crc.update(content, from, to - from);
+
+		ByteBuffer block = ByteBuffer.allocate(18 + length + 8).order(ByteOrder.LITTLE_ENDIAN);
+		block.put(new byte[]{0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff});
+		block.putShort((short) 6).put((byte) 'B').put((byte) 'C').putShort((short) 2);
+		block.putShort((short) (block.capacity() - 1));
+		block.put(compressed, 0, length);
+		block.putInt((int) crc.getValue());
+		block.putInt(to - from);
+		return block.array();
+	}
+
+	private File write(byte[]... parts) throws IOException {
+		File file = Files.createTempFile("fmhdist", ".gz").toFile();
+		file.deleteOnExit();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (byte[] part : parts) {
+			bytes.write(part);
+		}
+		Files.write(file.toPath(), bytes.toByteArray());
+		return file;
+	}
+
+	@Test
+	public void shouldInflateBgzf() throws IOException {
+		byte[] content = createContent(1 << 20);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (int from = 0; from < content.length; from += 60000) {
+			bytes.write(bgzfBlock(content, from, Math.min(content.length, from + 60000), Deflater.DEFAULT_COMPRESSION));
+		}
+		// BGZF files end with an empty block
+		bytes.write(bgzfBlock(content, 0, 0, Deflater.DEFAULT_COMPRESSION));
+		File file = write(bytes.toByteArray());
+
+		for (int threads : new int[]{1, 4}) {
+			ParallelGzipByteSource source = new ParallelGzipByteSource(file.getPath(), threads);
+			assertThat(source.isBgzf(), equalTo(true));
+			assertThat(readAll(source), equalTo(content));
+		}
+	}
+
+	@Test
+	public void shouldInflateMultiMemberGzip() throws IOException {
+		byte[] content = createContent(500000);
+		File file = write(gzip(content, 0, 100000), gzip(content, 100000, 100001), gzip(content, 100001, 400000), gzip(content, 400000, 500000));
+
+		ParallelGzipByteSource source = new ParallelGzipByteSource(file.getPath(), 3);
+		assertThat(source.isBgzf(), equalTo(false));
+		assertThat(readAll(source), equalTo(content));
+	}
+
+	@Test
+	public void shouldInflateSingleMemberGzip() throws IOException {
+		byte[] content = createContent(300000);
+		File file = write(gzip(content, 0, content.length));
+		assertThat(readAll(new ParallelGzipByteSource(file.getPath(), 2)), equalTo(content));
+	}
+
+	@Test
+	public void shouldFallBackOnWrongSplit() throws IOException {
+		// the uncompressed (stored) member contains something that looks like
+		// a gzip header
+		byte[] content = createContent(100000);
+		byte[] fakeHeader = new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 3};
+		System.arraycopy(fakeHeader, 0, content, 5000, fakeHeader.length);
+		byte[] stored = bgzfBlock(content, 0, 60000, Deflater.NO_COMPRESSION);
+		// remove the BGZF marker, so the file is treated as multi-member gzip
+		stored[12] = 'X';
+		File file = write(stored, gzip(content, 60000, content.length));
+
+		byte[] expected;
+		try (GZIPInputStream in = new GZIPInputStream(new FileInputStream(file))) {
+			expected = in.readAllBytes();
+		}
+		assertThat(expected, equalTo(content));
+		assertThat(readAll(new ParallelGzipByteSource(file.getPath(), 2)), equalTo(content));
+	}
+
+	@Test(expected = IOException.class)
+	public void shouldFailOnTruncatedFile() throws IOException {
+		byte[] content = createContent(300000);
+		byte[] second = gzip(content, 100000, content.length);
+		// the last 4 bytes of the truncated member are read as its size
+		File file = write(gzip(content, 0, 100000), Arrays.copyOf(second, second.length / 2));
+		readAll(new ParallelGzipByteSource(file.getPath(), 2));
+	}
+
+	@Test
+	public void shouldFailOnWrongChecksum() throws IOException {
+		byte[] content = createContent(100000);
+		byte[] block = bgzfBlock(content, 0, 60000, Deflater.DEFAULT_COMPRESSION);
+		block[block.length - 8] ^= 1;
+		File file = write(bgzfBlock(content, 0, 1000, Deflater.DEFAULT_COMPRESSION), block);
+		try {
+			readAll(new ParallelGzipByteSource(file.getPath(), 2));
+			assertThat("expected an IOException", false);
+		} catch (IOException e) {
+			assertThat(e.getMessage(), equalTo(String.format("corrupt gzip member at offset %d: CRC32 does not match trailer", file.length() - block.length)));
+		}
+	}
+
+	@Test
+	public void shouldStopProducerOnClose() throws IOException, InterruptedException {
+		byte[] content = createContent(1 << 20);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (int from = 0; from < content.length; from += 1000) {
+			bytes.write(bgzfBlock(content, from, Math.min(content.length, from + 1000), Deflater.DEFAULT_COMPRESSION));
+		}
+		File file = write(bytes.toByteArray());
+
+		List<Throwable> errors = new CopyOnWriteArrayList<>();
+		Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler((thread, e) -> errors.add(e));
+		try {
+			for (int i = 0; i < 200; i++) {
+				ParallelGzipByteSource source = new ParallelGzipByteSource(file.getPath(), 2);
+				if (i % 2 == 0) {
+					source.nextBuffer();
+				}
+				source.close();
+			}
+			long deadline = System.currentTimeMillis() + 5000;
+			while (isProducerRunning() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertThat(isProducerRunning(), equalTo(false));
+			assertThat(errors, empty());
+		} finally {
+			Thread.setDefaultUncaughtExceptionHandler(handler);
+		}
+	}
+
+	private boolean isProducerRunning() {
+		return Thread.getAllStackTraces().keySet().stream().anyMatch(thread -> thread.getName().equals("inflate-producer"));
+	}
+
+	@Test
+	public void shouldDetectLocalGzipFiles() throws IOException {
+		File file = write(gzip(new byte[]{'A'}, 0, 1));
+		assertThat(ParallelGzipByteSource.isLocalGzipFile(file.getPath()), equalTo(true));
+		assertThat(ParallelGzipByteSource.isLocalGzipFile("src/test/resources/virus1.fasta"), equalTo(false));
+	}
+
+	@Test
+	public void prefetchShouldProvideSameContent() throws IOException {
+		byte[] content = createContent(100000);
+		for (int bufferSize : new int[]{1, 100, 1 << 16}) {
+			assertThat(readAll(new PrefetchByteSource(new ByteArrayInputStream(content), bufferSize, 3)), equalTo(content));
+		}
+	}
+
+	@Test
+	public void kmersShouldNotDependOnDecompression() throws IOException {
+		String fasta = "src/test/resources/fastaWith2Seq.fasta";
+		byte[] content = Files.readAllBytes(Paths.get(fasta));
+		File file = write(gzip(content, 0, 300), gzip(content, 300, content.length));
+
+		try (KMerIterator reference = new ByteKMerIterator(21, fasta, true);
+			 KMerIterator km = new ByteKMerIterator(21, new ParallelGzipByteSource(file.getPath(), 2), true)) {
+			while (reference.hasNext()) {
+				assertThat(km.hasNext(), equalTo(true));
+				assertThat(new String(km.next()), equalTo(new String(reference.next())));
+			}
+			assertThat(km.hasNext(), equalTo(false));
+		}
+	}
+}